@@ -0,0 +1,705 @@
+package Citas;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * PROGRAMA: Benchmarks del sistema de citas
+ * -----------------------------------------
+ * Mide los caminos "calientes" del sistema para poder detectar regresiones de rendimiento:
+ * - CsvStorage.cargarCitas / guardarCitas, y el snapshot binario (guardarSnapshot / cargarSnapshot)
+ * - Particiones por mes: guardar solo un mes contra guardar todos, y cargar todos contra una ventana de un mes
+ * - Archivo de citas pasadas: consultar una ventana de un mes contra todo el archivo
+ * - Sistema.validarIntegridad sobre 1M citas con algunas huérfanas y un id repetido
+ * - splitSemi / esc / unesc (y el Tokenizador que los reemplaza en la carga)
+ * - Sistema.crearCita con 10k / 100k / 1M citas ya existentes
+ * - Sistema.reprogramarCita y cancelarCita (+ crearCita en el turno liberado) con 100k citas
+ * - Sistema.buscarHuecos (primeros turnos libres por especialidad)
+ * - Series de citas: crearSerie (52 semanas) y crearCita / citasDeDoctorEntre con series
+ * - Consultas por índice: citasDePaciente / citasEntre (una página y un stream completo)
+ * - UserManager.login, sha256 y validación de tokens de sesión (sesionPorToken)
+ * - Memoria por cita cargada: objetos sin y con deduplicación de textos, y AlmacenCitas (heapPorCita)
+ * - Conteos por rango (IndiceFechas.contarEntre) y por doctor (AlmacenCitas.contarDeDoctor)
+ *
+ * Los datos se generan de forma sintética en una carpeta temporal (no toca la carpeta "db").
+ *
+ * Cómo se ejecuta (desde la carpeta que contiene "Citas"):
+ *   javac -encoding UTF-8 -d out Citas/*.java
+ *   java -Xmx4g -cp out Citas.Benchmarks                 (todos)
+ *   java -Xmx4g -cp out Citas.Benchmarks crearCita login (solo los que contienen esos textos)
+ *
+ * Propiedades opcionales:
+ * - -Dbench.tamanos=10000,100000,1000000 : citas existentes para crearCita
+ * - -Dbench.citasArchivo=100000          : citas en el archivo para cargar/guardar
+ * - -Dbench.segundos=1                   : duración de cada medición
+ * - -Dbench.forks=0                      : todo en este mismo JVM (ver abajo)
+ *
+ * Cada caso se calienta (warmup) y luego se mide en varias iteraciones; se reporta
+ * el promedio en ns/op y las operaciones por segundo.
+ *
+ * Aislamiento y límites (no es JMH):
+ * - Cada grupo (benchCrearCita, benchSeries, ...) corre en su propio JVM, con las mismas
+ *   opciones de JVM que este, para que el JIT y el heap de un grupo no afecten a los que
+ *   siguen. Los casos DENTRO de un grupo sí comparten JVM y se miden en el orden del
+ *   código (ej: crearCita[10000] calienta el código que luego usa crearCita[1000000]).
+ *   Con -Dbench.forks=0 todos los grupos comparten un JVM y el orden cambia los resultados.
+ * - Los casos que modifican el Sistema (crearCita, crearSerie, reprogramarCita,
+ *   cancelarCita+crearCita) guardan los datos una vez y los vuelven a cargar antes de cada
+ *   iteración (fuera de la medición), así que todas las iteraciones parten del mismo estado.
+ *   Dentro de una iteración el estado sí crece (~1 s de altas).
+ * - Se reporta solo el promedio, sin margen de error: diferencias de pocos por ciento entre
+ *   dos corridas son ruido. El sumidero evita que el JIT elimine el resultado, pero no es
+ *   un Blackhole; la medición incluye el costo del ciclo y de System.nanoTime().
+ */
+public class Benchmarks {
+
+    /** Iteraciones de calentamiento y de medición por caso. */
+    static final int ITERACIONES_WARMUP = 2;
+    static final int ITERACIONES_MEDIDAS = 3;
+
+    /** Duración aproximada de cada iteración (en nanosegundos). */
+    static final long NANOS_POR_ITERACION =
+            (long) (Double.parseDouble(System.getProperty("bench.segundos", "1")) * 1_000_000_000L);
+
+    /**
+     * "Sumidero" de resultados: evita que el JIT elimine el código medido
+     * porque su resultado nunca se usa.
+     */
+    static long sumidero = 0;
+
+    /**
+     * INTERFAZ Caso
+     * -------------
+     * Una operación a medir. Regresa cualquier número derivado del resultado (va al sumidero).
+     */
+    interface Caso {
+        long ejecutar() throws Exception;
+    }
+
+    /**
+     * INTERFAZ Preparacion
+     * --------------------
+     * Deja el estado listo antes de cada iteración de un caso (no se mide).
+     */
+    interface Preparacion {
+        void preparar() throws Exception;
+    }
+
+    /**
+     * INTERFAZ Grupo
+     * --------------
+     * Un método bench*() (varios casos que comparten datos sintéticos).
+     */
+    interface Grupo {
+        void correr(List<String> filtros, File carpeta) throws Exception;
+    }
+
+    /** Grupos en el orden en que se corren; cada uno en su propio JVM (ver main). */
+    static final Map<String, Grupo> GRUPOS = new LinkedHashMap<>();
+    static {
+        GRUPOS.put("codificacion", Benchmarks::benchCodificacion);
+        GRUPOS.put("archivoCitas", Benchmarks::benchArchivoCitas);
+        GRUPOS.put("particiones", Benchmarks::benchParticiones);
+        GRUPOS.put("archivo", Benchmarks::benchArchivo);
+        GRUPOS.put("integridad", Benchmarks::benchIntegridad);
+        GRUPOS.put("crearCita", Benchmarks::benchCrearCita);
+        GRUPOS.put("cancelarReprogramar", Benchmarks::benchCancelarReprogramar);
+        GRUPOS.put("buscarHuecos", Benchmarks::benchBuscarHuecos);
+        GRUPOS.put("series", Benchmarks::benchSeries);
+        GRUPOS.put("consultas", Benchmarks::benchConsultas);
+        GRUPOS.put("login", Benchmarks::benchLogin);
+        GRUPOS.put("heap", Benchmarks::reporteHeap);
+    }
+
+    /**
+     * main()
+     * ------
+     * Corre los benchmarks cuyo nombre contiene alguno de los filtros de args (o todos si no hay filtros).
+     *
+     * Por defecto lanza un JVM hijo por grupo (con -Dbench.grupo=<grupo>) y espera a que
+     * termine; el hijo corre solo ese grupo e imprime sus filas. Con -Dbench.forks=0 corre
+     * todos los grupos aquí mismo.
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> filtros = Arrays.asList(args);
+        String grupo = System.getProperty("bench.grupo");
+        if (grupo != null) {
+            correrGrupos(filtros, Collections.singletonList(grupo));
+            return;
+        }
+
+        System.out.printf("%-40s %14s %14s%n", "Benchmark", "ns/op", "ops/s");
+        if ("0".equals(System.getProperty("bench.forks"))) {
+            correrGrupos(filtros, new ArrayList<>(GRUPOS.keySet()));
+            return;
+        }
+        for (String g : GRUPOS.keySet()) {
+            int codigo = enOtroJvm(g, args);
+            if (codigo != 0) throw new IllegalStateException("El grupo " + g + " terminó con código " + codigo);
+        }
+    }
+
+    /** Corre los grupos dados en este JVM, con datos sintéticos en una carpeta temporal. */
+    private static void correrGrupos(List<String> filtros, List<String> grupos) throws Exception {
+        File carpeta = Files.createTempDirectory("citas-bench").toFile();
+        try {
+            for (String g : grupos) {
+                Grupo grupo = GRUPOS.get(g);
+                if (grupo == null) throw new IllegalArgumentException("Grupo desconocido: " + g);
+                grupo.correr(filtros, carpeta);
+            }
+        } finally {
+            borrar(carpeta);
+        }
+        if (sumidero == 42) System.out.println();
+    }
+
+    /**
+     * enOtroJvm()
+     * -----------
+     * Corre un grupo en un JVM nuevo con las mismas opciones de JVM (-Xmx, -D...) y el mismo
+     * classpath que este; su salida va directo a la consola.
+     *
+     * @return código de salida del JVM hijo
+     */
+    private static int enOtroJvm(String grupo, String[] args) throws Exception {
+        List<String> comando = new ArrayList<>();
+        comando.add(ProcessHandle.current().info().command()
+                .orElse(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java"));
+        comando.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        comando.add("-Dbench.grupo=" + grupo);
+        comando.add("-cp");
+        comando.add(System.getProperty("java.class.path"));
+        comando.add(Benchmarks.class.getName());
+        comando.addAll(Arrays.asList(args));
+        return new ProcessBuilder(comando).inheritIO().start().waitFor();
+    }
+
+    // =======================
+    // CASOS
+    // =======================
+
+    /**
+     * benchCodificacion()
+     * -------------------
+     * esc / unesc / splitSemi sobre una línea típica de citas.csv, comparado con el Tokenizador.
+     */
+    static void benchCodificacion(List<String> filtros, File carpeta) throws Exception {
+        Main.CsvStorage st = new Main.CsvStorage(new File(carpeta, "esc").getPath());
+        String motivo = "Dolor de cabeza; revisión\nseguimiento";
+        String linea = "C123456;2026-02-08T10:30;" + st.esc(motivo) + ";D17;P4242";
+        Main.CsvStorage.Tokenizador tk = new Main.CsvStorage.Tokenizador();
+
+        medir(filtros, "esc", () -> st.esc(motivo).length());
+        medir(filtros, "unesc", () -> st.unesc("Dolor de cabeza\\; revisión\\nseguimiento").length());
+        medir(filtros, "splitSemi", () -> st.splitSemi(linea).length);
+        medir(filtros, "splitSemi+unesc", () -> {
+            String[] p = st.splitSemi(linea);
+            long n = 0;
+            for (String x : p) n += st.unesc(x).length();
+            return n;
+        });
+        medir(filtros, "Tokenizador.dividir", () -> {
+            int c = tk.dividir(linea);
+            long n = 0;
+            for (int i = 0; i < c; i++) n += tk.campo(i).length();
+            return n;
+        });
+    }
+
+    /**
+     * benchArchivoCitas()
+     * -------------------
+     * guardarCitas y cargarCitas (secuencial / paralelo) sobre un citas.csv sintético,
+     * comparados con guardarSnapshot / cargarSnapshot del mismo estado.
+     */
+    static void benchArchivoCitas(List<String> filtros, File carpeta) throws Exception {
+        if (!algunoCoincide(filtros, "guardarCitas", "cargarCitas", "Snapshot")) return;
+
+        int n = Integer.getInteger("bench.citasArchivo", 100_000);
+        File sub = new File(carpeta, "archivo");
+        Main.CsvStorage st = new Main.CsvStorage(sub.getPath());
+        List<Main.Cita> citas = generarCitas(n, 100);
+
+        List<Main.Doctor> doctores = new ArrayList<>();
+        List<Main.Paciente> pacientes = new ArrayList<>();
+        List<Main.Usuario> usuarios = new ArrayList<>();
+
+        medir(filtros, "guardarCitas[" + n + "]", () -> st.guardarCitas(citas));
+        st.guardarCitas(citas);
+        medir(filtros, "cargarCitas[" + n + "]", () -> st.cargarCitas().size());
+        medir(filtros, "cargarCitasParalelo[" + n + "]", () -> st.cargarCitasParalelo().size());
+
+        // El snapshot va después: solo es vigente si citas.csv no cambia después de escribirlo
+        medir(filtros, "guardarSnapshot[" + n + "]", () -> st.guardarSnapshot(doctores, pacientes, citas, usuarios));
+        st.guardarSnapshot(doctores, pacientes, citas, usuarios);
+        medir(filtros, "cargarSnapshot[" + n + "]", () -> st.cargarSnapshot().citas.size());
+    }
+
+    /**
+     * benchParticiones()
+     * ------------------
+     * Citas repartidas en 12 meses (12 particiones): guardar todas contra guardar solo un
+     * mes, y cargar todas contra cargar una ventana de un mes (cargarCitasEntre, que solo
+     * abre esa partición).
+     */
+    static void benchParticiones(List<String> filtros, File carpeta) throws Exception {
+        String[] nombres = { "guardarCitas[12 meses]", "guardarCitas[1 de 12 meses]", "cargarCitas[12 meses]",
+                "cargarCitas[ventana 1 mes]" };
+        if (!algunoCoincide(filtros, nombres)) return;
+
+        int n = Integer.getInteger("bench.citasArchivo", 100_000);
+        Main.CsvStorage st = new Main.CsvStorage(new File(carpeta, "particiones").getPath());
+        Main.AlmacenCitas citas = new Main.AlmacenCitas(n);
+        for (int i = 0; i < n; i++) {
+            int k = i / 12;
+            String fecha = java.time.LocalDateTime.of(2026, 1 + i % 12, 1, 8, 0).plusMinutes(30L * (k / 100)).toString();
+            citas.add(new Main.Cita("C" + i, fecha, MOTIVOS[i % MOTIVOS.length], "D" + (k % 100), "P" + (i % 5000)));
+        }
+        st.guardarCitas(citas);
+
+        Set<String> unMes = Collections.singleton("2026-05");
+        medir(filtros, nombres[0], () -> st.guardarCitas(citas));
+        medir(filtros, nombres[1], () -> st.guardarCitas(citas, unMes));
+        medir(filtros, nombres[2], () -> st.cargarAlmacenCitas().size());
+        java.time.LocalDateTime mayo = java.time.LocalDateTime.of(2026, 5, 1, 0, 0);
+        medir(filtros, nombres[3], () -> st.cargarCitasEntre(mayo, mayo.plusMonths(1)).size());
+    }
+
+    /**
+     * benchArchivo()
+     * --------------
+     * Citas de 12 meses movidas al archivo (12 segmentos): una consulta de un mes solo
+     * descomprime su segmento; la de todo el año, los 12.
+     */
+    static void benchArchivo(List<String> filtros, File carpeta) throws Exception {
+        String[] nombres = { "citasArchivadas[12 meses]", "citasArchivadas[ventana 1 mes]" };
+        if (!algunoCoincide(filtros, nombres)) return;
+
+        int n = Integer.getInteger("bench.citasArchivo", 100_000);
+        Main.CsvStorage st = new Main.CsvStorage(new File(carpeta, "archivo").getPath());
+        Main.AlmacenCitas citas = new Main.AlmacenCitas(n);
+        for (int i = 0; i < n; i++) {
+            int k = i / 12;
+            String fecha = java.time.LocalDateTime.of(2025, 1 + i % 12, 1, 8, 0).plusMinutes(30L * (k / 100)).toString();
+            citas.add(new Main.Cita("C" + i, fecha, MOTIVOS[i % MOTIVOS.length], "D" + (k % 100), "P" + (i % 5000)));
+        }
+        st.guardarCitas(citas);
+        java.time.LocalDateTime inicio = java.time.LocalDateTime.of(2025, 1, 1, 0, 0);
+        st.archivarCitas(inicio.plusYears(1));
+
+        java.time.LocalDateTime desde = java.time.LocalDateTime.of(2025, 5, 1, 0, 0);
+        medir(filtros, nombres[0], () -> st.citasArchivadas(inicio, inicio.plusYears(1)).size());
+        medir(filtros, nombres[1], () -> st.citasArchivadas(desde, desde.plusMonths(1)).size());
+    }
+
+    /**
+     * benchIntegridad()
+     * -----------------
+     * Sistema.validarIntegridad (solo reporte) sobre 1M citas cargadas, con una cita de un
+     * doctor inexistente cada 100k y un id repetido, para que se recorran todas las columnas.
+     */
+    static void benchIntegridad(List<String> filtros, File carpeta) throws Exception {
+        if (!algunoCoincide(filtros, "validarIntegridad")) return;
+
+        int n = 1_000_000;
+        File sub = new File(carpeta, "integridad");
+        Main.Sistema sistema = sistemaConDatos(sub, 1000, 5000);
+        sistema.guardarTodo();
+        List<Main.Cita> citas = generarCitas(n, 1000);
+        for (int i = 0; i < n; i += 100_000) {
+            Main.Cita c = citas.get(i);
+            citas.set(i, new Main.Cita(c.getId(), c.getFechaHora(), c.getMotivo(), "D-baja", c.getPacienteId()));
+        }
+        citas.add(new Main.Cita("C1", horario(n), "Repetida", "D1", "P1"));
+        new Main.CsvStorage(sub.getPath()).guardarCitas(citas);
+        citas.clear();
+
+        sistema.cargarTodo();
+        sistema.login("admin", "admin123");
+        medir(filtros, "validarIntegridad[" + n + "]", () -> sistema.validarIntegridad(false).getSinDoctor());
+    }
+
+    /**
+     * benchCrearCita()
+     * ----------------
+     * Sistema.crearCita con distintas cantidades de citas ya existentes.
+     * Cada operación crea una cita nueva (id único y horario libre), así que el sistema
+     * crece un poco durante una iteración; antes de cada iteración se vuelve a cargar lo
+     * guardado (ver recargar), así que todas empiezan con exactamente "existentes" citas.
+     */
+    static void benchCrearCita(List<String> filtros, File carpeta) throws Exception {
+        if (!algunoCoincide(filtros, "crearCita")) return;
+
+        for (String t : System.getProperty("bench.tamanos", "10000,100000,1000000").split(",")) {
+            int existentes = Integer.parseInt(t.trim());
+            int doctores = 1000;
+            File sub = new File(carpeta, "crear-" + existentes);
+            Main.Sistema sistema = sistemaConDatos(sub, doctores, 1000);
+            for (int i = 0; i < existentes; i++) {
+                sistema.crearCita("C" + i, horario(i / doctores), "Consulta", "D" + (i % doctores), "P" + (i % 1000));
+            }
+            sistema.guardarTodo();
+
+            int[] siguiente = { existentes };
+            medir(filtros, "crearCita[" + existentes + "]", () -> {
+                recargar(sistema, sub);
+                siguiente[0] = existentes;
+            }, () -> {
+                int i = siguiente[0]++;
+                return sistema.crearCita("C" + i, horario(i / doctores), "Consulta",
+                        "D" + (i % doctores), "P" + (i % 1000)).getId().length();
+            });
+        }
+    }
+
+    /**
+     * benchCancelarReprogramar()
+     * --------------------------
+     * Con 100k citas (100 seguidas por doctor, 1000 doctores):
+     * - reprogramarCita mueve cada cita 100 turnos adelante y, en la siguiente vuelta, de regreso.
+     * - cancelarCita+crearCita cancela una cita y crea otra (id nuevo) en el turno que liberó.
+     * Cada iteración parte de las 100k citas guardadas (ver recargar).
+     */
+    static void benchCancelarReprogramar(List<String> filtros, File carpeta) throws Exception {
+        if (!algunoCoincide(filtros, "reprogramarCita", "cancelarCita")) return;
+
+        int doctores = 1000;
+        int n = 100_000;
+        File sub = new File(carpeta, "cancelar");
+        Main.Sistema sistema = sistemaConDatos(sub, doctores, 1000);
+        for (int i = 0; i < n; i++) {
+            sistema.crearCita("C" + i, horario(i / doctores), "Consulta", "D" + (i % doctores), "P" + (i % 1000));
+        }
+        sistema.guardarTodo();
+
+        long[] op = { 0 };
+        Preparacion reiniciar = () -> {
+            recargar(sistema, sub);
+            op[0] = 0;
+        };
+        medir(filtros, "reprogramarCita[" + n + "]", reiniciar, () -> {
+            long k = op[0]++;
+            int i = (int) (k % n);
+            int turno = i / doctores + (k / n % 2 == 0 ? 100 : 0);
+            return sistema.reprogramarCita("C" + i, horario(turno)).getId().length();
+        });
+
+        medir(filtros, "cancelarCita+crearCita[" + n + "]", reiniciar, () -> {
+            long k = op[0]++;
+            int i = (int) (k % n);
+            long vuelta = k / n;
+            Main.Cita c = sistema.cancelarCita(vuelta == 0 ? "C" + i : "C" + i + "-" + vuelta);
+            return sistema.crearCita("C" + i + "-" + (vuelta + 1), c.getFechaHora(), "Consulta",
+                    c.getDoctorId(), c.getPacienteId()).getId().length();
+        });
+    }
+
+    /**
+     * benchBuscarHuecos()
+     * -------------------
+     * Sistema.buscarHuecos con 1000 doctores (200 por especialidad) y 100 citas seguidas por
+     * doctor: los primeros días están llenos, así que la búsqueda tiene que saltarlos.
+     */
+    static void benchBuscarHuecos(List<String> filtros, File carpeta) throws Exception {
+        if (!algunoCoincide(filtros, "buscarHuecos")) return;
+
+        int doctores = 1000;
+        int porDoctor = 100;
+        Main.Sistema sistema = sistemaConDatos(new File(carpeta, "huecos"), doctores, 1000);
+        for (int i = 0; i < doctores * porDoctor; i++) {
+            sistema.crearCita("C" + i, horario(i / doctores), "Consulta", "D" + (i % doctores), "P" + (i % 1000));
+        }
+
+        java.time.LocalDateTime desde = java.time.LocalDateTime.of(2026, 1, 1, 9, 0);
+        medir(filtros, "buscarHuecos[1]", () -> sistema.buscarHuecos("Cardiología", desde, 1).size());
+        medir(filtros, "buscarHuecos[20]", () -> sistema.buscarHuecos("Cardiología", desde, 20).size());
+    }
+
+    /**
+     * benchSeries()
+     * -------------
+     * Con 1000 doctores, 100 citas seguidas por doctor y 10 series semanales de 52 citas cada uno
+     * (520k ocurrencias que nunca se guardan como filas):
+     * - crearSerie revisa las 52 ocurrencias de una serie nueva contra agenda y series.
+     * - crearCita con series: el empalme también revisa las 10 series del doctor.
+     * - citasDeDoctorEntre de un mes, que arma solo las ocurrencias de ese mes.
+     * crearSerie y crearCita parten en cada iteración de lo guardado (ver recargar).
+     */
+    static void benchSeries(List<String> filtros, File carpeta) throws Exception {
+        if (!algunoCoincide(filtros, "crearSerie", "crearCita[series]", "citasDeDoctorEntre[series]")) return;
+
+        int doctores = 1000;
+        File sub = new File(carpeta, "series");
+        Main.Sistema sistema = sistemaConDatos(sub, doctores, 1000);
+        for (int i = 0; i < doctores * 100; i++) {
+            sistema.crearCita("C" + i, horario(i / doctores), "Consulta", "D" + (i % doctores), "P" + (i % 1000));
+        }
+        // Series a partir de 2027 (las citas sueltas se quedan en los primeros meses de 2026)
+        for (int i = 0; i < doctores * 10; i++) {
+            sistema.crearSerie("S" + i, horarioSerie(i / doctores), 7, 52, "Terapia", "D" + (i % doctores), "P" + (i % 1000));
+        }
+        sistema.guardarTodo();
+
+        int[] siguiente = { doctores * 10 };
+        int[] cita = { doctores * 100 };
+        Preparacion reiniciar = () -> {
+            recargar(sistema, sub);
+            siguiente[0] = doctores * 10;
+            cita[0] = doctores * 100;
+        };
+        medir(filtros, "crearSerie[52 semanas]", reiniciar, () -> {
+            int i = siguiente[0]++;
+            return sistema.crearSerie("S" + i, horarioSerie(i / doctores), 7, 52, "Terapia",
+                    "D" + (i % doctores), "P" + (i % 1000)).getRepeticiones();
+        });
+
+        medir(filtros, "crearCita[series]", reiniciar, () -> {
+            int i = cita[0]++;
+            return sistema.crearCita("C" + i, horario(i / doctores), "Consulta",
+                    "D" + (i % doctores), "P" + (i % 1000)).getId().length();
+        });
+
+        // Sin las series y citas que agregaron los casos anteriores
+        recargar(sistema, sub);
+        java.time.LocalDateTime mes = java.time.LocalDateTime.of(2027, 3, 1, 0, 0);
+        int[] doctor = { 0 };
+        medir(filtros, "citasDeDoctorEntre[series, 1 mes]", () ->
+                sistema.citasDeDoctorEntre("D" + (doctor[0]++ % doctores), mes, mes.plusMonths(1)).size());
+    }
+
+    /**
+     * Inicio de la serie número k de un doctor: un turno distinto de la semana (lun-dom, 48
+     * turnos por día) a partir del 2027-01-04; cuando se acaba la semana, 52 semanas después.
+     */
+    static String horarioSerie(int k) {
+        int porSemana = 7 * 48;
+        return java.time.LocalDateTime.of(2027, 1, 4, 0, 0)
+                .plusWeeks(52L * (k / porSemana)).plusMinutes(30L * (k % porSemana)).toString();
+    }
+
+    /**
+     * benchConsultas()
+     * ----------------
+     * Consultas sobre los índices secundarios con 100k citas (100 doctores, 1000 pacientes):
+     * una página del historial de un paciente, y todas las citas de un día (stream).
+     */
+    static void benchConsultas(List<String> filtros, File carpeta) throws Exception {
+        if (!algunoCoincide(filtros, "citasDePaciente", "citasEntre")) return;
+
+        int doctores = 100;
+        Main.Sistema sistema = sistemaConDatos(new File(carpeta, "consultas"), doctores, 1000);
+        for (int i = 0; i < 100_000; i++) {
+            sistema.crearCita("C" + i, horario(i / doctores), "Consulta", "D" + (i % doctores), "P" + (i % 1000));
+        }
+
+        java.time.LocalDateTime dia = java.time.LocalDateTime.of(2026, 1, 5, 0, 0);
+        int[] paciente = { 0 };
+        medir(filtros, "citasDePaciente.pagina[20]", () -> sistema.citasDePaciente("P" + (paciente[0]++ % 1000))
+                .pagina(3, 20).getCitas().size());
+        medir(filtros, "citasEntre.stream[1 día]", () -> sistema.citasEntre(dia, dia.plusDays(1)).stream().count());
+    }
+
+    /**
+     * benchLogin()
+     * ------------
+     * UserManager.login (correcto) con 1000 usuarios registrados, sha256 por separado, y
+     * sesionPorToken (lo que cuesta autenticar una petición que ya trae token).
+     */
+    static void benchLogin(List<String> filtros, File carpeta) throws Exception {
+        if (!algunoCoincide(filtros, "login", "sha256", "sesionPorToken")) return;
+
+        Main.Sistema sistema = new Main.Sistema(new File(carpeta, "login").getPath());
+        sistema.cargarTodo();
+        for (int i = 0; i < 1000; i++) sistema.registrarAdmin("A" + i, "admin" + i, "clave" + i);
+
+        Main.UserManager um = sistema.getUserManager();
+        medir(filtros, "login", () -> um.login("admin999", "clave999") ? 1 : 0);
+        medir(filtros, "sha256", () -> Main.sha256("clave999").length());
+        String token = um.emitirToken("admin999", "clave999");
+        medir(filtros, "sesionPorToken", () -> um.sesionPorToken(token).getUsuario().getId().length());
+    }
+
+    /**
+     * reporteHeap()
+     * -------------
+     * No es una medición de tiempo: carga el mismo citas.csv como objetos Cita (con el
+     * Internador desactivado y activado) y como AlmacenCitas (columnas), e imprime los bytes
+     * de heap que ocupa cada cita (incluyendo la lista y, con dedup, el mapa del Internador).
+     */
+    static void reporteHeap(List<String> filtros, File carpeta) throws Exception {
+        if (!algunoCoincide(filtros, "heapPorCita", "contarEntre", "contarDeDoctor")) return;
+
+        int n = Integer.getInteger("bench.citasArchivo", 100_000);
+        File sub = new File(carpeta, "heap");
+        new Main.CsvStorage(sub.getPath()).guardarCitas(generarCitas(n, 100));
+
+        for (boolean dedup : new boolean[] { false, true }) {
+            Main.CsvStorage st = new Main.CsvStorage(sub.getPath(), new Main.Internador(dedup));
+            long antes = heapUsado();
+            List<Main.Cita> citas = st.cargarCitas();
+            long despues = heapUsado();
+            sumidero += citas.size() + st.getInternador().tamano();
+
+            String nombre = "heapPorCita[objetos " + (dedup ? "con" : "sin") + " dedup]";
+            System.out.printf("%-40s %,14.1f bytes/cita%n", nombre, (despues - antes) / (double) n);
+        }
+
+        Main.CsvStorage st = new Main.CsvStorage(sub.getPath());
+        long antes = heapUsado();
+        Main.AlmacenCitas almacen = st.cargarAlmacenCitas();
+        long despues = heapUsado();
+        sumidero += almacen.size();
+        System.out.printf("%-40s %,14.1f bytes/cita%n", "heapPorCita[AlmacenCitas]", (despues - antes) / (double) n);
+
+        Main.IndiceFechas porFecha = new Main.IndiceFechas();
+        for (int f = 0; f < almacen.size(); f++) porFecha.agregar(almacen.minutos(f), f);
+        medir(filtros, "contarEntre[" + n + "]", () -> porFecha.contarEntre(
+                Main.AlmacenCitas.aMinutos(java.time.LocalDateTime.of(2026, 1, 2, 0, 0)),
+                Main.AlmacenCitas.aMinutos(java.time.LocalDateTime.of(2026, 1, 3, 0, 0))));
+        medir(filtros, "contarDeDoctor[" + n + "]", () -> almacen.contarDeDoctor("D17"));
+    }
+
+    /** Heap en uso después de forzar varias recolecciones de basura. */
+    private static long heapUsado() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // =======================
+    // DATOS SINTÉTICOS
+    // =======================
+
+    /**
+     * sistemaConDatos()
+     * -----------------
+     * Crea un Sistema vacío en la carpeta dada, con un admin logueado y los doctores/pacientes pedidos.
+     */
+    static Main.Sistema sistemaConDatos(File carpeta, int doctores, int pacientes) {
+        Main.Sistema sistema = new Main.Sistema(carpeta.getPath());
+        sistema.cargarTodo();
+        sistema.registrarAdmin("A1", "admin", "admin123");
+        sistema.login("admin", "admin123");
+        for (int i = 0; i < doctores; i++) {
+            sistema.altaDoctor(new Main.Doctor("D" + i, "Doctor " + i, ESPECIALIDADES[i % ESPECIALIDADES.length]));
+        }
+        for (int i = 0; i < pacientes; i++) {
+            sistema.altaPaciente(new Main.Paciente("P" + i, "Paciente " + i));
+        }
+        return sistema;
+    }
+
+    /**
+     * recargar()
+     * ----------
+     * Descarta lo que se agregó desde el último guardarTodo(): vacía journal.csv (las
+     * cancelaciones y reprogramaciones se anotan ahí aunque el modo journal esté apagado, y
+     * cargarTodo() las volvería a aplicar), vuelve a cargar de disco (desde snapshot.bin) y
+     * vuelve a iniciar la sesión del admin de sistemaConDatos.
+     *
+     * @param carpeta carpeta de datos del sistema
+     */
+    static void recargar(Main.Sistema sistema, File carpeta) {
+        // El journal del sistema se abrió en modo "agregar": sigue escribiendo al final del archivo vacío
+        new Main.CsvStorage(carpeta.getPath()).vaciarJournal();
+        sistema.cargarTodo();
+        sistema.login("admin", "admin123");
+    }
+
+    /**
+     * generarCitas()
+     * --------------
+     * Genera n citas sintéticas repartidas entre la cantidad de doctores indicada.
+     */
+    static List<Main.Cita> generarCitas(int n, int doctores) {
+        List<Main.Cita> citas = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            citas.add(new Main.Cita("C" + i, horario(i / doctores), MOTIVOS[i % MOTIVOS.length],
+                    "D" + (i % doctores), "P" + (i % 5000)));
+        }
+        return citas;
+    }
+
+    /** Horario número k de un doctor: cada 30 minutos a partir del 2026-01-01 08:00. */
+    static String horario(int k) {
+        return java.time.LocalDateTime.of(2026, 1, 1, 8, 0).plusMinutes(30L * k).toString();
+    }
+
+    static final String[] ESPECIALIDADES = { "Cardiología", "Pediatría", "Dermatología", "Neurología", "General" };
+
+    static final String[] MOTIVOS = {
+            "Consulta general", "Revisión; seguimiento", "Dolor de cabeza\nrecurrente", "Chequeo anual", "Vacuna"
+    };
+
+    // =======================
+    // HARNESS
+    // =======================
+
+    /**
+     * medir()
+     * -------
+     * Calienta y mide un caso (si pasa el filtro) e imprime ns/op y ops/s.
+     *
+     * Cada iteración repite el caso hasta cumplir NANOS_POR_ITERACION; el resultado reportado
+     * es el promedio de las iteraciones medidas.
+     */
+    static void medir(List<String> filtros, String nombre, Caso caso) throws Exception {
+        medir(filtros, nombre, null, caso);
+    }
+
+    /**
+     * medir() con preparación
+     * -----------------------
+     * Igual, pero llama a preparar antes de cada iteración (de warmup y medida), fuera del
+     * tiempo medido: para los casos que cambian el estado que miden.
+     */
+    static void medir(List<String> filtros, String nombre, Preparacion preparar, Caso caso) throws Exception {
+        if (!algunoCoincide(filtros, nombre)) return;
+
+        for (int i = 0; i < ITERACIONES_WARMUP; i++) iteracion(preparar, caso);
+
+        double nanosPorOp = 0;
+        for (int i = 0; i < ITERACIONES_MEDIDAS; i++) nanosPorOp += iteracion(preparar, caso);
+        nanosPorOp /= ITERACIONES_MEDIDAS;
+
+        System.out.printf("%-40s %,14.1f %,14.0f%n", nombre, nanosPorOp, 1_000_000_000.0 / nanosPorOp);
+    }
+
+    /** Ejecuta el caso durante ~NANOS_POR_ITERACION y regresa los ns promedio por operación. */
+    private static double iteracion(Preparacion preparar, Caso caso) throws Exception {
+        if (preparar != null) preparar.preparar();
+        long ops = 0;
+        long inicio = System.nanoTime();
+        long fin;
+        do {
+            sumidero += caso.ejecutar();
+            ops++;
+            fin = System.nanoTime();
+        } while (fin - inicio < NANOS_POR_ITERACION);
+        return (fin - inicio) / (double) ops;
+    }
+
+    /** true si no hay filtros o si algún nombre contiene alguno de los filtros. */
+    private static boolean algunoCoincide(List<String> filtros, String... nombres) {
+        if (filtros.isEmpty()) return true;
+        for (String f : filtros) {
+            for (String n : nombres) {
+                if (n.contains(f)) return true;
+            }
+        }
+        return false;
+    }
+
+    /** Borra la carpeta temporal de datos sintéticos. */
+    private static void borrar(File f) {
+        File[] hijos = f.listFiles();
+        if (hijos != null) for (File h : hijos) borrar(h);
+        f.delete();
+    }
+}
@@ -1,9 +1,56 @@
 package Citas;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * PROGRAMA: Sistema de administración de citas (consola)
@@ -19,8 +66,14 @@ import java.util.*;
  * Persistencia:
  * - doctors.csv
  * - pacientes.csv
- * - citas.csv
+ * - citas-YYYY-MM.csv (una partición por mes; citas-sin-fecha.csv para fechas inválidas)
  * - usuarios.csv
+ * - journal.csv (opcional, con --journal: cambios pendientes de compactar)
+ * - snapshot.bin (copia binaria de todo lo anterior, para arrancar más rápido)
+ * - citas.idx (opcional, con --lazy: índice de las particiones de citas para cargar por doctor)
+ * - archivo-NNNNNN.arc (citas pasadas ya archivadas: segmentos comprimidos de solo lectura)
+ * - cuarentena.csv (citas apartadas al cargar porque su doctor o paciente no existe, o su id se repite)
+ * - series.csv (citas que se repiten: una línea por serie, las citas se calculan al consultar)
  *
  * Separador de campos: ';'
  */
@@ -230,6 +283,353 @@ public class Main {
         public String getPacienteId() { return pacienteId; }
     }
 
+    /**
+     * CLASE SerieCitas
+     * ----------------
+     * Representa una cita que se repite (ej: terapia cada semana): la regla se guarda UNA vez
+     * y las citas concretas (ocurrencias) se calculan solo para el rango que se consulta.
+     *
+     * Responsabilidad:
+     * - Guardar la regla: id de la serie, fecha de la primera cita, cada cuántos días se
+     *   repite y cuántas veces en total.
+     * - Guardar los datos comunes: motivo, doctorId y pacienteId.
+     * - Calcular las ocurrencias con aritmética (inicio + k * periodo), sin crear objetos
+     *   Cita más que para las que se piden.
+     *
+     * Nota:
+     * - La ocurrencia k (desde 1) tiene id "<idSerie>#k", ej: S1#3 es la tercera.
+     * - Como el periodo es de al menos un día, las ocurrencias de una serie nunca se
+     *   empalman entre sí.
+     */
+    static class SerieCitas {
+        /** Máximo de repeticiones de una serie (unos 19 años si es semanal). */
+        static final int MAX_REPETICIONES = 1000;
+
+        private final String id;
+        private final String inicio;      // fecha de la primera cita, ISO-8601
+        private final int cadaDias;
+        private final int repeticiones;
+        private final String motivo;
+        private final String doctorId;
+        private final String pacienteId;
+
+        /** inicio en minutos desde 1970-01-01T00:00, y el periodo en minutos. */
+        private final long minutoInicio;
+        private final long periodo;
+
+        /** Valor de una ocurrencia cancelada en Excepciones.porOcurrencia. */
+        static final long CANCELADA = Long.MIN_VALUE;
+
+        /**
+         * Ocurrencias que ya no siguen la regla (canceladas o movidas). Se reemplaza completo en
+         * cada cambio (con el candado del doctor tomado), así que las consultas lo leen sin candado.
+         */
+        private volatile Excepciones excepciones = Excepciones.NINGUNA;
+
+        /**
+         * CLASE Excepciones
+         * -----------------
+         * Excepciones de una serie, de solo lectura:
+         * - porOcurrencia: número de ocurrencia (desde 0) -> minuto al que se movió, o CANCELADA.
+         * - minutosMovidas / movidas: las movidas ordenadas por su minuto nuevo, para buscar
+         *   por rango con búsqueda binaria (igual que las ocurrencias normales, sin recorrerlas).
+         */
+        private static final class Excepciones {
+            static final Excepciones NINGUNA = new Excepciones(new TreeMap<>());
+
+            final TreeMap<Integer, Long> porOcurrencia;
+            final long[] minutosMovidas;
+            final int[] movidas;
+
+            Excepciones(TreeMap<Integer, Long> porOcurrencia) {
+                this.porOcurrencia = porOcurrencia;
+                List<Map.Entry<Integer, Long>> lista = new ArrayList<>();
+                for (Map.Entry<Integer, Long> e : porOcurrencia.entrySet()) {
+                    if (e.getValue() != CANCELADA) lista.add(e);
+                }
+                lista.sort(Map.Entry.comparingByValue());
+                minutosMovidas = new long[lista.size()];
+                movidas = new int[lista.size()];
+                for (int i = 0; i < movidas.length; i++) {
+                    minutosMovidas[i] = lista.get(i).getValue();
+                    movidas[i] = lista.get(i).getKey();
+                }
+            }
+
+            /** Primera posición de minutosMovidas con minuto >= m. */
+            int primeraMovidaDesde(long m) {
+                int i = Arrays.binarySearch(minutosMovidas, m);
+                if (i < 0) return -(i + 1);
+                while (i > 0 && minutosMovidas[i - 1] == m) i--;
+                return i;
+            }
+        }
+
+        /**
+         * CONSTRUCTOR SerieCitas
+         * ----------------------
+         * Inicializa la serie y valida la regla.
+         *
+         * @param id Identificador único de la serie.
+         * @param inicio Fecha y hora de la primera cita (ej: 2026-02-08T10:30).
+         * @param cadaDias Días entre una cita y la siguiente (7 = semanal).
+         * @param repeticiones Cuántas citas tiene la serie en total.
+         * @param motivo Motivo de las citas.
+         * @param doctorId ID del doctor asociado.
+         * @param pacienteId ID del paciente asociado.
+         */
+        public SerieCitas(String id, String inicio, int cadaDias, int repeticiones,
+                          String motivo, String doctorId, String pacienteId) {
+            LocalDateTime t = parsearFechaHora(inicio);
+            if (t == null) throw new DatoInvalido("FechaHora inválida (usa ISO-8601, ej: 2026-02-08T10:30)");
+            if (cadaDias < 1) throw new DatoInvalido("La serie debe repetirse cada 1 día o más");
+            if (repeticiones < 1 || repeticiones > MAX_REPETICIONES) {
+                throw new DatoInvalido("Las repeticiones deben estar entre 1 y " + MAX_REPETICIONES);
+            }
+            this.id = id;
+            this.inicio = inicio;
+            this.cadaDias = cadaDias;
+            this.repeticiones = repeticiones;
+            this.motivo = motivo;
+            this.doctorId = doctorId;
+            this.pacienteId = pacienteId;
+            this.minutoInicio = AlmacenCitas.aMinutos(t);
+            this.periodo = cadaDias * 24L * 60;
+        }
+
+        /** ID de la serie. */
+        public String getId() { return id; }
+
+        /** Fecha y hora de la primera cita (en texto). */
+        public String getInicio() { return inicio; }
+
+        /** Días entre una cita y la siguiente. */
+        public int getCadaDias() { return cadaDias; }
+
+        /** Cuántas citas tiene la serie en total. */
+        public int getRepeticiones() { return repeticiones; }
+
+        /** Motivo de las citas de la serie. */
+        public String getMotivo() { return motivo; }
+
+        /** ID del doctor asociado. */
+        public String getDoctorId() { return doctorId; }
+
+        /** ID del paciente asociado. */
+        public String getPacienteId() { return pacienteId; }
+
+        /** Minuto en que empieza la ocurrencia k (desde 0) según la regla, sin excepciones. */
+        long minutoDe(int k) {
+            return minutoInicio + k * periodo;
+        }
+
+        /** true si la ocurrencia k (desde 0) existe y no está cancelada. */
+        boolean vigente(int k) {
+            if (k < 0 || k >= repeticiones) return false;
+            Long m = excepciones.porOcurrencia.get(k);
+            return m == null || m != CANCELADA;
+        }
+
+        /** Minuto en que empieza de verdad la ocurrencia k (ya movida, si se movió). */
+        private long minutoEfectivo(int k) {
+            Long m = excepciones.porOcurrencia.get(k);
+            return m == null ? minutoDe(k) : m;
+        }
+
+        /**
+         * cancelarOcurrencia() / moverOcurrencia()
+         * ----------------------------------------
+         * Registran una excepción a la regla para la ocurrencia k (desde 0), sin validar
+         * empalmes (eso lo hace Sistema). Se llaman con el candado del doctor tomado.
+         */
+        void cancelarOcurrencia(int k) {
+            conExcepcion(k, CANCELADA);
+        }
+
+        /** Ver cancelarOcurrencia(). */
+        void moverOcurrencia(int k, long minuto) {
+            conExcepcion(k, minuto);
+        }
+
+        private void conExcepcion(int k, long valor) {
+            TreeMap<Integer, Long> nuevas = new TreeMap<>(excepciones.porOcurrencia);
+            nuevas.put(k, valor);
+            excepciones = new Excepciones(nuevas);
+        }
+
+        /**
+         * excepcionesTexto()
+         * ------------------
+         * Excepciones como se guardan en la columna 8 de series.csv: "número=X" para una
+         * ocurrencia cancelada y "número=fechaHora" para una movida, separadas por coma
+         * (el número es el del id de la ocurrencia, desde 1). Vacío si no hay ninguna.
+         */
+        String excepcionesTexto() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<Integer, Long> e : excepciones.porOcurrencia.entrySet()) {
+                if (sb.length() > 0) sb.append(',');
+                sb.append(e.getKey() + 1).append('=');
+                if (e.getValue() == CANCELADA) sb.append('X');
+                else sb.append(AlmacenCitas.deMinutos(e.getValue()));
+            }
+            return sb.toString();
+        }
+
+        /**
+         * cargarExcepciones()
+         * -------------------
+         * Lee el formato de excepcionesTexto(). Las entradas que no se entienden (número
+         * fuera de la serie, fecha inválida) se ignoran, igual que las líneas inválidas.
+         */
+        void cargarExcepciones(String texto) {
+            TreeMap<Integer, Long> nuevas = new TreeMap<>();
+            for (String entrada : texto.split(",")) {
+                int igual = entrada.indexOf('=');
+                if (igual <= 0) continue;
+                int k;
+                try {
+                    k = Integer.parseInt(entrada.substring(0, igual).trim()) - 1;
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (k < 0 || k >= repeticiones) continue;
+                String valor = entrada.substring(igual + 1).trim();
+                if (valor.equals("X")) {
+                    nuevas.put(k, CANCELADA);
+                } else {
+                    LocalDateTime t = parsearFechaHora(valor);
+                    if (t != null) nuevas.put(k, AlmacenCitas.aMinutos(t));
+                }
+            }
+            excepciones = nuevas.isEmpty() ? Excepciones.NINGUNA : new Excepciones(nuevas);
+        }
+
+        /**
+         * primeraDesde()
+         * --------------
+         * Primera ocurrencia (desde 0) que empieza en o después de ese minuto;
+         * repeticiones si ya no hay ninguna.
+         */
+        int primeraDesde(long minuto) {
+            if (minuto <= minutoInicio) return 0;
+            long k = Math.floorDiv(minuto - minutoInicio + periodo - 1, periodo);
+            return (int) Math.min(k, repeticiones);
+        }
+
+        /**
+         * contarEntre()
+         * -------------
+         * Cuántas ocurrencias empiezan en [desde, hasta), sin recorrerlas: las de la regla,
+         * menos las que tienen excepción, más las movidas que caen en el rango.
+         */
+        int contarEntre(long desde, long hasta) {
+            if (hasta <= desde) return 0;
+            int primera = primeraDesde(desde);
+            int fin = primeraDesde(hasta);
+            Excepciones e = excepciones;
+            if (e == Excepciones.NINGUNA) return fin - primera;
+            int n = fin - primera - e.porOcurrencia.subMap(primera, fin).size();
+            return n + e.primeraMovidaDesde(hasta) - e.primeraMovidaDesde(desde);
+        }
+
+        /**
+         * empalme()
+         * ---------
+         * Misma regla que AgendaDoctor.empalme: busca una ocurrencia que empiece a menos de
+         * duracion minutos de ese minuto. Solo hace falta revisar la primera ocurrencia
+         * después de (minuto - duracion), porque las demás están al menos un día más lejos.
+         *
+         * Las ocurrencias movidas se buscan aparte, por su minuto nuevo.
+         *
+         * @return número de ocurrencia (desde 0), o -1 si no choca con ninguna.
+         */
+        int empalme(long minuto, int duracion) {
+            return empalme(minuto, duracion, -1);
+        }
+
+        /** Igual que empalme(minuto, duracion), sin contar la ocurrencia excluida (al moverla). */
+        int empalme(long minuto, int duracion, int excluida) {
+            Excepciones e = excepciones;
+            int k = primeraDesde(minuto - duracion + 1);
+            if (k < repeticiones && minutoDe(k) < minuto + duracion && k != excluida
+                    && !e.porOcurrencia.containsKey(k)) {
+                return k;
+            }
+            for (int i = e.primeraMovidaDesde(minuto - duracion + 1);
+                 i < e.movidas.length && e.minutosMovidas[i] < minuto + duracion; i++) {
+                if (e.movidas[i] != excluida) return e.movidas[i];
+            }
+            return -1;
+        }
+
+        /**
+         * ocupados()
+         * ----------
+         * Turnos de un día (mismo formato que OcupacionDoctor.ocupados) con los que chocan
+         * las ocurrencias de la serie. Una ocurrencia que no empieza en un turno exacto ocupa
+         * también el siguiente, que puede ser el primero del día siguiente.
+         *
+         * @param dia días desde 1970-01-01
+         */
+        long ocupados(long dia) {
+            int turnoMin = OcupacionDoctor.TURNO_MINUTOS;
+            int porDia = OcupacionDoctor.TURNOS_POR_DIA;
+            long primerTurno = dia * porDia;
+            long desde = primerTurno * turnoMin - turnoMin + 1;
+            long hasta = (primerTurno + porDia) * turnoMin;
+            Excepciones e = excepciones;
+            long bits = 0;
+            for (int k = primeraDesde(desde); k < repeticiones && minutoDe(k) < hasta; k++) {
+                if (!e.porOcurrencia.containsKey(k)) bits |= turnosDe(minutoDe(k), primerTurno);
+            }
+            for (int i = e.primeraMovidaDesde(desde); i < e.movidas.length && e.minutosMovidas[i] < hasta; i++) {
+                bits |= turnosDe(e.minutosMovidas[i], primerTurno);
+            }
+            return bits;
+        }
+
+        /** Bits de los turnos del día (que empieza en primerTurno) que ocupa una cita en el minuto m. */
+        private static long turnosDe(long m, long primerTurno) {
+            int turnoMin = OcupacionDoctor.TURNO_MINUTOS;
+            long turno = Math.floorDiv(m, turnoMin) - primerTurno;
+            long bits = 0;
+            if (turno >= 0) bits |= 1L << turno;
+            if (Math.floorMod(m, turnoMin) != 0 && turno + 1 < OcupacionDoctor.TURNOS_POR_DIA) bits |= 1L << (turno + 1);
+            return bits;
+        }
+
+        /**
+         * ocurrencia()
+         * ------------
+         * Arma la cita concreta número k (desde 0): id "<idSerie>#(k+1)", con la fecha a la
+         * que se movió si se movió. k debe estar vigente.
+         */
+        Cita ocurrencia(int k) {
+            return new Cita(id + "#" + (k + 1), AlmacenCitas.deMinutos(minutoEfectivo(k)).toString(), motivo, doctorId, pacienteId);
+        }
+
+        /**
+         * agregarOcurrencias()
+         * --------------------
+         * Agrega a la lista las ocurrencias que empiezan en [desde, hasta), en orden: sin
+         * las canceladas, y las movidas según su fecha nueva.
+         */
+        void agregarOcurrencias(long desde, long hasta, List<Cita> destino) {
+            if (hasta <= desde) return;
+            Excepciones e = excepciones;
+            int antes = destino.size();
+            for (int k = primeraDesde(desde), fin = primeraDesde(hasta); k < fin; k++) {
+                if (!e.porOcurrencia.containsKey(k)) destino.add(ocurrencia(k));
+            }
+            int movidas = 0;
+            for (int i = e.primeraMovidaDesde(desde); i < e.movidas.length && e.minutosMovidas[i] < hasta; i++, movidas++) {
+                destino.add(ocurrencia(e.movidas[i]));
+            }
+            // Las ocurrencias siempre tienen fecha ISO: el orden de texto es el de fecha
+            if (movidas > 0) destino.subList(antes, destino.size()).sort(Comparator.comparing(Cita::getFechaHora));
+        }
+    }
+
     /**
      * CLASE Usuario
      * -------------
@@ -306,6 +706,75 @@ public class Main {
         }
     }
 
+    /**
+     * CLASE Sesion
+     * ------------
+     * Representa una sesión iniciada por un usuario (por ejemplo, un administrador en
+     * un mostrador de recepción).
+     *
+     * ¿Por qué existe?
+     * - Antes solo había UN usuario actual para todo el programa, así que solo podía
+     *   trabajar una persona a la vez.
+     * - Ahora cada operador tiene su propia Sesion y la pasa a las operaciones de Sistema;
+     *   varias sesiones pueden trabajar al mismo tiempo.
+     *
+     * Nota:
+     * - Es inmutable, así que se puede compartir entre hilos sin problema.
+     */
+    static class Sesion {
+        private final Usuario usuario;
+        private final long inicioMillis;
+
+        /**
+         * CONSTRUCTOR Sesion
+         * ------------------
+         * @param usuario usuario que inició la sesión (ya verificado).
+         */
+        public Sesion(Usuario usuario) {
+            this.usuario = usuario;
+            this.inicioMillis = System.currentTimeMillis();
+        }
+
+        /** Devuelve el usuario de la sesión. */
+        public Usuario getUsuario() { return usuario; }
+
+        /** Momento en que se inició la sesión (milisegundos desde 1970). */
+        public long getInicioMillis() { return inicioMillis; }
+
+        /** Indica si el usuario de la sesión es ADMIN. */
+        public boolean esAdmin() { return usuario.esAdmin(); }
+    }
+
+    // =======================
+    // ERRORES
+    // =======================
+
+    /**
+     * CLASE DatoInvalido
+     * ------------------
+     * Una operación se rechaza por los datos que recibió (id repetido, empalme, fecha
+     * inválida, parámetro que falta, ...): es culpa de quien la pidió, no del sistema.
+     * La API HTTP responde 400; cualquier otra RuntimeException (un CSV dañado, un error
+     * de disco, un bug) responde 500.
+     */
+    static class DatoInvalido extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        DatoInvalido(String mensaje) { super(mensaje); }
+    }
+
+    /**
+     * CLASE AccesoDenegado
+     * --------------------
+     * La sesión existe pero no tiene permiso para la operación (ej: no es ADMIN).
+     * La API HTTP responde 403.
+     */
+    static class AccesoDenegado extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        AccesoDenegado(String mensaje) { super(mensaje); }
+    }
+
     // =======================
     // USER MANAGER
     // =======================
@@ -321,13 +790,34 @@ public class Main {
      *
      * ¿Por qué existe?
      * - Para separar la lógica de usuarios del resto del sistema (doctores/pacientes/citas).
+     *
+     * Sesiones:
+     * - iniciarSesion() regresa una Sesion independiente; así varios operadores pueden
+     *   trabajar al mismo tiempo, cada uno con la suya.
+     * - login()/logout()/getUsuarioActual() siguen existiendo para el menú de consola:
+     *   manejan una sola "sesión de consola".
+     *
+     * Tokens:
+     * - emitirToken() verifica la contraseña UNA vez y regresa un token (ver ServicioTokens);
+     *   después, sesionPorToken() recupera la sesión sin volver a calcular SHA-256.
+     *
+     * Hilos:
+     * - La lista de usuarios es CopyOnWriteArrayList: se lee muchísimo (login) y casi
+     *   nunca se modifica, así que las lecturas no necesitan candado.
+     * - El índice username -> Usuario es un ConcurrentHashMap (login en O(1), sin recorrer la lista).
      */
     static class UserManager {
         /** Lista de usuarios registrados en el sistema. */
-        private List<Usuario> usuarios = new ArrayList<>();
+        private List<Usuario> usuarios = new CopyOnWriteArrayList<>();
+
+        /** Índice username -> Usuario (si hay usernames repetidos en el archivo, gana el primero). */
+        private Map<String, Usuario> usuariosPorUsername = new ConcurrentHashMap<>();
 
-        /** Usuario que inició sesión actualmente. Si es null, no hay sesión. */
-        private Usuario usuarioActual = null;
+        /** Tokens de sesión emitidos (para clientes que no son la consola, como la API HTTP). */
+        private final ServicioTokens tokens = new ServicioTokens();
+
+        /** Sesión del menú de consola. Si es null, no hay sesión. */
+        private volatile Sesion sesionConsola = null;
 
         /**
          * registrarAdmin()
@@ -342,92 +832,159 @@ public class Main {
          * @param id ID del usuario.
          * @param username Username único.
          * @param password Contraseña en texto plano (se hashea).
+         * @return el usuario creado (ya con su hash).
          */
-        public void registrarAdmin(String id, String username, String password) {
-            for (Usuario u : usuarios) {
-                if (u.getUsername().equals(username)) {
-                    throw new RuntimeException("Username ya existe");
-                }
+        public synchronized Usuario registrarAdmin(String id, String username, String password) {
+            if (usuariosPorUsername.containsKey(username)) {
+                throw new DatoInvalido("Username ya existe");
             }
             String hash = sha256(password);
-            usuarios.add(new Usuario(id, username, hash, "ADMIN"));
+            Usuario nuevo = new Usuario(id, username, hash, "ADMIN");
+            usuarios.add(nuevo);
+            usuariosPorUsername.put(username, nuevo);
+            return nuevo;
         }
 
         /**
-         * login()
-         * -------
-         * Intenta iniciar sesión con username y password.
+         * iniciarSesion()
+         * ---------------
+         * Verifica username y password y, si son correctos, crea una Sesion nueva.
+         * No toca la sesión de consola, así que se puede llamar desde varios hilos.
          *
          * Flujo:
-         * 1) Busca el usuario por username.
+         * 1) Busca el usuario por username (en el índice, O(1)).
          * 2) Si lo encuentra, verifica el password (comparando hashes).
-         * 3) Si es correcto, asigna usuarioActual y regresa true.
+         * 3) Si es correcto, regresa una Sesion para ese usuario.
+         *
+         * Métricas: cuenta como UserManager.login; una contraseña incorrecta cuenta como error.
+         *
+         * @param username Nombre de usuario.
+         * @param password Contraseña en texto plano.
+         * @return la sesión, o null si los datos son incorrectos.
+         */
+        public Sesion iniciarSesion(String username, String password) {
+            long t0 = Metricas.LOGIN.inicio();
+            Usuario u = username == null ? null : usuariosPorUsername.get(username);
+            Sesion s = u != null && u.verificarPassword(password) ? new Sesion(u) : null;
+            Metricas.LOGIN.fin(t0, s != null);
+            return s;
+        }
+
+        /**
+         * emitirToken()
+         * -------------
+         * Verifica username y password (una sola vez) y emite un token de sesión.
+         *
+         * @return el token, o null si los datos son incorrectos.
+         */
+        public String emitirToken(String username, String password) {
+            Sesion s = iniciarSesion(username, password);
+            return s == null ? null : tokens.emitir(s);
+        }
+
+        /**
+         * sesionPorToken()
+         * ----------------
+         * Sesión de un token vigente, sin volver a verificar la contraseña.
+         *
+         * @return la sesión, o null si el token no existe o ya venció.
+         */
+        public Sesion sesionPorToken(String token) { return tokens.validar(token); }
+
+        /** Invalida un token (logout de un cliente). */
+        public void revocarToken(String token) { tokens.revocar(token); }
+
+        /**
+         * login()
+         * -------
+         * Inicia la sesión de consola (ver iniciarSesion).
          *
          * @param username Nombre de usuario.
          * @param password Contraseña en texto plano.
          * @return true si inició sesión, false si falló.
          */
         public boolean login(String username, String password) {
-            for (Usuario u : usuarios) {
-                if (u.getUsername().equals(username)) {
-                    if (u.verificarPassword(password)) {
-                        usuarioActual = u;
-                        return true;
-                    }
-                    return false;
-                }
-            }
-            return false;
+            Sesion s = iniciarSesion(username, password);
+            if (s == null) return false;
+            sesionConsola = s;
+            return true;
         }
 
         /**
          * logout()
          * --------
-         * Cierra la sesión actual poniendo usuarioActual en null.
+         * Cierra la sesión de consola.
          */
-        public void logout() { usuarioActual = null; }
+        public void logout() { sesionConsola = null; }
 
         /**
          * estaAutenticado()
          * -----------------
-         * Indica si hay un usuario logueado actualmente.
+         * Indica si hay un usuario logueado en la consola.
          *
-         * @return true si usuarioActual != null
+         * @return true si hay sesión de consola.
          */
-        public boolean estaAutenticado() { return usuarioActual != null; }
+        public boolean estaAutenticado() { return sesionConsola != null; }
 
         /**
          * esAdmin()
          * ---------
-         * Valida si el usuario actual existe y además tiene rol ADMIN.
+         * Valida si hay sesión de consola y además tiene rol ADMIN.
          *
          * @return true si hay sesión y es ADMIN, false en otro caso.
          */
         public boolean esAdmin() {
-            if (usuarioActual == null) return false;
-            return usuarioActual.esAdmin();
+            Sesion s = sesionConsola;
+            return s != null && s.esAdmin();
         }
 
+        /**
+         * getSesionActual()
+         * -----------------
+         * Devuelve la sesión de consola (o null si no hay).
+         */
+        public Sesion getSesionActual() { return sesionConsola; }
+
         /**
          * getUsuarioActual()
          * ------------------
-         * Devuelve el usuario actualmente logueado (o null si no hay).
+         * Devuelve el usuario logueado en la consola (o null si no hay).
          *
          * @return Usuario actual o null.
          */
-        public Usuario getUsuarioActual() { return usuarioActual; }
+        public Usuario getUsuarioActual() {
+            Sesion s = sesionConsola;
+            return s == null ? null : s.getUsuario();
+        }
 
         /**
          * setUsuarios()
          * -------------
          * Reemplaza la lista de usuarios (por ejemplo, después de cargar del CSV).
-         * Por seguridad, reinicia la sesión (usuarioActual = null).
+         * Por seguridad, reinicia la sesión de consola e invalida todos los tokens.
          *
          * @param users lista de usuarios cargados.
          */
-        public void setUsuarios(List<Usuario> users) {
-            this.usuarios = users;
-            this.usuarioActual = null;
+        public synchronized void setUsuarios(List<Usuario> users) {
+            Map<String, Usuario> porUsername = new ConcurrentHashMap<>(users.size() * 2);
+            for (Usuario u : users) porUsername.putIfAbsent(u.getUsername(), u);
+            this.usuarios = new CopyOnWriteArrayList<>(users);
+            this.usuariosPorUsername = porUsername;
+            this.sesionConsola = null;
+            tokens.revocarTodos();
+        }
+
+        /**
+         * agregarUsuario()
+         * ----------------
+         * Agrega un usuario ya con su hash (se usa al reaplicar el journal).
+         *
+         * @return false si el username ya existía (no se agrega).
+         */
+        synchronized boolean agregarUsuario(Usuario u) {
+            if (usuariosPorUsername.putIfAbsent(u.getUsername(), u) != null) return false;
+            usuarios.add(u);
+            return true;
         }
 
         /**
@@ -440,66 +997,599 @@ public class Main {
         public List<Usuario> getUsuarios() { return usuarios; }
     }
 
-    // =======================
-    // STORAGE CSV
-    // =======================
-
     /**
-     * CLASE CsvStorage
-     * ---------------
-     * Se encarga de la persistencia a archivos CSV (texto plano).
+     * CLASE ServicioTokens
+     * --------------------
+     * Tokens de sesión para clientes que hacen muchas peticiones (la API HTTP): la
+     * contraseña se verifica (SHA-256) una vez al emitir el token, y cada petición
+     * después solo presenta el token.
      *
-     * Responsabilidades:
-     * - Crear la carpeta si no existe.
-     * - Guardar y cargar:
-     *   - doctores
-     *   - pacientes
-     *   - citas
-     *   - usuarios
+     * Formato del token: "<id>.<secreto>", ambos aleatorios (SecureRandom) en Base64 URL.
+     * - El id es la llave del mapa (ConcurrentHashMap): buscarlo es O(1).
+     * - El secreto se compara con MessageDigest.isEqual, que tarda lo mismo sin importar
+     *   en qué byte difiere: medir tiempos de respuesta no ayuda a adivinarlo.
      *
-     * Nota:
-     * - Usamos ';' como separador para evitar problemas comunes con comas en nombres.
-     * - Implementamos un "escape" muy simple para manejar ';' y saltos de línea.
+     * Vencimiento:
+     * - Un token vence después de DURACION_MILLIS sin usarse (cada uso lo renueva).
+     * - Los vencidos se borran al intentar usarlos y, de vez en cuando, al emitir uno nuevo.
+     *
+     * Los tokens viven solo en memoria: al reiniciar el programa hay que volver a entrar.
      */
-    static class CsvStorage {
-        private final File doctorsFile;
-        private final File pacientesFile;
-        private final File citasFile;
-        private final File usuariosFile;
+    static class ServicioTokens {
+        /** Tiempo sin uso después del cual un token vence (30 minutos). */
+        static final long DURACION_MILLIS = 30 * 60 * 1000L;
+
+        /** Cada cuántos tokens emitidos se barren los vencidos. */
+        private static final int BARRER_CADA = 1024;
+
+        private final SecureRandom aleatorio = new SecureRandom();
+        private final Map<String, Entrada> porId = new ConcurrentHashMap<>();
+        private final AtomicInteger emitidos = new AtomicInteger();
+
+        /** Sesión de un token, su secreto y cuándo vence. */
+        private static class Entrada {
+            final Sesion sesion;
+            final byte[] secreto;
+            volatile long venceMillis;
+
+            Entrada(Sesion sesion, byte[] secreto, long venceMillis) {
+                this.sesion = sesion;
+                this.secreto = secreto;
+                this.venceMillis = venceMillis;
+            }
+        }
 
         /**
-         * CONSTRUCTOR CsvStorage
-         * ----------------------
-         * Define los archivos dentro de una carpeta (folderPath). Si la carpeta no existe,
-         * se crea automáticamente.
+         * emitir()
+         * --------
+         * Crea un token nuevo para una sesión ya verificada.
          *
-         * @param folderPath carpeta donde se guardarán los CSV.
+         * @return el token ("<id>.<secreto>")
          */
-        public CsvStorage(String folderPath) {
-            File folder = new File(folderPath);
-            if (!folder.exists()) folder.mkdirs();
+        String emitir(Sesion sesion) {
+            if (emitidos.incrementAndGet() % BARRER_CADA == 0) barrerVencidos();
 
-            this.doctorsFile = new File(folder, "doctors.csv");
-            this.pacientesFile = new File(folder, "pacientes.csv");
-            this.citasFile = new File(folder, "citas.csv");
-            this.usuariosFile = new File(folder, "usuarios.csv");
+            byte[] secreto = new byte[32];
+            aleatorio.nextBytes(secreto);
+            String id;
+            do {
+                byte[] b = new byte[12];
+                aleatorio.nextBytes(b);
+                id = Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+            } while (porId.putIfAbsent(id, new Entrada(sesion, secreto,
+                    System.currentTimeMillis() + DURACION_MILLIS)) != null);
+            return id + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(secreto);
         }
 
         /**
-         * esc()
-         * -----
-         * Convierte un texto para que sea seguro guardarlo en una línea CSV.
-         * Reemplaza:
-         * - ';' por '\;'
-         * - salto de línea por '\n'
-         * - retorno de carro por '\r'
-         *
-         * Esto evita que el CSV se "rompa" si el usuario escribe caracteres especiales.
+         * validar()
+         * ---------
+         * Regresa la sesión del token si es vigente (y renueva su vencimiento).
+         *
+         * @return la sesión, o null si el token no existe, está mal formado o ya venció.
+         */
+        Sesion validar(String token) {
+            Entrada e = buscar(token);
+            if (e == null) return null;
+            long ahora = System.currentTimeMillis();
+            if (ahora >= e.venceMillis) {
+                porId.remove(idDe(token), e);
+                return null;
+            }
+            e.venceMillis = ahora + DURACION_MILLIS;
+            return e.sesion;
+        }
+
+        /** Invalida un token (si es correcto; un token falso no borra nada). */
+        void revocar(String token) {
+            Entrada e = buscar(token);
+            if (e != null) porId.remove(idDe(token), e);
+        }
+
+        /** Invalida todos los tokens (por ejemplo, al recargar usuarios). */
+        void revocarTodos() { porId.clear(); }
+
+        /** Tokens guardados (incluye vencidos que no se han barrido). */
+        int tamano() { return porId.size(); }
+
+        /** Busca la entrada del id y compara el secreto en tiempo constante. */
+        private Entrada buscar(String token) {
+            if (token == null) return null;
+            int punto = token.indexOf('.');
+            if (punto <= 0) return null;
+            Entrada e = porId.get(token.substring(0, punto));
+            if (e == null) return null;
+            byte[] secreto;
+            try {
+                secreto = Base64.getUrlDecoder().decode(token.substring(punto + 1));
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+            return MessageDigest.isEqual(secreto, e.secreto) ? e : null;
+        }
+
+        private static String idDe(String token) {
+            return token.substring(0, token.indexOf('.'));
+        }
+
+        private void barrerVencidos() {
+            long ahora = System.currentTimeMillis();
+            porId.values().removeIf(e -> ahora >= e.venceMillis);
+        }
+    }
+
+    // =======================
+    // MÉTRICAS
+    // =======================
+
+    /**
+     * INTERFAZ MetricaOperacionMBean
+     * ------------------------------
+     * Lo que se publica por JMX de cada operación medida (se ve en jconsole / VisualVM
+     * bajo "Citas" -> "Metricas"). Los tiempos están en microsegundos.
+     */
+    public interface MetricaOperacionMBean {
+        long getOperaciones();
+        long getErrores();
+        long getBytes();
+        double getPromedioMicros();
+        double getP50Micros();
+        double getP99Micros();
+        double getMaxMicros();
+        void reiniciar();
+    }
+
+    /**
+     * CLASE MetricaOperacion
+     * ----------------------
+     * Contadores e histograma de latencia de UNA operación (ej: Sistema.crearCita).
+     *
+     * - Los contadores son LongAdder: muchos hilos pueden sumar al mismo tiempo sin
+     *   pelearse por la misma variable.
+     * - El histograma es "log-lineal": cada potencia de 2 de nanosegundos se divide en
+     *   8 cubetas, así que los percentiles tienen a lo más ~12% de error y el histograma
+     *   ocupa un arreglo fijo (no guarda cada medición).
+     * - Las operaciones que terminan con excepción cuentan como operación y como error,
+     *   pero su tiempo no entra al histograma.
+     */
+    static class MetricaOperacion implements MetricaOperacionMBean {
+        private static final int SUBCUBETAS = 8;
+        private static final int CUBETAS = 64 * SUBCUBETAS;
+
+        private final String nombre;
+        private final LongAdder operaciones = new LongAdder();
+        private final LongAdder errores = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanosTotales = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray cubetas = new AtomicLongArray(CUBETAS);
+
+        MetricaOperacion(String nombre) { this.nombre = nombre; }
+
+        /** Nombre de la operación (ej: "CsvStorage.cargarCitas"). */
+        String getNombre() { return nombre; }
+
+        /** Lo que regresa inicio() cuando las métricas están apagadas. */
+        static final long APAGADA = Long.MIN_VALUE;
+
+        /**
+         * inicio()
+         * --------
+         * Marca el inicio de una operación: System.nanoTime() si las métricas están
+         * activas, o APAGADA si no (solo se lee un volatile; no se crea ningún objeto).
+         *
+         * Uso (bytes se queda en -1 si la operación termina con excepción):
+         *   long t0 = Metricas.X.inicio(), bytes = -1;
+         *   try {
+         *       ...
+         *       return bytes = escritor.confirmar();
+         *   } finally {
+         *       Metricas.X.fin(t0, bytes);
+         *   }
+         */
+        long inicio() {
+            return Metricas.activas ? System.nanoTime() : APAGADA;
+        }
+
+        /**
+         * fin()
+         * -----
+         * Registra la operación que empezó en inicio: con bytes >= 0 su tiempo y sus bytes;
+         * con bytes negativo (no terminó) solo cuenta como operación y como error.
+         */
+        void fin(long inicio, long bytesOperacion) {
+            if (inicio == APAGADA) return;
+            if (bytesOperacion < 0) {
+                operaciones.increment();
+                errores.increment();
+            } else {
+                registrar(System.nanoTime() - inicio, bytesOperacion);
+            }
+        }
+
+        /** fin() para operaciones sin bytes: ok = false si terminó con excepción. */
+        void fin(long inicio, boolean ok) {
+            fin(inicio, ok ? 0 : -1);
+        }
+
+        private void registrar(long nanos, long bytesOperacion) {
+            operaciones.increment();
+            bytes.add(bytesOperacion);
+            nanosTotales.add(nanos);
+            maxNanos.accumulate(nanos);
+            cubetas.incrementAndGet(cubeta(nanos));
+        }
+
+        /** Cubeta de un valor: los 8 primeros van solos; después, potencia de 2 x 8 subcubetas. */
+        private static int cubeta(long v) {
+            if (v < SUBCUBETAS) return (int) Math.max(0, v);
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            return (exp - 2) * SUBCUBETAS + (int) ((v >>> (exp - 3)) & (SUBCUBETAS - 1));
+        }
+
+        /** Valor más alto que cae en una cubeta. */
+        private static long limiteSuperior(int cubeta) {
+            if (cubeta < SUBCUBETAS) return cubeta;
+            int exp = cubeta / SUBCUBETAS + 2;
+            long inicio = (long) (SUBCUBETAS + cubeta % SUBCUBETAS) << (exp - 3);
+            return inicio + (1L << (exp - 3)) - 1;
+        }
+
+        /** Percentil (0 a 1) en nanosegundos, según el histograma. */
+        long percentilNanos(double p) {
+            long total = 0;
+            for (int i = 0; i < CUBETAS; i++) total += cubetas.get(i);
+            if (total == 0) return 0;
+            long objetivo = (long) Math.ceil(p * total);
+            long acumulado = 0;
+            for (int i = 0; i < CUBETAS; i++) {
+                acumulado += cubetas.get(i);
+                if (acumulado >= objetivo) return Math.min(limiteSuperior(i), maxNanos.get());
+            }
+            return maxNanos.get();
+        }
+
+        @Override public long getOperaciones() { return operaciones.sum(); }
+        @Override public long getErrores() { return errores.sum(); }
+        @Override public long getBytes() { return bytes.sum(); }
+
+        @Override
+        public double getPromedioMicros() {
+            long exitosas = 0;
+            for (int i = 0; i < CUBETAS; i++) exitosas += cubetas.get(i);
+            return exitosas == 0 ? 0 : nanosTotales.sum() / 1000.0 / exitosas;
+        }
+
+        @Override public double getP50Micros() { return percentilNanos(0.50) / 1000.0; }
+        @Override public double getP99Micros() { return percentilNanos(0.99) / 1000.0; }
+        @Override public double getMaxMicros() { return maxNanos.get() / 1000.0; }
+
+        @Override
+        public void reiniciar() {
+            operaciones.reset();
+            errores.reset();
+            bytes.reset();
+            nanosTotales.reset();
+            maxNanos.reset();
+            for (int i = 0; i < CUBETAS; i++) cubetas.set(i, 0);
+        }
+
+        /** Una línea con el resumen (para el volcado a archivo). */
+        @Override
+        public String toString() {
+            return String.format("%-32s ops=%d errores=%d bytes=%d p50=%.1fus p99=%.1fus max=%.1fus",
+                    nombre, getOperaciones(), getErrores(), getBytes(), getP50Micros(), getP99Micros(), getMaxMicros());
+        }
+    }
+
+    /**
+     * CLASE Metricas
+     * --------------
+     * Las métricas de las operaciones "calientes" del sistema.
+     *
+     * - Están APAGADAS por defecto: cada operación medida solo revisa un boolean volatile.
+     * - activar() las enciende y las publica como MBeans (Citas:type=Metricas,name=...).
+     * - volcarCada() además escribe un resumen periódico a un archivo de texto.
+     *
+     * Desde main: --metricas [segundos] (con segundos, vuelca a db/metricas.log).
+     */
+    static class Metricas {
+        /** true si se están midiendo las operaciones (ver activar()). */
+        static volatile boolean activas = false;
+
+        private static final List<MetricaOperacion> todas = new CopyOnWriteArrayList<>();
+
+        static final MetricaOperacion CREAR_CITA = nueva("Sistema.crearCita");
+        static final MetricaOperacion CANCELAR_CITA = nueva("Sistema.cancelarCita");
+        static final MetricaOperacion REPROGRAMAR_CITA = nueva("Sistema.reprogramarCita");
+        static final MetricaOperacion CREAR_SERIE = nueva("Sistema.crearSerie");
+        static final MetricaOperacion CANCELAR_SERIE = nueva("Sistema.cancelarSerie");
+        static final MetricaOperacion CARGAR_TODO = nueva("Sistema.cargarTodo");
+        static final MetricaOperacion GUARDAR_TODO = nueva("Sistema.guardarTodo");
+        static final MetricaOperacion LOGIN = nueva("UserManager.login");
+        static final MetricaOperacion CARGAR_DOCTORES = nueva("CsvStorage.cargarDoctores");
+        static final MetricaOperacion GUARDAR_DOCTORES = nueva("CsvStorage.guardarDoctores");
+        static final MetricaOperacion CARGAR_PACIENTES = nueva("CsvStorage.cargarPacientes");
+        static final MetricaOperacion GUARDAR_PACIENTES = nueva("CsvStorage.guardarPacientes");
+        static final MetricaOperacion CARGAR_CITAS = nueva("CsvStorage.cargarCitas");
+        static final MetricaOperacion GUARDAR_CITAS = nueva("CsvStorage.guardarCitas");
+        static final MetricaOperacion AGREGAR_CITAS = nueva("CsvStorage.agregarCitas");
+        static final MetricaOperacion CONSTRUIR_INDICE_CITAS = nueva("CsvStorage.construirIndiceCitas");
+        static final MetricaOperacion ARCHIVAR_CITAS = nueva("CsvStorage.archivarCitas");
+        static final MetricaOperacion LEER_ARCHIVO = nueva("CsvStorage.citasArchivadas");
+        static final MetricaOperacion VALIDAR_INTEGRIDAD = nueva("Sistema.validarIntegridad");
+        static final MetricaOperacion CARGAR_USUARIOS = nueva("CsvStorage.cargarUsuarios");
+        static final MetricaOperacion GUARDAR_USUARIOS = nueva("CsvStorage.guardarUsuarios");
+        static final MetricaOperacion CARGAR_SERIES = nueva("CsvStorage.cargarSeries");
+        static final MetricaOperacion GUARDAR_SERIES = nueva("CsvStorage.guardarSeries");
+        static final MetricaOperacion CARGAR_SNAPSHOT = nueva("CsvStorage.cargarSnapshot");
+        static final MetricaOperacion GUARDAR_SNAPSHOT = nueva("CsvStorage.guardarSnapshot");
+
+        private static ScheduledExecutorService volcador;
+
+        private static MetricaOperacion nueva(String nombre) {
+            MetricaOperacion m = new MetricaOperacion(nombre);
+            todas.add(m);
+            return m;
+        }
+
+        /** Todas las métricas, en el orden en que se declararon. */
+        static List<MetricaOperacion> todas() { return todas; }
+
+        /**
+         * activar()
+         * ---------
+         * Enciende las métricas y registra cada una como MBean en el servidor JMX de la JVM.
+         * Se puede llamar varias veces (solo registra lo que falte).
+         */
+        static synchronized void activar() {
+            MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+            for (MetricaOperacion m : todas) {
+                try {
+                    ObjectName nombre = new ObjectName("Citas:type=Metricas,name=" + m.getNombre());
+                    if (!servidor.isRegistered(nombre)) {
+                        servidor.registerMBean(new StandardMBean(m, MetricaOperacionMBean.class), nombre);
+                    }
+                } catch (JMException e) {
+                    throw new RuntimeException("No se pudo registrar la métrica " + m.getNombre() + ": " + e.getMessage());
+                }
+            }
+            activas = true;
+        }
+
+        /** Apaga las métricas (los valores acumulados se conservan) y detiene el volcado. */
+        static synchronized void desactivar() {
+            activas = false;
+            if (volcador != null) volcador.shutdown();
+            volcador = null;
+        }
+
+        /**
+         * volcarCada()
+         * ------------
+         * Cada cierto tiempo agrega al archivo un bloque con la fecha y una línea por
+         * métrica que ya tenga operaciones. Usa un hilo daemon (no impide que el programa termine).
+         *
+         * @param archivo archivo de texto (se agrega al final)
+         * @param segundos cada cuántos segundos escribir
+         */
+        static synchronized void volcarCada(File archivo, long segundos) {
+            activar();
+            if (volcador != null) volcador.shutdown();
+            volcador = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "volcado-metricas");
+                t.setDaemon(true);
+                return t;
+            });
+            volcador.scheduleAtFixedRate(() -> volcar(archivo), segundos, segundos, TimeUnit.SECONDS);
+        }
+
+        /** Escribe un bloque de resumen al final del archivo. */
+        static void volcar(File archivo) {
+            try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(archivo, true), StandardCharsets.UTF_8))) {
+                bw.write("# " + LocalDateTime.now());
+                bw.newLine();
+                for (MetricaOperacion m : todas) {
+                    if (m.getOperaciones() == 0) continue;
+                    bw.write(m.toString());
+                    bw.newLine();
+                }
+            } catch (IOException e) {
+                // Las métricas nunca deben tumbar el programa: se intenta de nuevo en el siguiente volcado
+                System.err.println("No se pudo escribir " + archivo + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // =======================
+    // STORAGE CSV
+    // =======================
+
+    /**
+     * CLASE CsvStorage
+     * ---------------
+     * Se encarga de la persistencia a archivos CSV (texto plano).
+     *
+     * Responsabilidades:
+     * - Crear la carpeta si no existe.
+     * - Guardar y cargar:
+     *   - doctores
+     *   - pacientes
+     *   - citas
+     *   - usuarios
+     *
+     * Nota:
+     * - Usamos ';' como separador para evitar problemas comunes con comas en nombres.
+     * - Implementamos un "escape" muy simple para manejar ';' y saltos de línea.
+     *
+     * Guardado seguro:
+     * - Cada guardar*() escribe primero a "<archivo>.tmp", hace fsync y luego lo renombra
+     *   de forma atómica sobre el archivo real. Si el programa muere a la mitad, el archivo
+     *   anterior queda intacto.
+     * - La última línea de cada CSV es un "trailer": #FIN;<registros>;<crc32 en hex>.
+     *   Al cargar se verifica en una sola pasada secuencial (CRC32 de todos los bytes
+     *   anteriores) y se compara el número de registros leídos; si algo no cuadra, se lanza
+     *   excepción en vez de saltarse filas en silencio.
+     * - Un archivo sin trailer (de una versión anterior) se rechaza al cargar; con --migrar
+     *   (ver migrarSinTrailer) se le agrega el trailer una vez y desde ahí se verifica.
+     *
+     * Particiones de citas:
+     * - Las citas no van en un solo archivo: van en uno por mes de su fechaHora
+     *   (citas-2026-02.csv, citas-2026-03.csv, ...) y las que no tienen fecha válida en
+     *   citas-sin-fecha.csv. Cada partición es un CSV normal, con su propio trailer.
+     * - Guardar puede reescribir solo los meses que cambiaron, y cargarCitasEntre() lee solo
+     *   las particiones de un rango de fechas: el costo depende de los meses activos, no de
+     *   toda la historia.
+     * - Un citas.csv del formato anterior se reparte en particiones (y se borra) la primera
+     *   vez que se usan las citas (ver migrarCitasCsv).
+     *
+     * Snapshot:
+     * - snapshot.bin es una copia BINARIA de todo el estado (doctores, pacientes, citas y
+     *   usuarios). Solo la escribe el guardado completo (Sistema.guardarTodo); los demás
+     *   guardados (compactar el journal, importar, archivar, cuarentena) la dejan vieja hasta
+     *   el siguiente guardarTodo, y con carga perezosa no se escribe ni se lee. Cargarla es
+     *   mucho más rápido que interpretar los CSV (no hay que separar campos ni quitar escapes).
+     * - Guarda el tamaño y la fecha de modificación de cada CSV; si alguno ya no coincide
+     *   (el CSV es más nuevo o se editó a mano), el snapshot se ignora y se usan los CSV.
+     * - Los CSV siguen siendo la fuente de verdad; el snapshot se puede borrar sin perder nada.
+     *
+     * Textos compartidos:
+     * - Los valores que se repiten mucho (ids de doctor/paciente dentro de las citas,
+     *   especialidades) pasan por un Internador al cargar, para que todas las citas que
+     *   los usan apunten al MISMO String en vez de tener cada una su copia. Las fechas no:
+     *   casi no se repiten y AlmacenCitas las guarda como minutos.
+     *
+     * Archivo de citas pasadas:
+     * - archivarCitas() saca de las particiones las citas anteriores a un corte y las pone en
+     *   segmentos comprimidos (archivo-000001.arc, ...) que ya no se vuelven a escribir.
+     *   Cada segmento guarda en su cabecera la fecha mínima y máxima de sus citas, así que
+     *   una consulta de rango (citasArchivadas) solo descomprime los que tocan la ventana.
+     *   Al final guarda los hashes de sus ids, para saber sin descomprimir si un id puede
+     *   estar archivado (ver segmentosArchivo).
+     *
+     * Índice de citas (carga perezosa):
+     * - citas.idx dice, por doctor, dónde están sus citas dentro de las particiones (ver
+     *   IndiceCitas). Se construye recorriéndolas una vez y se reconstruye cuando alguna cambia.
+     *
+     * Series de citas:
+     * - series.csv guarda una línea por serie (id;inicio;cadaDias;repeticiones;motivo;doctorId;
+     *   pacienteId;excepciones), no una por cita: las ocurrencias se calculan al consultar (ver
+     *   SerieCitas). excepciones lista las ocurrencias canceladas o movidas (ej: 3=X,5=2026-03-01T10:00).
+     *   Es chico, así que no va en el snapshot y siempre se lee completo.
+     *
+     * Journal:
+     * - journal.csv es un archivo de solo-agregar: cada cambio (alta de doctor, paciente,
+     *   cita, serie o admin) se escribe como UNA línea al final, sin reescribir los demás archivos.
+     * - El primer campo de cada línea indica el tipo: D, P, C, S o U (más X y R para
+     *   cancelar y reprogramar una cita o una ocurrencia de serie, y XS para cancelar una
+     *   serie completa); el resto son los mismos campos que en su CSV.
+     * - Cada línea termina con ;~<crc32 de lo anterior> para reconocer un registro que se
+     *   quedó a medias (ver cargarJournal).
+     */
+    static class CsvStorage {
+        private final File folder;
+        private final File doctorsFile;
+        private final File pacientesFile;
+        /** citas.csv del formato anterior, sin particiones (solo se lee para migrarlo). */
+        private final File citasFile;
+        private final File usuariosFile;
+        private final File journalFile;
+        private final File snapshotFile;
+        private final File indiceCitasFile;
+        /** Archivado de citas a medias: corte y segmentos por registrar (ver archivarCitas). */
+        private final File archivoPendiente;
+        /** Agregado de citas en su lugar a medias: cómo terminaba cada partición (ver agregarAlFinal). */
+        private final File agregadoPendiente;
+        /** Citas apartadas por la validación de integridad (ver agregarACuarentena). */
+        private final File cuarentenaFile;
+        /** Series de citas que se repiten (ver SerieCitas). */
+        private final File seriesFile;
+
+        /** Prefijo de las particiones de citas: citas-<mes>.csv. */
+        static final String PREFIJO_PARTICION = "citas-";
+
+        /** Partición de las citas cuya fechaHora no se pudo interpretar. */
+        static final String PARTICION_SIN_FECHA = "sin-fecha";
+
+        /** Textos compartidos entre registros (ver Internador). */
+        private final Internador textos;
+
+        /** Separador del CRC al final de cada registro de journal.csv. */
+        static final String MARCA_CRC_JOURNAL = ";~";
+
+        /** Writer abierto en modo "append" sobre journal.csv (se abre la primera vez que se usa). */
+        private Writer journalWriter;
+
+        /** A partir de este tamaño, citas.csv se carga en paralelo (ver cargarCitasParalelo). */
+        static final long UMBRAL_CARGA_PARALELA = 8L * 1024 * 1024;
+
+        /** Tamaño mínimo y máximo de cada pedazo del archivo en la carga paralela. */
+        static final long TAMANO_MINIMO_PEDAZO = 1024 * 1024;
+        static final long TAMANO_MAXIMO_PEDAZO = 256L * 1024 * 1024;
+
+        /**
+         * CONSTRUCTOR CsvStorage
+         * ----------------------
+         * Define los archivos dentro de una carpeta (folderPath). Si la carpeta no existe,
+         * se crea automáticamente.
+         *
+         * @param folderPath carpeta donde se guardarán los CSV.
+         */
+        public CsvStorage(String folderPath) {
+            this(folderPath, new Internador());
+        }
+
+        /**
+         * CONSTRUCTOR CsvStorage
+         * ----------------------
+         * Igual que el anterior, pero con el Internador indicado
+         * (por ejemplo, uno desactivado para medir memoria sin deduplicar).
+         *
+         * @param folderPath carpeta donde se guardarán los CSV.
+         * @param textos internador para los textos repetidos.
+         */
+        public CsvStorage(String folderPath, Internador textos) {
+            this.textos = textos;
+            this.folder = new File(folderPath);
+            if (!folder.exists()) folder.mkdirs();
+
+            this.doctorsFile = new File(folder, "doctors.csv");
+            this.pacientesFile = new File(folder, "pacientes.csv");
+            this.citasFile = new File(folder, "citas.csv");
+            this.usuariosFile = new File(folder, "usuarios.csv");
+            this.journalFile = new File(folder, "journal.csv");
+            this.snapshotFile = new File(folder, "snapshot.bin");
+            this.indiceCitasFile = new File(folder, "citas.idx");
+            this.archivoPendiente = new File(folder, "archivo.pendiente");
+            this.agregadoPendiente = new File(folder, "agregado.pendiente");
+            this.cuarentenaFile = new File(folder, "cuarentena.csv");
+            this.seriesFile = new File(folder, "series.csv");
+        }
+
+        /**
+         * getInternador()
+         * ---------------
+         * Internador usado al cargar; el Sistema usa el mismo al crear registros nuevos,
+         * para que lo cargado y lo nuevo compartan las mismas instancias.
+         */
+        public Internador getInternador() { return textos; }
+
+        /**
+         * esc()
+         * -----
+         * Convierte un texto para que sea seguro guardarlo en una línea CSV.
+         * Reemplaza:
+         * - ';' por '\;'
+         * - salto de línea por '\n'
+         * - retorno de carro por '\r'
+         *
+         * Esto evita que el CSV se "rompa" si el usuario escribe caracteres especiales.
          *
          * @param s texto original
          * @return texto escapado
          */
-        private String esc(String s) {
+        String esc(String s) {
             if (s == null) return "";
             return s.replace(";", "\\;")
                     .replace("\n", "\\n")
@@ -514,7 +1604,7 @@ public class Main {
          * @param s texto escapado
          * @return texto normal
          */
-        private String unesc(String s) {
+        String unesc(String s) {
             if (s == null) return "";
             return s.replace("\\r", "\r")
                     .replace("\\n", "\n")
@@ -532,45 +1622,64 @@ public class Main {
          * @return lista de doctores cargados desde archivo.
          */
         public List<Doctor> cargarDoctores() {
-            List<Doctor> list = new ArrayList<>();
-            if (!doctorsFile.exists()) return list;
+            long t0 = Metricas.CARGAR_DOCTORES.inicio(), leidos = -1;
+            try {
+                List<Doctor> list = new ArrayList<>();
+                if (!doctorsFile.exists()) {
+                    leidos = 0;
+                    return list;
+                }
 
-            try (BufferedReader br = new BufferedReader(new FileReader(doctorsFile, StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    line = line.trim();
-                    if (line.isEmpty()) continue;
+                Integridad integridad = new Integridad(doctorsFile);
+                try (BufferedReader br = integridad.abrirLector()) {
+                    Tokenizador tk = new Tokenizador();
+                    long registros = 0;
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty()) continue;
+                        registros++;
 
-                    String[] parts = splitSemi(line);
-                    if (parts.length < 3) continue;
+                        if (tk.dividir(line) < 3) continue;
 
-                    String id = unesc(parts[0]);
-                    String nombre = unesc(parts[1]);
-                    String esp = unesc(parts[2]);
+                        String id = textos.compartido(tk.campo(0));
+                        String nombre = tk.campo(1);
+                        String esp = textos.compartido(tk.campo(2));
 
-                    list.add(new Doctor(id, nombre, esp));
+                        list.add(new Doctor(id, nombre, esp));
+                    }
+                    integridad.verificarRegistros(registros);
+                } catch (IOException e) {
+                    throw new RuntimeException("Error leyendo doctors.csv: " + e.getMessage());
                 }
-            } catch (IOException e) {
-                throw new RuntimeException("Error leyendo doctors.csv: " + e.getMessage());
+                leidos = integridad.bytesLeidos();
+                return list;
+            } finally {
+                Metricas.CARGAR_DOCTORES.fin(t0, leidos);
             }
-            return list;
         }
 
         /**
          * guardarDoctores()
          * -----------------
          * Sobrescribe por completo doctors.csv con la lista de doctores actual.
+         * (archivo temporal + fsync + renombrado atómico, con trailer de verificación).
          *
          * @param doctores lista de doctores a guardar.
+         * @return bytes escritos.
          */
-        public void guardarDoctores(List<Doctor> doctores) {
-            try (BufferedWriter bw = new BufferedWriter(new FileWriter(doctorsFile, StandardCharsets.UTF_8))) {
+        public long guardarDoctores(List<Doctor> doctores) {
+            long t0 = Metricas.GUARDAR_DOCTORES.inicio(), bytes = -1;
+            try (EscritorContado bw = new EscritorContado(doctorsFile)) {
                 for (Doctor d : doctores) {
                     bw.write(esc(d.getId()) + ";" + esc(d.getNombreCompleto()) + ";" + esc(d.getEspecialidad()));
                     bw.newLine();
                 }
+                return bytes = bw.confirmar();
             } catch (IOException e) {
                 throw new RuntimeException("Error escribiendo doctors.csv: " + e.getMessage());
+            } finally {
+                Metricas.GUARDAR_DOCTORES.fin(t0, bytes);
             }
         }
 
@@ -582,406 +1691,8351 @@ public class Main {
          * @return lista de pacientes.
          */
         public List<Paciente> cargarPacientes() {
-            List<Paciente> list = new ArrayList<>();
-            if (!pacientesFile.exists()) return list;
+            long t0 = Metricas.CARGAR_PACIENTES.inicio(), leidos = -1;
+            try {
+                List<Paciente> list = new ArrayList<>();
+                if (!pacientesFile.exists()) {
+                    leidos = 0;
+                    return list;
+                }
 
-            try (BufferedReader br = new BufferedReader(new FileReader(pacientesFile, StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    line = line.trim();
-                    if (line.isEmpty()) continue;
+                Integridad integridad = new Integridad(pacientesFile);
+                try (BufferedReader br = integridad.abrirLector()) {
+                    Tokenizador tk = new Tokenizador();
+                    long registros = 0;
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty()) continue;
+                        registros++;
 
-                    String[] parts = splitSemi(line);
-                    if (parts.length < 2) continue;
+                        if (tk.dividir(line) < 2) continue;
 
-                    String id = unesc(parts[0]);
-                    String nombre = unesc(parts[1]);
+                        String id = textos.compartido(tk.campo(0));
+                        String nombre = tk.campo(1);
 
-                    list.add(new Paciente(id, nombre));
+                        list.add(new Paciente(id, nombre));
+                    }
+                    integridad.verificarRegistros(registros);
+                } catch (IOException e) {
+                    throw new RuntimeException("Error leyendo pacientes.csv: " + e.getMessage());
                 }
-            } catch (IOException e) {
-                throw new RuntimeException("Error leyendo pacientes.csv: " + e.getMessage());
+                leidos = integridad.bytesLeidos();
+                return list;
+            } finally {
+                Metricas.CARGAR_PACIENTES.fin(t0, leidos);
             }
-            return list;
         }
 
         /**
          * guardarPacientes()
          * ------------------
          * Sobrescribe pacientes.csv con la lista actual.
+         * (archivo temporal + fsync + renombrado atómico, con trailer de verificación).
          *
          * @param pacientes lista a guardar.
+         * @return bytes escritos.
          */
-        public void guardarPacientes(List<Paciente> pacientes) {
-            try (BufferedWriter bw = new BufferedWriter(new FileWriter(pacientesFile, StandardCharsets.UTF_8))) {
+        public long guardarPacientes(List<Paciente> pacientes) {
+            long t0 = Metricas.GUARDAR_PACIENTES.inicio(), bytes = -1;
+            try (EscritorContado bw = new EscritorContado(pacientesFile)) {
                 for (Paciente p : pacientes) {
                     bw.write(esc(p.getId()) + ";" + esc(p.getNombreCompleto()));
                     bw.newLine();
                 }
+                return bytes = bw.confirmar();
             } catch (IOException e) {
                 throw new RuntimeException("Error escribiendo pacientes.csv: " + e.getMessage());
+            } finally {
+                Metricas.GUARDAR_PACIENTES.fin(t0, bytes);
             }
         }
 
         /**
          * cargarCitas()
          * -------------
-         * Lee citas.csv y construye lista de citas.
+         * Lee todas las particiones de citas (en orden de mes) y construye lista de citas.
          * Importante: aquí NO validamos que doctorId/pacienteId existan, eso lo controla Sistema al crear citas.
          *
+         * Si una partición es grande (UMBRAL_CARGA_PARALELA o más) se carga como en
+         * cargarCitasParalelo(), que da exactamente la misma lista pero usando varios núcleos.
+         *
          * @return lista de citas cargadas.
          */
         public List<Cita> cargarCitas() {
-            List<Cita> list = new ArrayList<>();
-            if (!citasFile.exists()) return list;
+            migrarCitasCsv();
+            return cargarCitas(new ArrayList<>());
+        }
 
-            try (BufferedReader br = new BufferedReader(new FileReader(citasFile, StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    line = line.trim();
-                    if (line.isEmpty()) continue;
+        /**
+         * cargarAlmacenCitas()
+         * --------------------
+         * Igual que cargarCitas(), pero deja las citas en un AlmacenCitas (columnas de
+         * arreglos primitivos) en vez de un objeto por cita. Es lo que usa Sistema.
+         *
+         * @return almacén con las citas cargadas, en el orden de las particiones.
+         */
+        public AlmacenCitas cargarAlmacenCitas() {
+            migrarCitasCsv();
+            return cargarCitas(new AlmacenCitas(estimarCitas(particionesCitas())));
+        }
 
-                    String[] parts = splitSemi(line);
-                    if (parts.length < 5) continue;
+        /**
+         * Cuerpo de cargarCitas() y cargarAlmacenCitas(): agrega a la lista dada las citas de
+         * todas las particiones. Quien lo llama ya hizo migrarCitasCsv().
+         */
+        private <L extends List<Cita>> L cargarCitas(L list) {
+            List<File> archivos = particionesCitas();
+            return cargarArchivosCitas(archivos, list, Long.MIN_VALUE, Long.MAX_VALUE);
+        }
 
-                    String id = unesc(parts[0]);
-                    String fechaHora = unesc(parts[1]);
-                    String motivo = unesc(parts[2]);
-                    String doctorId = unesc(parts[3]);
-                    String pacienteId = unesc(parts[4]);
+        /**
+         * cargarCitasEntre()
+         * ------------------
+         * Carga solo las citas con fecha en [desde, hasta): abre únicamente las particiones de
+         * los meses que toca el rango (las demás, y citas-sin-fecha.csv, ni se leen), y de
+         * esas se quedan las citas del rango. Cada partición se verifica completa (trailer)
+         * igual que en cargarCitas(), y las grandes se leen en paralelo.
+         *
+         * @param desde inicio del rango (incluido)
+         * @param hasta fin del rango (excluido)
+         * @return citas del rango, en el orden de las particiones.
+         */
+        public List<Cita> cargarCitasEntre(LocalDateTime desde, LocalDateTime hasta) {
+            migrarCitasCsv();
+            long d = AlmacenCitas.aMinutos(desde);
+            long h = AlmacenCitas.aMinutos(hasta);
+            return cargarArchivosCitas(particionesEntre(d, h), new ArrayList<>(), d, h);
+        }
 
-                    list.add(new Cita(id, fechaHora, motivo, doctorId, pacienteId));
+        /**
+         * Carga los archivos de citas indicados, en orden (cada uno en paralelo si es grande),
+         * con las citas de [desde, hasta) (Long.MIN_VALUE / Long.MAX_VALUE = sin filtro).
+         * Cuenta como CsvStorage.cargarCitas, con los bytes que de verdad se leyeron.
+         */
+        private <L extends List<Cita>> L cargarArchivosCitas(List<File> archivos, L list, long desde, long hasta) {
+            long t0 = Metricas.CARGAR_CITAS.inicio(), leidos = -1;
+            try {
+                long total = 0;
+                for (File archivo : archivos) {
+                    if (archivo.length() >= UMBRAL_CARGA_PARALELA) {
+                        total += cargarArchivoCitasParalelo(archivo, list, desde, hasta);
+                        continue;
+                    }
+                    Integridad integridad = new Integridad(archivo);
+                    try (BufferedReader br = integridad.abrirLector()) {
+                        integridad.verificarRegistros(leerCitas(br, list, desde, hasta));
+                    } catch (IOException e) {
+                        throw new RuntimeException("Error leyendo " + archivo.getName() + ": " + e.getMessage());
+                    }
+                    total += integridad.bytesLeidos();
                 }
-            } catch (IOException e) {
-                throw new RuntimeException("Error leyendo citas.csv: " + e.getMessage());
+                leidos = total;
+                return list;
+            } finally {
+                Metricas.CARGAR_CITAS.fin(t0, leidos);
             }
-            return list;
         }
 
         /**
-         * guardarCitas()
-         * --------------
-         * Sobrescribe citas.csv con todas las citas actuales.
+         * leerCitas()
+         * -----------
+         * Lee líneas de citas desde un reader y agrega las citas válidas a la lista.
+         * Cada línea se interpreta con agregarLineaCita(), igual que en los pedazos de la
+         * carga paralela (leerPedazoCitas), así ambas cargas dan exactamente lo mismo.
          *
-         * @param citas lista de citas a guardar.
+         * @param br reader posicionado al inicio de una línea
+         * @param list lista donde se agregan las citas
+         * @param desde solo citas con fecha desde aquí (Long.MIN_VALUE = sin filtro)
+         * @param hasta solo citas con fecha antes de aquí (Long.MAX_VALUE = sin filtro)
+         * @return cantidad de líneas no vacías leídas (para compararla con el trailer).
          */
-        public void guardarCitas(List<Cita> citas) {
-            try (BufferedWriter bw = new BufferedWriter(new FileWriter(citasFile, StandardCharsets.UTF_8))) {
-                for (Cita c : citas) {
-                    bw.write(esc(c.getId()) + ";" + esc(c.getFechaHora()) + ";" + esc(c.getMotivo())
-                            + ";" + esc(c.getDoctorId()) + ";" + esc(c.getPacienteId()));
-                    bw.newLine();
-                }
-            } catch (IOException e) {
-                throw new RuntimeException("Error escribiendo citas.csv: " + e.getMessage());
+        private long leerCitas(BufferedReader br, List<Cita> list, long desde, long hasta) throws IOException {
+            boolean filtrar = desde != Long.MIN_VALUE || hasta != Long.MAX_VALUE;
+            Tokenizador tk = new Tokenizador();
+            long registros = 0;
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                registros++;
+                agregarLineaCita(tk, line, list, filtrar, desde, hasta);
             }
+            return registros;
         }
 
         /**
-         * cargarUsuarios()
-         * ----------------
-         * Lee usuarios.csv y construye lista de usuarios.
-         * Se carga el passwordHash directamente (ya viene calculado).
-         *
-         * @return lista de usuarios.
+         * Interpreta UNA línea de citas (no vacía, ya recortada) y, si es válida y cae en
+         * [desde, hasta) cuando se filtra, agrega la cita a la lista.
          */
-        public List<Usuario> cargarUsuarios() {
-            List<Usuario> list = new ArrayList<>();
-            if (!usuariosFile.exists()) return list;
-
-            try (BufferedReader br = new BufferedReader(new FileReader(usuariosFile, StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    line = line.trim();
-                    if (line.isEmpty()) continue;
+        private void agregarLineaCita(Tokenizador tk, CharSequence line, List<Cita> list,
+                                      boolean filtrar, long desde, long hasta) {
+            if (tk.dividir(line) < 5) return;
+            if (filtrar) {
+                LocalDateTime t = parsearFechaHora(tk.campo(1));
+                long m = t == null ? AlmacenCitas.SIN_FECHA : AlmacenCitas.aMinutos(t);
+                if (t == null || m < desde || m >= hasta) return;
+            }
 
-                    String[] parts = splitSemi(line);
-                    if (parts.length < 4) continue;
+            String id = tk.campo(0);
+            // fechaHora no pasa por el Internador: hay casi una por cita y AlmacenCitas solo guarda sus minutos
+            String fechaHora = tk.campo(1);
+            String motivo = tk.campo(2);
+            String doctorId = textos.compartido(tk.campo(3));
+            String pacienteId = textos.compartido(tk.campo(4));
 
-                    String id = unesc(parts[0]);
-                    String username = unesc(parts[1]);
-                    String hash = unesc(parts[2]);
-                    String rol = unesc(parts[3]);
+            list.add(new Cita(id, fechaHora, motivo, doctorId, pacienteId));
+        }
 
-                    list.add(new Usuario(id, username, hash, rol));
-                }
-            } catch (IOException e) {
-                throw new RuntimeException("Error leyendo usuarios.csv: " + e.getMessage());
+        /**
+         * cargarCitasParalelo()
+         * ---------------------
+         * Igual que cargarCitas(), pero leyendo cada partición por pedazos en varios hilos
+         * (es lo que hace cargarCitas() con las particiones grandes):
+         * 1) Divide la partición en pedazos que terminan justo después de un '\n'.
+         * 2) Mapea cada pedazo a memoria (FileChannel.map) y lo procesa en un hilo distinto.
+         * 3) Junta los resultados en el orden del archivo.
+         *
+         * Antes de repartir el trabajo se verifica el checksum del archivo (una pasada
+         * secuencial muy rápida) y al final se compara el total de registros con el trailer.
+         *
+         * ¿Por qué se puede cortar en cualquier '\n'?
+         * - esc() convierte los saltos de línea de los datos en el texto "\n" (dos caracteres),
+         *   así que un byte '\n' real en el archivo siempre es fin de registro, nunca parte de un campo.
+         * - '\n' es un solo byte en UTF-8 y nunca aparece dentro de un carácter de varios bytes,
+         *   así que cortar ahí no parte ningún carácter.
+         *
+         * @return lista de citas cargadas (idéntica a la de la carga secuencial).
+         */
+        public List<Cita> cargarCitasParalelo() {
+            migrarCitasCsv();
+            List<Cita> list = new ArrayList<>();
+            for (File archivo : particionesCitas()) {
+                cargarArchivoCitasParalelo(archivo, list, Long.MIN_VALUE, Long.MAX_VALUE);
             }
             return list;
         }
 
         /**
-         * guardarUsuarios()
-         * -----------------
-         * Sobrescribe usuarios.csv con la lista actual.
+         * Carga paralela de UN archivo de citas: agrega sus citas a la lista dada, en orden.
+         * Cada pedazo se suelta en cuanto se pasa a la lista, para no tener todo dos veces en memoria.
+         * Solo se agregan las citas de [desde, hasta) (ver cargarArchivosCitas).
          *
-         * @param usuarios lista de usuarios a guardar.
+         * @return bytes leídos (la verificación más los pedazos mapeados).
          */
-        public void guardarUsuarios(List<Usuario> usuarios) {
-            try (BufferedWriter bw = new BufferedWriter(new FileWriter(usuariosFile, StandardCharsets.UTF_8))) {
-                for (Usuario u : usuarios) {
-                    bw.write(esc(u.getId()) + ";" + esc(u.getUsername()) + ";" + esc(u.getPasswordHash()) + ";" + esc(u.getRol()));
-                    bw.newLine();
-                }
+        private long cargarArchivoCitasParalelo(File archivo, List<Cita> list, long desde, long hasta) {
+            if (!archivo.exists()) return 0;
+
+            Integridad integridad = new Integridad(archivo);
+            try (FileChannel ch = FileChannel.open(archivo.toPath(), StandardOpenOption.READ)) {
+                long[] cortes = calcularCortes(ch, integridad.longitudDatos);
+
+                List<List<Cita>> partes = new ArrayList<>();
+                for (int i = 0; i + 1 < cortes.length; i++) partes.add(new ArrayList<>());
+                long[] registros = new long[partes.size()];
+
+                java.util.stream.IntStream.range(0, cortes.length - 1).parallel().forEach(i -> {
+                    try {
+                        registros[i] = leerPedazoCitas(ch, cortes[i], cortes[i + 1], partes.get(i), desde, hasta);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+
+                int total = 0;
+                long totalRegistros = 0;
+                for (int i = 0; i < partes.size(); i++) {
+                    total += partes.get(i).size();
+                    totalRegistros += registros[i];
+                }
+                integridad.verificarRegistros(totalRegistros);
+
+                if (list instanceof ArrayList) ((ArrayList<Cita>) list).ensureCapacity(list.size() + total);
+                if (list instanceof AlmacenCitas) ((AlmacenCitas) list).asegurarCapacidad(list.size() + total);
+                for (int i = 0; i < partes.size(); i++) list.addAll(partes.set(i, null));
+                return integridad.bytesLeidos() + integridad.longitudDatos;
+            } catch (IOException | UncheckedIOException e) {
+                throw new RuntimeException("Error leyendo " + archivo.getName() + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * calcularCortes()
+         * ----------------
+         * Calcula dónde empieza cada pedazo para la carga paralela. Cada corte queda justo
+         * después de un '\n' (o al final del archivo).
+         *
+         * @param ch canal abierto sobre el archivo de citas
+         * @param tamano bytes de datos a repartir (sin el trailer)
+         * @return posiciones de corte: [0, c1, c2, ..., tamaño]
+         */
+        private long[] calcularCortes(FileChannel ch, long tamano) throws IOException {
+            int hilos = Runtime.getRuntime().availableProcessors();
+            long porHilos = Math.min(hilos * 4L, tamano / TAMANO_MINIMO_PEDAZO);
+            int pedazos = (int) Math.max(1, Math.max(porHilos, tamano / TAMANO_MAXIMO_PEDAZO + 1));
+
+            List<Long> cortes = new ArrayList<>();
+            cortes.add(0L);
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            for (int i = 1; i < pedazos; i++) {
+                long pos = Math.max(tamano * i / pedazos, cortes.get(cortes.size() - 1));
+                long corte = tamano;
+                buscar:
+                while (pos < tamano) {
+                    buf.clear();
+                    int leidos = ch.read(buf, pos);
+                    if (leidos <= 0) break;
+                    for (int j = 0; j < leidos; j++) {
+                        if (buf.get(j) == '\n') {
+                            corte = pos + j + 1;
+                            break buscar;
+                        }
+                    }
+                    pos += leidos;
+                }
+                if (corte >= tamano) break;
+                if (corte > cortes.get(cortes.size() - 1)) cortes.add(corte);
+            }
+            cortes.add(tamano);
+
+            long[] r = new long[cortes.size()];
+            for (int i = 0; i < r.length; i++) r[i] = cortes.get(i);
+            return r;
+        }
+
+        /**
+         * leerPedazoCitas()
+         * -----------------
+         * Mapea a memoria el rango [inicio, fin) del archivo y lo interpreta línea por línea
+         * con agregarLineaCita().
+         *
+         * Los '\n' se buscan directo en los bytes mapeados y cada línea se decodifica de ahí
+         * a un CharBuffer que se reutiliza: el pedazo no se copia a un byte[] ni a un String
+         * completo (que con pedazos de cientos de MB era tenerlo dos o tres veces en memoria).
+         * Las líneas se recortan y los bytes inválidos se reemplazan igual que con
+         * BufferedReader + trim(), así que el resultado es el mismo que en leerCitas().
+         *
+         * @param ch canal abierto sobre el archivo de citas
+         * @param inicio byte inicial (inicio de línea)
+         * @param fin byte final (excluido, justo después de un '\n' o fin de archivo)
+         * @param list lista donde se agregan las citas de ese pedazo, en orden
+         * @param desde solo citas con fecha desde aquí (Long.MIN_VALUE = sin filtro)
+         * @param hasta solo citas con fecha antes de aquí (Long.MAX_VALUE = sin filtro)
+         * @return cantidad de líneas no vacías del pedazo.
+         */
+        private long leerPedazoCitas(FileChannel ch, long inicio, long fin, List<Cita> list,
+                                     long desde, long hasta) throws IOException {
+            boolean filtrar = desde != Long.MIN_VALUE || hasta != Long.MAX_VALUE;
+            MappedByteBuffer mapa = ch.map(FileChannel.MapMode.READ_ONLY, inicio, fin - inicio);
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer linea = CharBuffer.allocate(256);
+            Tokenizador tk = new Tokenizador();
+            long registros = 0;
+
+            int n = mapa.limit();
+            int inicioLinea = 0;
+            while (inicioLinea < n) {
+                int finLinea = inicioLinea;
+                while (finLinea < n && mapa.get(finLinea) != '\n') finLinea++;
+
+                // En UTF-8 cada byte da a lo más un char: con esta capacidad no se desborda
+                if (linea.capacity() < finLinea - inicioLinea) linea = CharBuffer.allocate(2 * (finLinea - inicioLinea));
+                linea.clear();
+                decoder.reset();
+                mapa.limit(finLinea);
+                mapa.position(inicioLinea);
+                decoder.decode(mapa, linea, true);
+                decoder.flush(linea);
+                mapa.limit(n);
+                linea.flip();
+                inicioLinea = finLinea + 1;
+
+                // Igual que String.trim()
+                while (linea.hasRemaining() && linea.get(linea.position()) <= ' ') linea.position(linea.position() + 1);
+                while (linea.hasRemaining() && linea.get(linea.limit() - 1) <= ' ') linea.limit(linea.limit() - 1);
+                if (!linea.hasRemaining()) continue;
+
+                registros++;
+                agregarLineaCita(tk, linea, list, filtrar, desde, hasta);
+            }
+            return registros;
+        }
+
+        /**
+         * guardarCitas()
+         * --------------
+         * Reescribe TODAS las particiones con las citas actuales y borra las de meses que
+         * ya no tienen citas (cada una con temporal + fsync + renombrado atómico y trailer).
+         *
+         * @param citas lista de citas a guardar.
+         * @return bytes escritos.
+         */
+        public long guardarCitas(List<Cita> citas) {
+            return guardarCitas(citas, null);
+        }
+
+        /**
+         * guardarCitas()
+         * --------------
+         * Reescribe solo las particiones indicadas, con las citas de la lista que caen en
+         * ellas; las demás no se tocan. La lista se recorre una vez, pero solo se arman
+         * (y escriben) las citas de esos meses. Las filas canceladas de un AlmacenCitas
+         * no se escriben.
+         *
+         * Si una de esas particiones se queda sin citas, su archivo se borra.
+         *
+         * @param citas todas las citas (en el orden en que deben quedar)
+         * @param particiones meses a reescribir (ver particionDe), o null para todos
+         * @return bytes escritos.
+         */
+        public long guardarCitas(List<Cita> citas, Set<String> particiones) {
+            long t0 = Metricas.GUARDAR_CITAS.inicio(), bytes = -1;
+            try {
+                migrarCitasCsv();
+                // Del almacén se lee por columnas, con su candado tomado una sola vez
+                AlmacenCitas.Lectura filas = citas instanceof AlmacenCitas ? ((AlmacenCitas) citas).leer() : null;
+                Map<String, EscritorContado> escritores = new TreeMap<>();
+                try {
+                    // Mes de la fila anterior: las citas seguidas casi siempre son del mismo mes
+                    long inicioMes = 1, finMes = 0;
+                    String mes = null;
+                    EscritorContado actual = null;
+                    for (int i = 0, n = filas != null ? filas.tamano() : citas.size(); i < n; i++) {
+                        if (filas != null && filas.estaCancelada(i)) continue;
+                        Cita c = filas == null ? citas.get(i) : null;
+                        long m = filas != null ? filas.minutos(i) : minutosDe(c.getFechaHora());
+                        if (m == AlmacenCitas.SIN_FECHA || m < inicioMes || m >= finMes) {
+                            mes = particionDe(m);
+                            actual = particiones == null || particiones.contains(mes) ? escritor(escritores, mes) : null;
+                            if (m != AlmacenCitas.SIN_FECHA) {
+                                java.time.LocalDate primerDia = AlmacenCitas.deMinutos(m).toLocalDate().withDayOfMonth(1);
+                                inicioMes = primerDia.toEpochDay() * 24 * 60;
+                                finMes = primerDia.plusMonths(1).toEpochDay() * 24 * 60;
+                            } else {
+                                inicioMes = 1;
+                                finMes = 0;
+                            }
+                        }
+                        if (actual != null) escribirCita(actual, c != null ? c : filas.get(i));
+                    }
+
+                    long escritos = 0;
+                    for (EscritorContado w : escritores.values()) escritos += w.confirmar();
+
+                    // Particiones que se debían reescribir pero se quedaron sin citas
+                    for (File f : particionesCitas()) {
+                        String p = particionDeArchivo(f);
+                        if ((particiones == null || particiones.contains(p)) && !escritores.containsKey(p)) f.delete();
+                    }
+                    return bytes = escritos;
+                } catch (IOException e) {
+                    throw new RuntimeException("Error escribiendo las citas: " + e.getMessage());
+                } finally {
+                    if (filas != null) filas.close();
+                    cerrar(escritores.values());
+                }
+            } finally {
+                Metricas.GUARDAR_CITAS.fin(t0, bytes);
+            }
+        }
+
+        /**
+         * Copia al escritor las líneas actuales de una partición (verificando su trailer).
+         *
+         * @return esas líneas, o un conjunto vacío si la partición no existe.
+         */
+        private Set<String> copiarParticion(EscritorContado w, String particion) throws IOException {
+            Set<String> lineas = new HashSet<>();
+            File archivo = archivoParticion(particion);
+            if (!archivo.exists()) return lineas;
+            Integridad integridad = new Integridad(archivo);
+            try (BufferedReader br = integridad.abrirLector()) {
+                long registros = 0;
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String limpia = line.trim();
+                    if (limpia.isEmpty()) continue;
+                    registros++;
+                    lineas.add(limpia);
+                    w.write(limpia);
+                    w.newLine();
+                }
+                integridad.verificarRegistros(registros);
+            }
+            return lineas;
+        }
+
+        /** Escritor de la partición (abriéndolo la primera vez que se pide). */
+        private EscritorContado escritor(Map<String, EscritorContado> escritores, String particion) throws IOException {
+            EscritorContado w = escritores.get(particion);
+            if (w == null) {
+                w = new EscritorContado(archivoParticion(particion));
+                escritores.put(particion, w);
+            }
+            return w;
+        }
+
+        /** Cierra escritores sin confirmar (sus temporales se borran); los confirmados ya están cerrados. */
+        private static void cerrar(Collection<EscritorContado> escritores) {
+            for (EscritorContado w : escritores) {
+                try {
+                    w.close();
+                } catch (IOException ignorada) {
+                    // ya hay un error en curso, o el escritor ya estaba cerrado
+                }
+            }
+        }
+
+        /** Escribe una cita como una línea de su partición. */
+        private void escribirCita(BufferedWriter bw, Cita c) throws IOException {
+            bw.write(esc(c.getId()) + ";" + esc(c.getFechaHora()) + ";" + esc(c.getMotivo())
+                    + ";" + esc(c.getDoctorId()) + ";" + esc(c.getPacienteId()));
+            bw.newLine();
+        }
+
+        /**
+         * agregarCitas()
+         * --------------
+         * Agrega citas nuevas al final de sus particiones sin tener las anteriores en memoria
+         * (lo usa la carga perezosa, donde Sistema solo tiene las citas nuevas), y quita
+         * de las particiones las citas que se cancelaron o reprogramaron desde el último guardado.
+         *
+         * - Una partición que ya existe y de la que no se quita nada recibe las citas en su
+         *   lugar, sin copiarla (ver agregarAlFinal).
+         * - Las particiones nuevas, o de las que se quitan citas, se reescriben completas con
+         *   el mismo guardado seguro que guardarCitas(): temporal + fsync + renombrado.
+         *
+         * @param nuevas citas a agregar
+         * @param quitar partición -> ids a quitar de ella (se quita la primera línea con cada id)
+         * @return bytes escritos.
+         */
+        public long agregarCitas(List<Cita> nuevas, Map<String, Set<String>> quitar) {
+            long t0 = Metricas.AGREGAR_CITAS.inicio(), bytes = -1;
+            try {
+                migrarCitasCsv();
+                Map<String, List<Cita>> porParticion = new TreeMap<>();
+                for (Cita c : nuevas) {
+                    porParticion.computeIfAbsent(particionDe(minutosDe(c.getFechaHora())), k -> new ArrayList<>()).add(c);
+                }
+                for (String p : quitar.keySet()) porParticion.computeIfAbsent(p, k -> new ArrayList<>());
+
+                long escritos = 0;
+                Map<String, List<Cita>> alFinal = new TreeMap<>();
+                Tokenizador tk = new Tokenizador();
+                for (Map.Entry<String, List<Cita>> e : porParticion.entrySet()) {
+                    File archivo = archivoParticion(e.getKey());
+                    Set<String> quitarDe = quitar.get(e.getKey());
+                    if (quitarDe == null && archivo.exists()) {
+                        alFinal.put(e.getKey(), e.getValue());
+                        continue;
+                    }
+                    Set<String> pendientes = quitarDe == null ? new HashSet<>() : new HashSet<>(quitarDe);
+                    try (EscritorContado bw = new EscritorContado(archivo)) {
+                        if (archivo.exists()) {
+                            Integridad integridad = new Integridad(archivo);
+                            try (BufferedReader br = integridad.abrirLector()) {
+                                long registros = 0;
+                                String line;
+                                while ((line = br.readLine()) != null) {
+                                    String limpia = line.trim();
+                                    if (limpia.isEmpty()) continue;
+                                    registros++;
+                                    if (!pendientes.isEmpty() && tk.dividir(limpia) >= 5 && pendientes.remove(tk.campo(0))) continue;
+                                    bw.write(line);
+                                    bw.newLine();
+                                }
+                                integridad.verificarRegistros(registros);
+                            }
+                        }
+                        for (Cita c : e.getValue()) escribirCita(bw, c);
+                        escritos += bw.confirmar();
+                    } catch (IOException ex) {
+                        throw new RuntimeException("Error escribiendo " + archivo.getName() + ": " + ex.getMessage());
+                    }
+                }
+                if (!alFinal.isEmpty()) escritos += agregarAlFinal(alFinal);
+                return bytes = escritos;
+            } finally {
+                Metricas.AGREGAR_CITAS.fin(t0, bytes);
+            }
+        }
+
+        /**
+         * agregarAlFinal()
+         * ----------------
+         * Agrega citas a particiones que ya existen SIN copiarlas: las líneas nuevas y un
+         * trailer nuevo se escriben encima del trailer anterior. El CRC32 se retoma del que
+         * dice ese trailer (ver continuarCrc), así que solo se leen y escriben los bytes nuevos.
+         *
+         * Escribir en su lugar no es atómico como el renombrado, así que:
+         * 1) Se escribe agregado.pendiente (guardado seguro) con dónde terminaban los datos
+         *    de cada partición y los bytes de su trailer.
+         * 2) Se escribe cada partición y se hace fsync.
+         * 3) Se borra agregado.pendiente.
+         * Si el programa muere entre 1) y 3), terminarAgregado() deja como estaba cada
+         * partición que ya no verifica (las que sí verifican se quedan como quedaron).
+         *
+         * @param porParticion partición -> citas a agregarle
+         * @return bytes escritos.
+         */
+        private long agregarAlFinal(Map<String, List<Cita>> porParticion) {
+            File archivo = null;
+            try {
+                long escritos = 0;
+                List<Integridad> trailers = new ArrayList<>();
+                try (EscritorContado pendiente = new EscritorContado(agregadoPendiente)) {
+                    for (String p : porParticion.keySet()) {
+                        archivo = archivoParticion(p);
+                        Integridad integridad = Integridad.soloTrailer(archivo);
+                        byte[] cola = new byte[(int) (archivo.length() - integridad.longitudDatos)];
+                        try (FileChannel ch = FileChannel.open(archivo.toPath(), StandardOpenOption.READ)) {
+                            ByteBuffer buf = ByteBuffer.wrap(cola);
+                            while (buf.hasRemaining() && ch.read(buf, integridad.longitudDatos + buf.position()) > 0) { }
+                        }
+                        pendiente.write(p + ";" + integridad.longitudDatos + ";" + aHex(cola));
+                        pendiente.newLine();
+                        trailers.add(integridad);
+                    }
+                    escritos += pendiente.confirmar();
+                }
+
+                int i = 0;
+                for (Map.Entry<String, List<Cita>> e : porParticion.entrySet()) {
+                    archivo = archivoParticion(e.getKey());
+                    Integridad integridad = trailers.get(i++);
+                    StringWriter lineas = new StringWriter();
+                    try (BufferedWriter bw = new BufferedWriter(lineas)) {
+                        for (Cita c : e.getValue()) escribirCita(bw, c);
+                    }
+                    byte[] datos = lineas.toString().getBytes(StandardCharsets.UTF_8);
+                    String trailer = TRAILER + (integridad.registrosEsperados + e.getValue().size()) + ";"
+                            + Long.toHexString(continuarCrc(integridad.crc, datos)) + System.lineSeparator();
+                    escritos += escribirEnSuLugar(archivo, integridad.longitudDatos,
+                            datos, trailer.getBytes(StandardCharsets.ISO_8859_1));
+                }
+                Files.delete(agregadoPendiente.toPath());
+                return escritos;
+            } catch (IOException ex) {
+                throw new RuntimeException("Error escribiendo " + (archivo == null ? agregadoPendiente : archivo).getName()
+                        + ": " + ex.getMessage());
+            }
+        }
+
+        /**
+         * Escribe los bloques uno tras otro desde la posición indicada, corta el archivo
+         * ahí y hace fsync.
+         *
+         * @return bytes escritos.
+         */
+        private static long escribirEnSuLugar(File archivo, long posicion, byte[]... bloques) throws IOException {
+            try (FileChannel ch = FileChannel.open(archivo.toPath(), StandardOpenOption.WRITE)) {
+                long pos = posicion;
+                for (byte[] b : bloques) {
+                    ByteBuffer buf = ByteBuffer.wrap(b);
+                    while (buf.hasRemaining()) pos += ch.write(buf, pos);
+                }
+                ch.truncate(pos);
+                ch.force(true);
+                return pos - posicion;
+            }
+        }
+
+        /**
+         * terminarAgregado()
+         * ------------------
+         * Después de una caída durante agregarAlFinal(): cada partición registrada en
+         * agregado.pendiente que ya no verifica contra su trailer (quedó escrita a medias)
+         * se corta donde terminaban sus datos y recupera su trailer anterior. Las citas que
+         * se pierden así siguen en el journal (o se vuelven a guardar desde memoria).
+         */
+        private synchronized void terminarAgregado() {
+            try {
+                Integridad integridad = new Integridad(agregadoPendiente);
+                try (BufferedReader br = integridad.abrirLector()) {
+                    long registros = 0;
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        if (line.trim().isEmpty()) continue;
+                        registros++;
+                        String[] campos = line.trim().split(";");
+                        File archivo = archivoParticion(campos[0]);
+                        if (!archivo.exists() || verifica(archivo)) continue;
+                        escribirEnSuLugar(archivo, Long.parseLong(campos[1]), deHex(campos[2]));
+                    }
+                    integridad.verificarRegistros(registros);
+                }
+                Files.delete(agregadoPendiente.toPath());
+            } catch (IOException | RuntimeException e) {
+                throw new RuntimeException("Error terminando el agregado de citas: " + e.getMessage());
+            }
+        }
+
+        /** true si el archivo verifica contra su trailer. */
+        private static boolean verifica(File archivo) {
+            try {
+                new Integridad(archivo);
+                return true;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        /** Bytes como texto hexadecimal (dos dígitos por byte). */
+        private static String aHex(byte[] bytes) {
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return sb.toString();
+        }
+
+        /** Inverso de aHex(). */
+        private static byte[] deHex(String hex) {
+            byte[] bytes = new byte[hex.length() / 2];
+            for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+            return bytes;
+        }
+
+        /** Tabla del CRC32 (polinomio 0xEDB88320, el mismo que java.util.zip.CRC32). */
+        private static final int[] TABLA_CRC = new int[256];
+        static {
+            for (int n = 0; n < 256; n++) {
+                int c = n;
+                for (int k = 0; k < 8; k++) c = (c & 1) != 0 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;
+                TABLA_CRC[n] = c;
+            }
+        }
+
+        /**
+         * continuarCrc()
+         * --------------
+         * Sigue un CRC32 ya calculado con más bytes, como si se hubieran pasado todos a
+         * java.util.zip.CRC32 (que no deja retomar un valor guardado).
+         */
+        static long continuarCrc(long crc, byte[] bytes) {
+            int c = ~(int) crc;
+            for (byte b : bytes) c = TABLA_CRC[(c ^ b) & 0xFF] ^ (c >>> 8);
+            return ~c & 0xFFFFFFFFL;
+        }
+
+        /**
+         * agregarACuarentena()
+         * --------------------
+         * Agrega citas al final de cuarentena.csv con la causa en una sexta columna:
+         * id;fechaHora;motivo;doctorId;pacienteId;causa. Los primeros cinco campos son los de
+         * una partición, así que el archivo se puede volver a importar tal cual (opción 6)
+         * después de dar de alta al doctor o paciente que faltaba.
+         *
+         * Mismo guardado seguro que agregarCitas(): se copian las líneas actuales
+         * (verificando el trailer), se escriben las nuevas, fsync y renombrado.
+         *
+         * Una cita que ya está en el archivo (mismos cinco campos) no se vuelve a agregar:
+         * si el programa se cerró después de escribir cuarentena.csv y antes de reescribir
+         * las particiones, la siguiente validación la aparta otra vez, y así no se duplica.
+         *
+         * @param apartadas citas a apartar
+         * @param causas causa de cada cita (misma posición)
+         * @return bytes escritos.
+         */
+        public long agregarACuarentena(List<Cita> apartadas, List<String> causas) {
+            try (EscritorContado bw = new EscritorContado(cuarentenaFile)) {
+                Set<List<String>> yaApartadas = new HashSet<>();
+                if (cuarentenaFile.exists()) {
+                    Integridad integridad = new Integridad(cuarentenaFile);
+                    Tokenizador tk = new Tokenizador();
+                    try (BufferedReader br = integridad.abrirLector()) {
+                        long registros = 0;
+                        String line;
+                        while ((line = br.readLine()) != null) {
+                            if (line.trim().isEmpty()) continue;
+                            registros++;
+                            bw.write(line);
+                            bw.newLine();
+                            if (tk.dividir(line.trim()) >= 5) {
+                                yaApartadas.add(Arrays.asList(tk.campo(0), tk.campo(1), tk.campo(2), tk.campo(3), tk.campo(4)));
+                            }
+                        }
+                        integridad.verificarRegistros(registros);
+                    }
+                }
+                for (int i = 0; i < apartadas.size(); i++) {
+                    Cita c = apartadas.get(i);
+                    if (yaApartadas.contains(Arrays.asList(c.getId(), c.getFechaHora(), c.getMotivo(),
+                            c.getDoctorId(), c.getPacienteId()))) continue;
+                    bw.write(esc(c.getId()) + ";" + esc(c.getFechaHora()) + ";" + esc(c.getMotivo())
+                            + ";" + esc(c.getDoctorId()) + ";" + esc(c.getPacienteId()) + ";" + esc(causas.get(i)));
+                    bw.newLine();
+                }
+                return bw.confirmar();
+            } catch (IOException ex) {
+                throw new RuntimeException("Error escribiendo " + cuarentenaFile.getName() + ": " + ex.getMessage());
+            }
+        }
+
+        /**
+         * abrirIndiceCitas()
+         * ------------------
+         * Abre citas.idx; si no existe o ya no corresponde a las particiones, lo reconstruye primero.
+         *
+         * @return índice abierto (hay que cerrarlo al terminar).
+         */
+        public IndiceCitas abrirIndiceCitas() {
+            migrarCitasCsv();
+            IndiceCitas indice = IndiceCitas.abrir(indiceCitasFile, particionesCitas(), firmaCitas());
+            if (indice != null) return indice;
+            construirIndiceCitas();
+            indice = IndiceCitas.abrir(indiceCitasFile, particionesCitas(), firmaCitas());
+            if (indice == null) throw new RuntimeException("No se pudo abrir citas.idx");
+            return indice;
+        }
+
+        /**
+         * construirIndiceCitas()
+         * ----------------------
+         * Recorre las particiones de citas UNA vez, byte por byte (para conocer dónde empieza
+         * cada línea), y escribe citas.idx. No se queda con ninguna Cita en memoria: solo con
+         * unos arreglos primitivos por cita mientras se construye.
+         *
+         * Usa las mismas reglas que la carga normal: líneas vacías se ignoran, las que
+         * tienen menos de 5 campos no son citas, y se verifica el trailer de cada partición.
+         *
+         * @return bytes escritos en citas.idx.
+         */
+        public long construirIndiceCitas() {
+            long t0 = Metricas.CONSTRUIR_INDICE_CITAS.inicio(), bytes = -1;
+            try {
+                migrarCitasCsv();
+                IndiceCitas.Constructor constructor = new IndiceCitas.Constructor();
+                List<File> archivos = particionesCitas();
+                long[] firma = firmaCitas();
+
+                for (int a = 0; a < archivos.size(); a++) {
+                    File archivo = archivos.get(a);
+                    Integridad integridad = new Integridad(archivo);
+                    try (FileChannel ch = FileChannel.open(archivo.toPath(), StandardOpenOption.READ)) {
+                        Tokenizador tk = new Tokenizador();
+                        ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+                        byte[] linea = new byte[256];
+                        int largo = 0;
+                        long inicioLinea = 0;
+                        long registros = 0;
+                        long pos = 0;
+                        while (true) {
+                            buf.clear();
+                            if (integridad.longitudDatos - pos < buf.capacity()) buf.limit((int) (integridad.longitudDatos - pos));
+                            int leidos = pos < integridad.longitudDatos ? ch.read(buf, pos) : -1;
+                            for (int i = 0; i < Math.max(leidos, 0); i++) {
+                                byte b = buf.get(i);
+                                if (b != '\n') {
+                                    if (largo == linea.length) linea = Arrays.copyOf(linea, largo * 2);
+                                    linea[largo++] = b;
+                                    continue;
+                                }
+                                registros += indexarLinea(constructor, tk, linea, largo, IndiceCitas.posicion(a, inicioLinea));
+                                largo = 0;
+                                inicioLinea = pos + i + 1;
+                            }
+                            if (leidos <= 0) break;
+                            pos += leidos;
+                        }
+                        registros += indexarLinea(constructor, tk, linea, largo, IndiceCitas.posicion(a, inicioLinea));
+                        integridad.verificarRegistros(registros);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Error leyendo " + archivo.getName() + ": " + e.getMessage());
+                    }
+                }
+
+                File temporal = new File(indiceCitasFile.getPath() + ".tmp");
+                boolean listo = false;
+                try {
+                    long escritos;
+                    try (FileOutputStream fos = new FileOutputStream(temporal)) {
+                        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+                        constructor.escribir(out, firma[0], firma[1]);
+                        out.flush();
+                        fos.getFD().sync();
+                        escritos = out.size();
+                    }
+                    // Ya cerrado: el renombrado no debe encontrar el temporal abierto
+                    reemplazar(temporal, indiceCitasFile);
+                    listo = true;
+                    return bytes = escritos;
+                } catch (IOException e) {
+                    throw new RuntimeException("Error escribiendo citas.idx: " + e.getMessage());
+                } finally {
+                    if (!listo) temporal.delete();
+                }
+            } finally {
+                Metricas.CONSTRUIR_INDICE_CITAS.fin(t0, bytes);
+            }
+        }
+
+        /**
+         * Pasa una línea de una partición al constructor del índice.
+         *
+         * @param posicion partición y byte donde empieza la línea (ver IndiceCitas.posicion)
+         * @return 1 si la línea cuenta como registro (no vacía), 0 si no.
+         */
+        private int indexarLinea(IndiceCitas.Constructor constructor, Tokenizador tk,
+                                 byte[] linea, int largo, long posicion) {
+            String line = new String(linea, 0, largo, StandardCharsets.UTF_8).trim();
+            if (line.isEmpty()) return 0;
+            if (tk.dividir(line) >= 5) {
+                constructor.agregar(posicion, tk.campo(0), parsearFechaHora(tk.campo(1)), tk.campo(3), tk.campo(4));
+            }
+            return 1;
+        }
+
+        // =======================
+        // PARTICIONES DE CITAS
+        // =======================
+
+        /**
+         * particionDe()
+         * -------------
+         * Partición (mes) a la que va una cita: "2026-02", o PARTICION_SIN_FECHA.
+         * parsearFechaHora() solo acepta años de 0 a 9999, así que siempre son 4 dígitos
+         * (y el orden por nombre de las particiones es el cronológico).
+         *
+         * @param t fechaHora ya interpretada (null si no es válida)
+         */
+        static String particionDe(LocalDateTime t) {
+            if (t == null) return PARTICION_SIN_FECHA;
+            return String.format("%04d-%02d", t.getYear(), t.getMonthValue());
+        }
+
+        /** Igual que particionDe(LocalDateTime), con la fecha en minutos (ver AlmacenCitas). */
+        static String particionDe(long minutos) {
+            return particionDe(minutos == AlmacenCitas.SIN_FECHA ? null : AlmacenCitas.deMinutos(minutos));
+        }
+
+        /** Minutos de un texto fechaHora (AlmacenCitas.SIN_FECHA si no es válido). */
+        private static long minutosDe(String fechaHora) {
+            LocalDateTime t = parsearFechaHora(fechaHora);
+            return t == null ? AlmacenCitas.SIN_FECHA : AlmacenCitas.aMinutos(t);
+        }
+
+        /** Archivo de una partición: citas-<particion>.csv. */
+        File archivoParticion(String particion) {
+            return new File(folder, PREFIJO_PARTICION + particion + ".csv");
+        }
+
+        /** Partición de un archivo citas-<particion>.csv. */
+        static String particionDeArchivo(File f) {
+            String nombre = f.getName();
+            return nombre.substring(PREFIJO_PARTICION.length(), nombre.length() - 4);
+        }
+
+        /**
+         * particionesCitas()
+         * ------------------
+         * Archivos de particiones que hay en la carpeta, ordenados por nombre: como el mes
+         * va como yyyy-MM, eso es orden cronológico (y citas-sin-fecha.csv queda al final).
+         */
+        List<File> particionesCitas() {
+            File[] archivos = folder.listFiles((dir, nombre) -> nombre.startsWith(PREFIJO_PARTICION)
+                    && nombre.endsWith(".csv") && esParticion(nombre.substring(PREFIJO_PARTICION.length(), nombre.length() - 4)));
+            if (archivos == null) return new ArrayList<>();
+            Arrays.sort(archivos, Comparator.comparing(File::getName));
+            return new ArrayList<>(Arrays.asList(archivos));
+        }
+
+        /** true si el texto es yyyy-MM o PARTICION_SIN_FECHA. */
+        private static boolean esParticion(String p) {
+            if (p.equals(PARTICION_SIN_FECHA)) return true;
+            if (p.length() != 7 || p.charAt(4) != '-') return false;
+            for (int i = 0; i < 7; i++) {
+                if (i != 4 && !Character.isDigit(p.charAt(i))) return false;
+            }
+            return true;
+        }
+
+        /**
+         * firmaCitas()
+         * ------------
+         * Resume el estado de las particiones en dos números: {tamaño total, firma}.
+         * La firma combina nombre, tamaño y fecha de modificación de cada partición, así que
+         * cambia si se agrega, borra o modifica cualquiera. Sin particiones regresa {-1, -1}.
+         * La usan snapshot.bin y citas.idx para saber si siguen vigentes.
+         */
+        long[] firmaCitas() {
+            List<File> archivos = particionesCitas();
+            if (archivos.isEmpty()) return new long[] { -1, -1 };
+            long firma = 17;
+            for (File f : archivos) {
+                firma = firma * 31 + f.getName().hashCode();
+                firma = firma * 31 + f.length();
+                firma = firma * 31 + f.lastModified();
+            }
+            return new long[] { tamano(archivos), firma };
+        }
+
+        /** Suma de los tamaños de los archivos. */
+        private static long tamano(List<File> archivos) {
+            long total = 0;
+            for (File f : archivos) total += f.length();
+            return total;
+        }
+
+        /** Citas aproximadas en los archivos (para reservar espacio al cargar). */
+        private static int estimarCitas(List<File> archivos) {
+            return (int) Math.min(Integer.MAX_VALUE - 8, tamano(archivos) / 48);
+        }
+
+        /**
+         * migrarCitasCsv()
+         * ----------------
+         * Si existe un citas.csv del formato anterior (todas las citas en un archivo), lo
+         * reparte en particiones por mes y lo borra. Se llama antes de cualquier uso de las
+         * citas, así que el resto del código solo conoce particiones.
+         *
+         * - Se lee en streaming (verificando su trailer) y cada línea se copia tal cual a su
+         *   partición; las líneas que no son citas (menos de 5 campos) se descartan.
+         * - Si ya existe la partición de un mes, se conserva: sus líneas se copian primero y
+         *   las de citas.csv se agregan después, salvo las que ya estaban (misma línea).
+         * - citas.csv se borra solo después de confirmar todas las particiones. Si el programa
+         *   muere antes, la próxima vez se vuelve a repartir; como las líneas que ya se
+         *   pasaron están en su partición, no se duplican.
+         *
+         * También termina un archivado que quedó a medias (ver terminarArchivado), así que
+         * las particiones que ve el resto del código nunca tienen citas que ya se archivaron,
+         * y deshace un agregado en su lugar que quedó a medias (ver terminarAgregado).
+         */
+        synchronized void migrarCitasCsv() {
+            if (agregadoPendiente.exists()) terminarAgregado();
+            if (citasFile.exists()) repartirCitasCsv();
+            if (archivoPendiente.exists()) terminarArchivado();
+        }
+
+        /**
+         * migrarSinTrailer()
+         * ------------------
+         * Migración explícita (--migrar) de los CSV de versiones anteriores, que no tienen
+         * trailer: los reescribe igual, pero con trailer. Sin esto la carga los rechaza,
+         * porque un archivo sin trailer no se distingue de uno truncado.
+         *
+         * - Los archivos que ya tienen trailer se verifican y no se tocan.
+         * - Las líneas vacías se descartan (no cuentan como registros).
+         * - Se llama antes de cargarTodo(); se puede repetir sin efecto.
+         *
+         * @return cuántos archivos se reescribieron.
+         */
+        synchronized int migrarSinTrailer() {
+            List<File> archivos = new ArrayList<>(Arrays.asList(
+                    doctorsFile, pacientesFile, usuariosFile, seriesFile, cuarentenaFile, citasFile));
+            archivos.addAll(particionesCitas());
+            int migrados = 0;
+            for (File archivo : archivos) {
+                if (!archivo.exists()) continue;
+                Integridad integridad = new Integridad(archivo, true);
+                if (integridad.tieneTrailer()) continue;
+                try (BufferedReader br = integridad.abrirLector();
+                     EscritorContado bw = new EscritorContado(archivo)) {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        if (line.trim().isEmpty()) continue;
+                        bw.write(line);
+                        bw.newLine();
+                    }
+                    bw.confirmar();
+                } catch (IOException e) {
+                    throw new RuntimeException("Error migrando " + archivo.getName() + ": " + e.getMessage());
+                }
+                migrados++;
+            }
+            return migrados;
+        }
+
+        /** Cuerpo de migrarCitasCsv(): reparte citas.csv en particiones y lo borra. */
+        private void repartirCitasCsv() {
+            Map<String, EscritorContado> escritores = new TreeMap<>();
+            // Líneas que ya tenía cada partición antes de repartir
+            Map<String, Set<String>> existentes = new HashMap<>();
+            try {
+                Integridad integridad = new Integridad(citasFile);
+                Tokenizador tk = new Tokenizador();
+                try (BufferedReader br = integridad.abrirLector()) {
+                    long registros = 0;
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        String limpia = line.trim();
+                        if (limpia.isEmpty()) continue;
+                        registros++;
+                        if (tk.dividir(limpia) < 5) continue;
+                        String particion = particionDe(parsearFechaHora(tk.campo(1)));
+                        Set<String> previas = existentes.get(particion);
+                        if (previas == null) {
+                            previas = copiarParticion(escritor(escritores, particion), particion);
+                            existentes.put(particion, previas);
+                        }
+                        if (previas.contains(limpia)) continue;
+                        EscritorContado w = escritores.get(particion);
+                        w.write(limpia);
+                        w.newLine();
+                    }
+                    integridad.verificarRegistros(registros);
+                }
+                for (EscritorContado w : escritores.values()) w.confirmar();
+                Files.delete(citasFile.toPath());
+            } catch (IOException e) {
+                throw new RuntimeException("Error repartiendo citas.csv en particiones: " + e.getMessage());
+            } finally {
+                cerrar(escritores.values());
+            }
+        }
+
+        // =======================
+        // ARCHIVO DE CITAS PASADAS
+        // =======================
+
+        /** Segmentos del archivo: archivo-000001.arc, archivo-000002.arc, ... */
+        static final String PREFIJO_SEGMENTO = "archivo-";
+        static final String EXTENSION_SEGMENTO = ".arc";
+
+        /** Sufijo de un segmento escrito que todavía no se registra en archivo.pendiente. */
+        private static final String SUFIJO_NUEVO = ".nuevo";
+
+        /** Identifica un segmento ("CARC") y la versión de su formato. */
+        static final int SEGMENTO_MAGICO = 0x43415243;
+        static final int SEGMENTO_VERSION = 2;
+
+        /** Cabecera de un segmento de la versión 1: int mágico, int versión, long mínimo, long máximo, int registros. */
+        private static final int CABECERA_SEGMENTO_V1 = 4 + 4 + 8 + 8 + 4;
+
+        /** Cabecera de la versión 2: la de la versión 1 más long bytes de los datos GZIP. */
+        private static final int CABECERA_SEGMENTO = CABECERA_SEGMENTO_V1 + 8;
+
+        /**
+         * archivarCitas()
+         * ---------------
+         * Mueve las citas con fecha anterior al corte de sus particiones a segmentos
+         * comprimidos del archivo (solo-agregar: nunca se reescribe un segmento existente).
+         *
+         * - Solo se leen las particiones de meses que empiezan antes del corte; cada mes
+         *   con citas archivadas da un segmento nuevo, con su fecha mínima y máxima en la
+         *   cabecera (ver citasArchivadas).
+         * - Dentro de un segmento las citas van en orden de fecha (se ordenan las de cada
+         *   mes antes de comprimirlas), y después de los datos GZIP van los hashCode() de
+         *   sus ids, ordenados (un int por cita).
+         * - Las citas sin fecha válida nunca se archivan.
+         *
+         * Orden (para no perder ni duplicar citas si el programa muere a la mitad):
+         * 1) Se escriben los segmentos como archivo-N.arc.nuevo (temporal + fsync + renombrado).
+         * 2) Se escribe archivo.pendiente con el corte y los nombres de los segmentos.
+         * 3) terminarArchivado(): renombra los segmentos a .arc, quita las citas archivadas
+         *    de las particiones y borra archivo.pendiente.
+         * Si muere antes de 2), los .nuevo se descartan en el siguiente archivado; si muere
+         * después, migrarCitasCsv() repite 3) la próxima vez que se usan las citas.
+         *
+         * @param fechaCorte se archivan las citas con fecha antes de aquí
+         * @return citas archivadas, segmentos escritos y bytes.
+         */
+        public synchronized ResultadoArchivado archivarCitas(LocalDateTime fechaCorte) {
+            long t0 = Metricas.ARCHIVAR_CITAS.inicio(), bytes = -1;
+            try {
+                long corte = AlmacenCitas.aMinutos(fechaCorte);
+                migrarCitasCsv();
+                // Segmentos de un archivado que murió antes de registrarse: sus citas siguen en las particiones
+                for (File f : archivosSegmento(SUFIJO_NUEVO)) f.delete();
+
+                Map<String, EscritorSegmento> escritores = new TreeMap<>();
+                int siguiente = ultimoSegmento() + 1;
+                try {
+                    Tokenizador tk = new Tokenizador();
+                    for (File archivo : particionesAntesDe(corte)) {
+                        Integridad integridad = new Integridad(archivo);
+                        try (BufferedReader br = integridad.abrirLector()) {
+                            long registros = 0;
+                            String line;
+                            while ((line = br.readLine()) != null) {
+                                String limpia = line.trim();
+                                if (limpia.isEmpty()) continue;
+                                registros++;
+                                if (tk.dividir(limpia) < 5) continue;
+                                long m = minutosDe(tk.campo(1));
+                                if (m == AlmacenCitas.SIN_FECHA || m >= corte) continue;
+
+                                String mes = particionDeArchivo(archivo);
+                                EscritorSegmento w = escritores.get(mes);
+                                if (w == null) {
+                                    w = new EscritorSegmento(archivoSegmento(siguiente++, SUFIJO_NUEVO));
+                                    escritores.put(mes, w);
+                                }
+                                w.escribir(limpia, m, tk.campo(0));
+                            }
+                            integridad.verificarRegistros(registros);
+                        }
+                        // Cada partición va a su propio segmento: ya se puede ordenar y comprimir
+                        EscritorSegmento w = escritores.get(particionDeArchivo(archivo));
+                        if (w != null) w.volcar();
+                    }
+                    if (escritores.isEmpty()) {
+                        bytes = 0;
+                        return new ResultadoArchivado(0, 0, 0);
+                    }
+
+                    long escritos = 0;
+                    int citas = 0;
+                    try (EscritorContado pendiente = new EscritorContado(archivoPendiente)) {
+                        pendiente.write(String.valueOf(corte));
+                        pendiente.newLine();
+                        for (EscritorSegmento w : escritores.values()) {
+                            citas += w.registros;
+                            escritos += w.confirmar();
+                            String nombre = w.destino.getName();
+                            pendiente.write(nombre.substring(0, nombre.length() - SUFIJO_NUEVO.length()));
+                            pendiente.newLine();
+                        }
+                        escritos += pendiente.confirmar();
+                    }
+                    terminarArchivado();
+                    bytes = escritos;
+                    return new ResultadoArchivado(citas, escritores.size(), escritos);
+                } catch (IOException e) {
+                    throw new RuntimeException("Error archivando citas: " + e.getMessage());
+                } finally {
+                    for (EscritorSegmento w : escritores.values()) w.close();
+                }
+            } finally {
+                Metricas.ARCHIVAR_CITAS.fin(t0, bytes);
+            }
+        }
+
+        /**
+         * terminarArchivado()
+         * -------------------
+         * Completa el archivado registrado en archivo.pendiente: renombra sus segmentos de
+         * .nuevo a .arc y deja en las particiones anteriores al corte solo las citas con
+         * fecha desde el corte (o sin fecha). Cada paso se puede repetir sin dañar nada,
+         * así que sirve igual justo después de archivar que al arrancar tras una caída.
+         */
+        private synchronized void terminarArchivado() {
+            if (!archivoPendiente.exists()) return;
+            try {
+                Integridad integridad = new Integridad(archivoPendiente);
+                long corte;
+                try (BufferedReader br = integridad.abrirLector()) {
+                    String line = br.readLine();
+                    if (line == null) throw new IOException("archivo.pendiente vacío");
+                    corte = Long.parseLong(line.trim());
+                    long registros = 1;
+                    while ((line = br.readLine()) != null) {
+                        if (line.trim().isEmpty()) continue;
+                        registros++;
+                        File nuevo = new File(folder, line.trim() + SUFIJO_NUEVO);
+                        if (nuevo.exists()) reemplazar(nuevo, new File(folder, line.trim()));
+                    }
+                    integridad.verificarRegistros(registros);
+                }
+
+                Tokenizador tk = new Tokenizador();
+                for (File archivo : particionesAntesDe(corte)) {
+                    boolean quedan = false;
+                    Integridad datos = new Integridad(archivo);
+                    try (EscritorContado bw = new EscritorContado(archivo)) {
+                        try (BufferedReader br = datos.abrirLector()) {
+                            long registros = 0;
+                            String line;
+                            while ((line = br.readLine()) != null) {
+                                String limpia = line.trim();
+                                if (limpia.isEmpty()) continue;
+                                registros++;
+                                if (tk.dividir(limpia) >= 5) {
+                                    long m = minutosDe(tk.campo(1));
+                                    if (m != AlmacenCitas.SIN_FECHA && m < corte) continue;
+                                }
+                                bw.write(limpia);
+                                bw.newLine();
+                                quedan = true;
+                            }
+                            datos.verificarRegistros(registros);
+                        }
+                        if (quedan) bw.confirmar();
+                    }
+                    if (!quedan) Files.delete(archivo.toPath());
+                }
+                Files.delete(archivoPendiente.toPath());
+            } catch (IOException | NumberFormatException e) {
+                throw new RuntimeException("Error terminando el archivado de citas: " + e.getMessage());
+            }
+        }
+
+        /**
+         * citasArchivadas()
+         * -----------------
+         * Citas del archivo con fecha en [desde, hasta), en orden de fecha (solo lectura).
+         *
+         * De cada segmento se lee primero su cabecera: si su rango [mínimo, máximo] no toca
+         * la ventana, se salta sin descomprimir nada. Los que sí la tocan se descomprimen en
+         * streaming (GZIP verifica su propio CRC32) y se compara el total de registros con
+         * la cabecera.
+         *
+         * Cada segmento ya viene en orden de fecha (los de la versión 1 se ordenan al
+         * leerlos), así que el resultado se arma mezclando los segmentos, sin ordenar todo
+         * de nuevo; con fechas iguales va primero la del segmento más antiguo.
+         *
+         * @param desde inicio del rango (incluido)
+         * @param hasta fin del rango (excluido)
+         * @return lista de citas archivadas del rango.
+         */
+        public List<Cita> citasArchivadas(LocalDateTime desde, LocalDateTime hasta) {
+            long t0 = Metricas.LEER_ARCHIVO.inicio(), leidos = -1;
+            try {
+                long d = AlmacenCitas.aMinutos(desde);
+                long h = AlmacenCitas.aMinutos(hasta);
+                List<List<Cita>> partes = new ArrayList<>();
+                List<long[]> minutos = new ArrayList<>();
+                long total = 0;
+                if (d < h) {
+                    for (File segmento : archivosSegmento("")) {
+                        List<Cita> parte = new ArrayList<>();
+                        total += leerSegmento(segmento, parte, d, h);
+                        if (parte.isEmpty()) continue;
+                        long[] m = new long[parte.size()];
+                        for (int i = 0; i < m.length; i++) m[i] = minutosDe(parte.get(i).getFechaHora());
+                        partes.add(parte);
+                        minutos.add(m);
+                    }
+                }
+                leidos = total;
+                return mezclarSegmentos(partes, minutos);
+            } finally {
+                Metricas.LEER_ARCHIVO.fin(t0, leidos);
+            }
+        }
+
+        /**
+         * Lee de un segmento las citas con fecha en [d, h) (en minutos), en orden de fecha.
+         * Si el rango del segmento no toca la ventana, solo se lee la cabecera.
+         *
+         * @return bytes leídos del segmento.
+         */
+        private long leerSegmento(File segmento, List<Cita> list, long d, long h) {
+            try (EntradaLimitada archivo = new EntradaLimitada(new FileInputStream(segmento), Long.MAX_VALUE);
+                 InputStream in = new BufferedInputStream(archivo, 1 << 16)) {
+                DataInputStream cab = new DataInputStream(in);
+                int version = leerVersionSegmento(segmento, cab);
+                long minimo = cab.readLong();
+                long maximo = cab.readLong();
+                int registros = cab.readInt();
+                long largoDatos = version == 1 ? Long.MAX_VALUE : cab.readLong();
+                if (maximo < d || minimo >= h) return archivo.leidos;
+
+                BufferedReader br = new BufferedReader(new InputStreamReader(new java.util.zip.GZIPInputStream(
+                        new EntradaLimitada(in, largoDatos), 1 << 16), StandardCharsets.UTF_8));
+                int antes = list.size();
+                long enSegmento = leerCitas(br, list, d, h);
+                if (enSegmento != registros) {
+                    throw new RuntimeException(segmento.getName() + " está dañado: se esperaban "
+                            + registros + " registros y se leyeron " + enSegmento);
+                }
+                if (version == 1) {
+                    // La versión 1 guardaba las citas en el orden de su partición
+                    list.subList(antes, list.size()).sort(Comparator.comparingLong(c -> minutosDe(c.getFechaHora())));
+                }
+                return archivo.leidos;
+            } catch (IOException e) {
+                throw new RuntimeException("Error leyendo " + segmento.getName() + ": " + e.getMessage());
+            }
+        }
+
+        /** Lee mágico y versión de un segmento (1 o 2); si no es un segmento válido, lanza error. */
+        private static int leerVersionSegmento(File segmento, DataInputStream cab) throws IOException {
+            int version = cab.readInt() == SEGMENTO_MAGICO ? cab.readInt() : -1;
+            if (version != 1 && version != SEGMENTO_VERSION) {
+                throw new RuntimeException(segmento.getName() + " no es un segmento de archivo válido");
+            }
+            return version;
+        }
+
+        /**
+         * Mezcla las citas de varios segmentos, cada uno ya en orden de fecha (con sus
+         * minutos aparte), en una sola lista en orden de fecha. Los segmentos que tocan una
+         * misma ventana son pocos, así que en cada paso se busca el menor entre todos.
+         */
+        private static List<Cita> mezclarSegmentos(List<List<Cita>> partes, List<long[]> minutos) {
+            if (partes.size() == 1) return partes.get(0);
+            int total = 0;
+            for (List<Cita> parte : partes) total += parte.size();
+            List<Cita> list = new ArrayList<>(total);
+            int[] pos = new int[partes.size()];
+            for (int n = 0; n < total; n++) {
+                int menor = -1;
+                for (int k = 0; k < pos.length; k++) {
+                    if (pos[k] == minutos.get(k).length) continue;
+                    if (menor < 0 || minutos.get(k)[pos[k]] < minutos.get(menor)[pos[menor]]) menor = k;
+                }
+                list.add(partes.get(menor).get(pos[menor]++));
+            }
+            return list;
+        }
+
+        /**
+         * CLASE SegmentoArchivo
+         * ---------------------
+         * Lo que se sabe de un segmento del archivo sin descomprimirlo: su rango de fechas y
+         * los hashCode() de sus ids, ordenados (ver segmentosArchivo).
+         */
+        static final class SegmentoArchivo {
+            final File archivo;
+            final long minimo;
+            final long maximo;
+            private final int[] hashes;
+
+            SegmentoArchivo(File archivo, long minimo, long maximo, int[] hashes) {
+                this.archivo = archivo;
+                this.minimo = minimo;
+                this.maximo = maximo;
+                this.hashes = hashes;
+            }
+
+            /** false si el id seguro no está en el segmento; true si puede estar (hay que confirmarlo). */
+            boolean puedeTener(String id) {
+                return Arrays.binarySearch(hashes, id.hashCode()) >= 0;
+            }
+        }
+
+        /**
+         * segmentosArchivo()
+         * ------------------
+         * Cabecera y hashes de ids de cada segmento, para que Sistema reserve los ids y los
+         * turnos de las citas archivadas sin tener el archivo en memoria (4 bytes por cita).
+         *
+         * De un segmento de la versión 2 solo se leen la cabecera y el bloque de hashes (se
+         * salta el GZIP); uno de la versión 1 no tiene ese bloque y se descomprime una vez.
+         *
+         * @return un resumen por segmento, en orden.
+         */
+        public List<SegmentoArchivo> segmentosArchivo() {
+            migrarCitasCsv();
+            List<SegmentoArchivo> list = new ArrayList<>();
+            for (File segmento : archivosSegmento("")) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(segmento), 1 << 16)) {
+                    DataInputStream cab = new DataInputStream(in);
+                    int version = leerVersionSegmento(segmento, cab);
+                    long minimo = cab.readLong();
+                    long maximo = cab.readLong();
+                    int[] hashes = new int[cab.readInt()];
+                    if (version == 1) {
+                        BufferedReader br = new BufferedReader(new InputStreamReader(
+                                new java.util.zip.GZIPInputStream(in, 1 << 16), StandardCharsets.UTF_8));
+                        Tokenizador tk = new Tokenizador();
+                        int n = 0;
+                        String line;
+                        while ((line = br.readLine()) != null && n < hashes.length) {
+                            line = line.trim();
+                            if (!line.isEmpty() && tk.dividir(line) >= 5) hashes[n++] = tk.campo(0).hashCode();
+                        }
+                        hashes = Arrays.copyOf(hashes, n);
+                        Arrays.sort(hashes);
+                    } else {
+                        for (long saltar = cab.readLong(); saltar > 0; ) {
+                            long n = cab.skip(saltar);
+                            if (n <= 0) throw new EOFException("segmento incompleto");
+                            saltar -= n;
+                        }
+                        for (int i = 0; i < hashes.length; i++) hashes[i] = cab.readInt();
+                    }
+                    list.add(new SegmentoArchivo(segmento, minimo, maximo, hashes));
+                } catch (IOException e) {
+                    throw new RuntimeException("Error leyendo " + segmento.getName() + ": " + e.getMessage());
+                }
+            }
+            return list;
+        }
+
+        /**
+         * idEnSegmento()
+         * --------------
+         * Confirma si un id está en un segmento (cuando puedeTener() dice que sí): lo
+         * descomprime completo, así que solo se usa en ese caso.
+         */
+        boolean idEnSegmento(SegmentoArchivo segmento, String id) {
+            List<Cita> list = new ArrayList<>();
+            leerSegmento(segmento.archivo, list, Long.MIN_VALUE, Long.MAX_VALUE);
+            for (Cita c : list) {
+                if (id.equals(c.getId())) return true;
+            }
+            return false;
+        }
+
+        /** Particiones de los meses que toca [desde, hasta) (sin citas-sin-fecha.csv), en orden. */
+        private List<File> particionesEntre(long desde, long hasta) {
+            List<File> archivos = new ArrayList<>();
+            if (hasta <= desde) return archivos;
+            String primera = particionDe(desde);
+            String ultima = particionDe(hasta - 1);
+            for (File f : particionesCitas()) {
+                String p = particionDeArchivo(f);
+                if (!p.equals(PARTICION_SIN_FECHA) && p.compareTo(primera) >= 0 && p.compareTo(ultima) <= 0) {
+                    archivos.add(f);
+                }
+            }
+            return archivos;
+        }
+
+        /** Particiones de meses que empiezan antes del corte (sin citas-sin-fecha.csv), en orden. */
+        private List<File> particionesAntesDe(long corte) {
+            List<File> archivos = new ArrayList<>();
+            String ultima = particionDe(corte - 1);
+            for (File f : particionesCitas()) {
+                String p = particionDeArchivo(f);
+                if (!p.equals(PARTICION_SIN_FECHA) && p.compareTo(ultima) <= 0) archivos.add(f);
+            }
+            return archivos;
+        }
+
+        /** Archivo de un segmento: archivo-<número con 6 dígitos>.arc (más el sufijo dado). */
+        private File archivoSegmento(int numero, String sufijo) {
+            return new File(folder, PREFIJO_SEGMENTO + String.format("%06d", numero) + EXTENSION_SEGMENTO + sufijo);
+        }
+
+        /** Segmentos con ese sufijo ("" = los registrados), ordenados por nombre (= por número). */
+        private List<File> archivosSegmento(String sufijo) {
+            String fin = EXTENSION_SEGMENTO + sufijo;
+            File[] archivos = folder.listFiles((dir, nombre) -> nombre.startsWith(PREFIJO_SEGMENTO) && nombre.endsWith(fin));
+            if (archivos == null) return new ArrayList<>();
+            Arrays.sort(archivos, Comparator.comparing(File::getName));
+            return new ArrayList<>(Arrays.asList(archivos));
+        }
+
+        /** Número más alto entre los segmentos que hay (0 si no hay ninguno). */
+        private int ultimoSegmento() {
+            int ultimo = 0;
+            for (File f : archivosSegmento("")) {
+                String nombre = f.getName();
+                try {
+                    ultimo = Math.max(ultimo, Integer.parseInt(
+                            nombre.substring(PREFIJO_SEGMENTO.length(), nombre.length() - EXTENSION_SEGMENTO.length())));
+                } catch (NumberFormatException e) {
+                    // No es un segmento nuestro (nombre puesto a mano): no cuenta
+                }
+            }
+            return ultimo;
+        }
+
+        /**
+         * CLASE EscritorSegmento
+         * ----------------------
+         * Escribe un segmento del archivo de forma segura (igual que EscritorContado):
+         * - A "<archivo>.tmp": primero una cabecera vacía y luego las líneas comprimidas con GZIP.
+         * - confirmar() llena la cabecera (fecha mínima, máxima y registros, que ya se conocen),
+         *   hace fsync y renombra el temporal sobre el destino.
+         * - Si se cierra sin confirmar, borra el temporal.
+         */
+        private static class EscritorSegmento implements Closeable {
+            private final File destino;
+            private final File temporal;
+            private final FileOutputStream fos;
+            private final java.util.zip.GZIPOutputStream gzip;
+            private final BufferedWriter out;
+            private long minimo = Long.MAX_VALUE;
+            private long maximo = Long.MIN_VALUE;
+            private int registros = 0;
+            private boolean confirmado = false;
+            /** Líneas de la partición actual, por ordenar (ver volcar). */
+            private final List<LineaArchivada> pendientes = new ArrayList<>();
+            /** hashCode() de los ids escritos. */
+            private int[] hashes = new int[64];
+
+            EscritorSegmento(File destino) throws IOException {
+                this.destino = destino;
+                this.temporal = new File(destino.getPath() + ".tmp");
+                this.fos = new FileOutputStream(temporal);
+                fos.write(new byte[CABECERA_SEGMENTO]);
+                this.gzip = new java.util.zip.GZIPOutputStream(fos, 1 << 16);
+                this.out = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8), 1 << 16);
+            }
+
+            /** Agrega una línea de cita (ya escapada, como en su partición) con sus minutos y su id. */
+            void escribir(String linea, long minutos, String id) {
+                pendientes.add(new LineaArchivada(linea, minutos));
+                if (registros == hashes.length) hashes = Arrays.copyOf(hashes, registros * 2);
+                hashes[registros++] = id.hashCode();
+                minimo = Math.min(minimo, minutos);
+                maximo = Math.max(maximo, minutos);
+            }
+
+            /** Ordena por fecha las líneas pendientes (sort estable) y las comprime. */
+            void volcar() throws IOException {
+                pendientes.sort(Comparator.comparingLong(l -> l.minutos));
+                for (LineaArchivada l : pendientes) {
+                    out.write(l.linea);
+                    out.newLine();
+                }
+                pendientes.clear();
+            }
+
+            /**
+             * confirmar()
+             * -----------
+             * Termina el GZIP, agrega los hashes de los ids (ordenados), escribe la cabecera
+             * al inicio, fsync y renombrado.
+             *
+             * @return bytes del segmento.
+             */
+            long confirmar() throws IOException {
+                volcar();
+                out.flush();
+                gzip.finish();
+                long largoDatos = fos.getChannel().position() - CABECERA_SEGMENTO;
+                int[] ordenados = Arrays.copyOf(hashes, registros);
+                Arrays.sort(ordenados);
+                ByteBuffer bloque = ByteBuffer.allocate(4 * registros);
+                bloque.asIntBuffer().put(ordenados);
+                while (bloque.hasRemaining()) fos.getChannel().write(bloque);
+
+                ByteBuffer cab = ByteBuffer.allocate(CABECERA_SEGMENTO);
+                cab.putInt(SEGMENTO_MAGICO).putInt(SEGMENTO_VERSION).putLong(minimo).putLong(maximo).putInt(registros)
+                        .putLong(largoDatos);
+                cab.flip();
+                while (cab.hasRemaining()) fos.getChannel().write(cab, cab.position());
+                fos.getFD().sync();
+                long bytes = fos.getChannel().size();
+
+                confirmado = true;
+                fos.close();
+                reemplazar(temporal, destino);
+                return bytes;
+            }
+
+            @Override
+            public void close() {
+                try {
+                    fos.close();
+                } catch (IOException ignorada) {
+                    // solo se estaba descartando el temporal
+                }
+                if (!confirmado) temporal.delete();
+            }
+        }
+
+        /** Una línea de cita por archivar, con sus minutos (para ordenarla). */
+        private static final class LineaArchivada {
+            final String linea;
+            final long minutos;
+
+            LineaArchivada(String linea, long minutos) {
+                this.linea = linea;
+                this.minutos = minutos;
+            }
+        }
+
+        /**
+         * cargarUsuarios()
+         * ----------------
+         * Lee usuarios.csv y construye lista de usuarios.
+         * Se carga el passwordHash directamente (ya viene calculado).
+         *
+         * @return lista de usuarios.
+         */
+        public List<Usuario> cargarUsuarios() {
+            long t0 = Metricas.CARGAR_USUARIOS.inicio(), leidos = -1;
+            try {
+                List<Usuario> list = new ArrayList<>();
+                if (!usuariosFile.exists()) {
+                    leidos = 0;
+                    return list;
+                }
+
+                Integridad integridad = new Integridad(usuariosFile);
+                try (BufferedReader br = integridad.abrirLector()) {
+                    Tokenizador tk = new Tokenizador();
+                    long registros = 0;
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty()) continue;
+                        registros++;
+
+                        if (tk.dividir(line) < 4) continue;
+
+                        String id = tk.campo(0);
+                        String username = tk.campo(1);
+                        String hash = tk.campo(2);
+                        String rol = tk.campo(3);
+
+                        list.add(new Usuario(id, username, hash, rol));
+                    }
+                    integridad.verificarRegistros(registros);
+                } catch (IOException e) {
+                    throw new RuntimeException("Error leyendo usuarios.csv: " + e.getMessage());
+                }
+                leidos = integridad.bytesLeidos();
+                return list;
+            } finally {
+                Metricas.CARGAR_USUARIOS.fin(t0, leidos);
+            }
+        }
+
+        /**
+         * guardarUsuarios()
+         * -----------------
+         * Sobrescribe usuarios.csv con la lista actual.
+         * (archivo temporal + fsync + renombrado atómico, con trailer de verificación).
+         *
+         * @param usuarios lista de usuarios a guardar.
+         * @return bytes escritos.
+         */
+        public long guardarUsuarios(List<Usuario> usuarios) {
+            long t0 = Metricas.GUARDAR_USUARIOS.inicio(), bytes = -1;
+            try (EscritorContado bw = new EscritorContado(usuariosFile)) {
+                for (Usuario u : usuarios) {
+                    bw.write(esc(u.getId()) + ";" + esc(u.getUsername()) + ";" + esc(u.getPasswordHash()) + ";" + esc(u.getRol()));
+                    bw.newLine();
+                }
+                return bytes = bw.confirmar();
+            } catch (IOException e) {
+                throw new RuntimeException("Error escribiendo usuarios.csv: " + e.getMessage());
+            } finally {
+                Metricas.GUARDAR_USUARIOS.fin(t0, bytes);
+            }
+        }
+
+        /**
+         * cargarSeries()
+         * --------------
+         * Lee series.csv y construye la lista de series (solo las reglas; ninguna ocurrencia).
+         * Las líneas cuya regla no es válida (fecha, periodo o repeticiones) se ignoran.
+         * La columna 8 (excepciones, ver SerieCitas.excepcionesTexto) es opcional: los
+         * archivos de versiones anteriores solo tienen 7.
+         *
+         * @return lista de series.
+         */
+        public List<SerieCitas> cargarSeries() {
+            long t0 = Metricas.CARGAR_SERIES.inicio(), leidos = -1;
+            try {
+                List<SerieCitas> list = new ArrayList<>();
+                if (!seriesFile.exists()) {
+                    leidos = 0;
+                    return list;
+                }
+
+                Integridad integridad = new Integridad(seriesFile);
+                try (BufferedReader br = integridad.abrirLector()) {
+                    Tokenizador tk = new Tokenizador();
+                    long registros = 0;
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty()) continue;
+                        registros++;
+
+                        int campos = tk.dividir(line);
+                        if (campos < 7) continue;
+
+                        SerieCitas serie = serieDeCampos(tk.campo(0), tk.campo(1), tk.campo(2), tk.campo(3),
+                                tk.campo(4), textos.compartido(tk.campo(5)), textos.compartido(tk.campo(6)));
+                        if (serie == null) continue;
+                        if (campos >= 8) serie.cargarExcepciones(tk.campo(7));
+                        list.add(serie);
+                    }
+                    integridad.verificarRegistros(registros);
+                } catch (IOException e) {
+                    throw new RuntimeException("Error leyendo series.csv: " + e.getMessage());
+                }
+                leidos = integridad.bytesLeidos();
+                return list;
+            } finally {
+                Metricas.CARGAR_SERIES.fin(t0, leidos);
+            }
+        }
+
+        /**
+         * serieDeCampos()
+         * ---------------
+         * Arma una serie a partir de sus campos en texto (de series.csv o del journal).
+         *
+         * @return la serie, o null si la regla no es válida.
+         */
+        static SerieCitas serieDeCampos(String id, String inicio, String cadaDias, String repeticiones,
+                                        String motivo, String doctorId, String pacienteId) {
+            try {
+                return new SerieCitas(id, inicio, Integer.parseInt(cadaDias), Integer.parseInt(repeticiones),
+                        motivo, doctorId, pacienteId);
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * guardarSeries()
+         * ---------------
+         * Sobrescribe series.csv con la lista actual, cada regla con sus excepciones.
+         * (archivo temporal + fsync + renombrado atómico, con trailer de verificación).
+         *
+         * @param series lista de series a guardar.
+         * @return bytes escritos.
+         */
+        public long guardarSeries(List<SerieCitas> series) {
+            long t0 = Metricas.GUARDAR_SERIES.inicio(), bytes = -1;
+            try (EscritorContado bw = new EscritorContado(seriesFile)) {
+                for (SerieCitas s : series) {
+                    bw.write(esc(s.getId()) + ";" + esc(s.getInicio()) + ";" + s.getCadaDias() + ";" + s.getRepeticiones()
+                            + ";" + esc(s.getMotivo()) + ";" + esc(s.getDoctorId()) + ";" + esc(s.getPacienteId())
+                            + ";" + esc(s.excepcionesTexto()));
+                    bw.newLine();
+                }
+                return bytes = bw.confirmar();
+            } catch (IOException e) {
+                throw new RuntimeException("Error escribiendo series.csv: " + e.getMessage());
+            } finally {
+                Metricas.GUARDAR_SERIES.fin(t0, bytes);
+            }
+        }
+
+        /**
+         * agregarAlJournal()
+         * ------------------
+         * Agrega un registro (una línea) al final de journal.csv y hace flush,
+         * para que el cambio quede en disco sin reescribir los CSV completos.
+         * La línea termina con el CRC32 del registro (;~hex), que revisa cargarJournal().
+         *
+         * @param tipo tipo de registro (D, P, C, S, U, X, R o XS)
+         * @param campos campos del registro, en el mismo orden que en su CSV.
+         */
+        public synchronized void agregarAlJournal(String tipo, String... campos) {
+            StringBuilder sb = new StringBuilder(tipo);
+            for (String c : campos) sb.append(';').append(esc(c));
+            CRC32 crc = new CRC32();
+            crc.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+            sb.append(MARCA_CRC_JOURNAL).append(Long.toHexString(crc.getValue())).append('\n');
+            try {
+                if (journalWriter == null) {
+                    journalWriter = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+                }
+                journalWriter.write(sb.toString());
+                journalWriter.flush();
+            } catch (IOException e) {
+                throw new RuntimeException("Error escribiendo journal.csv: " + e.getMessage());
+            }
+        }
+
+        /**
+         * cargarJournal()
+         * ---------------
+         * Lee journal.csv y regresa sus registros en orden, ya sin escapes.
+         * El elemento 0 de cada arreglo es el tipo (D, P, C, S, U, X, R o XS).
+         *
+         * Si el programa se cerró a mitad de una escritura, el último registro puede venir
+         * incompleto o con basura: no coincide con su CRC (o no termina en salto de línea,
+         * si es de una versión sin CRC). Ese registro se descarta y se corta del archivo,
+         * para que lo que se agregue después no quede pegado a él. Un registro dañado que
+         * NO es el último no se explica por un cierre a medias: se reporta como error.
+         *
+         * @return lista de registros del journal (vacía si no existe).
+         */
+        public List<String[]> cargarJournal() {
+            List<String[]> list = new ArrayList<>();
+            if (!journalFile.exists()) return list;
+
+            try {
+                byte[] datos = Files.readAllBytes(journalFile.toPath());
+                Tokenizador tk = new Tokenizador();
+                int inicio = 0;
+                int numero = 0;
+                while (inicio < datos.length) {
+                    int fin = inicio;
+                    while (fin < datos.length && datos[fin] != '\n') fin++;
+                    boolean completa = fin < datos.length;
+                    numero++;
+                    String line = new String(datos, inicio, fin - inicio, StandardCharsets.UTF_8).trim();
+                    String registro = line.isEmpty() ? line : registroVerificado(line, completa);
+                    if (registro == null) {
+                        if (fin + 1 < datos.length) {
+                            throw new RuntimeException("journal.csv dañado en la línea " + numero + " (no coincide su CRC)");
+                        }
+                        cortarJournal(inicio);
+                        break;
+                    }
+                    if (!registro.isEmpty()) {
+                        String[] parts = new String[tk.dividir(registro)];
+                        for (int i = 0; i < parts.length; i++) parts[i] = tk.campo(i);
+                        list.add(parts);
+                    }
+                    if (!completa) {
+                        // El registro quedó bien pero le faltó el salto de línea
+                        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+                            out.write('\n');
+                        }
+                    }
+                    inicio = fin + 1;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error leyendo journal.csv: " + e.getMessage());
+            }
+            return list;
+        }
+
+        /**
+         * Registro de una línea de journal.csv sin su ;~crc, o null si el CRC no coincide.
+         * Las líneas sin CRC (versiones anteriores) se aceptan solo si terminaron en salto
+         * de línea.
+         */
+        private static String registroVerificado(String line, boolean completa) {
+            int marca = line.lastIndexOf(MARCA_CRC_JOURNAL);
+            if (marca <= 0 || line.charAt(marca - 1) == '\\') return completa ? line : null;
+            String registro = line.substring(0, marca);
+            CRC32 crc = new CRC32();
+            crc.update(registro.getBytes(StandardCharsets.UTF_8));
+            return Long.toHexString(crc.getValue()).equals(line.substring(marca + MARCA_CRC_JOURNAL.length()))
+                    ? registro : null;
+        }
+
+        /** Corta journal.csv en la posición dada (quita un registro final incompleto). */
+        private void cortarJournal(long largo) throws IOException {
+            try (FileChannel ch = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                ch.truncate(largo);
+                ch.force(true);
+            }
+        }
+
+        /**
+         * vaciarJournal()
+         * ---------------
+         * Borra el contenido de journal.csv. Se llama justo después de guardar los CSV
+         * completos (compactación), porque en ese momento ya no hay cambios pendientes.
+         */
+        public synchronized void vaciarJournal() {
+            try {
+                if (journalWriter != null) {
+                    journalWriter.close();
+                    journalWriter = null;
+                }
+                if (journalFile.exists()) {
+                    new FileOutputStream(journalFile, false).close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error vaciando journal.csv: " + e.getMessage());
+            }
+        }
+
+        // =======================
+        // SNAPSHOT BINARIO
+        // =======================
+
+        /** Identifica un snapshot.bin ("CITA") y la versión de su formato. */
+        static final int SNAPSHOT_MAGICO = 0x43495441;
+        static final int SNAPSHOT_VERSION = 3;
+
+        /**
+         * guardarSnapshot()
+         * -----------------
+         * Escribe snapshot.bin con el estado completo. Se llama DESPUÉS de guardar los CSV,
+         * porque guarda su tamaño y fecha de modificación para saber si sigue vigente.
+         *
+         * Formato (todos los números en big-endian):
+         * - int mágico, int versión
+         * - 4 x (long tamaño, long fecha) de doctors, pacientes, citas y usuarios (-1 si no existe);
+         *   para las citas, el tamaño total y la firma de sus particiones (ver firmaCitas)
+         * - byte validado: 1 si estos datos ya pasaron la validación de integridad
+         *   (ver Sistema.validarIntegridad), para no repetirla al cargar
+         * - diccionario: int n, y n textos (int longitud + bytes UTF-8)
+         * - doctores  : int n, y por cada uno 3 int (posiciones en el diccionario; -1 = null)
+         * - pacientes : int n, 2 int cada uno
+         * - citas     : int n, 5 int cada una
+         * - usuarios  : int n, 4 int cada uno
+         * - long CRC32 de todo lo anterior
+         *
+         * El diccionario guarda cada texto distinto una sola vez (especialidades, ids de
+         * doctor/paciente repetidos en las citas, motivos comunes, etc.).
+         * Se escribe a "snapshot.bin.tmp" y se renombra, igual que los CSV.
+         *
+         * @return bytes escritos.
+         */
+        public long guardarSnapshot(List<Doctor> doctores, List<Paciente> pacientes,
+                                    List<Cita> citas, List<Usuario> usuarios) {
+            return guardarSnapshot(doctores, pacientes, citas, usuarios, false);
+        }
+
+        /**
+         * guardarSnapshot() marcando si los datos ya se validaron
+         * -------------------------------------------------------
+         * @param validado true si los datos pasaron la validación de integridad
+         * @return bytes escritos.
+         */
+        public long guardarSnapshot(List<Doctor> doctores, List<Paciente> pacientes,
+                                    List<Cita> citas, List<Usuario> usuarios, boolean validado) {
+            long t0 = Metricas.GUARDAR_SNAPSHOT.inicio(), bytes = -1;
+            try {
+                Map<String, Integer> dic = new HashMap<>();
+                List<String> textos = new ArrayList<>();
+                int[] docs = new int[doctores.size() * 3];
+                int k = 0;
+                for (Doctor d : doctores) {
+                    docs[k++] = indice(dic, textos, d.getId());
+                    docs[k++] = indice(dic, textos, d.getNombreCompleto());
+                    docs[k++] = indice(dic, textos, d.getEspecialidad());
+                }
+                int[] pacs = new int[pacientes.size() * 2];
+                k = 0;
+                for (Paciente p : pacientes) {
+                    pacs[k++] = indice(dic, textos, p.getId());
+                    pacs[k++] = indice(dic, textos, p.getNombreCompleto());
+                }
+                int[] cits = new int[citas.size() * 5];
+                int nCitas = 0;
+                k = 0;
+                // Las canceladas no van (igual que en los CSV)
+                try (AlmacenCitas.Lectura filas = citas instanceof AlmacenCitas ? ((AlmacenCitas) citas).leer() : null) {
+                    for (int f = 0, n = filas != null ? filas.tamano() : citas.size(); f < n; f++) {
+                        if (filas != null && filas.estaCancelada(f)) continue;
+                        Cita c = filas != null ? filas.get(f) : citas.get(f);
+                        cits[k++] = indice(dic, textos, c.getId());
+                        cits[k++] = indice(dic, textos, c.getFechaHora());
+                        cits[k++] = indice(dic, textos, c.getMotivo());
+                        cits[k++] = indice(dic, textos, c.getDoctorId());
+                        cits[k++] = indice(dic, textos, c.getPacienteId());
+                        nCitas++;
+                    }
+                }
+                int[] usrs = new int[usuarios.size() * 4];
+                k = 0;
+                for (Usuario u : usuarios) {
+                    usrs[k++] = indice(dic, textos, u.getId());
+                    usrs[k++] = indice(dic, textos, u.getUsername());
+                    usrs[k++] = indice(dic, textos, u.getPasswordHash());
+                    usrs[k++] = indice(dic, textos, u.getRol());
+                }
+
+                File temporal = new File(snapshotFile.getPath() + ".tmp");
+                boolean listo = false;
+                try {
+                    long escritos;
+                    try (FileOutputStream fos = new FileOutputStream(temporal)) {
+                        CRC32 crc = new CRC32();
+                        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                new java.util.zip.CheckedOutputStream(fos, crc), 1 << 16));
+                        out.writeInt(SNAPSHOT_MAGICO);
+                        out.writeInt(SNAPSHOT_VERSION);
+                        for (long v : estadoArchivos()) out.writeLong(v);
+                        out.writeByte(validado ? 1 : 0);
+                        out.writeInt(textos.size());
+                        for (String t : textos) {
+                            byte[] b = t.getBytes(StandardCharsets.UTF_8);
+                            out.writeInt(b.length);
+                            out.write(b);
+                        }
+                        escribirIndices(out, docs, doctores.size(), 3);
+                        escribirIndices(out, pacs, pacientes.size(), 2);
+                        escribirIndices(out, cits, nCitas, 5);
+                        escribirIndices(out, usrs, usuarios.size(), 4);
+                        out.flush();
+                        out.writeLong(crc.getValue());
+                        out.flush();
+                        fos.getFD().sync();
+                        escritos = out.size();
+                    }
+                    // Ya cerrado: el renombrado no debe encontrar el temporal abierto
+                    reemplazar(temporal, snapshotFile);
+                    listo = true;
+                    return bytes = escritos;
+                } catch (IOException e) {
+                    throw new RuntimeException("Error escribiendo snapshot.bin: " + e.getMessage());
+                } finally {
+                    if (!listo) temporal.delete();
+                }
+            } finally {
+                Metricas.GUARDAR_SNAPSHOT.fin(t0, bytes);
+            }
+        }
+
+        /**
+         * cargarSnapshot()
+         * ----------------
+         * Lee snapshot.bin si sigue vigente.
+         *
+         * Regresa null (y entonces hay que cargar los CSV) si:
+         * - no existe, o es de otra versión,
+         * - algún CSV cambió de tamaño o de fecha desde que se escribió,
+         * - el CRC32 no coincide (archivo dañado).
+         *
+         * @return snapshot con las cuatro listas, o null.
+         */
+        public Snapshot cargarSnapshot() {
+            long t0 = Metricas.CARGAR_SNAPSHOT.inicio(), leidos = -1;
+            try {
+                if (!snapshotFile.exists()) {
+                    leidos = 0;
+                    return null;
+                }
+                try {
+                    ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapshotFile.toPath()));
+                    leidos = in.limit();
+                    if (in.remaining() < 8 + 4 * 16 + 1 + 4 + 8) return null;
+                    if (in.getInt() != SNAPSHOT_MAGICO || in.getInt() != SNAPSHOT_VERSION) return null;
+                    for (long v : estadoArchivos()) {
+                        if (in.getLong() != v) return null;
+                    }
+                    boolean validado = in.get() == 1;
+
+                    CRC32 crc = new CRC32();
+                    crc.update(in.array(), 0, in.limit() - 8);
+                    if (crc.getValue() != in.getLong(in.limit() - 8)) return null;
+
+                    byte[] bytes = in.array();
+                    String[] dic = new String[in.getInt()];
+                    for (int i = 0; i < dic.length; i++) {
+                        int len = in.getInt();
+                        dic[i] = new String(bytes, in.position(), len, StandardCharsets.UTF_8);
+                        in.position(in.position() + len);
+                    }
+
+                    Snapshot snap = new Snapshot();
+                    snap.validado = validado;
+                    int n = in.getInt();
+                    snap.doctores = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        snap.doctores.add(new Doctor(compartido(dic, in), texto(dic, in), compartido(dic, in)));
+                    }
+                    n = in.getInt();
+                    snap.pacientes = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        snap.pacientes.add(new Paciente(compartido(dic, in), texto(dic, in)));
+                    }
+                    n = in.getInt();
+                    snap.citas = new AlmacenCitas(n);
+                    for (int i = 0; i < n; i++) {
+                        // fechaHora no se comparte: AlmacenCitas solo guarda sus minutos
+                        snap.citas.add(new Cita(texto(dic, in), texto(dic, in), texto(dic, in),
+                                compartido(dic, in), compartido(dic, in)));
+                    }
+                    n = in.getInt();
+                    snap.usuarios = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        snap.usuarios.add(new Usuario(texto(dic, in), texto(dic, in), texto(dic, in), texto(dic, in)));
+                    }
+                    return snap;
+                } catch (IOException | RuntimeException e) {
+                    // Snapshot ilegible: se ignora y se cargan los CSV
+                    return null;
+                }
+            } finally {
+                Metricas.CARGAR_SNAPSHOT.fin(t0, leidos);
+            }
+        }
+
+        /**
+         * Estado de los cuatro CSV que queda registrado en el snapshot, en orden fijo:
+         * (tamaño, fecha) de doctors, pacientes y usuarios, y en medio firmaCitas() de las citas.
+         * Un citas.csv sin repartir nunca coincide (el snapshot se ignora y se migra al cargar).
+         */
+        private long[] estadoArchivos() {
+            long[] citas = citasFile.exists() ? new long[] { -2, -2 } : firmaCitas();
+            return new long[] {
+                    doctorsFile.exists() ? doctorsFile.length() : -1, doctorsFile.exists() ? doctorsFile.lastModified() : -1,
+                    pacientesFile.exists() ? pacientesFile.length() : -1, pacientesFile.exists() ? pacientesFile.lastModified() : -1,
+                    citas[0], citas[1],
+                    usuariosFile.exists() ? usuariosFile.length() : -1, usuariosFile.exists() ? usuariosFile.lastModified() : -1
+            };
+        }
+
+        /** Posición de un texto en el diccionario del snapshot (lo agrega si es nuevo; null = -1). */
+        private static int indice(Map<String, Integer> dic, List<String> textos, String s) {
+            if (s == null) return -1;
+            Integer i = dic.get(s);
+            if (i == null) {
+                i = textos.size();
+                dic.put(s, i);
+                textos.add(s);
+            }
+            return i;
+        }
+
+        /**
+         * Escribe la cantidad de registros seguida de sus posiciones en el diccionario: solo
+         * las primeras registros * campos (el arreglo de citas sobra si hubo canceladas).
+         */
+        private static void escribirIndices(DataOutputStream out, int[] indices, int registros, int campos)
+                throws IOException {
+            out.writeInt(registros);
+            for (int i = 0, n = registros * campos; i < n; i++) out.writeInt(indices[i]);
+        }
+
+        /** Lee una posición del diccionario y regresa su texto (o null si es -1). */
+        private static String texto(String[] dic, ByteBuffer in) {
+            int i = in.getInt();
+            return i < 0 ? null : dic[i];
+        }
+
+        /**
+         * Como texto(), pero pasando el valor por el Internador (ids y especialidades que se repiten),
+         * para que lo cargado del snapshot y lo que se cree después compartan instancia.
+         */
+        private String compartido(String[] dic, ByteBuffer in) {
+            int i = in.getInt();
+            return i < 0 ? null : (dic[i] = textos.compartido(dic[i]));
+        }
+
+        /**
+         * reemplazar()
+         * ------------
+         * Renombra el archivo temporal sobre el destino; de forma atómica si el sistema
+         * de archivos lo permite (así nunca se ve un archivo a medias).
+         *
+         * Después hace fsync de la carpeta: el renombrado es una entrada de la carpeta, y
+         * sin eso un corte de luz podría dejar el nombre apuntando todavía al archivo viejo.
+         */
+        private static void reemplazar(File temporal, File destino) throws IOException {
+            try {
+                Files.move(temporal.toPath(), destino.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporal.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            sincronizarCarpeta(destino.getAbsoluteFile().getParentFile());
+        }
+
+        /**
+         * sincronizarCarpeta()
+         * --------------------
+         * fsync de una carpeta. Algunos sistemas (Windows) no dejan abrir una carpeta
+         * como canal; ahí se omite, porque su renombrado ya es durable.
+         */
+        private static void sincronizarCarpeta(File carpeta) {
+            try (FileChannel ch = FileChannel.open(carpeta.toPath(), StandardOpenOption.READ)) {
+                ch.force(true);
+            } catch (IOException e) {
+                // No se puede sincronizar la carpeta en este sistema
+            }
+        }
+
+        /**
+         * splitSemi()
+         * -----------
+         * Divide una línea por ';' PERO sin cortar cuando el ';' está escapado con '\;'.
+         *
+         * Ejemplo:
+         * - Texto: "D1;Juan\\;Pérez;Cardiología"
+         * - El nombre real contiene ';' => "Juan;Pérez"
+         *
+         * Aquí guardamos el texto con escapes, y luego unesc() se encarga de devolverlo normal.
+         *
+         * Nota: las cargas ya no usan splitSemi()+unesc() (copian cada campo varias veces);
+         * usan Tokenizador, que hace las dos cosas en una sola pasada.
+         *
+         * @param line línea completa del CSV
+         * @return arreglo de "columnas" en texto escapado.
+         */
+        String[] splitSemi(String line) {
+            List<String> parts = new ArrayList<>();
+            StringBuilder cur = new StringBuilder();
+            boolean escaping = false;
+
+            for (int i = 0; i < line.length(); i++) {
+                char ch = line.charAt(i);
+
+                if (escaping) {
+                    // Si el caracter anterior fue '\', metemos "\x" para que unesc() lo procese
+                    cur.append('\\').append(ch);
+                    escaping = false;
+                    continue;
+                }
+
+                if (ch == '\\') {
+                    escaping = true;
+                    continue;
+                }
+
+                if (ch == ';') {
+                    parts.add(cur.toString());
+                    cur.setLength(0);
+                } else {
+                    cur.append(ch);
+                }
+            }
+            parts.add(cur.toString());
+            return parts.toArray(new String[0]);
+        }
+
+        /**
+         * CLASE Tokenizador
+         * -----------------
+         * Divide una línea por ';' y quita los escapes (\;, \n, \r) en UNA sola pasada,
+         * regresando directamente el valor final de cada campo.
+         *
+         * ¿Por qué existe?
+         * - splitSemi() copia cada carácter a un StringBuilder y luego unesc() hace tres
+         *   String.replace encadenados: unas cinco copias por campo.
+         * - Aquí, si un campo no trae escapes, se toma tal cual con substring (una copia);
+         *   si trae, se arma en un StringBuilder que se reutiliza entre líneas.
+         * - El arreglo de campos también se reutiliza, así que al cargar archivos grandes
+         *   se crea mucha menos basura para el GC.
+         *
+         * Uso (un Tokenizador por hilo, NO es thread-safe):
+         *   int n = tk.dividir(line);
+         *   String id = tk.campo(0);
+         *
+         * Un '\' seguido de cualquier otro carácter se deja tal cual ("\x"), y un '\'
+         * al final de la línea se descarta, igual que splitSemi().
+         */
+        static class Tokenizador {
+            private final StringBuilder buf = new StringBuilder(64);
+            private String[] campos = new String[8];
+            private int cantidad;
+
+            /**
+             * dividir()
+             * ---------
+             * Procesa una línea; después los campos se leen con campo(i).
+             *
+             * @param line línea del CSV (ya sin el salto de línea)
+             * @return cantidad de campos encontrados.
+             */
+            int dividir(CharSequence line) {
+                cantidad = 0;
+                int n = line.length();
+                int inicio = 0;          // inicio del campo actual en la línea
+                boolean conEscapes = false;
+
+                for (int i = 0; i < n; i++) {
+                    char ch = line.charAt(i);
+
+                    if (ch == '\\') {
+                        if (!conEscapes) {
+                            // Primer escape del campo: copiamos lo que llevamos al buffer
+                            buf.setLength(0);
+                            buf.append(line, inicio, i);
+                            conEscapes = true;
+                        }
+                        if (++i >= n) break;
+                        char sig = line.charAt(i);
+                        switch (sig) {
+                            case 'n': buf.append('\n'); break;
+                            case 'r': buf.append('\r'); break;
+                            case ';': buf.append(';'); break;
+                            default: buf.append('\\').append(sig);
+                        }
+                    } else if (ch == ';') {
+                        agregar(conEscapes ? buf.toString() : line.subSequence(inicio, i).toString());
+                        inicio = i + 1;
+                        conEscapes = false;
+                    } else if (conEscapes) {
+                        buf.append(ch);
+                    }
+                }
+                agregar(conEscapes ? buf.toString() : line.subSequence(Math.min(inicio, n), n).toString());
+                return cantidad;
+            }
+
+            /**
+             * campo()
+             * -------
+             * Devuelve el campo i (ya sin escapes) de la última línea procesada.
+             */
+            String campo(int i) { return campos[i]; }
+
+            private void agregar(String valor) {
+                if (cantidad == campos.length) campos = Arrays.copyOf(campos, cantidad * 2);
+                campos[cantidad++] = valor;
+            }
+        }
+
+        /** Inicio de la línea trailer que cierra cada CSV: #FIN;registros;crc32. */
+        static final String TRAILER = "#FIN;";
+
+        /**
+         * CLASE EscritorContado
+         * ---------------------
+         * BufferedWriter en UTF-8 para guardar un CSV de forma segura:
+         * - Escribe a "<archivo>.tmp", nunca directo sobre el archivo real.
+         * - Cuenta los bytes escritos y los registros (cada newLine() es un registro),
+         *   y va calculando el CRC32 de todo lo escrito.
+         * - confirmar() agrega el trailer, hace fsync y renombra el temporal sobre el real.
+         * - Si se cierra sin confirmar (por un error a la mitad), borra el temporal y el
+         *   archivo real no se toca.
+         */
+        private static class EscritorContado extends BufferedWriter {
+            private final File destino;
+            private final File temporal;
+            private final FileOutputStream fos;
+            private final ContadorSalida contador;
+            private long registros = 0;
+            private boolean confirmado = false;
+
+            EscritorContado(File destino) throws IOException {
+                this(destino, new File(destino.getPath() + ".tmp"));
+            }
+
+            private EscritorContado(File destino, File temporal) throws IOException {
+                this(destino, temporal, new FileOutputStream(temporal));
+            }
+
+            private EscritorContado(File destino, File temporal, FileOutputStream fos) {
+                this(destino, temporal, fos, new ContadorSalida(fos));
+            }
+
+            private EscritorContado(File destino, File temporal, FileOutputStream fos, ContadorSalida contador) {
+                super(new OutputStreamWriter(contador, StandardCharsets.UTF_8));
+                this.destino = destino;
+                this.temporal = temporal;
+                this.fos = fos;
+                this.contador = contador;
+            }
+
+            @Override
+            public void newLine() throws IOException {
+                super.newLine();
+                registros++;
+            }
+
+            /**
+             * confirmar()
+             * -----------
+             * Termina el guardado:
+             * 1) Escribe el trailer con el número de registros y el CRC32 de los datos.
+             * 2) fsync: fuerza que todo llegue al disco antes de seguir.
+             * 3) Renombra el temporal sobre el archivo real (atómico si el sistema lo permite).
+             *
+             * @return bytes escritos en total (incluyendo el trailer).
+             */
+            long confirmar() throws IOException {
+                flush();
+                long crc = contador.crc.getValue();
+                write(TRAILER + registros + ";" + Long.toHexString(crc));
+                super.newLine();
+                flush();
+                fos.getFD().sync();
+
+                confirmado = true;
+                close();
+                reemplazar(temporal, destino);
+                return contador.bytes;
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                if (!confirmado) temporal.delete();
+            }
+        }
+
+        /**
+         * CLASE ContadorSalida
+         * --------------------
+         * OutputStream que deja pasar todo al stream real, va sumando los bytes
+         * y calculando su CRC32.
+         */
+        private static class ContadorSalida extends FilterOutputStream {
+            private long bytes = 0;
+            private final CRC32 crc = new CRC32();
+
+            ContadorSalida(OutputStream out) { super(out); }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                crc.update(b);
+                bytes++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                crc.update(b, off, len);
+                bytes += len;
+            }
+        }
+
+        /**
+         * CLASE Integridad
+         * ----------------
+         * Verifica un CSV contra su trailer (#FIN;registros;crc32) antes de cargarlo.
+         *
+         * Flujo:
+         * 1) Lee el final del archivo para encontrar la última línea.
+         * 2) Si es un trailer, calcula el CRC32 de todos los bytes anteriores en una sola
+         *    pasada secuencial y lo compara; si no coincide, lanza excepción.
+         * 3) abrirLector() entrega SOLO los datos (sin el trailer).
+         * 4) verificarRegistros() compara los registros leídos con los del trailer.
+         *
+         * Si el archivo no tiene trailer (formato anterior) se rechaza: solo migrarSinTrailer()
+         * lo acepta, para reescribirlo con trailer una sola vez.
+         */
+        private static class Integridad {
+            private final File archivo;
+            /** Bytes de datos (todo lo anterior al trailer). */
+            private final long longitudDatos;
+            /** Registros que dice el trailer, o -1 si el archivo no tiene trailer. */
+            private final long registrosEsperados;
+            /** CRC32 de los datos que dice el trailer, o -1 si el archivo no tiene trailer. */
+            private final long crc;
+            /** Bytes leídos al verificar (la cola y, si hay trailer, todos los datos). */
+            private long bytesVerificados;
+            /** Stream del último abrirLector(), para saber cuántos bytes entregó. */
+            private EntradaLimitada lector;
+
+            Integridad(File archivo) {
+                this(archivo, false);
+            }
+
+            /**
+             * CONSTRUCTOR Integridad
+             * ----------------------
+             * @param sinTrailer true para aceptar un archivo sin trailer (solo al migrarlo);
+             *                   en ese caso no se verifica nada y se lee completo.
+             */
+            Integridad(File archivo, boolean sinTrailer) {
+                this(archivo, sinTrailer, true);
+            }
+
+            /**
+             * soloTrailer()
+             * -------------
+             * Lee el trailer SIN recorrer los datos (para agregar al final sin copiarlos:
+             * si los datos estuvieran dañados, el CRC retomado tampoco coincidiría al cargar).
+             */
+            static Integridad soloTrailer(File archivo) {
+                return new Integridad(archivo, false, false);
+            }
+
+            private Integridad(File archivo, boolean sinTrailer, boolean verificarCrc) {
+                this.archivo = archivo;
+                try (FileChannel ch = FileChannel.open(archivo.toPath(), StandardOpenOption.READ)) {
+                    long tamano = ch.size();
+
+                    // 1) Última línea (el trailer mide menos de 64 bytes)
+                    int cola = (int) Math.min(tamano, 128);
+                    ByteBuffer fin = ByteBuffer.allocate(cola);
+                    while (fin.hasRemaining() && ch.read(fin, tamano - cola + fin.position()) > 0) { }
+                    String texto = new String(fin.array(), 0, cola, StandardCharsets.ISO_8859_1);
+                    int finLinea = texto.length();
+                    while (finLinea > 0 && (texto.charAt(finLinea - 1) == '\n' || texto.charAt(finLinea - 1) == '\r')) finLinea--;
+                    int inicioLinea = texto.lastIndexOf('\n', finLinea - 1) + 1;
+                    String ultima = texto.substring(inicioLinea, finLinea);
+                    this.bytesVerificados = cola;
+
+                    if (!ultima.startsWith(TRAILER) || (inicioLinea == 0 && tamano > cola)) {
+                        if (!sinTrailer) {
+                            throw new RuntimeException(archivo.getName() + " no tiene trailer (#FIN): si es de una"
+                                    + " versión anterior, arranca una vez con --migrar para agregárselo");
+                        }
+                        this.longitudDatos = tamano;
+                        this.registrosEsperados = -1;
+                        this.crc = -1;
+                        return;
+                    }
+                    String[] partes = ultima.substring(TRAILER.length()).split(";");
+                    if (partes.length != 2) throw new RuntimeException(archivo.getName() + " está dañado: trailer inválido");
+                    this.longitudDatos = tamano - cola + inicioLinea;
+                    this.registrosEsperados = Long.parseLong(partes[0]);
+                    long crcEsperado = Long.parseLong(partes[1], 16);
+                    this.crc = crcEsperado;
+                    if (!verificarCrc) return;
+
+                    // 2) CRC32 de los datos, en una pasada
+                    CRC32 crc = new CRC32();
+                    ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+                    long pos = 0;
+                    while (pos < longitudDatos) {
+                        buf.clear();
+                        if (longitudDatos - pos < buf.capacity()) buf.limit((int) (longitudDatos - pos));
+                        int leidos = ch.read(buf, pos);
+                        if (leidos <= 0) break;
+                        buf.flip();
+                        crc.update(buf);
+                        pos += leidos;
+                    }
+                    this.bytesVerificados += pos;
+                    if (pos != longitudDatos || crc.getValue() != crcEsperado) {
+                        throw new RuntimeException(archivo.getName() + " está dañado: el checksum no coincide");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new RuntimeException(archivo.getName() + " está dañado: trailer inválido");
+                } catch (IOException e) {
+                    throw new RuntimeException("Error leyendo " + archivo.getName() + ": " + e.getMessage());
+                }
+            }
+
+            /** true si el archivo tiene trailer (y ya se verificó). */
+            boolean tieneTrailer() { return registrosEsperados >= 0; }
+
+            /**
+             * abrirLector()
+             * -------------
+             * Abre un reader UTF-8 que entrega solo los datos del archivo (sin el trailer).
+             */
+            BufferedReader abrirLector() throws IOException {
+                lector = new EntradaLimitada(new FileInputStream(archivo), longitudDatos);
+                return new BufferedReader(new InputStreamReader(lector, StandardCharsets.UTF_8));
+            }
+
+            /**
+             * bytesLeidos()
+             * -------------
+             * Bytes que de verdad se leyeron del archivo: los de la verificación más los
+             * que entregó el lector (para las métricas de carga).
+             */
+            long bytesLeidos() {
+                return bytesVerificados + (lector == null ? 0 : lector.leidos);
+            }
+
+            /**
+             * verificarRegistros()
+             * --------------------
+             * Compara los registros leídos con los que dice el trailer.
+             *
+             * @param leidos líneas no vacías leídas del archivo
+             */
+            void verificarRegistros(long leidos) {
+                if (registrosEsperados >= 0 && leidos != registrosEsperados) {
+                    throw new RuntimeException(archivo.getName() + " está dañado: se esperaban "
+                            + registrosEsperados + " registros y se leyeron " + leidos);
+                }
+            }
+        }
+
+        /**
+         * CLASE EntradaLimitada
+         * ---------------------
+         * InputStream que deja de entregar datos después de cierto número de bytes
+         * (se usa para no leer el trailer como si fuera un registro).
+         */
+        private static class EntradaLimitada extends FilterInputStream {
+            private long restantes;
+            /** Bytes entregados hasta ahora. */
+            private long leidos;
+
+            EntradaLimitada(InputStream in, long limite) {
+                super(in);
+                this.restantes = limite;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (restantes <= 0) return -1;
+                int b = in.read();
+                if (b >= 0) {
+                    restantes--;
+                    leidos++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (restantes <= 0) return -1;
+                int n = in.read(b, off, (int) Math.min(len, restantes));
+                if (n > 0) {
+                    restantes -= n;
+                    leidos += n;
+                }
+                return n;
+            }
+        }
+    }
+
+    /**
+     * CLASE Internador
+     * ----------------
+     * Guarda UNA instancia de cada texto repetido para que todos los objetos que lo usan
+     * la compartan (parecido a String.intern(), pero en un mapa propio).
+     *
+     * Ejemplo: con 1,000,000 de citas y 1,000 doctores, sin esto habría 1,000,000 de copias
+     * de los ids de doctor; con esto hay 1,000.
+     *
+     * Solo se usa con valores de un conjunto pequeño (ids de doctor y paciente,
+     * especialidades); NO con fechas ni textos libres como el motivo: hay casi un valor
+     * distinto por cita, así que el mapa (que nunca se vacía) crecería sin ganar nada.
+     * Es seguro usarlo desde varios hilos.
+     */
+    static class Internador {
+        private final Map<String, String> textos = new ConcurrentHashMap<>();
+        private final boolean activo;
+
+        /** Internador normal (deduplica). */
+        Internador() { this(true); }
+
+        /**
+         * @param activo false para regresar los textos tal cual (solo sirve para comparar memoria).
+         */
+        Internador(boolean activo) { this.activo = activo; }
+
+        /**
+         * compartido()
+         * ------------
+         * Regresa la instancia compartida de un texto (la registra si es la primera vez).
+         *
+         * @param s texto (puede ser null)
+         * @return instancia igual a s que comparten todos los que la pidieron.
+         */
+        public String compartido(String s) {
+            if (s == null || !activo) return s;
+            String previo = textos.get(s);
+            if (previo != null) return previo;
+            previo = textos.putIfAbsent(s, s);
+            return previo != null ? previo : s;
+        }
+
+        /** Cantidad de textos distintos guardados. */
+        public int tamano() { return textos.size(); }
+    }
+
+    /**
+     * CLASE Snapshot
+     * --------------
+     * Estado completo leído de snapshot.bin (ver CsvStorage.cargarSnapshot).
+     */
+    static class Snapshot {
+        List<Doctor> doctores;
+        List<Paciente> pacientes;
+        AlmacenCitas citas;
+        List<Usuario> usuarios;
+        /** true si al escribirlo los datos ya habían pasado la validación de integridad. */
+        boolean validado;
+    }
+
+    /**
+     * CLASE ReporteGuardado
+     * ---------------------
+     * Resume lo que hizo un guardarTodo(): qué archivos se reescribieron,
+     * cuántos bytes se escribieron y cuánto tardó cada uno.
+     *
+     * Si no hubo cambios desde el último guardado, el reporte queda vacío.
+     */
+    static class ReporteGuardado {
+        private final List<String> archivos = new ArrayList<>();
+        private final List<Long> bytes = new ArrayList<>();
+        private final List<Long> nanos = new ArrayList<>();
+
+        /**
+         * agregar()
+         * ---------
+         * Registra el guardado de un archivo.
+         *
+         * @param archivo nombre del archivo
+         * @param bytesEscritos bytes escritos
+         * @param duracionNanos tiempo que tomó, en nanosegundos
+         */
+        void agregar(String archivo, long bytesEscritos, long duracionNanos) {
+            archivos.add(archivo);
+            bytes.add(bytesEscritos);
+            nanos.add(duracionNanos);
+        }
+
+        /** Indica si no se reescribió ningún archivo. */
+        public boolean estaVacio() { return archivos.isEmpty(); }
+
+        /** Total de bytes escritos entre todos los archivos. */
+        public long getBytesTotales() {
+            long total = 0;
+            for (long b : bytes) total += b;
+            return total;
+        }
+
+        /**
+         * toString()
+         * ----------
+         * Texto listo para imprimir en consola, una línea por archivo.
+         */
+        @Override
+        public String toString() {
+            if (archivos.isEmpty()) return "Sin cambios que guardar";
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < archivos.size(); i++) {
+                if (i > 0) sb.append('\n');
+                sb.append(String.format("%-22s %,12d bytes %10.2f ms",
+                        archivos.get(i), bytes.get(i), nanos.get(i) / 1_000_000.0));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * CLASE ResultadoImportacion
+     * --------------------------
+     * Resumen de una importación masiva de citas (Sistema.importarCitas).
+     */
+    static class ResultadoImportacion {
+        private final int aceptadas;
+        private final int rechazadas;
+        private final long duracionNanos;
+        private final ReporteGuardado guardado;
+
+        ResultadoImportacion(int aceptadas, int rechazadas, long duracionNanos, ReporteGuardado guardado) {
+            this.aceptadas = aceptadas;
+            this.rechazadas = rechazadas;
+            this.duracionNanos = duracionNanos;
+            this.guardado = guardado;
+        }
+
+        /** Filas importadas correctamente. */
+        public int getAceptadas() { return aceptadas; }
+
+        /** Filas rechazadas (escritas en el archivo de rechazos). */
+        public int getRechazadas() { return rechazadas; }
+
+        /** Tiempo total de la importación, incluyendo el guardado final. */
+        public long getDuracionNanos() { return duracionNanos; }
+
+        /** Reporte del guardado final. */
+        public ReporteGuardado getGuardado() { return guardado; }
+
+        @Override
+        public String toString() {
+            return String.format("Aceptadas: %,d  Rechazadas: %,d  Tiempo: %.2f s",
+                    aceptadas, rechazadas, duracionNanos / 1_000_000_000.0);
+        }
+    }
+
+    /**
+     * CLASE ResultadoArchivado
+     * ------------------------
+     * Resumen de un archivado de citas pasadas (Sistema.archivarCitas).
+     */
+    static class ResultadoArchivado {
+        private final int citas;
+        private final int segmentos;
+        private final long bytes;
+
+        ResultadoArchivado(int citas, int segmentos, long bytes) {
+            this.citas = citas;
+            this.segmentos = segmentos;
+            this.bytes = bytes;
+        }
+
+        /** Citas que se movieron al archivo. */
+        public int getCitas() { return citas; }
+
+        /** Segmentos nuevos (uno por mes con citas archivadas). */
+        public int getSegmentos() { return segmentos; }
+
+        /** Bytes escritos (segmentos comprimidos y archivo.pendiente). */
+        public long getBytes() { return bytes; }
+
+        @Override
+        public String toString() {
+            if (citas == 0) return "No hay citas anteriores al corte";
+            return String.format("Archivadas: %,d citas en %d segmentos (%,d bytes)", citas, segmentos, bytes);
+        }
+    }
+
+    /**
+     * CLASE ReporteIntegridad
+     * -----------------------
+     * Resultado de Sistema.validarIntegridad(): citas cuyo doctor o paciente no existe,
+     * citas con id repetido (se cuenta a partir de la segunda) y doctores/pacientes con id
+     * repetido. Guarda unos pocos ejemplos para mostrarlos, no la lista completa.
+     */
+    static class ReporteIntegridad {
+        /** Máximo de ejemplos que se guardan. */
+        static final int MAX_EJEMPLOS = 10;
+
+        private int revisadas;
+        private int sinDoctor;
+        private int sinPaciente;
+        private int idsRepetidos;
+        private int doctoresRepetidos;
+        private int pacientesRepetidos;
+        private int enCuarentena;
+        private long duracionNanos;
+        /** true si no se revisó porque snapshot.bin ya venía validado. */
+        private boolean yaValidado;
+        private final List<String> ejemplos = new ArrayList<>();
+
+        /** Agrega un ejemplo (se ignora si ya hay MAX_EJEMPLOS). */
+        void agregarEjemplo(String ejemplo) {
+            if (ejemplos.size() < MAX_EJEMPLOS) ejemplos.add(ejemplo);
+        }
+
+        /** true si no se encontró ningún problema. */
+        public boolean estaLimpio() {
+            return sinDoctor == 0 && sinPaciente == 0 && idsRepetidos == 0
+                    && doctoresRepetidos == 0 && pacientesRepetidos == 0;
+        }
+
+        /** Citas revisadas (en memoria y, con carga perezosa, en disco). */
+        public int getRevisadas() { return revisadas; }
+
+        /** Citas cuyo doctor no existe. */
+        public int getSinDoctor() { return sinDoctor; }
+
+        /** Citas cuyo paciente no existe. */
+        public int getSinPaciente() { return sinPaciente; }
+
+        /** Citas cuyo id ya lo tenía una cita anterior. */
+        public int getIdsRepetidos() { return idsRepetidos; }
+
+        /** Doctores cuyo id ya lo tenía un doctor anterior (el índice usa el primero). */
+        public int getDoctoresRepetidos() { return doctoresRepetidos; }
+
+        /** Pacientes cuyo id ya lo tenía un paciente anterior. */
+        public int getPacientesRepetidos() { return pacientesRepetidos; }
+
+        /** Citas movidas a cuarentena.csv (0 si solo se reportó). */
+        public int getEnCuarentena() { return enCuarentena; }
+
+        /** Tiempo que tomó la revisión (y la cuarentena, si hubo). */
+        public long getDuracionNanos() { return duracionNanos; }
+
+        /** true si no se revisó nada porque los datos venían de un snapshot.bin ya validado. */
+        public boolean isYaValidado() { return yaValidado; }
+
+        /** Algunos ejemplos, como "C17: doctor D99 no existe". */
+        public List<String> getEjemplos() { return Collections.unmodifiableList(ejemplos); }
+
+        /**
+         * toString()
+         * ----------
+         * Texto listo para imprimir en consola: resumen y luego un ejemplo por línea.
+         */
+        @Override
+        public String toString() {
+            if (yaValidado) return String.format("Integridad: %,d citas, ya validadas en snapshot.bin", revisadas);
+            StringBuilder sb = new StringBuilder(String.format(
+                    "Integridad: %,d citas revisadas en %.2f ms", revisadas, duracionNanos / 1_000_000.0));
+            if (estaLimpio()) return sb.append(" (sin problemas)").toString();
+            sb.append(String.format("%nSin doctor: %,d  Sin paciente: %,d  Ids repetidos: %,d",
+                    sinDoctor, sinPaciente, idsRepetidos));
+            if (doctoresRepetidos > 0 || pacientesRepetidos > 0) {
+                sb.append(String.format("%nDoctores repetidos: %,d  Pacientes repetidos: %,d",
+                        doctoresRepetidos, pacientesRepetidos));
+            }
+            if (enCuarentena > 0) sb.append(String.format("%nMovidas a cuarentena.csv: %,d", enCuarentena));
+            for (String e : ejemplos) sb.append(System.lineSeparator()).append("  ").append(e);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * CLASE Hueco
+     * -----------
+     * Un turno libre encontrado por Sistema.buscarHuecos(): con qué doctor y a qué hora.
+     */
+    static class Hueco {
+        private final Doctor doctor;
+        private final LocalDateTime inicio;
+
+        Hueco(Doctor doctor, LocalDateTime inicio) {
+            this.doctor = doctor;
+            this.inicio = inicio;
+        }
+
+        /** Doctor que tiene libre el turno. */
+        public Doctor getDoctor() { return doctor; }
+
+        /** Fecha y hora de inicio del turno. */
+        public LocalDateTime getInicio() { return inicio; }
+
+        @Override
+        public String toString() {
+            return inicio + " con " + doctor.getNombreCompleto() + " (" + doctor.getId() + ")";
+        }
+    }
+
+    /**
+     * CLASE ConsultaCitas
+     * -------------------
+     * Resultado "perezoso" de una consulta de Sistema (citasDePaciente, citasDeDoctor,
+     * citasEntre): no contiene las citas, solo sabe recorrer el índice que las encuentra.
+     *
+     * - stream(): las citas se arman una por una conforme se consumen (por pedazos de
+     *   PEDAZO filas del índice).
+     * - pagina(numero, tamano): salta las páginas anteriores recorriendo solo filas
+     *   (números), y arma únicamente las citas de la página pedida.
+     *
+     * La consulta se queda con el almacén y el índice que había al crearla (ver
+     * Sistema.consulta): cada stream() o pagina() vuelve a recorrerlos desde el principio y ve
+     * las citas que se agreguen o cancelen en ese almacén, pero si Sistema guarda, recarga o
+     * archiva, la consulta sigue viendo los datos de antes. Con carga perezosa retiene el
+     * IndiceCitas de antes (IndiceCitas.retener) para que no se cierre mientras se pagina;
+     * lo suelta cuando la consulta deja de usarse (la recoge el GC).
+     */
+    static class ConsultaCitas {
+        /** Filas que se piden al índice en cada lectura. */
+        static final int PEDAZO = 256;
+
+        /** Suelta el índice retenido cuando la consulta ya no es alcanzable. */
+        private static final Cleaner LIMPIEZA = Cleaner.create();
+
+        /** Abre una fuente nueva (desde el principio) para cada recorrido. */
+        interface Origen {
+            FuenteFilas abrir() throws IOException;
+        }
+
+        /** Arma la cita de una fila (null si en disco ya no se puede leer). */
+        interface Lector {
+            Cita leer(int fila) throws IOException;
+        }
+
+        private final Origen origen;
+        private final Lector lector;
+
+        ConsultaCitas(Origen origen, Lector lector) {
+            this(origen, lector, null);
+        }
+
+        /**
+         * CONSTRUCTOR ConsultaCitas con índice
+         * ------------------------------------
+         * Igual, reteniendo el índice de citas que leen origen y lector (si no es null)
+         * mientras la consulta exista.
+         */
+        ConsultaCitas(Origen origen, Lector lector, IndiceCitas indice) {
+            this.origen = origen;
+            this.lector = lector;
+            if (indice != null) {
+                indice.retener();
+                LIMPIEZA.register(this, indice::soltar);
+            }
+        }
+
+        /**
+         * stream()
+         * --------
+         * Las citas del resultado, en orden (de alta para un paciente, de fecha para rangos).
+         * Es secuencial y perezoso: si se corta (limit, findFirst...), ya no se lee el resto.
+         */
+        public Stream<Cita> stream() {
+            FuenteFilas fuente = abrir();
+            Spliterator<Cita> recorrido = new Spliterators.AbstractSpliterator<Cita>(
+                    Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+                private final int[] filas = new int[PEDAZO];
+                private final long[] minutos = new long[PEDAZO];
+                private int pos = 0;
+                private int cuantos = 0;
+
+                @Override
+                public boolean tryAdvance(Consumer<? super Cita> accion) {
+                    try {
+                        while (true) {
+                            if (pos == cuantos) {
+                                cuantos = siguientes(fuente, filas, minutos);
+                                pos = 0;
+                                if (cuantos == 0) return false;
+                            }
+                            Cita c = leer(filas[pos++]);
+                            if (c != null) {
+                                accion.accept(c);
+                                return true;
+                            }
+                        }
+                    } finally {
+                        // La fuente lee el índice retenido: la consulta debe seguir viva
+                        Reference.reachabilityFence(ConsultaCitas.this);
+                    }
+                }
+            };
+            return StreamSupport.stream(recorrido, false);
+        }
+
+        /**
+         * pagina()
+         * --------
+         * Una página del resultado.
+         *
+         * @param numero número de página (empieza en 0)
+         * @param tamano citas por página
+         */
+        public PaginaCitas pagina(int numero, int tamano) {
+            if (numero < 0 || tamano <= 0) throw new DatoInvalido("Página inválida");
+            try {
+                FuenteFilas fuente = abrir();
+                int[] filas = new int[PEDAZO];
+                long[] minutos = new long[PEDAZO];
+                long saltar = (long) numero * tamano;
+                List<Cita> citas = new ArrayList<>(Math.min(tamano, PEDAZO));
+                int cuantos;
+                while ((cuantos = siguientes(fuente, filas, minutos)) > 0) {
+                    int i = 0;
+                    if (saltar > 0) {
+                        i = (int) Math.min(saltar, cuantos);
+                        saltar -= i;
+                    }
+                    for (; i < cuantos; i++) {
+                        if (citas.size() == tamano) return new PaginaCitas(citas, numero, true);
+                        Cita c = leer(filas[i]);
+                        if (c != null) citas.add(c);
+                    }
+                }
+                return new PaginaCitas(citas, numero, false);
+            } finally {
+                Reference.reachabilityFence(this);
+            }
+        }
+
+        private FuenteFilas abrir() {
+            try {
+                return origen.abrir();
+            } catch (IOException e) {
+                throw new RuntimeException("Error leyendo citas.idx: " + e.getMessage());
+            }
+        }
+
+        private static int siguientes(FuenteFilas fuente, int[] filas, long[] minutos) {
+            try {
+                return fuente.siguientes(filas, minutos);
+            } catch (IOException e) {
+                throw new RuntimeException("Error leyendo citas.idx: " + e.getMessage());
+            }
+        }
+
+        private Cita leer(int fila) {
+            try {
+                return lector.leer(fila);
+            } catch (IOException e) {
+                throw new RuntimeException("Error leyendo las citas: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * CLASE PaginaCitas
+     * -----------------
+     * Una página de una ConsultaCitas.
+     */
+    static class PaginaCitas {
+        private final List<Cita> citas;
+        private final int numero;
+        private final boolean hayMas;
+
+        PaginaCitas(List<Cita> citas, int numero, boolean hayMas) {
+            this.citas = Collections.unmodifiableList(citas);
+            this.numero = numero;
+            this.hayMas = hayMas;
+        }
+
+        /** Citas de la página (puede tener menos que el tamaño pedido si es la última). */
+        public List<Cita> getCitas() { return citas; }
+
+        /** Número de página (empieza en 0). */
+        public int getNumero() { return numero; }
+
+        /** true si hay al menos una cita después de esta página. */
+        public boolean hayMas() { return hayMas; }
+    }
+
+    // =======================
+    // ALMACÉN DE CITAS (COLUMNAS)
+    // =======================
+
+    /**
+     * CLASE AlmacenCitas
+     * ------------------
+     * Guarda las citas "por columnas" en arreglos primitivos, en vez de un objeto Cita
+     * (con cinco Strings) por cita:
+     * - fechaHora  -> long[] con minutos desde 1970-01-01T00:00
+     * - doctorId   -> int[] con un código de diccionario (cada id distinto se guarda una vez)
+     * - pacienteId -> int[] con un código de diccionario
+     * - id y motivo -> bytes UTF-8 en un solo arreglo compartido (la "arena")
+     *
+     * La fila i es la cita número i en orden de alta (igual que la lista de antes).
+     *
+     * Compatibilidad:
+     * - Es una List<Cita> de solo-agregar: get(i) arma un objeto Cita al vuelo, así que
+     *   guardarCitas(), el snapshot y el servidor la pueden usar sin cambios.
+     * - Si el texto de fechaHora no es exactamente "yyyy-MM-ddTHH:mm" (fechas viejas
+     *   inválidas, con espacio, con segundos...), se guarda también el texto original
+     *   para regresarlo igual.
+     *
+     * Sin crear objetos:
+     * - contarDeDoctor() recorre directamente la columna de códigos.
+     * - leer() toma el candado una sola vez para recorridos largos (ver Lectura).
+     * - Los conteos por rango de fechas no se hacen aquí: ver IndiceFechas.contarEntre().
+     *
+     * Búsqueda por id:
+     * - Tabla hash propia (int[] con direccionamiento abierto) sobre los bytes del id.
+     *   Si el archivo trae ids repetidos, la tabla apunta a la PRIMERA fila con ese id.
+     *
+     * Cancelar y reprogramar:
+     * - cancelar() no mueve nada: marca la fila en un BitSet ("lápida") y la fila se queda
+     *   con su id hasta que Sistema compacta (sinFilas), cuando ya son muchas.
+     * - cambiarFecha() reescribe la columna de minutos de la fila, en su lugar.
+     *
+     * Hilos:
+     * - Es seguro usarlo desde varios hilos: las lecturas toman un candado de lectura
+     *   y los agregados el de escritura.
+     */
+    static class AlmacenCitas extends AbstractList<Cita> implements RandomAccess {
+        /** Valor de la columna de minutos cuando la fechaHora no se pudo interpretar. */
+        static final long SIN_FECHA = Long.MIN_VALUE;
+
+        /** Filas que revisa cada hilo en los recorridos en paralelo (ver filasQue). */
+        private static final int PEDAZO_RECORRIDO = 1 << 16;
+
+        private final ReentrantReadWriteLock candado = new ReentrantReadWriteLock();
+
+        private int tamano = 0;
+        private long[] minutos;
+        private int[] doctores;
+        private int[] pacientes;
+
+        /** Posición en la arena donde empieza la fila (id y luego motivo) y largo del id. */
+        private int[] inicio;
+        private int[] largoId;
+        private byte[] arena;
+        private int arenaUsada = 0;
+
+        /** Tabla hash de ids: fila + 1 (0 = vacío). Su tamaño siempre es potencia de 2. */
+        private int[] tablaIds;
+
+        /** Filas en la tabla de ids (menos que tamano si hay ids repetidos). */
+        private int indexados = 0;
+
+        private final Diccionario dicDoctores = new Diccionario();
+        private final Diccionario dicPacientes = new Diccionario();
+
+        /** Texto original de fechaHora de las filas donde no coincide con el formato estándar. */
+        private final Map<Integer, String> fechasOriginales = new HashMap<>();
+
+        /** Filas canceladas (lápidas), hasta que se compacta. */
+        private final BitSet canceladas = new BitSet();
+
+        AlmacenCitas() { this(16); }
+
+        /**
+         * @param capacidad filas para las que se reserva espacio desde el inicio.
+         */
+        AlmacenCitas(int capacidad) {
+            capacidad = Math.max(capacidad, 16);
+            minutos = new long[capacidad];
+            doctores = new int[capacidad];
+            pacientes = new int[capacidad];
+            inicio = new int[capacidad];
+            largoId = new int[capacidad];
+            arena = new byte[capacidad * 24];
+            tablaIds = new int[Integer.highestOneBit(capacidad * 2 - 1) << 1];
+        }
+
+        /**
+         * agregar()
+         * ---------
+         * Agrega una cita al final.
+         *
+         * @param id id de la cita
+         * @param fechaHora texto original de la fecha
+         * @param t fecha ya interpretada (null si no es válida)
+         * @param motivo motivo
+         * @param doctorId id del doctor
+         * @param pacienteId id del paciente
+         * @param idUnico si es true y el id ya existe, no agrega nada y regresa -1
+         * @return número de fila agregada, o -1.
+         */
+        int agregar(String id, String fechaHora, LocalDateTime t, String motivo,
+                    String doctorId, String pacienteId, boolean idUnico) {
+            byte[] bId = bytes(id);
+            byte[] bMotivo = bytes(motivo);
+            long m = t == null ? SIN_FECHA : aMinutos(t);
+            int h = hash(bId);
+
+            candado.writeLock().lock();
+            try {
+                int existente = buscarEnTabla(bId, h);
+                if (existente >= 0 && idUnico) return -1;
+
+                asegurarCapacidad(tamano + 1);
+                if ((long) arenaUsada + bId.length + bMotivo.length > Integer.MAX_VALUE - 8) {
+                    throw new RuntimeException("Almacén de citas lleno (más de 2 GB de ids y motivos)");
+                }
+                if (arenaUsada + bId.length + bMotivo.length > arena.length) {
+                    arena = Arrays.copyOf(arena, (int) Math.min(Integer.MAX_VALUE - 8,
+                            Math.max((long) arena.length * 2, (long) arenaUsada + bId.length + bMotivo.length)));
+                }
+
+                int f = tamano;
+                inicio[f] = arenaUsada;
+                largoId[f] = bId.length;
+                System.arraycopy(bId, 0, arena, arenaUsada, bId.length);
+                System.arraycopy(bMotivo, 0, arena, arenaUsada + bId.length, bMotivo.length);
+                arenaUsada += bId.length + bMotivo.length;
+
+                minutos[f] = m;
+                doctores[f] = dicDoctores.codigo(doctorId);
+                pacientes[f] = dicPacientes.codigo(pacienteId);
+                if (fechaHora != null && (m == SIN_FECHA || !esFormatoEstandar(fechaHora))) {
+                    fechasOriginales.put(f, fechaHora);
+                }
+                tamano++;
+
+                if (existente < 0) indexar(f, h);
+                return f;
+            } finally {
+                candado.writeLock().unlock();
+            }
+        }
+
+        /**
+         * add()
+         * -----
+         * Agrega una Cita (usado por las cargas). Los ids repetidos SÍ se agregan,
+         * igual que hacía la lista; la búsqueda por id regresa la primera.
+         */
+        @Override
+        public boolean add(Cita c) {
+            agregar(c.getId(), c.getFechaHora(), parsearFechaHora(c.getFechaHora()), c.getMotivo(),
+                    c.getDoctorId(), c.getPacienteId(), false);
+            return true;
+        }
+
+        /**
+         * get()
+         * -----
+         * Arma la Cita de la fila indicada (un objeto nuevo en cada llamada).
+         */
+        @Override
+        public Cita get(int fila) {
+            candado.readLock().lock();
+            try {
+                return citaBloqueado(fila);
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /**
+         * leer()
+         * ------
+         * Toma el candado de lectura UNA vez para recorrer muchas filas, en vez de una vez
+         * por cada minutos(f), doctorId(f), get(f)... Mientras la Lectura esté abierta nadie
+         * puede agregar, cancelar ni reprogramar filas, así que se cierra en cuanto se termina:
+         *
+         *   try (AlmacenCitas.Lectura filas = citas.leer()) {
+         *       for (int f = 0, n = filas.tamano(); f < n; f++) ... filas.minutos(f) ...
+         *   }
+         */
+        Lectura leer() {
+            candado.readLock().lock();
+            return new Lectura();
+        }
+
+        /**
+         * CLASE Lectura
+         * -------------
+         * Las mismas consultas por fila que AlmacenCitas, sin candado propio: se hacen con el
+         * candado de lectura que tomó leer() y que suelta close().
+         */
+        final class Lectura implements AutoCloseable {
+            private boolean cerrada = false;
+
+            private Lectura() { }
+
+            int tamano() { return tamano; }
+
+            long minutos(int fila) { return minutos[fila]; }
+
+            String doctorId(int fila) { return dicDoctores.texto(doctores[fila]); }
+
+            String pacienteId(int fila) { return dicPacientes.texto(pacientes[fila]); }
+
+            boolean estaCancelada(int fila) { return canceladas.get(fila); }
+
+            Cita get(int fila) { return citaBloqueado(fila); }
+
+            @Override
+            public void close() {
+                if (cerrada) return;
+                cerrada = true;
+                candado.readLock().unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            candado.readLock().lock();
+            try {
+                return tamano;
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /**
+         * buscarFila()
+         * ------------
+         * Busca una cita por id en la tabla hash.
+         *
+         * @param id id de la cita
+         * @return fila de la primera cita con ese id, o -1.
+         */
+        int buscarFila(String id) {
+            byte[] b = bytes(id);
+            int h = hash(b);
+            candado.readLock().lock();
+            try {
+                return buscarEnTabla(b, h);
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /** Columna de minutos de una fila (SIN_FECHA si la fecha no es válida). */
+        long minutos(int fila) {
+            candado.readLock().lock();
+            try {
+                return minutos[fila];
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /** Id del doctor de una fila (instancia compartida del diccionario, no se crea nada). */
+        String doctorId(int fila) {
+            candado.readLock().lock();
+            try {
+                return dicDoctores.texto(doctores[fila]);
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /** Id del paciente de una fila (instancia compartida del diccionario). */
+        String pacienteId(int fila) {
+            candado.readLock().lock();
+            try {
+                return dicPacientes.texto(pacientes[fila]);
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /** Id de la cita en una fila. */
+        String id(int fila) {
+            candado.readLock().lock();
+            try {
+                return idBloqueado(fila);
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /** Texto de fechaHora de una fila (el original si no era estándar). */
+        String fechaHora(int fila) {
+            candado.readLock().lock();
+            try {
+                return fechaHoraBloqueado(fila);
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /**
+         * contarDeDoctor()
+         * ----------------
+         * Cuenta las citas de un doctor recorriendo solo la columna de códigos de doctor.
+         */
+        int contarDeDoctor(String doctorId) {
+            candado.readLock().lock();
+            try {
+                int codigo = dicDoctores.buscar(doctorId);
+                if (codigo < 0) return 0;
+                boolean conLapidas = !canceladas.isEmpty();
+                int n = 0;
+                for (int i = 0; i < tamano; i++) {
+                    if (doctores[i] == codigo && !(conLapidas && canceladas.get(i))) n++;
+                }
+                return n;
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /**
+         * agregarAAgenda()
+         * ----------------
+         * Agrega a la agenda las filas de un doctor (recorriendo la columna de códigos).
+         * Hay que llamar agenda.ordenar() al terminar.
+         */
+        void agregarAAgenda(String doctorId, AgendaDoctor agenda) {
+            candado.readLock().lock();
+            try {
+                int codigo = dicDoctores.buscar(doctorId);
+                if (codigo < 0) return;
+                for (int i = 0; i < tamano; i++) {
+                    if (doctores[i] == codigo && minutos[i] != SIN_FECHA && !canceladas.get(i)) {
+                        agenda.agregarAlFinal(minutos[i], i);
+                    }
+                }
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /**
+         * cancelar()
+         * ----------
+         * Marca la fila como cancelada: O(1), no se mueve ninguna otra fila. Su id sigue
+         * ocupado hasta la compactación.
+         *
+         * @return false si ya estaba cancelada.
+         */
+        boolean cancelar(int fila) {
+            candado.writeLock().lock();
+            try {
+                if (canceladas.get(fila)) return false;
+                canceladas.set(fila);
+                return true;
+            } finally {
+                candado.writeLock().unlock();
+            }
+        }
+
+        /** true si la fila está cancelada (y todavía no se compacta). */
+        boolean estaCancelada(int fila) {
+            candado.readLock().lock();
+            try {
+                return canceladas.get(fila);
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /** Cantidad de filas canceladas pendientes de compactar. */
+        int canceladas() {
+            candado.readLock().lock();
+            try {
+                return canceladas.cardinality();
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /**
+         * cambiarFecha()
+         * --------------
+         * Cambia la fechaHora de una fila en su lugar (reprogramar).
+         *
+         * @param fechaHora texto nuevo
+         * @param t fecha ya interpretada (null si no es válida)
+         */
+        void cambiarFecha(int fila, String fechaHora, LocalDateTime t) {
+            candado.writeLock().lock();
+            try {
+                minutos[fila] = t == null ? SIN_FECHA : aMinutos(t);
+                if (fechaHora != null && (t == null || !esFormatoEstandar(fechaHora))) {
+                    fechasOriginales.put(fila, fechaHora);
+                } else {
+                    fechasOriginales.remove(fila);
+                }
+            } finally {
+                candado.writeLock().unlock();
+            }
+        }
+
+        /**
+         * doctoresDistintos() / pacientesDistintos()
+         * ------------------------------------------
+         * Ids distintos que aparecen en las citas; la posición en el arreglo es su código
+         * en la columna (ver filasConDoctor / filasConPaciente).
+         */
+        String[] doctoresDistintos() {
+            candado.readLock().lock();
+            try {
+                return dicDoctores.textos();
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        String[] pacientesDistintos() {
+            candado.readLock().lock();
+            try {
+                return dicPacientes.textos();
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /**
+         * filasConDoctor()
+         * ----------------
+         * Filas cuyo código de doctor está marcado (ej: doctores que no existen), en orden.
+         * Recorre solo la columna de códigos, en paralelo (ver filasQue).
+         *
+         * @param marcados marcados[código] = true para los doctores buscados
+         */
+        int[] filasConDoctor(boolean[] marcados) {
+            candado.readLock().lock();
+            try {
+                if (!algunoMarcado(marcados)) return new int[0];
+                int[] columna = doctores;
+                return filasQue(f -> marcados[columna[f]]);
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /** Igual que filasConDoctor(), con la columna de pacientes. */
+        int[] filasConPaciente(boolean[] marcados) {
+            candado.readLock().lock();
+            try {
+                if (!algunoMarcado(marcados)) return new int[0];
+                int[] columna = pacientes;
+                return filasQue(f -> marcados[columna[f]]);
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /**
+         * filasConIdRepetido()
+         * --------------------
+         * Filas cuyo id ya lo tiene una fila anterior (la tabla de ids apunta a la primera).
+         * Si todas las filas están en la tabla no hay repetidos y no se recorre nada.
+         */
+        int[] filasConIdRepetido() {
+            candado.readLock().lock();
+            try {
+                if (indexados == tamano) return new int[0];
+                return filasQue(f -> primeraConId(f) != f);
+            } finally {
+                candado.readLock().unlock();
+            }
+        }
+
+        /**
+         * sinFilas()
+         * ----------
+         * Copia del almacén sin las filas indicadas ni las canceladas (en el mismo orden
+         * de alta). Con un arreglo vacío es la compactación de las canceladas.
+         *
+         * @param quitar filas a quitar, ordenadas de menor a mayor
+         */
+        AlmacenCitas sinFilas(int[] quitar) {
+            try (Lectura filas = leer()) {
+                int n = filas.tamano();
+                AlmacenCitas copia = new AlmacenCitas(n - quitar.length);
+                for (int f = 0, q = 0; f < n; f++) {
+                    if (q < quitar.length && quitar[q] == f) {
+                        q++;
+                        continue;
+                    }
+                    if (!filas.estaCancelada(f)) copia.add(filas.get(f));
+                }
+                return copia;
+            }
+        }
+
+        /**
+         * truncar()
+         * ---------
+         * Deja solo las primeras n filas: deshace lo que se agregó después (una importación
+         * que falló a la mitad). La tabla de ids se rehace con las filas que quedan.
+         */
+        void truncar(int n) {
+            candado.writeLock().lock();
+            try {
+                if (n >= tamano) return;
+                for (int f = n; f < tamano; f++) fechasOriginales.remove(f);
+                canceladas.clear(n, tamano);
+                arenaUsada = inicio[n];
+                tamano = n;
+                Arrays.fill(tablaIds, 0);
+                indexados = 0;
+                for (int f = 0; f < n; f++) {
+                    byte[] id = Arrays.copyOfRange(arena, inicio[f], inicio[f] + largoId[f]);
+                    int h = hash(id);
+                    if (buscarEnTabla(id, h) < 0) indexar(f, h);
+                }
+            } finally {
+                candado.writeLock().unlock();
+            }
+        }
+
+        /** Reserva espacio para al menos n filas (para importaciones grandes). */
+        void asegurarCapacidad(int n) {
+            candado.writeLock().lock();
+            try {
+                if (n <= minutos.length) return;
+                int nueva = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(n, (long) minutos.length * 3 / 2));
+                minutos = Arrays.copyOf(minutos, nueva);
+                doctores = Arrays.copyOf(doctores, nueva);
+                pacientes = Arrays.copyOf(pacientes, nueva);
+                inicio = Arrays.copyOf(inicio, nueva);
+                largoId = Arrays.copyOf(largoId, nueva);
+            } finally {
+                candado.writeLock().unlock();
+            }
+        }
+
+        // --- Internos (se llaman con el candado tomado) ---
+
+        private Cita citaBloqueado(int fila) {
+            if (fila < 0 || fila >= tamano) throw new IndexOutOfBoundsException("Fila " + fila + " de " + tamano);
+            return new Cita(idBloqueado(fila), fechaHoraBloqueado(fila), motivoBloqueado(fila),
+                    dicDoctores.texto(doctores[fila]), dicPacientes.texto(pacientes[fila]));
+        }
+
+        private String idBloqueado(int fila) {
+            return new String(arena, inicio[fila], largoId[fila], StandardCharsets.UTF_8);
+        }
+
+        private String motivoBloqueado(int fila) {
+            int desde = inicio[fila] + largoId[fila];
+            int hasta = fila + 1 < tamano ? inicio[fila + 1] : arenaUsada;
+            return new String(arena, desde, hasta - desde, StandardCharsets.UTF_8);
+        }
+
+        private String fechaHoraBloqueado(int fila) {
+            if (!fechasOriginales.isEmpty()) {
+                String original = fechasOriginales.get(fila);
+                if (original != null) return original;
+            }
+            long m = minutos[fila];
+            return m == SIN_FECHA ? null : formatear(m);
+        }
+
+        /**
+         * filasQue()
+         * ----------
+         * Filas (sin contar las canceladas) que cumplen la condición, en orden. Se reparten
+         * en pedazos de PEDAZO_RECORRIDO filas que se revisan en paralelo y se juntan en orden.
+         * Se llama con el candado de lectura tomado: nadie agrega filas mientras tanto.
+         */
+        private int[] filasQue(java.util.function.IntPredicate condicion) {
+            int n = tamano;
+            int[][] partes = new int[(n + PEDAZO_RECORRIDO - 1) / PEDAZO_RECORRIDO][];
+            java.util.stream.IntStream.range(0, partes.length).parallel().forEach(p -> {
+                int[] encontradas = new int[16];
+                int k = 0;
+                for (int f = p * PEDAZO_RECORRIDO, fin = Math.min(n, f + PEDAZO_RECORRIDO); f < fin; f++) {
+                    if (canceladas.get(f) || !condicion.test(f)) continue;
+                    if (k == encontradas.length) encontradas = Arrays.copyOf(encontradas, k * 2);
+                    encontradas[k++] = f;
+                }
+                partes[p] = Arrays.copyOf(encontradas, k);
+            });
+            int total = 0;
+            for (int[] parte : partes) total += parte.length;
+            int[] filas = new int[total];
+            int k = 0;
+            for (int[] parte : partes) {
+                System.arraycopy(parte, 0, filas, k, parte.length);
+                k += parte.length;
+            }
+            return filas;
+        }
+
+        private static boolean algunoMarcado(boolean[] marcados) {
+            for (boolean m : marcados) if (m) return true;
+            return false;
+        }
+
+        /** Primera fila con el mismo id que la fila dada (comparando bytes en la arena). */
+        private int primeraConId(int fila) {
+            int desde = inicio[fila];
+            int largo = largoId[fila];
+            int mascara = tablaIds.length - 1;
+            for (int i = hash(arena, desde, largo) & mascara; tablaIds[i] != 0; i = (i + 1) & mascara) {
+                int f = tablaIds[i] - 1;
+                if (largoId[f] == largo && Arrays.equals(arena, inicio[f], inicio[f] + largo, arena, desde, desde + largo)) {
+                    return f;
+                }
+            }
+            return fila;
+        }
+
+        /** Fila con ese id (comparando bytes), o -1. */
+        private int buscarEnTabla(byte[] id, int h) {
+            int mascara = tablaIds.length - 1;
+            for (int i = h & mascara; tablaIds[i] != 0; i = (i + 1) & mascara) {
+                int f = tablaIds[i] - 1;
+                if (largoId[f] == id.length
+                        && Arrays.equals(arena, inicio[f], inicio[f] + id.length, id, 0, id.length)) {
+                    return f;
+                }
+            }
+            return -1;
+        }
+
+        /** Agrega la fila a la tabla de ids (crece al pasar de la mitad de ocupación). */
+        private void indexar(int fila, int h) {
+            if ((indexados + 1) * 2 > tablaIds.length) {
+                int[] nueva = new int[tablaIds.length * 2];
+                int mascara = nueva.length - 1;
+                for (int v : tablaIds) {
+                    if (v == 0) continue;
+                    int f = v - 1;
+                    int i = hash(arena, inicio[f], largoId[f]) & mascara;
+                    while (nueva[i] != 0) i = (i + 1) & mascara;
+                    nueva[i] = v;
+                }
+                tablaIds = nueva;
+            }
+            int mascara = tablaIds.length - 1;
+            int i = h & mascara;
+            while (tablaIds[i] != 0) i = (i + 1) & mascara;
+            tablaIds[i] = fila + 1;
+            indexados++;
+        }
+
+        private static byte[] bytes(String s) {
+            return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static int hash(byte[] b) {
+            return hash(b, 0, b.length);
+        }
+
+        /** Hash de un rango de bytes, mezclado para que los ids parecidos (C1, C2...) se repartan bien. */
+        private static int hash(byte[] b, int desde, int largo) {
+            int h = 1;
+            for (int i = desde; i < desde + largo; i++) h = 31 * h + b[i];
+            return h ^ (h >>> 16) ^ (h * 0x9E3779B9 >>> 7);
+        }
+
+        /** true si el texto ya tiene la forma que produce formatear(): yyyy-MM-ddTHH:mm. */
+        private static boolean esFormatoEstandar(String fechaHora) {
+            return fechaHora.length() == 16 && fechaHora.charAt(10) == 'T';
+        }
+
+        /** Minutos desde 1970-01-01T00:00 de una fecha (los segundos se descartan). */
+        static long aMinutos(LocalDateTime t) {
+            return Math.floorDiv(t.toEpochSecond(ZoneOffset.UTC), 60);
+        }
+
+        /** Inverso de aMinutos(). */
+        static LocalDateTime deMinutos(long minutos) {
+            return LocalDateTime.ofEpochSecond(minutos * 60, 0, ZoneOffset.UTC);
+        }
+
+        /** Texto yyyy-MM-ddTHH:mm de unos minutos (igual a LocalDateTime.toString() sin segundos). */
+        static String formatear(long minutos) {
+            LocalDateTime t = deMinutos(minutos);
+            if (t.getYear() < 0 || t.getYear() > 9999) return t.toString();
+            char[] c = new char[16];
+            digitos(c, 0, t.getYear(), 4);
+            c[4] = '-';
+            digitos(c, 5, t.getMonthValue(), 2);
+            c[7] = '-';
+            digitos(c, 8, t.getDayOfMonth(), 2);
+            c[10] = 'T';
+            digitos(c, 11, t.getHour(), 2);
+            c[13] = ':';
+            digitos(c, 14, t.getMinute(), 2);
+            return new String(c);
+        }
+
+        private static void digitos(char[] c, int desde, int valor, int cuantos) {
+            for (int i = desde + cuantos - 1; i >= desde; i--) {
+                c[i] = (char) ('0' + valor % 10);
+                valor /= 10;
+            }
+        }
+
+        /**
+         * CLASE Diccionario
+         * -----------------
+         * Asigna un código entero (0, 1, 2...) a cada texto distinto y guarda el texto una vez.
+         * Se usa con el candado del almacén tomado.
+         */
+        private static class Diccionario {
+            private final Map<String, Integer> codigos = new HashMap<>();
+            private String[] textos = new String[16];
+
+            /** Código del texto (lo agrega si es nuevo). */
+            int codigo(String s) {
+                Integer c = codigos.get(s);
+                if (c != null) return c;
+                int n = codigos.size();
+                if (n == textos.length) textos = Arrays.copyOf(textos, n * 2);
+                textos[n] = s;
+                codigos.put(s, n);
+                return n;
+            }
+
+            /** Código del texto, o -1 si nunca se agregó. */
+            int buscar(String s) {
+                Integer c = codigos.get(s);
+                return c == null ? -1 : c;
+            }
+
+            String texto(int codigo) { return textos[codigo]; }
+
+            /** Copia de los textos en orden de código. */
+            String[] textos() { return Arrays.copyOf(textos, codigos.size()); }
+        }
+    }
+
+    /**
+     * CLASE CacheAgendas
+     * ------------------
+     * Agendas de Sistema (doctorId -> AgendaDoctor), con un máximo para la carga perezosa.
+     *
+     * - Guarda las agendas en un ConcurrentHashMap propio: buscar una agenda no bloquea a
+     *   los demás hilos (un LinkedHashMap en orden de acceso reordena su lista en cada get(),
+     *   así que sincronizado serializaba todas las consultas). No ES un mapa: solo expone
+     *   las operaciones que llevan la cuenta de uso, así que nadie puede agregar o recorrer
+     *   agendas por un camino que se salte el límite.
+     * - Con límite, cada get() anota en la agenda un contador de uso (un AtomicLong compartido)
+     *   y cuando un put() pasa del máximo se descarta la de uso más viejo: se recorren las
+     *   entradas (a lo más el máximo + los put() simultáneos), solo al desalojar.
+     * - Sin límite (SIN_LIMITE, todas las citas en memoria) no se cuenta el uso.
+     */
+    static class CacheAgendas {
+        /** Máximo para guardar todas las agendas (no se desaloja ni se cuenta el uso). */
+        static final int SIN_LIMITE = Integer.MAX_VALUE;
+
+        private final ConcurrentHashMap<String, AgendaDoctor> agendas = new ConcurrentHashMap<>();
+        private final int maximo;
+        private final AtomicLong reloj = new AtomicLong();
+        /** Un solo hilo desaloja a la vez. */
+        private final Object desalojo = new Object();
+
+        CacheAgendas(int maximo) {
+            this.maximo = maximo;
+        }
+
+        /** Agenda del doctor, o null si no está (con límite, cuenta como uso). */
+        AgendaDoctor get(String doctorId) {
+            AgendaDoctor agenda = agendas.get(doctorId);
+            if (agenda != null && maximo != SIN_LIMITE) agenda.ultimoUso = reloj.incrementAndGet();
+            return agenda;
+        }
+
+        /** Guarda la agenda; si se pasa del máximo, desaloja la de uso más viejo. */
+        void put(String doctorId, AgendaDoctor agenda) {
+            agenda.ultimoUso = reloj.incrementAndGet();
+            agendas.put(doctorId, agenda);
+            if (agendas.size() > maximo) desalojar();
+        }
+
+        /** Agenda del doctor, creándola vacía si no está (solo sin límite: nunca se desaloja). */
+        AgendaDoctor obtenerOCrear(String doctorId) {
+            return agendas.computeIfAbsent(doctorId, k -> new AgendaDoctor());
+        }
+
+        /** Las agendas guardadas (vista de solo lectura). */
+        Collection<AgendaDoctor> agendas() {
+            return Collections.unmodifiableCollection(agendas.values());
+        }
+
+        /** Descarta todas las agendas. */
+        void vaciar() {
+            agendas.clear();
+        }
+
+        private void desalojar() {
+            synchronized (desalojo) {
+                while (agendas.size() > maximo) {
+                    Map.Entry<String, AgendaDoctor> vieja = null;
+                    for (Map.Entry<String, AgendaDoctor> e : agendas.entrySet()) {
+                        if (vieja == null || e.getValue().ultimoUso < vieja.getValue().ultimoUso) vieja = e;
+                    }
+                    if (vieja == null) return;
+                    agendas.remove(vieja.getKey(), vieja.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * CLASE AgendaDoctor
+     * ------------------
+     * Agenda de UN doctor: sus citas ordenadas por fecha, en dos arreglos primitivos
+     * paralelos (minutos de la cita y fila en AlmacenCitas).
+     *
+     * - Buscar empalmes y contar un rango es búsqueda binaria: O(log n), sin crear objetos.
+     * - Agregar (o quitar) una cita desplaza los elementos posteriores (barato: un doctor
+     *   tiene pocas citas comparado con el total, y normalmente se agenda hacia el final).
+     * - No guarda dos citas en el mismo minuto exacto: se queda con la primera.
+     *
+     * Todos los métodos son synchronized. Para revisar el empalme y agregar la cita como una
+     * sola operación, Sistema toma además el candado del doctor (candado(doctorId), un objeto
+     * por doctorId que nunca se reemplaza), no el de la agenda: con carga perezosa la agenda
+     * puede salir de CacheAgendas y volver a armarse, y el candado tiene que seguir siendo
+     * el mismo.
+     */
+    static class AgendaDoctor {
+        /** Lo que regresa empalme() si no hay choque (las filas negativas son citas en disco). */
+        static final int LIBRE = Integer.MIN_VALUE;
+
+        private long[] minutos = new long[8];
+        private int[] filas = new int[8];
+        private int tamano = 0;
+
+        /** false si se agregaron citas con agregarAlFinal() fuera de orden (ver ordenar()). */
+        private boolean ordenada = true;
+
+        /** Último uso en CacheAgendas (carga perezosa). */
+        volatile long ultimoUso;
+
+        /**
+         * agregar()
+         * ---------
+         * Inserta la cita en su lugar.
+         *
+         * @return false si ya había una cita en ese mismo minuto.
+         */
+        synchronized boolean agregar(long minuto, int fila) {
+            int pos = Arrays.binarySearch(minutos, 0, tamano, minuto);
+            if (pos >= 0) return false;
+            pos = -pos - 1;
+            crecer();
+            System.arraycopy(minutos, pos, minutos, pos + 1, tamano - pos);
+            System.arraycopy(filas, pos, filas, pos + 1, tamano - pos);
+            minutos[pos] = minuto;
+            filas[pos] = fila;
+            tamano++;
+            return true;
+        }
+
+        /**
+         * agregarAlFinal()
+         * ----------------
+         * Agrega sin buscar el lugar (carga masiva). Al terminar de cargar hay que
+         * llamar ordenar().
+         */
+        synchronized void agregarAlFinal(long minuto, int fila) {
+            if (tamano > 0 && minutos[tamano - 1] >= minuto) ordenada = false;
+            crecer();
+            minutos[tamano] = minuto;
+            filas[tamano] = fila;
+            tamano++;
+        }
+
+        /**
+         * ordenar()
+         * ---------
+         * Ordena por fecha después de una carga masiva (merge sort estable) y, si hay
+         * dos citas en el mismo minuto, deja solo la que se agregó primero.
+         */
+        synchronized void ordenar() {
+            if (ordenada) return;
+            long[] tmpMin = new long[tamano];
+            int[] tmpFil = new int[tamano];
+            for (int ancho = 1; ancho < tamano; ancho *= 2) {
+                for (int izq = 0; izq < tamano - ancho; izq += 2 * ancho) {
+                    int medio = izq + ancho;
+                    int der = Math.min(izq + 2 * ancho, tamano);
+                    int i = izq, j = medio, k = izq;
+                    while (i < medio && j < der) {
+                        if (minutos[j] < minutos[i]) { tmpMin[k] = minutos[j]; tmpFil[k++] = filas[j++]; }
+                        else { tmpMin[k] = minutos[i]; tmpFil[k++] = filas[i++]; }
+                    }
+                    while (i < medio) { tmpMin[k] = minutos[i]; tmpFil[k++] = filas[i++]; }
+                    while (j < der) { tmpMin[k] = minutos[j]; tmpFil[k++] = filas[j++]; }
+                    System.arraycopy(tmpMin, izq, minutos, izq, der - izq);
+                    System.arraycopy(tmpFil, izq, filas, izq, der - izq);
+                }
+            }
+            int n = 0;
+            for (int i = 0; i < tamano; i++) {
+                if (n > 0 && minutos[n - 1] == minutos[i]) continue;
+                minutos[n] = minutos[i];
+                filas[n++] = filas[i];
+            }
+            tamano = n;
+            ordenada = true;
+        }
+
+        /**
+         * empalme()
+         * ---------
+         * Revisa si una cita en ese minuto chocaría con otra: basta ver la cita anterior
+         * y la siguiente, porque la agenda está ordenada.
+         *
+         * @param minuto inicio de la cita nueva
+         * @param duracion duración de una cita, en minutos
+         * @return fila de la cita con la que choca, o LIBRE si no choca con ninguna.
+         */
+        synchronized int empalme(long minuto, int duracion) {
+            int pos = Arrays.binarySearch(minutos, 0, tamano, minuto);
+            if (pos >= 0) return filas[pos];
+            pos = -pos - 1;
+            if (pos > 0 && minuto - minutos[pos - 1] < duracion) return filas[pos - 1];
+            if (pos < tamano && minutos[pos] - minuto < duracion) return filas[pos];
+            return LIBRE;
+        }
+
+        /**
+         * quitar()
+         * --------
+         * Quita la cita de ese minuto si es de esa fila (para cancelar o reprogramar).
+         * Como agregar(), desplaza solo las citas posteriores de este doctor.
+         *
+         * @return false si en ese minuto no estaba esa fila.
+         */
+        synchronized boolean quitar(long minuto, int fila) {
+            int pos = Arrays.binarySearch(minutos, 0, tamano, minuto);
+            if (pos < 0 || filas[pos] != fila) return false;
+            System.arraycopy(minutos, pos + 1, minutos, pos, tamano - pos - 1);
+            System.arraycopy(filas, pos + 1, filas, pos, tamano - pos - 1);
+            tamano--;
+            return true;
+        }
+
+        /** Cantidad de citas con inicio en [desde, hasta). */
+        synchronized int contarEntre(long desde, long hasta) {
+            return Math.max(0, primeraDesde(hasta) - primeraDesde(desde));
+        }
+
+        /** Filas (en AlmacenCitas) de las citas con inicio en [desde, hasta), en orden de fecha. */
+        synchronized int[] filasEntre(long desde, long hasta) {
+            int a = primeraDesde(desde);
+            return Arrays.copyOfRange(filas, a, Math.max(a, primeraDesde(hasta)));
+        }
+
+        synchronized int tamano() { return tamano; }
+
+        /** Posición de la primera cita con minuto >= m. */
+        private int primeraDesde(long m) {
+            int lo = 0, hi = tamano;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (minutos[mid] < m) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        private void crecer() {
+            if (tamano < minutos.length) return;
+            minutos = Arrays.copyOf(minutos, minutos.length * 2);
+            filas = Arrays.copyOf(filas, filas.length * 2);
+        }
+    }
+
+    /**
+     * CLASE OcupacionDoctor
+     * ---------------------
+     * Mapa de bits con los turnos ocupados de un doctor: un long por día, donde el bit i
+     * es el turno que empieza a las i * TURNO_MINUTOS (48 turnos de 30 minutos caben en 64 bits).
+     *
+     * Un turno que empieza en S se marca ocupado si hay una cita que empiece a menos de
+     * TURNO_MINUTOS de S (antes o después): es la misma regla de empalme de crearCita, así
+     * que un turno libre aquí siempre se puede agendar. Una cita en punto (10:00) ocupa un
+     * turno; una que empieza "a media hora" (10:10) ocupa dos (10:00 y 10:30).
+     *
+     * Los días se guardan en bloques de DIAS_POR_BLOQUE días seguidos (long[]) dentro de un
+     * HashMap: no se reserva memoria para meses sin citas.
+     *
+     * Al cancelar o reprogramar una cita, liberar() desmarca sus turnos, salvo los que
+     * sigan chocando con otra cita de la agenda del doctor.
+     */
+    static class OcupacionDoctor {
+        /** Duración de un turno: la de una cita, para que "libre" equivalga a "sin empalme". */
+        static final int TURNO_MINUTOS = Sistema.DURACION_CITA_MINUTOS;
+        static final int TURNOS_POR_DIA = 24 * 60 / TURNO_MINUTOS;
+        private static final int DIAS_POR_BLOQUE = 64;
+
+        /** número de bloque (día / DIAS_POR_BLOQUE) -> un long por día del bloque. */
+        private final Map<Long, long[]> bloques = new HashMap<>();
+
+        /**
+         * ocupar()
+         * --------
+         * Marca los turnos con los que choca una cita que empieza en ese minuto.
+         *
+         * @param minuto inicio de la cita (minutos desde 1970-01-01T00:00)
+         */
+        synchronized void ocupar(long minuto) {
+            long turno = Math.floorDiv(minuto, TURNO_MINUTOS);
+            marcar(turno);
+            if (Math.floorMod(minuto, TURNO_MINUTOS) != 0) marcar(turno + 1);
+        }
+
+        /**
+         * liberar()
+         * ---------
+         * Desmarca los turnos que ocupaba una cita que ya se quitó de la agenda. Un turno
+         * puede estar ocupado por dos citas (10:10 y 10:40 ocupan 10:30), así que solo se
+         * desmarca si en la agenda ya no hay ninguna cita que choque con él.
+         *
+         * @param minuto inicio de la cita quitada
+         * @param agenda agenda del doctor, ya sin esa cita
+         */
+        synchronized void liberar(long minuto, AgendaDoctor agenda) {
+            long turno = Math.floorDiv(minuto, TURNO_MINUTOS);
+            desmarcarSiLibre(turno, agenda);
+            if (Math.floorMod(minuto, TURNO_MINUTOS) != 0) desmarcarSiLibre(turno + 1, agenda);
+        }
+
+        private void desmarcarSiLibre(long turno, AgendaDoctor agenda) {
+            if (agenda.empalme(turno * TURNO_MINUTOS, TURNO_MINUTOS) != AgendaDoctor.LIBRE) return;
+            long dia = Math.floorDiv(turno, TURNOS_POR_DIA);
+            long[] bloque = bloques.get(Math.floorDiv(dia, DIAS_POR_BLOQUE));
+            if (bloque != null) bloque[Math.floorMod(dia, DIAS_POR_BLOQUE)] &= ~(1L << Math.floorMod(turno, TURNOS_POR_DIA));
+        }
+
+        /**
+         * ocupados()
+         * ----------
+         * Turnos ocupados de un día (bit i = turno que empieza a las i * TURNO_MINUTOS).
+         *
+         * @param dia días desde 1970-01-01
+         */
+        synchronized long ocupados(long dia) {
+            long[] bloque = bloques.get(Math.floorDiv(dia, DIAS_POR_BLOQUE));
+            return bloque == null ? 0 : bloque[Math.floorMod(dia, DIAS_POR_BLOQUE)];
+        }
+
+        private void marcar(long turno) {
+            long dia = Math.floorDiv(turno, TURNOS_POR_DIA);
+            long[] bloque = bloques.computeIfAbsent(Math.floorDiv(dia, DIAS_POR_BLOQUE), k -> new long[DIAS_POR_BLOQUE]);
+            bloque[Math.floorMod(dia, DIAS_POR_BLOQUE)] |= 1L << Math.floorMod(turno, TURNOS_POR_DIA);
+        }
+
+        /**
+         * mascara()
+         * ---------
+         * Bits de los turnos entre dos horas del día: [horaInicio, horaFin).
+         */
+        static long mascara(int horaInicio, int horaFin) {
+            int desde = horaInicio * 60 / TURNO_MINUTOS;
+            int hasta = horaFin * 60 / TURNO_MINUTOS;
+            long hastaBits = hasta >= 64 ? -1L : (1L << hasta) - 1;
+            return hastaBits & ~((1L << desde) - 1);
+        }
+    }
+
+    /**
+     * INTERFAZ FuenteFilas
+     * --------------------
+     * Resultado de una consulta como secuencia de filas (>= 0 en AlmacenCitas, < 0 en disco;
+     * ver Sistema.citaDeFila), que se entrega por pedazos: así nunca se copia el resultado
+     * completo ni se arman objetos Cita que nadie va a leer.
+     */
+    interface FuenteFilas {
+        /**
+         * siguientes()
+         * ------------
+         * Llena el siguiente pedazo de filas. Si la fuente va en orden de fecha, también
+         * llena los minutos de cada fila (para poder mezclarla con otra).
+         *
+         * @return cuántas filas se llenaron (0 = ya no hay más)
+         */
+        int siguientes(int[] filas, long[] minutos) throws IOException;
+
+        /** Fuente sin filas. */
+        FuenteFilas VACIA = (filas, minutos) -> 0;
+
+        /** Fuente sobre un arreglo ya calculado (por ejemplo, AgendaDoctor.filasEntre). */
+        static FuenteFilas de(int[] todas) {
+            int[] pos = { 0 };
+            return (filas, minutos) -> {
+                int n = Math.min(filas.length, todas.length - pos[0]);
+                System.arraycopy(todas, pos[0], filas, 0, n);
+                pos[0] += n;
+                return n;
+            };
+        }
+
+        /** Fuente sobre filas ya calculadas en orden de fecha, con sus minutos (para mezclarla). */
+        static FuenteFilas de(int[] todas, long[] susMinutos) {
+            int[] pos = { 0 };
+            return (filas, minutos) -> {
+                int n = Math.min(filas.length, todas.length - pos[0]);
+                System.arraycopy(todas, pos[0], filas, 0, n);
+                System.arraycopy(susMinutos, pos[0], minutos, 0, n);
+                pos[0] += n;
+                return n;
+            };
+        }
+
+        /** Solo las filas de la fuente que cumplen la condición (ej: sin las citas canceladas). */
+        static FuenteFilas filtrar(FuenteFilas fuente, java.util.function.IntPredicate queda) {
+            return (filas, minutos) -> {
+                int n;
+                while ((n = fuente.siguientes(filas, minutos)) > 0) {
+                    int k = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (!queda.test(filas[i])) continue;
+                        filas[k] = filas[i];
+                        minutos[k++] = minutos[i];
+                    }
+                    if (k > 0) return k;
+                }
+                return 0;
+            };
+        }
+
+        /** Primero todas las filas de a y luego las de b. */
+        static FuenteFilas seguidas(FuenteFilas a, FuenteFilas b) {
+            FuenteFilas[] actual = { a };
+            return (filas, minutos) -> {
+                int n = actual[0].siguientes(filas, minutos);
+                if (n == 0 && actual[0] != b) {
+                    actual[0] = b;
+                    n = b.siguientes(filas, minutos);
+                }
+                return n;
+            };
+        }
+
+        /**
+         * mezclar()
+         * ---------
+         * Mezcla dos fuentes que van en orden de fecha, en una sola en orden de fecha
+         * (si empatan, va primero la de a).
+         */
+        static FuenteFilas mezclar(FuenteFilas a, FuenteFilas b) {
+            return new FuenteFilas() {
+                private final int[][] filasDe = { new int[256], new int[256] };
+                private final long[][] minutosDe = { new long[256], new long[256] };
+                private final int[] pos = new int[2];
+                private final int[] cuantos = new int[2];
+                private final FuenteFilas[] fuentes = { a, b };
+
+                @Override
+                public int siguientes(int[] filas, long[] minutos) throws IOException {
+                    int n = 0;
+                    while (n < filas.length) {
+                        boolean hayA = hay(0);
+                        boolean hayB = hay(1);
+                        if (!hayA && !hayB) break;
+                        int lado = !hayB || (hayA && minutosDe[0][pos[0]] <= minutosDe[1][pos[1]]) ? 0 : 1;
+                        filas[n] = filasDe[lado][pos[lado]];
+                        minutos[n++] = minutosDe[lado][pos[lado]++];
+                    }
+                    return n;
+                }
+
+                private boolean hay(int lado) throws IOException {
+                    if (pos[lado] < cuantos[lado]) return true;
+                    pos[lado] = 0;
+                    cuantos[lado] = fuentes[lado].siguientes(filasDe[lado], minutosDe[lado]);
+                    return cuantos[lado] > 0;
+                }
+            };
+        }
+    }
+
+    /**
+     * CLASE ListaFilas
+     * ----------------
+     * Lista de filas de solo-agregar (int[] que crece), para el índice de citas por paciente.
+     * Como nunca se borra ni se reordena nada, una fuente puede leerla por pedazos
+     * mientras otros hilos siguen agregando. Las citas canceladas se quedan aquí hasta la
+     * compactación; Sistema las filtra al consultar.
+     */
+    static class ListaFilas {
+        private int[] filas = new int[4];
+        private int tamano = 0;
+
+        synchronized void agregar(int fila) {
+            if (tamano == filas.length) filas = Arrays.copyOf(filas, tamano * 2);
+            filas[tamano++] = fila;
+        }
+
+        synchronized int tamano() { return tamano; }
+
+        /**
+         * fuente()
+         * --------
+         * Recorre las filas que hay en este momento (las que se agreguen después no salen).
+         */
+        FuenteFilas fuente() {
+            int fin = tamano();
+            int[] pos = { 0 };
+            return (destino, minutos) -> {
+                synchronized (this) {
+                    int n = Math.min(destino.length, fin - pos[0]);
+                    System.arraycopy(filas, pos[0], destino, 0, n);
+                    pos[0] += n;
+                    return n;
+                }
+            };
+        }
+    }
+
+    /**
+     * CLASE IndiceFechas
+     * ------------------
+     * Índice de citas por fecha (de todos los doctores): un "cubo" por día, con sus
+     * citas ordenadas por minuto, dentro de un ConcurrentSkipListMap ordenado por día.
+     *
+     * - Agregar una cita solo mueve las citas de SU día (no un arreglo con todas).
+     * - Consultar un rango salta directo al primer día y recorre día por día, sin
+     *   pasar por los días que no tienen citas.
+     * - A diferencia de AgendaDoctor, sí admite varias citas en el mismo minuto
+     *   (de distintos doctores); entre ellas se respeta el orden de alta.
+     */
+    static class IndiceFechas {
+        private static final int MINUTOS_POR_DIA = 24 * 60;
+
+        private final ConcurrentSkipListMap<Long, Dia> dias = new ConcurrentSkipListMap<>();
+
+        /** Agrega una cita (fila) que empieza en ese minuto. */
+        void agregar(long minuto, int fila) {
+            dias.computeIfAbsent(Math.floorDiv(minuto, MINUTOS_POR_DIA), k -> new Dia()).agregar(minuto, fila);
+        }
+
+        /** Quita la cita (fila) que empieza en ese minuto; solo se mueven las citas de su día. */
+        void quitar(long minuto, int fila) {
+            Dia dia = dias.get(Math.floorDiv(minuto, MINUTOS_POR_DIA));
+            if (dia != null) dia.quitar(minuto, fila);
+        }
+
+        /**
+         * fuente()
+         * --------
+         * Filas con minuto en [desde, hasta), en orden de fecha. Cada día se copia
+         * recién cuando el recorrido llega a él.
+         */
+        FuenteFilas fuente(long desde, long hasta) {
+            if (desde >= hasta) return FuenteFilas.VACIA;
+            Iterator<Dia> porRecorrer = dias.subMap(Math.floorDiv(desde, MINUTOS_POR_DIA), true,
+                    Math.floorDiv(hasta - 1, MINUTOS_POR_DIA), true).values().iterator();
+            return new FuenteFilas() {
+                private long[] minutosDia = new long[0];
+                private int[] filasDia = new int[0];
+                private int pos = 0;
+                private int cuantos = 0;
+
+                @Override
+                public int siguientes(int[] filas, long[] minutos) {
+                    while (pos == cuantos) {
+                        if (!porRecorrer.hasNext()) return 0;
+                        Dia dia = porRecorrer.next();
+                        synchronized (dia) {
+                            int a = dia.primeraDesde(desde);
+                            int b = Math.max(a, dia.primeraDesde(hasta));
+                            minutosDia = Arrays.copyOfRange(dia.minutos, a, b);
+                            filasDia = Arrays.copyOfRange(dia.filas, a, b);
+                        }
+                        pos = 0;
+                        cuantos = filasDia.length;
+                    }
+                    int n = Math.min(filas.length, cuantos - pos);
+                    System.arraycopy(filasDia, pos, filas, 0, n);
+                    System.arraycopy(minutosDia, pos, minutos, 0, n);
+                    pos += n;
+                    return n;
+                }
+            };
+        }
+
+        /**
+         * contarEntre()
+         * -------------
+         * Cuántas citas empiezan en [desde, hasta): solo se visitan los días del rango y,
+         * en cada uno, dos búsquedas binarias (una por cada límite); no se recorre ninguna cita.
+         */
+        int contarEntre(long desde, long hasta) {
+            if (desde >= hasta) return 0;
+            int n = 0;
+            for (Dia dia : dias.subMap(Math.floorDiv(desde, MINUTOS_POR_DIA), true,
+                    Math.floorDiv(hasta - 1, MINUTOS_POR_DIA), true).values()) {
+                n += dia.contarEntre(desde, hasta);
+            }
+            return n;
+        }
+
+        /** Citas de un día, ordenadas por minuto (y por orden de alta si empatan). */
+        private static class Dia {
+            private long[] minutos = new long[4];
+            private int[] filas = new int[4];
+            private int tamano = 0;
+
+            synchronized void agregar(long minuto, int fila) {
+                int pos = primeraDesde(minuto + 1);
+                if (tamano == minutos.length) {
+                    minutos = Arrays.copyOf(minutos, tamano * 2);
+                    filas = Arrays.copyOf(filas, tamano * 2);
+                }
+                System.arraycopy(minutos, pos, minutos, pos + 1, tamano - pos);
+                System.arraycopy(filas, pos, filas, pos + 1, tamano - pos);
+                minutos[pos] = minuto;
+                filas[pos] = fila;
+                tamano++;
+            }
+
+            synchronized int contarEntre(long desde, long hasta) {
+                return primeraDesde(hasta) - primeraDesde(desde);
+            }
+
+            synchronized void quitar(long minuto, int fila) {
+                for (int pos = primeraDesde(minuto); pos < tamano && minutos[pos] == minuto; pos++) {
+                    if (filas[pos] != fila) continue;
+                    System.arraycopy(minutos, pos + 1, minutos, pos, tamano - pos - 1);
+                    System.arraycopy(filas, pos + 1, filas, pos, tamano - pos - 1);
+                    tamano--;
+                    return;
+                }
+            }
+
+            /** Posición de la primera cita con minuto >= m (se llama con el candado tomado). */
+            private int primeraDesde(long m) {
+                int lo = 0, hi = tamano;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (minutos[mid] < m) lo = mid + 1; else hi = mid;
+                }
+                return lo;
+            }
+        }
+    }
+
+    /**
+     * CLASE IndiceCitas
+     * -----------------
+     * Índice en disco (citas.idx) de las particiones de citas, para la carga perezosa:
+     * permite trabajar con la agenda de un doctor sin cargar todas las citas en memoria.
+     *
+     * Qué guarda, por cada cita ("registro" = su número de orden en las particiones,
+     * recorridas en orden de nombre, como en CsvStorage.particionesCitas):
+     * - En qué partición y en qué byte empieza su línea (para leerla completa solo si hace
+     *   falta), juntos en un long: ver posicion().
+     * - Sus minutos (fechaHora interpretada), agrupados por doctor: armar la agenda de un
+     *   doctor es UNA lectura contigua del índice, sin tocar las particiones.
+     * - El hash de su id, ordenado, para saber si un id ya existe con búsqueda binaria.
+     * - Su número de registro agrupado por paciente (historial de un paciente) y
+     *   ordenado por fecha (citas de un rango de fechas), para las consultas de Sistema.
+     *
+     * Formato (big-endian):
+     * - int mágico, int versión, long tamaño total y long firma de las particiones al
+     *   construirlo (ver CsvStorage.firmaCitas)
+     * - int registros (n), int doctores (d), int pacientes (p)
+     * - n x long       : partición y byte donde empieza cada registro (ver posicion())
+     * - n x long       : (hash del id << 32) | registro, ordenados
+     * - n x (int, long): registro y minutos, agrupados por doctor
+     * - n x int        : registro, agrupados por paciente (en orden de registro)
+     * - n x (int, long): registro y minutos, ordenados por minutos
+     * - d x (int largo, bytes UTF-8 del doctorId, int inicio, int cantidad) dentro de "por doctor"
+     * - p x (int largo, bytes UTF-8 del pacienteId, int inicio, int cantidad) dentro de "por paciente"
+     *
+     * Si alguna partición cambia (o aparece o se borra una), el índice ya no sirve y se
+     * reconstruye (ver CsvStorage.abrirIndiceCitas).
+     *
+     * Solo se leen pedazos con lecturas posicionales (no se mapea a memoria), así que
+     * en el heap solo quedan los mapas de doctores y pacientes. Se puede usar desde varios hilos.
+     *
+     * Los canales se cierran cuando se suelta la última referencia: la de quien lo abrió
+     * (close()) y una por cada ConsultaCitas que lo usa (retener()/soltar()). Así una consulta
+     * que se está paginando sigue leyendo las particiones de antes aunque Sistema ya haya
+     * guardado y abierto otro índice (las particiones se reemplazan con un renombrado o se
+     * extienden al final, así que los bytes que apunta el índice viejo no cambian).
+     */
+    static class IndiceCitas implements Closeable {
+        static final int MAGICO = 0x43494458;
+        static final int VERSION = 3;
+        private static final int CABECERA = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+
+        /** Bits de la posición que son el byte dentro de la partición (el resto es la partición). */
+        private static final int BITS_BYTE = 40;
+
+        /** Entradas de la sección de ids que se leen de una vez en registrosRepetidos(). */
+        private static final int PEDAZO_IDS = 1 << 16;
+
+        private final FileChannel indice;
+        /** Un canal por partición, en el orden del índice (null si no hay citas). */
+        private final FileChannel[] csv;
+        /** Archivos de las particiones, en el orden del índice. */
+        private final List<File> particiones;
+        private final int registros;
+        private final long posIds;
+        private final long posPorDoctor;
+        private final long posPorPaciente;
+        private final long posPorFecha;
+
+        /** doctorId -> {inicio, cantidad} en la sección "por doctor". */
+        private final Map<String, int[]> doctores;
+
+        /** pacienteId -> {inicio, cantidad} en la sección "por paciente". */
+        private final Map<String, int[]> pacientes;
+
+        /** Referencias vivas: la de quien lo abrió más una por cada consulta que lo retiene. */
+        private final AtomicInteger referencias = new AtomicInteger(1);
+
+        /** true cuando quien lo abrió ya llamó a close(). */
+        private final AtomicBoolean cerrado = new AtomicBoolean();
+
+        private IndiceCitas(FileChannel indice, FileChannel[] csv, List<File> particiones, int registros,
+                            Map<String, int[]> doctores, Map<String, int[]> pacientes) {
+            this.indice = indice;
+            this.csv = csv;
+            this.particiones = particiones;
+            this.registros = registros;
+            this.posIds = CABECERA + 8L * registros;
+            this.posPorDoctor = posIds + 8L * registros;
+            this.posPorPaciente = posPorDoctor + 12L * registros;
+            this.posPorFecha = posPorPaciente + 4L * registros;
+            this.doctores = doctores;
+            this.pacientes = pacientes;
+        }
+
+        /**
+         * posicion()
+         * ----------
+         * Junta en un long la partición (su número en el orden del índice) y el byte donde
+         * empieza la línea: los 40 bits bajos son el byte (hasta 1 TB por partición).
+         */
+        static long posicion(int particion, long inicio) {
+            return ((long) particion << BITS_BYTE) | inicio;
+        }
+
+        /**
+         * abrir()
+         * -------
+         * Abre citas.idx si existe y corresponde a las particiones actuales.
+         *
+         * @param archivoIndice citas.idx
+         * @param particiones particiones de citas, en orden de nombre
+         * @param firma {tamaño total, firma} de las particiones (CsvStorage.firmaCitas)
+         * @return índice abierto, o null si no existe, está viejo o está dañado.
+         */
+        static IndiceCitas abrir(File archivoIndice, List<File> particiones, long[] firma) {
+            if (!archivoIndice.exists()) return null;
+            FileChannel ch = null;
+            FileChannel[] csv = null;
+            try {
+                ch = FileChannel.open(archivoIndice.toPath(), StandardOpenOption.READ);
+                ByteBuffer cab = leer(ch, 0, CABECERA);
+                if (cab.getInt() != MAGICO || cab.getInt() != VERSION
+                        || cab.getLong() != firma[0] || cab.getLong() != firma[1]) {
+                    ch.close();
+                    return null;
+                }
+                int n = cab.getInt();
+                int d = cab.getInt();
+                int p = cab.getInt();
+
+                long posDirectorios = CABECERA + 44L * n;
+                ByteBuffer dir = leer(ch, posDirectorios, (int) (ch.size() - posDirectorios));
+                Map<String, int[]> doctores = leerDirectorio(dir, d);
+                Map<String, int[]> pacientes = leerDirectorio(dir, p);
+
+                if (n > 0) {
+                    csv = new FileChannel[particiones.size()];
+                    for (int i = 0; i < csv.length; i++) {
+                        csv[i] = FileChannel.open(particiones.get(i).toPath(), StandardOpenOption.READ);
+                    }
+                }
+                return new IndiceCitas(ch, csv, new ArrayList<>(particiones), n, doctores, pacientes);
+            } catch (IOException | RuntimeException e) {
+                cerrar(ch, csv);
+                return null;
+            }
+        }
+
+        /** Cierra los canales que estén abiertos (ignorando errores: el índice se va a reconstruir). */
+        private static void cerrar(FileChannel indice, FileChannel[] csv) {
+            List<FileChannel> canales = new ArrayList<>();
+            canales.add(indice);
+            if (csv != null) canales.addAll(Arrays.asList(csv));
+            for (FileChannel c : canales) {
+                try {
+                    if (c != null) c.close();
+                } catch (IOException ignorada) {
+                    // ya se va a reconstruir
+                }
+            }
+        }
+
+        /** Lee cuantos (largo, id, inicio, cantidad) de un directorio. */
+        private static Map<String, int[]> leerDirectorio(ByteBuffer dir, int cuantos) {
+            Map<String, int[]> mapa = new HashMap<>(cuantos * 2);
+            for (int i = 0; i < cuantos; i++) {
+                byte[] id = new byte[dir.getInt()];
+                dir.get(id);
+                mapa.put(new String(id, StandardCharsets.UTF_8), new int[] { dir.getInt(), dir.getInt() });
+            }
+            return mapa;
+        }
+
+        /** Cantidad de citas en el índice. */
+        int registros() { return registros; }
+
+        /** Cantidad de citas en disco de cada doctor distinto (doctorId -> citas), del directorio. */
+        Map<String, Integer> citasPorDoctor() { return cantidades(doctores); }
+
+        /** Igual que citasPorDoctor(), por paciente. */
+        Map<String, Integer> citasPorPaciente() { return cantidades(pacientes); }
+
+        private static Map<String, Integer> cantidades(Map<String, int[]> directorio) {
+            Map<String, Integer> mapa = new HashMap<>(directorio.size() * 2);
+            for (Map.Entry<String, int[]> e : directorio.entrySet()) mapa.put(e.getKey(), e.getValue()[1]);
+            return mapa;
+        }
+
+        /**
+         * registrosRepetidos()
+         * --------------------
+         * Registros cuyo id ya lo tiene un registro anterior, ordenados. La sección de ids
+         * está ordenada por hash, así que los repetidos quedan juntos: se lee de corrido por
+         * pedazos y solo se leen las líneas de los grupos con el mismo hash (casi nunca hay).
+         */
+        int[] registrosRepetidos() throws IOException {
+            List<Integer> repetidos = new ArrayList<>();
+            int[] grupo = new int[8];
+            int enGrupo = 0;
+            int hashGrupo = 0;
+            for (int i = 0; i < registros; i += PEDAZO_IDS) {
+                int n = Math.min(PEDAZO_IDS, registros - i);
+                ByteBuffer b = leer(indice, posIds + 8L * i, 8 * n);
+                for (int k = 0; k < n; k++) {
+                    long v = b.getLong();
+                    int h = (int) (v >> 32);
+                    if (enGrupo > 0 && h != hashGrupo) {
+                        revisarGrupo(grupo, enGrupo, repetidos);
+                        enGrupo = 0;
+                    }
+                    hashGrupo = h;
+                    if (enGrupo == grupo.length) grupo = Arrays.copyOf(grupo, enGrupo * 2);
+                    grupo[enGrupo++] = (int) v;
+                }
+            }
+            revisarGrupo(grupo, enGrupo, repetidos);
+            return repetidos.stream().mapToInt(Integer::intValue).sorted().toArray();
+        }
+
+        /** Agrega a "repetidos" los registros del grupo (mismo hash) cuyo id ya tiene otro anterior. */
+        private void revisarGrupo(int[] grupo, int n, List<Integer> repetidos) throws IOException {
+            if (n < 2) return;
+            Map<String, Integer> primera = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                Cita c = leer(grupo[i]);
+                if (c == null) continue;
+                Integer otra = primera.putIfAbsent(c.getId(), grupo[i]);
+                if (otra == null) continue;
+                repetidos.add(Math.max(otra, grupo[i]));
+                if (grupo[i] < otra) primera.put(c.getId(), grupo[i]);
+            }
+        }
+
+        /**
+         * buscarRegistro()
+         * ----------------
+         * Busca una cita por id: búsqueda binaria sobre los hashes y, para confirmar,
+         * lee la línea de cada candidato (normalmente uno).
+         *
+         * @return número de registro de la primera cita con ese id, o -1.
+         */
+        int buscarRegistro(String id) throws IOException {
+            int h = id.hashCode();
+            int lo = 0, hi = registros;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if ((int) (leerLong(posIds + 8L * mid) >> 32) < h) lo = mid + 1; else hi = mid;
+            }
+            for (int i = lo; i < registros; i++) {
+                long v = leerLong(posIds + 8L * i);
+                if ((int) (v >> 32) != h) break;
+                Cita c = leer((int) v);
+                if (c != null && id.equals(c.getId())) return (int) v;
+            }
+            return -1;
+        }
+
+        /**
+         * leer()
+         * ------
+         * Lee de su partición la línea de un registro y arma su Cita.
+         *
+         * @return la cita, o null si la línea ya no tiene los 5 campos.
+         */
+        Cita leer(int registro) throws IOException {
+            long posicion = leerLong(CABECERA + 8L * registro);
+            FileChannel csv = this.csv[(int) (posicion >>> BITS_BYTE)];
+            long inicio = posicion & ((1L << BITS_BYTE) - 1);
+            ByteBuffer buf = ByteBuffer.allocate(256);
+            int largo = 0;
+            while (true) {
+                int leidos = csv.read(buf, inicio + buf.position());
+                int fin = -1;
+                for (int i = largo; i < buf.position(); i++) {
+                    if (buf.get(i) == '\n') { fin = i; break; }
+                }
+                if (fin >= 0 || leidos <= 0) {
+                    largo = fin >= 0 ? fin : buf.position();
+                    break;
+                }
+                largo = buf.position();
+                if (!buf.hasRemaining()) {
+                    ByteBuffer mayor = ByteBuffer.allocate(buf.capacity() * 2);
+                    buf.flip();
+                    mayor.put(buf);
+                    buf = mayor;
+                }
+            }
+            CsvStorage.Tokenizador tk = new CsvStorage.Tokenizador();
+            if (tk.dividir(new String(buf.array(), 0, largo, StandardCharsets.UTF_8).trim()) < 5) return null;
+            return new Cita(tk.campo(0), tk.campo(1), tk.campo(2), tk.campo(3), tk.campo(4));
+        }
+
+        /** Archivo de la partición donde está la línea de un registro. */
+        File particionDe(int registro) throws IOException {
+            return particiones.get((int) (leerLong(CABECERA + 8L * registro) >>> BITS_BYTE));
+        }
+
+        /**
+         * agregarAAgenda()
+         * ----------------
+         * Agrega a la agenda las citas de un doctor que están en disco, con fila
+         * -(registro + 1) para distinguirlas de las filas de AlmacenCitas.
+         * Hay que llamar agenda.ordenar() al terminar.
+         */
+        void agregarAAgenda(String doctorId, AgendaDoctor agenda) throws IOException {
+            int[] rango = doctores.get(doctorId);
+            if (rango == null) return;
+            ByteBuffer b = leer(indice, posPorDoctor + 12L * rango[0], 12 * rango[1]);
+            for (int i = 0; i < rango[1]; i++) {
+                int registro = b.getInt();
+                long m = b.getLong();
+                if (m != AlmacenCitas.SIN_FECHA) agenda.agregarAlFinal(m, -(registro + 1));
+            }
+        }
+
+        /**
+         * llenarOcupacion()
+         * -----------------
+         * Marca en los mapas de ocupación (uno por doctor, creándolo si falta) todas las
+         * citas en disco, leyendo solo la sección "por doctor" del índice.
+         */
+        void llenarOcupacion(Map<String, OcupacionDoctor> ocupacion) throws IOException {
+            for (Map.Entry<String, int[]> e : doctores.entrySet()) {
+                int[] rango = e.getValue();
+                OcupacionDoctor o = ocupacion.computeIfAbsent(e.getKey(), k -> new OcupacionDoctor());
+                ByteBuffer b = leer(indice, posPorDoctor + 12L * rango[0], 12 * rango[1]);
+                for (int i = 0; i < rango[1]; i++) {
+                    b.getInt();
+                    long m = b.getLong();
+                    if (m != AlmacenCitas.SIN_FECHA) o.ocupar(m);
+                }
+            }
+        }
+
+        /**
+         * dePaciente()
+         * ------------
+         * Fuente con las citas en disco de un paciente (filas -(registro + 1), en orden de
+         * registro), leída por pedazos de la sección "por paciente".
+         */
+        FuenteFilas dePaciente(String pacienteId) {
+            int[] rango = pacientes.get(pacienteId);
+            if (rango == null) return FuenteFilas.VACIA;
+            int[] pos = { 0 };
+            return (filas, minutos) -> {
+                int n = Math.min(filas.length, rango[1] - pos[0]);
+                if (n <= 0) return 0;
+                ByteBuffer b = leer(indice, posPorPaciente + 4L * (rango[0] + pos[0]), 4 * n);
+                for (int i = 0; i < n; i++) filas[i] = -(b.getInt() + 1);
+                pos[0] += n;
+                return n;
+            };
+        }
+
+        /**
+         * entre()
+         * -------
+         * Fuente con las citas en disco con fecha en [desde, hasta), en orden de fecha.
+         * Los límites se buscan con búsqueda binaria en la sección "por fecha" y luego se
+         * lee por pedazos solo ese tramo.
+         */
+        FuenteFilas entre(long desde, long hasta) throws IOException {
+            int a = primeraPorFechaDesde(desde);
+            int b = Math.max(a, primeraPorFechaDesde(hasta));
+            int[] pos = { a };
+            return (filas, minutos) -> {
+                int n = Math.min(filas.length, b - pos[0]);
+                if (n <= 0) return 0;
+                ByteBuffer buf = leer(indice, posPorFecha + 12L * pos[0], 12 * n);
+                for (int i = 0; i < n; i++) {
+                    filas[i] = -(buf.getInt() + 1);
+                    minutos[i] = buf.getLong();
+                }
+                pos[0] += n;
+                return n;
+            };
+        }
+
+        /** Posición en la sección "por fecha" de la primera cita con minutos >= m. */
+        private int primeraPorFechaDesde(long m) throws IOException {
+            int lo = 0, hi = registros;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (leerLong(posPorFecha + 12L * mid + 4) < m) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * contarEntre()
+         * -------------
+         * Cuenta las citas en disco con fecha en [desde, hasta): dos búsquedas binarias
+         * en la sección "por fecha" (sin leer las particiones ni crear objetos Cita).
+         */
+        int contarEntre(long desde, long hasta) throws IOException {
+            if (desde >= hasta) return 0;
+            return primeraPorFechaDesde(hasta) - primeraPorFechaDesde(desde);
+        }
+
+        /** Una consulta empieza a usar el índice: no se cierra hasta que lo suelte. */
+        void retener() {
+            referencias.incrementAndGet();
+        }
+
+        /** Suelta una referencia; con la última se cierran los canales. */
+        void soltar() {
+            if (referencias.decrementAndGet() == 0) cerrar(indice, csv);
+        }
+
+        /** Suelta la referencia de quien lo abrió (las consultas que lo retienen lo siguen usando). */
+        @Override
+        public void close() {
+            if (cerrado.compareAndSet(false, true)) soltar();
+        }
+
+        private long leerLong(long pos) throws IOException {
+            return leer(indice, pos, 8).getLong();
+        }
+
+        /** Lee exactamente "largo" bytes desde "pos" (lectura posicional, no mueve el canal). */
+        private static ByteBuffer leer(FileChannel ch, long pos, int largo) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(largo);
+            while (b.hasRemaining()) {
+                if (ch.read(b, pos + b.position()) < 0) throw new EOFException("citas.idx incompleto");
+            }
+            b.flip();
+            return b;
+        }
+
+        /**
+         * CLASE Constructor
+         * -----------------
+         * Junta los datos de cada cita mientras se recorren las particiones y al final escribe
+         * el índice con el formato de arriba.
+         */
+        static class Constructor {
+            private long[] inicios = new long[1024];
+            private long[] ids = new long[1024];
+            private long[] minutos = new long[1024];
+            private int[] doctor = new int[1024];
+            private int[] paciente = new int[1024];
+            private int n = 0;
+            private final Map<String, Integer> codigosDoctor = new HashMap<>();
+            private final List<String> doctorIds = new ArrayList<>();
+            private final Map<String, Integer> codigosPaciente = new HashMap<>();
+            private final List<String> pacienteIds = new ArrayList<>();
+
+            /** Agrega la cita que empieza en esa posición (ver posicion(); registro = orden de llegada). */
+            void agregar(long inicio, String id, LocalDateTime t, String doctorId, String pacienteId) {
+                if (n == inicios.length) {
+                    int nuevo = n * 2;
+                    inicios = Arrays.copyOf(inicios, nuevo);
+                    ids = Arrays.copyOf(ids, nuevo);
+                    minutos = Arrays.copyOf(minutos, nuevo);
+                    doctor = Arrays.copyOf(doctor, nuevo);
+                    paciente = Arrays.copyOf(paciente, nuevo);
+                }
+                inicios[n] = inicio;
+                ids[n] = ((long) id.hashCode() << 32) | (n & 0xFFFFFFFFL);
+                minutos[n] = t == null ? AlmacenCitas.SIN_FECHA : AlmacenCitas.aMinutos(t);
+                doctor[n] = codigo(codigosDoctor, doctorIds, doctorId);
+                paciente[n] = codigo(codigosPaciente, pacienteIds, pacienteId);
+                n++;
+            }
+
+            private static int codigo(Map<String, Integer> codigos, List<String> textos, String texto) {
+                Integer codigo = codigos.get(texto);
+                if (codigo == null) {
+                    codigo = textos.size();
+                    codigos.put(texto, codigo);
+                    textos.add(texto);
+                }
+                return codigo;
+            }
+
+            /**
+             * escribir()
+             * ----------
+             * Escribe el índice completo.
+             *
+             * @param out destino
+             * @param tamanoCsv tamaño total de las particiones (-1 si no hay)
+             * @param firmaCsv firma de las particiones (ver CsvStorage.firmaCitas)
+             */
+            void escribir(DataOutputStream out, long tamanoCsv, long firmaCsv) throws IOException {
+                out.writeInt(MAGICO);
+                out.writeInt(VERSION);
+                out.writeLong(tamanoCsv);
+                out.writeLong(firmaCsv);
+                out.writeInt(n);
+                out.writeInt(doctorIds.size());
+                out.writeInt(pacienteIds.size());
+
+                for (int i = 0; i < n; i++) out.writeLong(inicios[i]);
+
+                long[] ordenados = Arrays.copyOf(ids, n);
+                Arrays.sort(ordenados);
+                for (long v : ordenados) out.writeLong(v);
+
+                int[] inicioDoctor = new int[doctorIds.size() + 1];
+                for (int r : agrupar(doctor, inicioDoctor)) {
+                    out.writeInt(r);
+                    out.writeLong(minutos[r]);
+                }
+
+                int[] inicioPaciente = new int[pacienteIds.size() + 1];
+                for (int r : agrupar(paciente, inicioPaciente)) out.writeInt(r);
+
+                for (int r : ordenarPorMinutos()) {
+                    out.writeInt(r);
+                    out.writeLong(minutos[r]);
+                }
+
+                escribirDirectorio(out, doctorIds, inicioDoctor);
+                escribirDirectorio(out, pacienteIds, inicioPaciente);
+            }
+
+            /**
+             * agrupar()
+             * ---------
+             * Registros agrupados por código (counting sort: dentro de cada grupo se conserva
+             * el orden del archivo). Deja en inicioGrupo[c] dónde empieza el grupo c.
+             */
+            private int[] agrupar(int[] codigo, int[] inicioGrupo) {
+                int grupos = inicioGrupo.length - 1;
+                for (int i = 0; i < n; i++) inicioGrupo[codigo[i] + 1]++;
+                for (int g = 0; g < grupos; g++) inicioGrupo[g + 1] += inicioGrupo[g];
+                int[] siguiente = Arrays.copyOf(inicioGrupo, grupos);
+                int[] orden = new int[n];
+                for (int i = 0; i < n; i++) orden[siguiente[codigo[i]]++] = i;
+                return orden;
+            }
+
+            /** Registros ordenados por minutos (merge sort estable: si empatan, por registro). */
+            private int[] ordenarPorMinutos() {
+                int[] orden = new int[n];
+                for (int i = 0; i < n; i++) orden[i] = i;
+                int[] tmp = new int[n];
+                for (int ancho = 1; ancho < n; ancho *= 2) {
+                    for (int izq = 0; izq < n - ancho; izq += 2 * ancho) {
+                        int medio = izq + ancho;
+                        int der = Math.min(izq + 2 * ancho, n);
+                        int i = izq, j = medio, k = izq;
+                        while (i < medio && j < der) tmp[k++] = minutos[orden[j]] < minutos[orden[i]] ? orden[j++] : orden[i++];
+                        while (i < medio) tmp[k++] = orden[i++];
+                        while (j < der) tmp[k++] = orden[j++];
+                        System.arraycopy(tmp, izq, orden, izq, der - izq);
+                    }
+                }
+                return orden;
+            }
+
+            private static void escribirDirectorio(DataOutputStream out, List<String> ids, int[] inicioGrupo) throws IOException {
+                for (int g = 0; g < ids.size(); g++) {
+                    byte[] b = ids.get(g) == null ? new byte[0] : ids.get(g).getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(b.length);
+                    out.write(b);
+                    out.writeInt(inicioGrupo[g]);
+                    out.writeInt(inicioGrupo[g + 1] - inicioGrupo[g]);
+                }
+            }
+        }
+    }
+
+    // =======================
+    // SISTEMA
+    // =======================
+
+    /**
+     * CLASE Sistema
+     * -------------
+     * Es el “núcleo” del programa:
+     * - Mantiene en memoria las listas de doctores, pacientes y citas.
+     * - Tiene un UserManager para controlar acceso.
+     * - Usa CsvStorage para guardar/cargar datos.
+     *
+     * Reglas importantes:
+     * - Solo un ADMIN puede dar de alta doctores/pacientes y crear citas.
+     * - IDs no se deben repetir dentro de su propia entidad.
+     * - Al crear cita: doctorId y pacienteId deben existir.
+     * - Un doctor no puede tener dos citas que se empalmen (cada cita dura DURACION_CITA_MINUTOS),
+     *   contando las ocurrencias de sus series.
+     *
+     * Índices:
+     * - Además de las listas, se mantienen mapas id -> objeto (HashMap) para que
+     *   las búsquedas por id y la validación de ids repetidos sean O(1) y no
+     *   tengan que recorrer toda la lista.
+     * - Las citas viven en un AlmacenCitas (columnas de arreglos primitivos), que trae
+     *   su propia tabla id -> fila.
+     * - Por cada doctor se mantiene su agenda ordenada por fecha (AgendaDoctor), para
+     *   detectar empalmes y consultar rangos de fechas en O(log n).
+     * - Para consultas (citasDePaciente, citasDeDoctor, citasEntre): índice por paciente
+     *   (ListaFilas) y por fecha de todos los doctores (IndiceFechas). Las consultas regresan
+     *   una ConsultaCitas que se recorre por pedazos (stream o páginas), sin copiar listas.
+     * - Para buscar horarios libres: doctores agrupados por especialidad y, por doctor, un
+     *   mapa de bits de turnos ocupados por día (OcupacionDoctor). Siempre están completos,
+     *   también con carga perezosa (se llenan desde citas.idx sin leer las citas).
+     *
+     * Carga perezosa (opcional, setCargaPerezosa):
+     * - cargarTodo() NO carga las citas; abre su índice (citas.idx, ver IndiceCitas).
+     * - La agenda de un doctor se arma desde el índice la primera vez que se usa, y se
+     *   guarda en un caché limitado (las menos usadas se descartan). En las agendas, las
+     *   citas en disco se marcan con fila negativa: -(registro + 1).
+     * - En memoria (citas) solo quedan las citas nuevas; al guardar se agregan al final
+     *   de la partición de su mes, se reconstruye el índice y se vacía el caché.
+     * - Las consultas por paciente y por fecha juntan lo que hay en citas.idx con las
+     *   citas nuevas en memoria.
+     * - Así el arranque y la memoria ya no crecen con todo el historial de citas.
+     * - En este modo no se usa snapshot.bin (tendría todas las citas).
+     *
+     * Cancelar y reprogramar (cancelarCita, reprogramarCita):
+     * - La cita se encuentra por id en la tabla hash de AlmacenCitas (O(1)). Cancelar solo
+     *   la marca como cancelada (lápida) y la quita de la agenda, del índice por fecha y
+     *   de la ocupación del doctor; reprogramar cambia su fecha en su lugar y la mueve en
+     *   esos índices. Ninguna de las dos recorre ni mueve las demás citas.
+     * - Se registran como X (id) y R (id;fechaHora) en journal.csv aunque el modo journal
+     *   esté apagado (así no se pierden si el programa muere antes de guardar); el
+     *   siguiente guardado reescribe solo los meses tocados.
+     * - Las canceladas no se escriben a los CSV ni al snapshot. Se sacan de memoria
+     *   (compactarCanceladas, que copia el almacén y rehace los índices) solo cuando pasan
+     *   de 1/FRACCION_CANCELADAS de las filas, no en cada guardado.
+     * - El id de una cita cancelada no se puede volver a usar hasta esa compactación (o
+     *   hasta volver a cargar).
+     * - Con carga perezosa, una cita que está en disco se encuentra con citas.idx y se
+     *   cancela con una lápida por número de registro (canceladasEnDisco), que se filtra de
+     *   la agenda, la ocupación, las consultas y los conteos; reprogramarla es cancelarla
+     *   en disco y agregarla en memoria con la fecha nueva. Al guardar se quitan de sus
+     *   particiones (CsvStorage.agregarCitas).
+     *
+     * Series de citas (crearSerie):
+     * - Una cita que se repite (ej: terapia semanal) se guarda como UNA SerieCitas (regla +
+     *   doctor, paciente y motivo) en series.csv, no como decenas de filas en AlmacenCitas.
+     * - Las ocurrencias se calculan solo para el rango que se pide: empalmes (describirEmpalme
+     *   revisa la ocurrencia más cercana de cada serie del doctor), huecos (los turnos del día
+     *   revisado), citasDeDoctorEntre, ocurrenciasEntre y los conteos.
+     * - Las consultas por páginas (citasDePaciente, citasDeDoctor, citasEntre) recorren los
+     *   índices de AlmacenCitas y NO incluyen ocurrencias; las series de un paciente se ven
+     *   con seriesDePaciente().
+     * - En modo journal se registran como S; no se archivan ni pasan por la validación de
+     *   integridad.
+     * - Una ocurrencia ("S1#3") se cancela o reprograma con cancelarCita/reprogramarCita,
+     *   igual que una cita (si no hay una cita normal con ese id): queda como excepción en
+     *   la serie, sin convertirse en fila. cancelarSerie() quita la serie completa. Las tres
+     *   se registran en el journal (X, R y XS) aunque el modo journal esté apagado.
+     *
+     * Archivo de citas pasadas (archivarCitas):
+     * - Las citas anteriores a un corte (que no puede ser futuro) salen de las particiones
+     *   (y de memoria) hacia segmentos comprimidos; se consultan con citasArchivadasEntre().
+     * - Siguen ocupando su id y su turno: validarCita() los revisa con los hashes de ids y
+     *   el rango de fechas de cada segmento (ver segmentosArchivo), sin tener el archivo en
+     *   memoria; solo se descomprime un segmento cuando puede haber choque.
+     * - citasEntre, citasDeDoctor, citasDeDoctorEntre y contarCitasEntre incluyen las
+     *   archivadas cuando la ventana empieza antes del fin del archivo (finArchivo).
+     *
+     * Integridad referencial (validarIntegridad):
+     * - Al cargar, las citas no se validan una por una contra doctores y pacientes (los
+     *   archivos se leen al mismo tiempo). Al final de cargarTodo() se revisan todas juntas:
+     *   cada doctorId/pacienteId DISTINTO se busca una vez en los índices y luego se recorren
+     *   en paralelo las columnas de códigos de AlmacenCitas; los ids de cita repetidos salen
+     *   de su tabla hash. Con carga perezosa se usan los directorios y la sección de ids de
+     *   citas.idx.
+     * - El resultado queda en getReporteIntegridad(). Con setCuarentenaAlCargar(true), las
+     *   citas huérfanas o repetidas se mueven a cuarentena.csv y salen de las particiones.
+     *
+     * Modo journal (opcional):
+     * - Cada alta, cancelación o reprogramación se agrega como una línea a journal.csv en
+     *   vez de reescribir todos los CSV.
+     * - cargarTodo() lee los CSV (la "foto" completa) y luego reaplica el journal.
+     * - Cada COMPACTAR_CADA registros (y en cada guardarTodo) se reescriben los CSV y se vacía el journal.
+     *
+     * Sesiones e hilos:
+     * - Las operaciones reciben la Sesion de quien las hace; así varios administradores
+     *   (varios mostradores) pueden usar el mismo Sistema al mismo tiempo.
+     * - Las versiones sin Sesion usan la sesión de consola (la del login del menú).
+     * - Los índices son ConcurrentHashMap; AlmacenCitas y AgendaDoctor tienen sus propios
+     *   candados internos: todo se puede leer desde cualquier hilo.
+     * - Crear una cita bloquea SOLO el candado de ese doctor (synchronized), así
+     *   que dos citas de doctores distintos nunca se esperan entre sí.
+     * - Las altas comparten un candado de lectura (estado); cargarTodo/guardarTodo/importarCitas
+     *   toman el de escritura, para que nadie modifique nada mientras se escribe a disco.
+     * - cargarTodo() se llama al arrancar, antes de repartir el Sistema a otros hilos.
+     */
+    static class Sistema {
+        /** Duración fija de una cita; dos citas del mismo doctor no pueden quedar a menos de esto. */
+        static final int DURACION_CITA_MINUTOS = 30;
+
+        /** En modo journal, cada cuántos registros se compacta (guardarTodo + vaciar journal). */
+        static final int COMPACTAR_CADA = 10_000;
+
+        /** Horario de consulta para buscarHuecos(): turnos que empiezan en [inicio, fin). */
+        static final int HORA_INICIO_CONSULTA = 8;
+        static final int HORA_FIN_CONSULTA = 20;
+
+        /** Días hacia adelante que revisa buscarHuecos() antes de rendirse. */
+        static final int DIAS_BUSQUEDA_HUECOS = 366;
+
+        /** Líneas que se leen y validan juntas en importarCitas(). */
+        static final int TAMANO_LOTE_IMPORTACION = 10_000;
+
+        /** Las canceladas se sacan de memoria cuando pasan de 1/FRACCION_CANCELADAS de las filas. */
+        static final int FRACCION_CANCELADAS = 8;
+
+        /** Resultado de filaVigente() cuando la cita no existe o ya está cancelada. */
+        private static final int SIN_FILA = Integer.MIN_VALUE;
+
+        /**
+         * Hilos para leer los cuatro archivos a la vez en cargarTodo() (uno por archivo).
+         * Son daemon: no impiden que el programa termine. Se crean la primera vez que se usan.
+         */
+        private static final ExecutorService EJECUTOR_CARGA = Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "carga-csv");
+            t.setDaemon(true);
+            return t;
+        });
+
+        /** Listas en orden de alta (para guardar). Se agregan elementos con synchronized sobre la lista. */
+        private List<Doctor> doctores = new ArrayList<>();
+        private List<Paciente> pacientes = new ArrayList<>();
+        private AlmacenCitas citas = new AlmacenCitas();
+
+        /** Índice id -> Doctor (se mantiene sincronizado con la lista doctores). */
+        private Map<String, Doctor> doctoresPorId = new ConcurrentHashMap<>();
+
+        /** Índice id -> Paciente (se mantiene sincronizado con la lista pacientes). */
+        private Map<String, Paciente> pacientesPorId = new ConcurrentHashMap<>();
+
+        /**
+         * Agenda de cada doctor: doctorId -> (minutos de la cita -> fila en citas), ordenada por
+         * fecha. Sin límite con todas las citas en memoria; con carga perezosa, hasta maxAgendasEnCache.
+         */
+        private CacheAgendas agendaPorDoctor = new CacheAgendas(CacheAgendas.SIN_LIMITE);
+
+        /** Índice pacienteId -> filas de sus citas en citas (en orden de alta). */
+        private Map<String, ListaFilas> citasPorPaciente = new ConcurrentHashMap<>();
+
+        /** Índice por fecha de las citas en citas (de todos los doctores). */
+        private IndiceFechas citasPorFecha = new IndiceFechas();
+
+        /** Turnos ocupados de cada doctor: doctorId -> mapa de bits por día (ver OcupacionDoctor). */
+        private Map<String, OcupacionDoctor> ocupacionPorDoctor = new ConcurrentHashMap<>();
+
+        /** Series de citas en orden de alta (para guardar). Se agregan con synchronized sobre la lista. */
+        private List<SerieCitas> series = new ArrayList<>();
+
+        /** Índice id -> SerieCitas (se mantiene sincronizado con la lista series). */
+        private Map<String, SerieCitas> seriesPorId = new ConcurrentHashMap<>();
+
+        /** Series de cada doctor (para empalmes y huecos) y de cada paciente, en orden de alta. */
+        private Map<String, List<SerieCitas>> seriesPorDoctor = new ConcurrentHashMap<>();
+        private Map<String, List<SerieCitas>> seriesPorPaciente = new ConcurrentHashMap<>();
+
+        /** Doctores por especialidad (clave normalizada con claveEspecialidad()), en orden de alta. */
+        private Map<String, List<Doctor>> doctoresPorEspecialidad = new ConcurrentHashMap<>();
+
+        /** Candado por doctor para crear sus citas (no se descarta aunque su agenda salga del caché). */
+        private final Map<String, Object> candadosDoctor = new ConcurrentHashMap<>();
+
+        /** Carga perezosa: máximo de agendas en caché (0 = desactivada, todo en memoria). */
+        private int maxAgendasEnCache = 0;
+
+        /** Carga perezosa: índice de las particiones de citas (null si está desactivada). */
+        private IndiceCitas indiceCitas;
+
+        /**
+         * Carga perezosa: citas en disco canceladas (o reprogramadas) desde el último guardado,
+         * registro en citas.idx -> la cita como está en disco. Se reemplaza (no se vacía) al
+         * guardar, para que las consultas ya armadas sigan viendo las del índice que usan.
+         */
+        private volatile Map<Integer, Cita> canceladasEnDisco = new ConcurrentHashMap<>();
+
+        /** Resumen de los segmentos del archivo (rango de fechas y hashes de ids). */
+        private volatile List<CsvStorage.SegmentoArchivo> segmentosArchivo = Collections.emptyList();
+
+        /** Minutos justo después de la cita archivada más reciente (Long.MIN_VALUE sin archivo). */
+        private volatile long finArchivo = Long.MIN_VALUE;
+
+        private final UserManager userManager = new UserManager();
+        private final CsvStorage storage;
+
+        /** Textos compartidos (el mismo Internador que usa storage al cargar). */
+        private final Internador textos;
+
+        /** Lectura: altas (pueden ir en paralelo). Escritura: cargar/guardar/importar (exclusivo). */
+        private final ReentrantReadWriteLock estado = new ReentrantReadWriteLock();
+
+        /** Si es true, cada alta se registra en journal.csv al momento. */
+        private volatile boolean modoJournal = false;
+
+        /** Registros agregados al journal desde la última compactación. */
+        private final AtomicInteger registrosEnJournal = new AtomicInteger();
+
+        /** Marcas de "cambió desde el último guardado/carga", una por archivo. */
+        private volatile boolean doctoresModificados = false;
+        private volatile boolean pacientesModificados = false;
+        private volatile boolean citasModificadas = false;
+        private volatile boolean usuariosModificados = false;
+        private volatile boolean seriesModificadas = false;
+
+        /** Particiones de citas (meses, ver CsvStorage.particionDe) con citas sin guardar. */
+        private final Set<String> particionesModificadas = ConcurrentHashMap.newKeySet();
+
+        /** true si snapshot.bin refleja los CSV actuales (si no, el próximo guardado lo reescribe). */
+        private volatile boolean snapshotAlDia = false;
+
+        /** Si es true, cargarTodo() mueve a cuarentena las citas que no pasan validarIntegridad(). */
+        private boolean cuarentenaAlCargar = false;
+
+        /** Resultado de la validación de integridad del último cargarTodo(). */
+        private volatile ReporteIntegridad reporteIntegridad = new ReporteIntegridad();
+
+        /**
+         * true si los datos en memoria pasaron la última validación de integridad (o se
+         * apartaron sus problemas). Los cambios posteriores ya se validan al hacerse
+         * (validarCita), así que se sigue cumpliendo; se guarda en snapshot.bin.
+         */
+        private volatile boolean integridadValidada = false;
+
+        /**
+         * CONSTRUCTOR Sistema
+         * -------------------
+         * Recibe la carpeta de “db” y crea el almacenamiento.
+         *
+         * @param folderPath carpeta donde viven los archivos CSV.
+         */
+        public Sistema(String folderPath) {
+            this.storage = new CsvStorage(folderPath);
+            this.textos = storage.getInternador();
+        }
+
+        /**
+         * getUserManager()
+         * ----------------
+         * Permite acceder al control de usuarios desde main (para login o creación de admin por defecto).
+         *
+         * @return instancia de UserManager.
+         */
+        public UserManager getUserManager() { return userManager; }
+
+        /**
+         * setModoJournal()
+         * ----------------
+         * Activa o desactiva el modo journal (ver descripción de la clase).
+         *
+         * @param activo true para registrar cada cambio en journal.csv.
+         */
+        public void setModoJournal(boolean activo) { this.modoJournal = activo; }
+
+        /**
+         * setCargaPerezosa()
+         * ------------------
+         * Activa la carga perezosa de citas (ver descripción de la clase).
+         * Debe llamarse antes de cargarTodo().
+         *
+         * @param maxAgendas cuántas agendas de doctor se mantienen en memoria (0 = desactivada).
+         */
+        public void setCargaPerezosa(int maxAgendas) { this.maxAgendasEnCache = Math.max(0, maxAgendas); }
+
+        /**
+         * setCuarentenaAlCargar()
+         * -----------------------
+         * Si se activa, cargarTodo() mueve a cuarentena.csv las citas huérfanas o con id
+         * repetido (ver validarIntegridad). Si no, solo se reportan.
+         *
+         * @param activa true para apartar las citas con problemas al cargar.
+         */
+        public void setCuarentenaAlCargar(boolean activa) { this.cuarentenaAlCargar = activa; }
+
+        /**
+         * migrarSinTrailer()
+         * ------------------
+         * Agrega el trailer a los CSV de versiones anteriores (ver CsvStorage.migrarSinTrailer).
+         * Debe llamarse antes de cargarTodo().
+         *
+         * @return cuántos archivos se reescribieron.
+         */
+        public int migrarSinTrailer() { return storage.migrarSinTrailer(); }
+
+        /**
+         * getReporteIntegridad()
+         * ----------------------
+         * Resultado de la validación de integridad que hizo el último cargarTodo().
+         */
+        public ReporteIntegridad getReporteIntegridad() { return reporteIntegridad; }
+
+        /**
+         * cargarTodo()
+         * ------------
+         * Carga TODA la información desde CSV hacia memoria:
+         * - doctores, pacientes, citas y usuarios.
+         *
+         * Nota:
+         * - Con carga perezosa, las citas no se cargan: solo se abre su índice.
+         * - Si snapshot.bin está vigente (ningún CSV cambió desde que se escribió), se carga
+         *   de ahí, que es mucho más rápido; si no, se leen los CSV al mismo tiempo
+         *   (ver cargarCsvEnParalelo).
+         * - Cuando se cargan usuarios, se reinicia el usuarioActual por seguridad.
+         * - Después de cargar se reconstruyen los índices por id.
+         * - series.csv se lee aparte (no está en el snapshot), en cualquiera de los dos casos.
+         * - Si hay journal.csv, sus registros se aplican encima de lo cargado
+         *   (aunque el modo journal esté apagado, para no perder esos cambios).
+         * - Al final se valida la integridad referencial de las citas (ver validarIntegridad);
+         *   el resultado queda en getReporteIntegridad(). Se omite si snapshot.bin ya venía
+         *   validado y el journal estaba vacío (los datos son justo los que se validaron).
+         */
+        public void cargarTodo() {
+            long t0 = Metricas.CARGAR_TODO.inicio();
+            boolean ok = false;
+            estado.writeLock().lock();
+            try {
+                cerrarIndiceCitas();
+                Snapshot snap = maxAgendasEnCache > 0 ? null : storage.cargarSnapshot();
+                if (snap != null) {
+                    this.doctores = snap.doctores;
+                    this.pacientes = snap.pacientes;
+                    this.citas = snap.citas;
+                    this.userManager.setUsuarios(snap.usuarios);
+                    reconstruirIndices();
+                } else {
+                    cargarCsvEnParalelo(maxAgendasEnCache > 0);
+                    indexarCitas();
+                }
+                this.series = storage.cargarSeries();
+                indexarSeries();
+                snapshotAlDia = snap != null;
+                doctoresModificados = pacientesModificados = citasModificadas = usuariosModificados = false;
+                seriesModificadas = false;
+                particionesModificadas.clear();
+                canceladasEnDisco = new ConcurrentHashMap<>();
+                cargarResumenArchivo();
+                List<String[]> journal = storage.cargarJournal();
+                aplicarJournal(journal);
+                if (snap != null && snap.validado && journal.isEmpty()) {
+                    ReporteIntegridad r = new ReporteIntegridad();
+                    r.revisadas = citas.size();
+                    r.yaValidado = true;
+                    reporteIntegridad = r;
+                    integridadValidada = true;
+                } else {
+                    reporteIntegridad = validarIntegridadBloqueado(cuarentenaAlCargar);
+                }
+                ok = true;
+            } finally {
+                estado.writeLock().unlock();
+                Metricas.CARGAR_TODO.fin(t0, ok);
+            }
+        }
+
+        /** Lee el resumen de los segmentos del archivo y calcula finArchivo. */
+        private void cargarResumenArchivo() {
+            List<CsvStorage.SegmentoArchivo> segmentos = storage.segmentosArchivo();
+            long fin = Long.MIN_VALUE;
+            for (CsvStorage.SegmentoArchivo seg : segmentos) fin = Math.max(fin, seg.maximo + 1);
+            segmentosArchivo = segmentos;
+            finArchivo = fin;
+        }
+
+        /**
+         * cargarCsvEnParalelo()
+         * ---------------------
+         * Lee doctores, pacientes, citas y usuarios al mismo tiempo en EJECUTOR_CARGA:
+         * los archivos no dependen entre sí (no se valida que los ids de las citas existan).
+         * Los índices de doctores y de pacientes se arman en cuanto termina su archivo,
+         * mientras las citas (casi siempre lo más grande) se siguen leyendo. Así el arranque
+         * tarda lo que el archivo más lento, no la suma de los cuatro.
+         *
+         * Nota:
+         * - Los campos se asignan desde los hilos de carga; se espera a que terminen TODOS
+         *   antes de regresar (y de soltar el candado de escritura), así que después
+         *   cualquier hilo los ve completos.
+         * - Si algún archivo falla, igual se espera a los demás y se lanza el error de ese
+         *   archivo (el mismo RuntimeException que daba la carga de uno en uno).
+         * - Los índices de citas (indexarCitas) se arman después, en el hilo que llama.
+         *
+         * @param perezosa true (carga perezosa) para abrir citas.idx en vez de leer las citas.
+         */
+        private void cargarCsvEnParalelo(boolean perezosa) {
+            CompletableFuture<Void> doctoresListos = CompletableFuture
+                    .supplyAsync(storage::cargarDoctores, EJECUTOR_CARGA)
+                    .thenAccept(lista -> {
+                        this.doctores = lista;
+                        indexarDoctores();
+                    });
+            CompletableFuture<Void> pacientesListos = CompletableFuture
+                    .supplyAsync(storage::cargarPacientes, EJECUTOR_CARGA)
+                    .thenAccept(lista -> {
+                        this.pacientes = lista;
+                        indexarPacientes();
+                    });
+            CompletableFuture<Void> usuariosListos = CompletableFuture
+                    .supplyAsync(storage::cargarUsuarios, EJECUTOR_CARGA)
+                    .thenAccept(userManager::setUsuarios);
+            CompletableFuture<Void> citasListas = perezosa
+                    ? CompletableFuture.runAsync(() -> {
+                        this.citas = new AlmacenCitas();
+                        this.indiceCitas = storage.abrirIndiceCitas();
+                    }, EJECUTOR_CARGA)
+                    : CompletableFuture
+                    .supplyAsync(storage::cargarAlmacenCitas, EJECUTOR_CARGA)
+                    .thenAccept(almacen -> this.citas = almacen);
+
+            try {
+                CompletableFuture.allOf(doctoresListos, pacientesListos, citasListas, usuariosListos).join();
+            } catch (CompletionException e) {
+                Throwable causa = e.getCause();
+                if (causa instanceof RuntimeException) throw (RuntimeException) causa;
+                if (causa instanceof Error) throw (Error) causa;
+                throw new RuntimeException(causa);
+            }
+        }
+
+        /**
+         * aplicarJournal()
+         * ----------------
+         * Reaplica en memoria los registros de journal.csv, en orden.
+         *
+         * - Los registros incompletos (menos campos de los esperados) se ignoran.
+         * - Si un id ya existe, se ignora el registro: pasa cuando el programa se cerró
+         *   después de guardar los CSV pero antes de vaciar el journal.
+         * - X (cancelación) y R (reprogramación) se aplican si la cita está (en memoria o,
+         *   con carga perezosa, en disco) o si es una ocurrencia vigente de una serie; si no
+         *   (ya se guardó sin ella), se ignoran. Igual XS con la serie.
+         * - No se vuelven a validar permisos ni empalmes: ya se validaron al registrarse.
+         * - Lo reaplicado queda marcado como modificado, porque todavía no está en los CSV.
+         *
+         * @param registros registros leídos con CsvStorage.cargarJournal()
+         */
+        private void aplicarJournal(List<String[]> registros) {
+            for (String[] r : registros) {
+                switch (r[0]) {
+                    case "D":
+                        if (r.length >= 4) agregarDoctor(new Doctor(r[1], r[2], r[3]));
+                        break;
+                    case "P":
+                        if (r.length >= 3) agregarPaciente(new Paciente(r[1], r[2]));
+                        break;
+                    case "C":
+                        if (r.length >= 6 && registroEnDisco(r[1]) < 0) {
+                            agregarCita(r[1], r[2], parsearFechaHora(r[2]), r[3], r[4], r[5]);
+                        }
+                        break;
+                    case "X":
+                        if (r.length >= 2) {
+                            int fila = filaVigente(r[1]);
+                            OcurrenciaSerie o = fila == SIN_FILA ? ocurrenciaVigente(r[1]) : null;
+                            if (fila != SIN_FILA) cancelarFila(fila);
+                            else if (o != null) cancelarOcurrencia(o);
+                        }
+                        break;
+                    case "R":
+                        if (r.length >= 3) {
+                            int fila = filaVigente(r[1]);
+                            OcurrenciaSerie o = fila == SIN_FILA ? ocurrenciaVigente(r[1]) : null;
+                            LocalDateTime t = parsearFechaHora(r[2]);
+                            if (fila != SIN_FILA) moverFila(fila, r[2], t);
+                            else if (o != null && t != null) moverOcurrencia(o, AlmacenCitas.aMinutos(t));
+                        }
+                        break;
+                    case "XS":
+                        if (r.length >= 2) {
+                            SerieCitas s = seriesPorId.get(r[1]);
+                            if (s != null) quitarSerie(s);
+                        }
+                        break;
+                    case "S":
+                        if (r.length >= 8) {
+                            SerieCitas s = CsvStorage.serieDeCampos(r[1], r[2], r[3], r[4], r[5],
+                                    textos.compartido(r[6]), textos.compartido(r[7]));
+                            if (s != null) agregarSerie(s);
+                        }
+                        break;
+                    case "U":
+                        if (r.length >= 5 && userManager.agregarUsuario(new Usuario(r[1], r[2], r[3], r[4]))) {
+                            usuariosModificados = true;
+                        }
+                        break;
+                    default:
+                        // Tipo desconocido (línea dañada): se ignora
+                }
+            }
+            registrosEnJournal.set(registros.size());
+        }
+
+        /**
+         * reconstruirIndices()
+         * --------------------
+         * Vuelve a llenar los mapas id -> objeto a partir de las listas actuales.
+         *
+         * Si el archivo trae ids repetidos, se conserva el primero (igual que hacía
+         * la búsqueda lineal, que regresaba la primera coincidencia).
+         *
+         * En la agenda solo entran las citas cuya fechaHora se pudo interpretar;
+         * si dos citas viejas caen en la misma fecha exacta, se conserva la primera.
+         */
+        private void reconstruirIndices() {
+            indexarDoctores();
+            indexarPacientes();
+            indexarCitas();
+        }
+
+        /** Parte de reconstruirIndices(): doctores por id y por especialidad. */
+        private void indexarDoctores() {
+            doctoresPorId = new ConcurrentHashMap<>(doctores.size() * 2);
+            for (Doctor d : doctores) doctoresPorId.putIfAbsent(d.getId(), d);
+
+            doctoresPorEspecialidad = new ConcurrentHashMap<>();
+            for (Doctor d : doctores) {
+                if (doctoresPorId.get(d.getId()) == d) especialidad(d.getEspecialidad()).add(d);
+            }
+        }
+
+        /** Series por id, por doctor y por paciente (a partir de la lista series). */
+        private void indexarSeries() {
+            seriesPorId = new ConcurrentHashMap<>();
+            seriesPorDoctor = new ConcurrentHashMap<>();
+            seriesPorPaciente = new ConcurrentHashMap<>();
+            for (SerieCitas s : series) {
+                if (seriesPorId.putIfAbsent(s.getId(), s) != null) continue;
+                seriesPorDoctor.computeIfAbsent(s.getDoctorId(), k -> new CopyOnWriteArrayList<>()).add(s);
+                seriesPorPaciente.computeIfAbsent(s.getPacienteId(), k -> new CopyOnWriteArrayList<>()).add(s);
+            }
+        }
+
+        /** Parte de reconstruirIndices(): pacientes por id. */
+        private void indexarPacientes() {
+            pacientesPorId = new ConcurrentHashMap<>(pacientes.size() * 2);
+            for (Paciente p : pacientes) pacientesPorId.putIfAbsent(p.getId(), p);
+        }
+
+        /** Parte de reconstruirIndices(): ocupación, consultas y agendas de las citas. */
+        private void indexarCitas() {
+            ocupacionPorDoctor = new ConcurrentHashMap<>();
+            if (indiceCitas != null) {
+                try {
+                    indiceCitas.llenarOcupacion(ocupacionPorDoctor);
+                } catch (IOException e) {
+                    throw new RuntimeException("Error leyendo citas.idx: " + e.getMessage());
+                }
+            }
+            citasPorPaciente = new ConcurrentHashMap<>();
+            citasPorFecha = new IndiceFechas();
+            // Carga perezosa: las agendas se arman al usarse (ver agenda())
+            boolean conAgendas = indiceCitas == null;
+            agendaPorDoctor = conAgendas ? new CacheAgendas(CacheAgendas.SIN_LIMITE) : nuevoCacheAgendas();
+
+            // Un solo recorrido de las columnas, con el candado del almacén tomado una vez.
+            // El índice id -> cita ya lo trae AlmacenCitas.
+            try (AlmacenCitas.Lectura filas = citas.leer()) {
+                for (int f = 0, n = filas.tamano(); f < n; f++) {
+                    if (filas.estaCancelada(f)) continue;
+                    citasPorPaciente.computeIfAbsent(filas.pacienteId(f), k -> new ListaFilas()).agregar(f);
+                    long m = filas.minutos(f);
+                    if (m == AlmacenCitas.SIN_FECHA) continue;
+                    String doctorId = filas.doctorId(f);
+                    ocupacion(doctorId).ocupar(m);
+                    citasPorFecha.agregar(m, f);
+                    if (conAgendas) agenda(doctorId).agregarAlFinal(m, f);
+                }
+            }
+            if (conAgendas) {
+                for (AgendaDoctor a : agendaPorDoctor.agendas()) a.ordenar();
+            } else {
+                // llenarOcupacion() marcó también las de disco ya canceladas
+                for (Cita c : canceladasEnDisco.values()) {
+                    long m = minutosDe(c);
+                    if (m != AlmacenCitas.SIN_FECHA) ocupacion(c.getDoctorId()).liberar(m, agenda(c.getDoctorId()));
+                }
+            }
+        }
+
+        /**
+         * agenda()
+         * --------
+         * Devuelve (creándola si hace falta) la agenda ordenada de un doctor.
+         *
+         * Con carga perezosa, si no está en el caché se arma con el candado del doctor
+         * tomado: sus citas en disco (índice, sin las canceladas) más sus citas nuevas en memoria.
+         *
+         * @param doctorId id del doctor
+         * @return agenda del doctor
+         */
+        private AgendaDoctor agenda(String doctorId) {
+            if (indiceCitas == null) {
+                return agendaPorDoctor.obtenerOCrear(doctorId);
+            }
+            AgendaDoctor agenda = agendaPorDoctor.get(doctorId);
+            if (agenda != null) return agenda;
+            synchronized (candado(doctorId)) {
+                agenda = agendaPorDoctor.get(doctorId);
+                if (agenda == null) {
+                    agenda = new AgendaDoctor();
+                    try {
+                        indiceCitas.agregarAAgenda(doctorId, agenda);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Error leyendo citas.idx: " + e.getMessage());
+                    }
+                    citas.agregarAAgenda(doctorId, agenda);
+                    agenda.ordenar();
+                    for (Map.Entry<Integer, Cita> e : canceladasEnDisco.entrySet()) {
+                        Cita c = e.getValue();
+                        if (doctorId.equals(c.getDoctorId())) agenda.quitar(minutosDe(c), -(e.getKey() + 1));
+                    }
+                    agendaPorDoctor.put(doctorId, agenda);
+                }
+                return agenda;
+            }
+        }
+
+        /**
+         * agendaSiExiste()
+         * ----------------
+         * Para consultas: la agenda del doctor sin crear una vacía si nunca ha tenido citas
+         * (con carga perezosa se usa agenda(), que la arma desde el índice).
+         */
+        private AgendaDoctor agendaSiExiste(String doctorId) {
+            return indiceCitas == null ? agendaPorDoctor.get(doctorId) : agenda(doctorId);
+        }
+
+        /** Mapa de ocupación de un doctor (creándolo si hace falta). */
+        private OcupacionDoctor ocupacion(String doctorId) {
+            return ocupacionPorDoctor.computeIfAbsent(doctorId, k -> new OcupacionDoctor());
+        }
+
+        /** Lista de doctores de una especialidad (creándola si hace falta). */
+        private List<Doctor> especialidad(String especialidad) {
+            return doctoresPorEspecialidad.computeIfAbsent(claveEspecialidad(especialidad), k -> new CopyOnWriteArrayList<>());
+        }
+
+        /** Clave para agrupar especialidades: sin espacios alrededor y sin distinguir mayúsculas. */
+        private static String claveEspecialidad(String especialidad) {
+            return especialidad == null ? "" : especialidad.trim().toLowerCase(Locale.ROOT);
+        }
+
+        /** Candado para crear citas de un doctor (uno por doctorId, nunca se reemplaza). */
+        private Object candado(String doctorId) {
+            return candadosDoctor.computeIfAbsent(doctorId, k -> new Object());
+        }
+
+        /**
+         * nuevoCacheAgendas()
+         * -------------------
+         * Caché de agendas para la carga perezosa: guarda hasta maxAgendasEnCache y
+         * descarta la que tenga más tiempo sin usarse (ver CacheAgendas).
+         */
+        private CacheAgendas nuevoCacheAgendas() {
+            return new CacheAgendas(maxAgendasEnCache);
+        }
+
+        /**
+         * registroEnDisco()
+         * -----------------
+         * Con carga perezosa, busca un id de cita en las particiones (a través del índice).
+         *
+         * @return número de registro, o -1 si no está (o si la carga perezosa está desactivada).
+         */
+        private int registroEnDisco(String id) {
+            if (indiceCitas == null) return -1;
+            try {
+                return indiceCitas.buscarRegistro(id);
+            } catch (IOException e) {
+                throw new RuntimeException("Error leyendo las citas: " + e.getMessage());
+            }
+        }
+
+        /**
+         * citaDeFila()
+         * ------------
+         * Cita de una fila de agenda: si es >= 0 está en AlmacenCitas; si es negativa,
+         * está en disco en el registro -(fila + 1).
+         */
+        private Cita citaDeFila(int fila) {
+            if (fila >= 0) return citas.get(fila);
+            try {
+                return indiceCitas.leer(-(fila + 1));
+            } catch (IOException e) {
+                throw new RuntimeException("Error leyendo las citas: " + e.getMessage());
+            }
+        }
+
+        /**
+         * filaVigente()
+         * -------------
+         * Fila de una cita que no está cancelada: primero en AlmacenCitas y, con carga
+         * perezosa, en disco (fila -(registro + 1), como en la agenda).
+         *
+         * @return la fila, o SIN_FILA si no existe o ya está cancelada.
+         */
+        private int filaVigente(String id) {
+            int fila = citas.buscarFila(id);
+            if (fila >= 0) return citas.estaCancelada(fila) ? SIN_FILA : fila;
+            int registro = registroEnDisco(id);
+            return registro < 0 || canceladasEnDisco.containsKey(registro) ? SIN_FILA : -(registro + 1);
+        }
+
+        /** true si la fila (de memoria o de disco) ya está cancelada. */
+        private boolean estaCancelada(int fila) {
+            return fila >= 0 ? citas.estaCancelada(fila) : canceladasEnDisco.containsKey(-(fila + 1));
+        }
+
+        /** doctorId de una fila de agenda (en memoria o en disco). */
+        private String doctorIdDeFila(int fila) {
+            return fila >= 0 ? citas.doctorId(fila) : citaDeFila(fila).getDoctorId();
+        }
+
+        /** Minutos de una fila de agenda (en memoria o en disco). */
+        private long minutosDeFila(int fila) {
+            return fila >= 0 ? citas.minutos(fila) : minutosDe(citaDeFila(fila));
+        }
+
+        /**
+         * Suelta el índice de citas (si la carga perezosa está activa). Se cierra de verdad
+         * cuando ninguna ConsultaCitas lo retiene.
+         */
+        private void cerrarIndiceCitas() {
+            if (indiceCitas == null) return;
+            indiceCitas.close();
+            indiceCitas = null;
+        }
+
+        /**
+         * guardarTodo()
+         * -------------
+         * Guarda la información en CSV, sobrescribiendo SOLO los archivos cuya entidad
+         * cambió desde la última carga o guardado (si solo se dio de alta un paciente,
+         * solo se reescribe pacientes.csv). De las citas, solo se reescriben las particiones
+         * (meses) que recibieron citas nuevas.
+         * Es el único guardado que reescribe snapshot.bin, y solo si no estaba al día
+         * (excepto con carga perezosa, donde no se tienen todas las citas en memoria);
+         * las compactaciones del journal, importaciones y archivados solo tocan los CSV.
+         * Como los CSV quedan al día, después se vacía el journal (compactación).
+         *
+         * @return reporte con bytes escritos y tiempo por archivo.
+         */
+        public ReporteGuardado guardarTodo() {
+            long t0 = Metricas.GUARDAR_TODO.inicio(), bytes = -1;
+            estado.writeLock().lock();
+            try {
+                ReporteGuardado reporte = guardarModificados(true);
+                bytes = reporte.getBytesTotales();
+                return reporte;
+            } finally {
+                estado.writeLock().unlock();
+                Metricas.GUARDAR_TODO.fin(t0, bytes);
+            }
+        }
+
+        /**
+         * guardarModificados()
+         * --------------------
+         * Cuerpo de guardarTodo(); se llama con el candado de escritura tomado.
+         * Las canceladas no se escriben; si ya son muchas, antes se sacan de memoria
+         * (compactarCanceladas).
+         *
+         * @param conSnapshot true solo en un guardado completo (guardarTodo); si es false y
+         *                    se escribió algún CSV, el snapshot deja de estar al día y se
+         *                    reescribe en el siguiente guardarTodo()
+         */
+        private ReporteGuardado guardarModificados(boolean conSnapshot) {
+            ReporteGuardado reporte = new ReporteGuardado();
+            long t0;
+            // Con carga perezosa no hace falta: el almacén se vacía después de guardar
+            if (indiceCitas == null && (long) citas.canceladas() * FRACCION_CANCELADAS > citas.size()) {
+                compactarCanceladas();
+            }
+            if (doctoresModificados) {
+                t0 = System.nanoTime();
+                reporte.agregar("doctors.csv", storage.guardarDoctores(doctores), System.nanoTime() - t0);
+                doctoresModificados = false;
+            }
+            if (pacientesModificados) {
+                t0 = System.nanoTime();
+                reporte.agregar("pacientes.csv", storage.guardarPacientes(pacientes), System.nanoTime() - t0);
+                pacientesModificados = false;
+            }
+            if (citasModificadas && indiceCitas != null) {
+                // Carga perezosa: se agregan las nuevas al final, se quitan las canceladas en
+                // disco y se rehace el índice
+                List<Cita> nuevas = new ArrayList<>(citas.size());
+                try (AlmacenCitas.Lectura filas = citas.leer()) {
+                    for (int f = 0, n = filas.tamano(); f < n; f++) {
+                        if (!filas.estaCancelada(f)) nuevas.add(filas.get(f));
+                    }
+                }
+                Map<String, Set<String>> quitar = canceladasPorParticion();
+                cerrarIndiceCitas();
+                try {
+                    t0 = System.nanoTime();
+                    reporte.agregar(nombreParticiones(), storage.agregarCitas(nuevas, quitar), System.nanoTime() - t0);
+                    canceladasEnDisco = new ConcurrentHashMap<>();
+                    particionesModificadas.clear();
+                    citas = new AlmacenCitas();
+                    citasPorPaciente = new ConcurrentHashMap<>();
+                    citasPorFecha = new IndiceFechas();
+                    agendaPorDoctor.vaciar();
+                    citasModificadas = false;
+                    t0 = System.nanoTime();
+                    reporte.agregar("citas.idx", storage.construirIndiceCitas(), System.nanoTime() - t0);
+                } finally {
+                    indiceCitas = storage.abrirIndiceCitas();
+                }
+            } else if (citasModificadas) {
+                // Solo los meses que cambiaron; las demás particiones no se tocan
+                Set<String> meses = new TreeSet<>(particionesModificadas);
+                String nombre = nombreParticiones();
+                t0 = System.nanoTime();
+                reporte.agregar(nombre, storage.guardarCitas(citas, meses), System.nanoTime() - t0);
+                particionesModificadas.removeAll(meses);
+                citasModificadas = false;
+            }
+            if (usuariosModificados) {
+                t0 = System.nanoTime();
+                reporte.agregar("usuarios.csv", storage.guardarUsuarios(userManager.getUsuarios()), System.nanoTime() - t0);
+                usuariosModificados = false;
+            }
+            if (!reporte.estaVacio()) snapshotAlDia = false;
+            if (conSnapshot && indiceCitas == null && !snapshotAlDia) {
+                t0 = System.nanoTime();
+                reporte.agregar("snapshot.bin", storage.guardarSnapshot(doctores, pacientes, citas,
+                        userManager.getUsuarios(), integridadValidada), System.nanoTime() - t0);
+                snapshotAlDia = true;
+            }
+            if (seriesModificadas) {
+                // Después del snapshot: series.csv no va en él
+                t0 = System.nanoTime();
+                reporte.agregar("series.csv", storage.guardarSeries(series), System.nanoTime() - t0);
+                seriesModificadas = false;
+            }
+            storage.vaciarJournal();
+            registrosEnJournal.set(0);
+            return reporte;
+        }
+
+        /** Nombre de las particiones pendientes para el reporte de guardado: citas-2026-02.csv, citas-*.csv (3 meses)... */
+        private String nombreParticiones() {
+            int n = particionesModificadas.size();
+            if (n == 1) return storage.archivoParticion(particionesModificadas.iterator().next()).getName();
+            return CsvStorage.PREFIJO_PARTICION + "*.csv (" + n + " meses)";
+        }
+
+        /** Ids de las canceladas en disco, agrupados por la partición donde está su línea. */
+        private Map<String, Set<String>> canceladasPorParticion() {
+            Map<String, Set<String>> quitar = new HashMap<>();
+            try {
+                for (Map.Entry<Integer, Cita> e : canceladasEnDisco.entrySet()) {
+                    String particion = CsvStorage.particionDeArchivo(indiceCitas.particionDe(e.getKey()));
+                    quitar.computeIfAbsent(particion, k -> new HashSet<>()).add(e.getValue().getId());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error leyendo citas.idx: " + e.getMessage());
+            }
+            return quitar;
+        }
+
+        /**
+         * registrarEnJournal()
+         * --------------------
+         * Si el modo journal está activo, agrega el registro a journal.csv.
+         * Se llama con el candado de lectura tomado (así no se cuela entre un guardado
+         * y el vaciado del journal).
+         *
+         * @param tipo tipo de registro (D, P, C, S, U, X, R o XS)
+         * @param campos campos del registro
+         */
+        private void registrarEnJournal(String tipo, String... campos) {
+            if (!modoJournal) return;
+            storage.agregarAlJournal(tipo, campos);
+            registrosEnJournal.incrementAndGet();
+        }
+
+        /**
+         * registrarCambioEnJournal()
+         * --------------------------
+         * Como registrarEnJournal(), pero aunque el modo journal esté apagado: una
+         * cancelación o reprogramación (X, R, XS) no debe perderse si el programa muere antes
+         * del siguiente guardado, y cargarTodo() reaplica el journal en cualquier modo.
+         */
+        private void registrarCambioEnJournal(String tipo, String... campos) {
+            storage.agregarAlJournal(tipo, campos);
+            registrosEnJournal.incrementAndGet();
+        }
+
+        /**
+         * compactarSiHaceFalta()
+         * ----------------------
+         * Si ya se acumularon COMPACTAR_CADA registros en el journal, compacta (guardarTodo).
+         * Se llama al terminar cada alta, ya sin el candado de lectura (no se puede pasar
+         * de lectura a escritura sin soltarlo primero).
+         */
+        private void compactarSiHaceFalta() {
+            if (!modoJournal || registrosEnJournal.get() < COMPACTAR_CADA) return;
+            estado.writeLock().lock();
+            try {
+                if (registrosEnJournal.get() >= COMPACTAR_CADA) guardarModificados(false);
+            } finally {
+                estado.writeLock().unlock();
+            }
+        }
+
+        /**
+         * registrarAdmin()
+         * ----------------
+         * Registra un administrador (ver UserManager.registrarAdmin) y, en modo journal,
+         * lo agrega a journal.csv.
+         *
+         * @param id ID del usuario.
+         * @param username Username único.
+         * @param password Contraseña en texto plano (se hashea).
+         */
+        public void registrarAdmin(String id, String username, String password) {
+            estado.readLock().lock();
+            try {
+                Usuario u = userManager.registrarAdmin(id, username, password);
+                usuariosModificados = true;
+                registrarEnJournal("U", u.getId(), u.getUsername(), u.getPasswordHash(), u.getRol());
+            } finally {
+                estado.readLock().unlock();
+            }
+            compactarSiHaceFalta();
+        }
+
+        /**
+         * login()
+         * -------
+         * Atajo para llamar al UserManager.login() (sesión de consola).
+         *
+         * @param username usuario
+         * @param password contraseña
+         * @return true si login correcto.
+         */
+        public boolean login(String username, String password) {
+            return userManager.login(username, password);
+        }
+
+        /**
+         * iniciarSesion()
+         * ---------------
+         * Atajo para UserManager.iniciarSesion(): crea una sesión independiente.
+         *
+         * @param username usuario
+         * @param password contraseña
+         * @return la sesión, o null si los datos son incorrectos.
+         */
+        public Sesion iniciarSesion(String username, String password) {
+            return userManager.iniciarSesion(username, password);
+        }
+
+        /**
+         * emitirToken()
+         * -------------
+         * Atajo para UserManager.emitirToken(): verifica la contraseña una vez y
+         * regresa un token de sesión (o null si los datos son incorrectos).
+         */
+        public String emitirToken(String username, String password) {
+            return userManager.emitirToken(username, password);
+        }
+
+        /**
+         * sesionPorToken()
+         * ----------------
+         * Atajo para UserManager.sesionPorToken(): sesión de un token vigente, o null.
+         */
+        public Sesion sesionPorToken(String token) {
+            return userManager.sesionPorToken(token);
+        }
+
+        /** Atajo para UserManager.revocarToken(). */
+        public void revocarToken(String token) {
+            userManager.revocarToken(token);
+        }
+
+        /**
+         * altaDoctor()
+         * ------------
+         * Registra un doctor nuevo en el sistema.
+         *
+         * Validaciones:
+         * - Debe ser ADMIN (requireAdmin).
+         * - El ID del doctor no puede repetirse.
+         *
+         * @param d Doctor a registrar.
+         */
+        public void altaDoctor(Doctor d) {
+            altaDoctor(userManager.getSesionActual(), d);
+        }
+
+        /**
+         * altaDoctor() con sesión
+         * -----------------------
+         * Igual que altaDoctor(d), pero con la sesión de quien lo registra.
+         * Se puede llamar desde varios hilos a la vez.
+         *
+         * @param sesion sesión del administrador
+         * @param d Doctor a registrar.
+         */
+        public void altaDoctor(Sesion sesion, Doctor d) {
+            requireAdmin(sesion);
+
+            estado.readLock().lock();
+            try {
+                if (!agregarDoctor(d)) {
+                    throw new DatoInvalido("Doctor con id repetido");
+                }
+                registrarEnJournal("D", d.getId(), d.getNombreCompleto(), d.getEspecialidad());
+            } finally {
+                estado.readLock().unlock();
+            }
+            compactarSiHaceFalta();
+        }
+
+        /**
+         * agregarDoctor()
+         * ---------------
+         * Agrega el doctor al índice y a la lista, sin más validaciones (uso interno),
+         * y marca doctors.csv como pendiente de guardar.
+         *
+         * El putIfAbsent sobre el índice es atómico: si dos hilos dan de alta el mismo id,
+         * solo uno gana. El id queda registrado en el Internador, para que las citas
+         * de este doctor compartan ese mismo String.
+         *
+         * @return true si se agregó, false si el id ya existía.
+         */
+        private boolean agregarDoctor(Doctor d) {
+            if (doctoresPorId.putIfAbsent(d.getId(), d) != null) return false;
+            textos.compartido(d.getId());
+            synchronized (doctores) {
+                doctores.add(d);
+            }
+            especialidad(d.getEspecialidad()).add(d);
+            doctoresModificados = true;
+            return true;
+        }
+
+        /**
+         * altaPaciente()
+         * --------------
+         * Registra un paciente nuevo en el sistema.
+         *
+         * Validaciones:
+         * - Debe ser ADMIN.
+         * - El ID del paciente no puede repetirse.
+         *
+         * @param p Paciente a registrar.
+         */
+        public void altaPaciente(Paciente p) {
+            altaPaciente(userManager.getSesionActual(), p);
+        }
+
+        /**
+         * altaPaciente() con sesión
+         * -------------------------
+         * Igual que altaPaciente(p), pero con la sesión de quien lo registra.
+         * Se puede llamar desde varios hilos a la vez.
+         *
+         * @param sesion sesión del administrador
+         * @param p Paciente a registrar.
+         */
+        public void altaPaciente(Sesion sesion, Paciente p) {
+            requireAdmin(sesion);
+
+            estado.readLock().lock();
+            try {
+                if (!agregarPaciente(p)) {
+                    throw new DatoInvalido("Paciente con id repetido");
+                }
+                registrarEnJournal("P", p.getId(), p.getNombreCompleto());
+            } finally {
+                estado.readLock().unlock();
+            }
+            compactarSiHaceFalta();
+        }
+
+        /**
+         * agregarPaciente()
+         * -----------------
+         * Agrega el paciente al índice y a la lista, sin más validaciones (uso interno),
+         * y marca pacientes.csv como pendiente de guardar. El id queda registrado en el
+         * Internador (igual que en agregarDoctor).
+         *
+         * @return true si se agregó, false si el id ya existía.
+         */
+        private boolean agregarPaciente(Paciente p) {
+            if (pacientesPorId.putIfAbsent(p.getId(), p) != null) return false;
+            textos.compartido(p.getId());
+            synchronized (pacientes) {
+                pacientes.add(p);
+            }
+            pacientesModificados = true;
+            return true;
+        }
+
+        /**
+         * crearCita()
+         * -----------
+         * Crea una cita nueva y la agrega al sistema.
+         *
+         * Validaciones:
+         * - Debe ser ADMIN.
+         * - ID de cita no se repite.
+         * - doctorId existe en doctores.
+         * - pacienteId existe en pacientes.
+         * - fechaHora es una fecha válida (ISO-8601, ej: 2026-02-08T10:30).
+         * - El doctor no tiene otra cita que se empalme con esta.
+         *
+         * @param id ID único de la cita
+         * @param fechaHora FechaHora en texto
+         * @param motivo Motivo en texto
+         * @param doctorId ID de doctor
+         * @param pacienteId ID de paciente
+         * @return La cita creada (por si se quiere imprimir info)
+         */
+        public Cita crearCita(String id, String fechaHora, String motivo, String doctorId, String pacienteId) {
+            return crearCita(userManager.getSesionActual(), id, fechaHora, motivo, doctorId, pacienteId);
+        }
+
+        /**
+         * crearCita() con sesión
+         * ----------------------
+         * Igual que crearCita(...), pero con la sesión de quien la registra.
+         * Se puede llamar desde varios hilos a la vez.
+         *
+         * Concurrencia:
+         * 1) Se validan todas las reglas sin candados (los índices son concurrentes).
+         * 2) Con el candado del doctor tomado, se vuelve a revisar el empalme (otra
+         *    recepción pudo haber agendado a ese doctor justo ahora) y se agrega la cita;
+         *    AlmacenCitas revisa el id y agrega la fila en un solo paso.
+         * Así solo compiten entre sí las citas del MISMO doctor.
+         *
+         * @param sesion sesión del administrador
+         * @return La cita creada
+         */
+        public Cita crearCita(Sesion sesion, String id, String fechaHora, String motivo, String doctorId, String pacienteId) {
+            long t0 = Metricas.CREAR_CITA.inicio();
+            boolean ok = false;
+            try {
+                requireAdmin(sesion);
+
+                LocalDateTime t = parsearFechaHora(fechaHora);
+                Cita nueva;
+                estado.readLock().lock();
+                try {
+                    String error = validarCita(id, t, doctorId, pacienteId);
+                    if (error != null) {
+                        throw new DatoInvalido(error);
+                    }
+
+                    synchronized (candado(doctorId)) {
+                        AgendaDoctor agenda = agenda(doctorId);
+                        String choque = describirEmpalme(doctorId, agenda, t);
+                        if (choque != null) {
+                            throw new DatoInvalido(choque);
+                        }
+                        if (agregarCita(id, fechaHora, t, motivo, doctorId, pacienteId) < 0) {
+                            throw new DatoInvalido("Cita con id repetido");
+                        }
+                        nueva = new Cita(id, fechaHora, motivo, doctorId, pacienteId);
+                        registrarEnJournal("C", id, fechaHora, motivo, doctorId, pacienteId);
+                    }
+                } finally {
+                    estado.readLock().unlock();
+                }
+                compactarSiHaceFalta();
+                ok = true;
+                return nueva;
+            } finally {
+                Metricas.CREAR_CITA.fin(t0, ok);
+            }
+        }
+
+        /**
+         * validarCita()
+         * -------------
+         * Revisa las reglas de una cita nueva (las de crearCita, menos el permiso de ADMIN).
+         * Regresa el motivo del problema en vez de lanzar excepción, para que la importación
+         * masiva pueda rechazar filas sin el costo de crear excepciones.
+         *
+         * @param id ID de la cita
+         * @param t fechaHora ya parseada (null si el texto no era una fecha válida)
+         * @param doctorId ID de doctor
+         * @param pacienteId ID de paciente
+         * @return mensaje de error, o null si la cita es válida.
+         */
+        private String validarCita(String id, LocalDateTime t, String doctorId, String pacienteId) {
+            if (citas.buscarFila(id) >= 0 || registroEnDisco(id) >= 0) {
+                return "Cita con id repetido";
+            }
+            if (idArchivado(id)) {
+                return "Cita con id repetido (hay una archivada con ese id)";
+            }
+            if (buscarDoctorPorId(doctorId) == null) {
+                return "Doctor no existe";
+            }
+            if (buscarPacientePorId(pacienteId) == null) {
+                return "Paciente no existe";
+            }
+            if (t == null) {
+                return "FechaHora inválida (usa ISO-8601, ej: 2026-02-08T10:30)";
+            }
+            String choque = describirEmpalme(doctorId, agenda(doctorId), t);
+            return choque != null ? choque : empalmeArchivado(doctorId, AlmacenCitas.aMinutos(t));
+        }
+
+        /**
+         * idArchivado()
+         * -------------
+         * true si una cita archivada tiene ese id. Con los hashes de cada segmento casi
+         * siempre se responde sin leer nada; solo si el hash coincide se descomprime ese
+         * segmento para confirmarlo.
+         */
+        private boolean idArchivado(String id) {
+            for (CsvStorage.SegmentoArchivo seg : segmentosArchivo) {
+                if (seg.puedeTener(id) && storage.idEnSegmento(seg, id)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * empalmeArchivado()
+         * ------------------
+         * Como describirEmpalme(), contra las citas archivadas del doctor: solo lee los
+         * segmentos cuyo rango toca [m - DURACION_CITA_MINUTOS, m + DURACION_CITA_MINUTOS],
+         * y nada si m queda después de finArchivo.
+         *
+         * @return mensaje con la cita archivada con la que choca, o null si está libre.
+         */
+        private String empalmeArchivado(String doctorId, long m) {
+            if (m - DURACION_CITA_MINUTOS >= finArchivo) return null;
+            for (Cita c : storage.citasArchivadas(AlmacenCitas.deMinutos(m - DURACION_CITA_MINUTOS + 1),
+                    AlmacenCitas.deMinutos(m + DURACION_CITA_MINUTOS))) {
+                if (doctorId.equals(c.getDoctorId())) {
+                    return "El doctor ya tiene la cita " + c.getId() + " en " + c.getFechaHora() + " (archivada)";
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Igual que empalmeArchivado(doctorId, m), para todas las ocurrencias de una serie
+         * nueva: lee UNA vez las archivadas del doctor en el rango de la serie (nada si la
+         * serie empieza después de finArchivo) y revisa cada una con SerieCitas.empalme.
+         *
+         * @return mensaje con la ocurrencia y la cita archivada con la que choca, o null.
+         */
+        private String empalmeArchivado(String doctorId, SerieCitas serie) {
+            long primera = serie.minutoDe(0);
+            long ultima = serie.minutoDe(serie.getRepeticiones() - 1);
+            for (Cita c : archivadasEntre(primera - DURACION_CITA_MINUTOS + 1, ultima + DURACION_CITA_MINUTOS, doctorId)) {
+                int k = serie.empalme(minutosDe(c), DURACION_CITA_MINUTOS);
+                if (k >= 0) {
+                    return "La cita " + (k + 1) + " de la serie choca: El doctor ya tiene la cita " + c.getId()
+                            + " en " + c.getFechaHora() + " (archivada)";
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Citas archivadas con fecha en [a, b) (en minutos), en orden de fecha; de un solo
+         * doctor si doctorId no es null. Vacía (sin leer nada) si la ventana empieza después
+         * de finArchivo.
+         */
+        private List<Cita> archivadasEntre(long a, long b, String doctorId) {
+            long fin = Math.min(b, finArchivo);
+            if (a >= fin) return Collections.emptyList();
+            List<Cita> list = storage.citasArchivadas(AlmacenCitas.deMinutos(a), AlmacenCitas.deMinutos(fin));
+            if (doctorId != null) list.removeIf(c -> !doctorId.equals(c.getDoctorId()));
+            return list;
+        }
+
+        /**
+         * cancelarCita()
+         * --------------
+         * Cancela una cita (ver "Cancelar y reprogramar" en la descripción de la clase):
+         * su turno queda libre al momento y la cita deja de salir en las consultas.
+         * También cancela una sola ocurrencia de una serie (id "S1#3").
+         *
+         * Debe ser ADMIN.
+         *
+         * @param id ID de la cita
+         * @return la cita cancelada (como estaba).
+         */
+        public Cita cancelarCita(String id) {
+            return cancelarCita(userManager.getSesionActual(), id);
+        }
+
+        /**
+         * cancelarCita() con sesión
+         * -------------------------
+         * Igual que cancelarCita(id), con la sesión de quien la hace.
+         */
+        public Cita cancelarCita(Sesion sesion, String id) {
+            long t0 = Metricas.CANCELAR_CITA.inicio();
+            boolean ok = false;
+            try {
+                requireAdmin(sesion);
+                Cita cancelada;
+                estado.readLock().lock();
+                try {
+                    OcurrenciaSerie o = ocurrenciaParaCambiar(id);
+                    if (o != null) {
+                        synchronized (candado(o.serie.getDoctorId())) {
+                            if (!sigueVigente(o)) throw new CitaNoExiste(id);
+                            cancelada = o.serie.ocurrencia(o.k);
+                            cancelarOcurrencia(o);
+                            registrarCambioEnJournal("X", id);
+                        }
+                    } else {
+                        int fila = filaParaCambiar(id);
+                        synchronized (candado(doctorIdDeFila(fila))) {
+                            if (estaCancelada(fila)) throw new CitaNoExiste(id);
+                            cancelada = citaDeFila(fila);
+                            cancelarFila(fila);
+                            registrarCambioEnJournal("X", id);
+                        }
+                    }
+                } finally {
+                    estado.readLock().unlock();
+                }
+                compactarSiHaceFalta();
+                ok = true;
+                return cancelada;
+            } finally {
+                Metricas.CANCELAR_CITA.fin(t0, ok);
+            }
+        }
+
+        /**
+         * reprogramarCita()
+         * -----------------
+         * Cambia la fecha y hora de una cita, con las mismas reglas de empalme que
+         * crearCita() (sin contar la propia cita). Mismo doctor, paciente, id y motivo.
+         * También mueve una sola ocurrencia de una serie (id "S1#3"); las demás no cambian.
+         *
+         * Debe ser ADMIN.
+         *
+         * @param id ID de la cita
+         * @param fechaHora nueva fecha (ISO-8601, ej: 2026-02-08T10:30)
+         * @return la cita ya con la fecha nueva.
+         */
+        public Cita reprogramarCita(String id, String fechaHora) {
+            return reprogramarCita(userManager.getSesionActual(), id, fechaHora);
+        }
+
+        /**
+         * reprogramarCita() con sesión
+         * ----------------------------
+         * Igual que reprogramarCita(id, fechaHora), con la sesión de quien la hace.
+         */
+        public Cita reprogramarCita(Sesion sesion, String id, String fechaHora) {
+            long t0 = Metricas.REPROGRAMAR_CITA.inicio();
+            boolean ok = false;
+            try {
+                requireAdmin(sesion);
+                LocalDateTime t = parsearFechaHora(fechaHora);
+                if (t == null) throw new DatoInvalido("FechaHora inválida (usa ISO-8601, ej: 2026-02-08T10:30)");
+
+                Cita reprogramada;
+                estado.readLock().lock();
+                try {
+                    OcurrenciaSerie o = ocurrenciaParaCambiar(id);
+                    if (o != null) {
+                        String doctorId = o.serie.getDoctorId();
+                        synchronized (candado(doctorId)) {
+                            if (!sigueVigente(o)) throw new CitaNoExiste(id);
+                            // La ocurrencia no choca consigo misma (describirEmpalme la excluye)
+                            long m = AlmacenCitas.aMinutos(t);
+                            String choque = describirEmpalme(doctorId, agenda(doctorId), m, o);
+                            if (choque == null) choque = empalmeArchivado(doctorId, m);
+                            if (choque != null) throw new DatoInvalido(choque);
+
+                            moverOcurrencia(o, m);
+                            reprogramada = o.serie.ocurrencia(o.k);
+                            registrarCambioEnJournal("R", id, fechaHora);
+                        }
+                    } else {
+                        int fila = filaParaCambiar(id);
+                        String doctorId = doctorIdDeFila(fila);
+                        synchronized (candado(doctorId)) {
+                            if (estaCancelada(fila)) throw new CitaNoExiste(id);
+                            // La cita no choca consigo misma: se revisa el empalme con la agenda sin ella
+                            AgendaDoctor agenda = agenda(doctorId);
+                            long anterior = minutosDeFila(fila);
+                            boolean estaba = anterior != AlmacenCitas.SIN_FECHA && agenda.quitar(anterior, fila);
+                            String choque = describirEmpalme(doctorId, agenda, t);
+                            if (estaba) agenda.agregar(anterior, fila);
+                            if (choque == null) choque = empalmeArchivado(doctorId, AlmacenCitas.aMinutos(t));
+                            if (choque != null) throw new DatoInvalido(choque);
+
+                            reprogramada = moverFila(fila, fechaHora, t);
+                            registrarCambioEnJournal("R", id, fechaHora);
+                        }
+                    }
+                } finally {
+                    estado.readLock().unlock();
+                }
+                compactarSiHaceFalta();
+                ok = true;
+                return reprogramada;
+            } finally {
+                Metricas.REPROGRAMAR_CITA.fin(t0, ok);
+            }
+        }
+
+        /**
+         * filaParaCambiar()
+         * -----------------
+         * Fila de una cita que se va a cancelar o reprogramar (ver filaVigente; con carga
+         * perezosa puede ser una fila negativa, en disco).
+         * Lanza CitaNoExiste si no existe o ya está cancelada.
+         */
+        private int filaParaCambiar(String id) {
+            int fila = filaVigente(id);
+            if (fila == SIN_FILA) throw new CitaNoExiste(id);
+            return fila;
+        }
+
+        /**
+         * CLASE OcurrenciaSerie
+         * ---------------------
+         * Una ocurrencia de una serie encontrada por su id ("S1#3" -> serie S1, k = 2).
+         */
+        private static final class OcurrenciaSerie {
+            final SerieCitas serie;
+            final int k;
+
+            OcurrenciaSerie(SerieCitas serie, int k) {
+                this.serie = serie;
+                this.k = k;
+            }
+        }
+
+        /**
+         * ocurrenciaVigente()
+         * -------------------
+         * Interpreta un id "<idSerie>#<número>" como ocurrencia de una serie.
+         *
+         * @return la ocurrencia, o null si la serie no existe, el número está fuera de la
+         * serie (o no está escrito como en los ids que arma SerieCitas) o ya se canceló.
+         */
+        private OcurrenciaSerie ocurrenciaVigente(String id) {
+            int gato = id.lastIndexOf('#');
+            if (gato <= 0) return null;
+            SerieCitas serie = seriesPorId.get(id.substring(0, gato));
+            if (serie == null) return null;
+            String numero = id.substring(gato + 1);
+            int k;
+            try {
+                k = Integer.parseInt(numero) - 1;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (!numero.equals(String.valueOf(k + 1)) || !serie.vigente(k)) return null;
+            return new OcurrenciaSerie(serie, k);
+        }
+
+        /**
+         * ocurrenciaParaCambiar()
+         * -----------------------
+         * Para cancelar o reprogramar: la ocurrencia de serie con ese id, solo si no hay una
+         * cita normal vigente con el mismo id (esa tiene prioridad). null = usar filaParaCambiar.
+         */
+        private OcurrenciaSerie ocurrenciaParaCambiar(String id) {
+            return filaVigente(id) == SIN_FILA ? ocurrenciaVigente(id) : null;
+        }
+
+        /**
+         * sigueVigente()
+         * --------------
+         * Ya con el candado del doctor: la serie no se quitó (cancelarSerie) y la ocurrencia
+         * no se canceló desde que se buscó.
+         */
+        private boolean sigueVigente(OcurrenciaSerie o) {
+            return seriesPorId.get(o.serie.getId()) == o.serie && o.serie.vigente(o.k);
+        }
+
+        /** Cancela la ocurrencia (excepción en su serie) y marca series.csv como pendiente. */
+        private void cancelarOcurrencia(OcurrenciaSerie o) {
+            o.serie.cancelarOcurrencia(o.k);
+            seriesModificadas = true;
+        }
+
+        /** Mueve la ocurrencia al minuto m, sin validar empalmes, y marca series.csv como pendiente. */
+        private void moverOcurrencia(OcurrenciaSerie o, long m) {
+            o.serie.moverOcurrencia(o.k, m);
+            seriesModificadas = true;
+        }
+
+        /**
+         * CLASE CitaNoExiste
+         * ------------------
+         * La cita que se quiere cambiar no existe o ya está cancelada (la API responde 404).
+         */
+        static class CitaNoExiste extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            CitaNoExiste(String id) { super("Cita no existe: " + id); }
+        }
+
+        /**
+         * cancelarFila()
+         * --------------
+         * Marca la fila como cancelada y la quita de la agenda, del índice por fecha y de la
+         * ocupación del doctor (el índice por paciente la filtra al consultar). Una fila de
+         * disco (carga perezosa) se marca en canceladasEnDisco. Se llama con el candado del
+         * doctor tomado (o el de escritura, al reaplicar el journal).
+         */
+        private void cancelarFila(int fila) {
+            if (fila >= 0) citas.cancelar(fila);
+            else canceladasEnDisco.put(-(fila + 1), citaDeFila(fila));
+            quitarDeIndices(fila);
+            particionesModificadas.add(CsvStorage.particionDe(minutosDeFila(fila)));
+            citasModificadas = true;
+        }
+
+        /**
+         * moverFila()
+         * -----------
+         * Cambia la fecha de una cita vigente, sin validar empalmes. En memoria se cambia en
+         * su lugar (cambiarFechaFila); una de disco se cancela ahí y se agrega en memoria,
+         * con el mismo id, y la fecha nueva.
+         *
+         * @return la cita ya con la fecha nueva.
+         */
+        private Cita moverFila(int fila, String fechaHora, LocalDateTime t) {
+            if (fila >= 0) {
+                cambiarFechaFila(fila, fechaHora, t);
+                return citas.get(fila);
+            }
+            Cita c = citaDeFila(fila);
+            cancelarFila(fila);
+            int nueva = agregarCita(c.getId(), fechaHora, t, c.getMotivo(), c.getDoctorId(), c.getPacienteId());
+            return citas.get(nueva);
+        }
+
+        /**
+         * cambiarFechaFila()
+         * ------------------
+         * Cambia la fecha de la fila y la mueve en la agenda, el índice por fecha y la
+         * ocupación. Se reescriben el mes de antes y el nuevo. Sin validar empalmes.
+         */
+        private void cambiarFechaFila(int fila, String fechaHora, LocalDateTime t) {
+            String doctorId = citas.doctorId(fila);
+            quitarDeIndices(fila);
+            particionesModificadas.add(CsvStorage.particionDe(citas.minutos(fila)));
+            citas.cambiarFecha(fila, fechaHora, t);
+            if (t != null) {
+                long m = AlmacenCitas.aMinutos(t);
+                agenda(doctorId).agregar(m, fila);
+                ocupacion(doctorId).ocupar(m);
+                citasPorFecha.agregar(m, fila);
+            }
+            particionesModificadas.add(CsvStorage.particionDe(t));
+            citasModificadas = true;
+        }
+
+        /** Quita la fila de la agenda de su doctor, del índice por fecha y de la ocupación. */
+        private void quitarDeIndices(int fila) {
+            long m = minutosDeFila(fila);
+            if (m == AlmacenCitas.SIN_FECHA) return;
+            String doctorId = doctorIdDeFila(fila);
+            AgendaDoctor agenda = agenda(doctorId);
+            agenda.quitar(m, fila);
+            ocupacion(doctorId).liberar(m, agenda);
+            citasPorFecha.quitar(m, fila);
+        }
+
+        /**
+         * compactarCanceladas()
+         * ---------------------
+         * Saca de memoria las citas canceladas (una copia de AlmacenCitas sin ellas) y
+         * rehace los índices de citas, porque cambian los números de fila. Se llama con el
+         * candado de escritura tomado, antes de escribir las citas a disco, y solo cuando
+         * las canceladas ya son muchas (ver FRACCION_CANCELADAS).
+         */
+        private void compactarCanceladas() {
+            citas = citas.sinFilas(new int[0]);
+            indexarCitas();
+        }
+
+        /**
+         * crearSerie()
+         * ------------
+         * Crea una serie de citas que se repite (ver SerieCitas): se guarda solo la regla.
+         *
+         * Validaciones:
+         * - Debe ser ADMIN.
+         * - ID de serie no se repite.
+         * - doctorId y pacienteId existen.
+         * - La regla es válida (fecha ISO-8601, cadaDias >= 1, 1..MAX_REPETICIONES repeticiones).
+         * - NINGUNA de las ocurrencias se empalma con una cita (también archivada) u otra serie
+         *   del doctor.
+         *
+         * @param id ID único de la serie
+         * @param inicio fecha y hora de la primera cita
+         * @param cadaDias días entre una cita y la siguiente (7 = semanal)
+         * @param repeticiones cuántas citas en total
+         * @param motivo motivo de las citas
+         * @param doctorId ID de doctor
+         * @param pacienteId ID de paciente
+         * @return la serie creada.
+         */
+        public SerieCitas crearSerie(String id, String inicio, int cadaDias, int repeticiones,
+                                     String motivo, String doctorId, String pacienteId) {
+            return crearSerie(userManager.getSesionActual(), id, inicio, cadaDias, repeticiones, motivo, doctorId, pacienteId);
+        }
+
+        /**
+         * crearSerie() con sesión
+         * -----------------------
+         * Igual que crearSerie(...), con la sesión de quien la registra. Revisa los empalmes
+         * y agrega la serie con el candado del doctor tomado, igual que crearCita().
+         */
+        public SerieCitas crearSerie(Sesion sesion, String id, String inicio, int cadaDias, int repeticiones,
+                                     String motivo, String doctorId, String pacienteId) {
+            long t0 = Metricas.CREAR_SERIE.inicio();
+            boolean ok = false;
+            try {
+                requireAdmin(sesion);
+                SerieCitas serie = new SerieCitas(id, inicio, cadaDias, repeticiones, motivo,
+                        textos.compartido(doctorId), textos.compartido(pacienteId));
+
+                estado.readLock().lock();
+                try {
+                    if (seriesPorId.containsKey(id)) throw new DatoInvalido("Serie con id repetido");
+                    if (buscarDoctorPorId(doctorId) == null) throw new DatoInvalido("Doctor no existe");
+                    if (buscarPacientePorId(pacienteId) == null) throw new DatoInvalido("Paciente no existe");
+
+                    synchronized (candado(doctorId)) {
+                        AgendaDoctor agenda = agenda(doctorId);
+                        for (int k = 0; k < repeticiones; k++) {
+                            String choque = describirEmpalme(doctorId, agenda, serie.minutoDe(k));
+                            if (choque != null) throw new DatoInvalido("La cita " + (k + 1) + " de la serie choca: " + choque);
+                        }
+                        String choque = empalmeArchivado(doctorId, serie);
+                        if (choque != null) throw new DatoInvalido(choque);
+                        if (!agregarSerie(serie)) throw new DatoInvalido("Serie con id repetido");
+                        registrarEnJournal("S", id, inicio, String.valueOf(cadaDias), String.valueOf(repeticiones),
+                                motivo, doctorId, pacienteId);
+                    }
+                } finally {
+                    estado.readLock().unlock();
+                }
+                compactarSiHaceFalta();
+                ok = true;
+                return serie;
+            } finally {
+                Metricas.CREAR_SERIE.fin(t0, ok);
+            }
+        }
+
+        /**
+         * agregarSerie()
+         * --------------
+         * Agrega la serie a la lista y a sus índices, sin más validaciones (uso interno),
+         * y marca series.csv como pendiente de guardar.
+         *
+         * @return true si se agregó, false si el id ya existía.
+         */
+        private boolean agregarSerie(SerieCitas s) {
+            if (seriesPorId.putIfAbsent(s.getId(), s) != null) return false;
+            synchronized (series) {
+                series.add(s);
+            }
+            seriesPorDoctor.computeIfAbsent(s.getDoctorId(), k -> new CopyOnWriteArrayList<>()).add(s);
+            seriesPorPaciente.computeIfAbsent(s.getPacienteId(), k -> new CopyOnWriteArrayList<>()).add(s);
+            seriesModificadas = true;
+            return true;
+        }
+
+        /**
+         * cancelarSerie()
+         * ---------------
+         * Cancela una serie completa: sus turnos quedan libres al momento y sus ocurrencias
+         * dejan de salir en las consultas. Se registra como XS en journal.csv aunque el modo
+         * journal esté apagado (igual que cancelarCita). Para una sola ocurrencia, usar
+         * cancelarCita("S1#3").
+         *
+         * Debe ser ADMIN.
+         *
+         * @param id ID de la serie
+         * @return la serie cancelada (como estaba).
+         */
+        public SerieCitas cancelarSerie(String id) {
+            return cancelarSerie(userManager.getSesionActual(), id);
+        }
+
+        /**
+         * cancelarSerie() con sesión
+         * --------------------------
+         * Igual que cancelarSerie(id), con la sesión de quien la hace.
+         */
+        public SerieCitas cancelarSerie(Sesion sesion, String id) {
+            long t0 = Metricas.CANCELAR_SERIE.inicio();
+            boolean ok = false;
+            try {
+                requireAdmin(sesion);
+                SerieCitas serie;
+                estado.readLock().lock();
+                try {
+                    serie = seriesPorId.get(id);
+                    if (serie == null) throw new SerieNoExiste(id);
+                    synchronized (candado(serie.getDoctorId())) {
+                        if (!quitarSerie(serie)) throw new SerieNoExiste(id);
+                        registrarCambioEnJournal("XS", id);
+                    }
+                } finally {
+                    estado.readLock().unlock();
+                }
+                compactarSiHaceFalta();
+                ok = true;
+                return serie;
+            } finally {
+                Metricas.CANCELAR_SERIE.fin(t0, ok);
+            }
+        }
+
+        /**
+         * quitarSerie()
+         * -------------
+         * Quita la serie de la lista y de sus índices (uso interno, sin validar permisos)
+         * y marca series.csv como pendiente de guardar.
+         *
+         * @return true si se quitó, false si ya no estaba.
+         */
+        private boolean quitarSerie(SerieCitas s) {
+            if (!seriesPorId.remove(s.getId(), s)) return false;
+            synchronized (series) {
+                series.remove(s);
+            }
+            List<SerieCitas> deDoctor = seriesPorDoctor.get(s.getDoctorId());
+            if (deDoctor != null) deDoctor.remove(s);
+            List<SerieCitas> dePaciente = seriesPorPaciente.get(s.getPacienteId());
+            if (dePaciente != null) dePaciente.remove(s);
+            seriesModificadas = true;
+            return true;
+        }
+
+        /**
+         * CLASE SerieNoExiste
+         * -------------------
+         * La serie que se quiere cancelar no existe o ya se canceló (la API responde 404).
+         */
+        static class SerieNoExiste extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            SerieNoExiste(String id) { super("Serie no existe: " + id); }
+        }
+
+        /**
+         * buscarSeriePorId()
+         * ------------------
+         * Busca una serie por ID usando el índice en memoria (O(1)).
+         *
+         * @return la serie, o null si no existe.
+         */
+        public SerieCitas buscarSeriePorId(String id) {
+            return seriesPorId.get(id);
+        }
+
+        /**
+         * seriesDePaciente()
+         * ------------------
+         * Series (solo las reglas) de un paciente, en orden de alta.
+         */
+        public List<SerieCitas> seriesDePaciente(String pacienteId) {
+            List<SerieCitas> lista = seriesPorPaciente.get(pacienteId);
+            return lista == null ? Collections.emptyList() : Collections.unmodifiableList(lista);
+        }
+
+        /**
+         * ocurrenciasEntre()
+         * ------------------
+         * Citas de TODAS las series con fecha en [desde, hasta), en orden de fecha.
+         * Solo se arman las ocurrencias del rango: cada serie salta directo a su primera
+         * ocurrencia con aritmética, sin recorrer las anteriores.
+         *
+         * @param desde inicio del rango (incluido)
+         * @param hasta fin del rango (excluido)
+         * @return lista de solo lectura con las ocurrencias.
+         */
+        public List<Cita> ocurrenciasEntre(LocalDateTime desde, LocalDateTime hasta) {
+            long a = AlmacenCitas.aMinutos(desde);
+            long b = AlmacenCitas.aMinutos(hasta);
+            List<Cita> list = new ArrayList<>();
+            estado.readLock().lock();
+            try {
+                for (SerieCitas s : seriesPorId.values()) s.agregarOcurrencias(a, b, list);
+            } finally {
+                estado.readLock().unlock();
+            }
+            // Las ocurrencias siempre tienen fecha ISO (aaaa-MM-ddTHH:mm): el orden de texto es el de fecha
+            list.sort(Comparator.comparing(Cita::getFechaHora).thenComparing(Cita::getId));
+            return Collections.unmodifiableList(list);
+        }
+
+        /**
+         * importarCitas()
+         * ---------------
+         * Importa citas en masa desde un archivo externo con el mismo formato que citas.csv
+         * (id;fechaHora;motivo;doctorId;pacienteId, con los mismos escapes).
+         *
+         * Flujo:
+         * 1) Lee el archivo en lotes de TAMANO_LOTE_IMPORTACION líneas (sin cargarlo completo).
+         * 2) Valida el lote COMPLETO antes de tocar nada: contra los índices del sistema (ids,
+         *    doctor, paciente, fecha y empalmes, incluidos los lotes anteriores ya aplicados) y
+         *    contra las filas válidas del mismo lote (ids y empalmes entre ellas, ver validarEnLote).
+         * 3) Aplica juntas las filas válidas del lote; las inválidas se escriben en el archivo
+         *    de rechazos como: número de línea;motivo;línea original. Ese archivo se crea con
+         *    el primer rechazo (si no hay, no se crea).
+         *    El trailer (#FIN;...) se ignora, así que se puede importar un CSV de db/ tal cual
+         *    (por ejemplo cuarentena.csv).
+         * 4) Al final se guarda UNA sola vez (guardarTodo), en vez de una escritura por cita.
+         *
+         * Si algo falla antes de guardar (error de lectura, línea imposible de aplicar), se
+         * deshace TODO lo importado (ver deshacerImportacion): o entra el archivo o nada.
+         *
+         * Debe ser ADMIN. Mientras dura, el Sistema queda bloqueado para otras altas
+         * (toma el candado de escritura), porque al final guarda todo.
+         *
+         * @param archivoOrigen ruta del archivo a importar
+         * @param archivoRechazos ruta donde se escriben las filas rechazadas
+         * @return resumen de la importación.
+         */
+        public ResultadoImportacion importarCitas(String archivoOrigen, String archivoRechazos) {
+            return importarCitas(userManager.getSesionActual(), archivoOrigen, archivoRechazos);
+        }
+
+        /**
+         * importarCitas() con sesión
+         * --------------------------
+         * Igual que importarCitas(origen, rechazos), con la sesión de quien la hace.
+         */
+        public ResultadoImportacion importarCitas(Sesion sesion, String archivoOrigen, String archivoRechazos) {
+            requireAdmin(sesion);
+            estado.writeLock().lock();
+            try {
+                return importarCitasBloqueado(archivoOrigen, archivoRechazos);
+            } finally {
+                estado.writeLock().unlock();
+            }
+        }
+
+        /**
+         * importarCitasBloqueado()
+         * ------------------------
+         * Cuerpo de importarCitas(); se llama con el candado de escritura tomado.
+         */
+        private ResultadoImportacion importarCitasBloqueado(String archivoOrigen, String archivoRechazos) {
+            long inicio = System.nanoTime();
+            int aceptadas = 0;
+            int rechazadas = 0;
+
+            CsvStorage.Tokenizador tk = new CsvStorage.Tokenizador();
+            String[] lineas = new String[TAMANO_LOTE_IMPORTACION];
+            List<String[]> validas = new ArrayList<>();
+            List<LocalDateTime> fechas = new ArrayList<>();
+            int numeroLinea = 0;
+
+            // Para deshacer la importación completa si falla a la mitad
+            int filasAntes = citas.size();
+            Set<String> mesesAntes = new HashSet<>(particionesModificadas);
+            boolean modificadasAntes = citasModificadas;
+            BufferedWriter rechazos = null;
+            boolean listo = false;
+
+            try (BufferedReader br = new BufferedReader(new FileReader(archivoOrigen, StandardCharsets.UTF_8))) {
+                while (true) {
+                    // 1) Leer un lote
+                    int enLote = 0;
+                    int primeraLinea = numeroLinea + 1;
+                    String line;
+                    while (enLote < lineas.length && (line = br.readLine()) != null) {
+                        lineas[enLote++] = line;
+                    }
+                    numeroLinea += enLote;
+                    if (enLote == 0) break;
+
+                    // 2) Validar el lote completo (sin tocar nada todavía)
+                    validas.clear();
+                    fechas.clear();
+                    Set<String> idsLote = new HashSet<>();
+                    Map<String, TreeMap<Long, String>> turnosLote = new HashMap<>();
+                    for (int i = 0; i < enLote; i++) {
+                        String original = lineas[i];
+                        lineas[i] = null;
+                        String limpia = original.trim();
+                        if (limpia.isEmpty() || limpia.startsWith(CsvStorage.TRAILER)) continue;
+
+                        String error;
+                        if (tk.dividir(limpia) < 5) {
+                            error = "Faltan campos (se esperan 5)";
+                        } else {
+                            LocalDateTime t = parsearFechaHora(tk.campo(1));
+                            error = validarCita(tk.campo(0), t, tk.campo(3), tk.campo(4));
+                            if (error == null) error = validarEnLote(idsLote, turnosLote, tk.campo(0), t, tk.campo(3));
+                            if (error == null) {
+                                validas.add(new String[] { tk.campo(0), tk.campo(1), tk.campo(2), tk.campo(3), tk.campo(4) });
+                                fechas.add(t);
+                                continue;
+                            }
+                        }
+
+                        // Registrar el rechazo
+                        rechazadas++;
+                        if (rechazos == null) {
+                            rechazos = new BufferedWriter(new FileWriter(archivoRechazos, StandardCharsets.UTF_8));
+                        }
+                        rechazos.write((primeraLinea + i) + ";" + storage.esc(error) + ";" + original);
+                        rechazos.newLine();
+                    }
+
+                    // 3) Aplicar el lote
+                    citas.asegurarCapacidad(citas.size() + validas.size());
+                    for (int k = 0; k < validas.size(); k++) {
+                        String[] c = validas.get(k);
+                        if (agregarCita(c[0], c[1], fechas.get(k), c[2], c[3], c[4]) < 0) {
+                            throw new RuntimeException("Cita con id repetido: " + c[0]);
+                        }
+                    }
+                    aceptadas += validas.size();
+                }
+                if (rechazos != null) rechazos.close();
+                listo = true;
+            } catch (IOException e) {
+                throw new RuntimeException("Error importando " + archivoOrigen + ": " + e.getMessage());
+            } finally {
+                if (!listo) {
+                    deshacerImportacion(filasAntes, mesesAntes, modificadasAntes);
+                    if (rechazos != null) {
+                        try {
+                            rechazos.close();
+                        } catch (IOException ignorada) {
+                            // ya hay un error en curso
+                        }
+                    }
+                }
+            }
+
+            // 4) Una sola escritura al final
+            ReporteGuardado reporte = guardarModificados(false);
+            return new ResultadoImportacion(aceptadas, rechazadas, System.nanoTime() - inicio, reporte);
+        }
+
+        /**
+         * validarEnLote()
+         * ---------------
+         * Lo que validarCita() no puede ver durante una importación: las filas válidas del
+         * mismo lote, que todavía no se aplican. Revisa que el id no se repita entre ellas y
+         * que no se empalmen (mismo doctor a menos de DURACION_CITA_MINUTOS); si pasa, la
+         * anota en idsLote y turnosLote.
+         *
+         * @param t fechaHora ya validada (no null)
+         * @return mensaje de error, o null si la fila es válida.
+         */
+        private static String validarEnLote(Set<String> idsLote, Map<String, TreeMap<Long, String>> turnosLote,
+                                            String id, LocalDateTime t, String doctorId) {
+            if (idsLote.contains(id)) return "Cita con id repetido";
+            TreeMap<Long, String> turnos = turnosLote.computeIfAbsent(doctorId, k -> new TreeMap<>());
+            long m = AlmacenCitas.aMinutos(t);
+            Map.Entry<Long, String> antes = turnos.floorEntry(m);
+            Map.Entry<Long, String> despues = turnos.ceilingEntry(m);
+            Map.Entry<Long, String> choque = antes != null && m - antes.getKey() < DURACION_CITA_MINUTOS ? antes
+                    : despues != null && despues.getKey() - m < DURACION_CITA_MINUTOS ? despues : null;
+            if (choque != null) return "Se empalma con la cita " + choque.getValue() + " del mismo archivo";
+            idsLote.add(id);
+            turnos.put(m, id);
+            return null;
+        }
+
+        /**
+         * deshacerImportacion()
+         * ---------------------
+         * Quita de memoria lo que una importación fallida ya había aplicado (las filas desde
+         * filasAntes), rehace los índices de citas y deja las marcas de "por guardar" como
+         * estaban antes de importar.
+         */
+        private void deshacerImportacion(int filasAntes, Set<String> mesesAntes, boolean modificadasAntes) {
+            if (citas.size() == filasAntes) return;
+            citas.truncar(filasAntes);
+            indexarCitas();
+            particionesModificadas.retainAll(mesesAntes);
+            citasModificadas = modificadasAntes;
+        }
+
+        /**
+         * agregarCita()
+         * -------------
+         * Agrega la cita al almacén, al índice por paciente y (si la fecha es válida) a la
+         * agenda y la ocupación del doctor y al índice por fecha,
+         * sin más validaciones (uso interno), y marca su partición (mes) como pendiente de guardar.
+         *
+         * El almacén revisa el id y agrega la fila de forma atómica: si dos hilos agregan
+         * el mismo id, solo uno gana.
+         *
+         * @param t fechaHora ya parseada (puede ser null si no es válida)
+         * @return fila de la cita en el almacén, o -1 si el id ya existía.
+         */
+        private int agregarCita(String id, String fechaHora, LocalDateTime t, String motivo,
+                                String doctorId, String pacienteId) {
+            // Misma instancia que el doctor y el paciente (y que las citas cargadas)
+            doctorId = textos.compartido(doctorId);
+            pacienteId = textos.compartido(pacienteId);
+            int fila = citas.agregar(id, fechaHora, t, motivo, doctorId, pacienteId, true);
+            if (fila < 0) return -1;
+            citasPorPaciente.computeIfAbsent(pacienteId, k -> new ListaFilas()).agregar(fila);
+            if (t != null) {
+                long m = AlmacenCitas.aMinutos(t);
+                agenda(doctorId).agregar(m, fila);
+                ocupacion(doctorId).ocupar(m);
+                citasPorFecha.agregar(m, fila);
+            }
+            particionesModificadas.add(CsvStorage.particionDe(t));
+            citasModificadas = true;
+            return fila;
+        }
+
+        /**
+         * describirEmpalme()
+         * ------------------
+         * Revisa si una cita nueva en la fecha t chocaría con otra del mismo doctor.
+         * Como la agenda está ordenada, basta ver la cita anterior y la siguiente:
+         * O(log n) en vez de recorrer todas las citas (ver AgendaDoctor.empalme).
+         * Luego, por cada serie del doctor, se calcula solo la ocurrencia más cercana a t
+         * (SerieCitas.empalme), sin expandir la serie.
+         *
+         * @param doctorId id del doctor
+         * @param agenda agenda ordenada del doctor
+         * @param t fecha y hora de la cita nueva
+         * @return mensaje con la cita con la que choca, o null si está libre.
+         */
+        private String describirEmpalme(String doctorId, AgendaDoctor agenda, LocalDateTime t) {
+            return describirEmpalme(doctorId, agenda, AlmacenCitas.aMinutos(t));
+        }
+
+        /** Igual que describirEmpalme(doctorId, agenda, t), con t ya en minutos. */
+        private String describirEmpalme(String doctorId, AgendaDoctor agenda, long m) {
+            return describirEmpalme(doctorId, agenda, m, null);
+        }
+
+        /** Igual que describirEmpalme(doctorId, agenda, m), sin contar la ocurrencia excluida (al moverla). */
+        private String describirEmpalme(String doctorId, AgendaDoctor agenda, long m, OcurrenciaSerie excluida) {
+            int fila = agenda.empalme(m, DURACION_CITA_MINUTOS);
+            if (fila != AgendaDoctor.LIBRE) {
+                Cita choque = citaDeFila(fila);
+                return "El doctor ya tiene la cita " + choque.getId() + " en " + choque.getFechaHora();
+            }
+            List<SerieCitas> lista = seriesPorDoctor.get(doctorId);
+            if (lista == null) return null;
+            for (SerieCitas s : lista) {
+                int k = s.empalme(m, DURACION_CITA_MINUTOS, excluida != null && excluida.serie == s ? excluida.k : -1);
+                if (k >= 0) {
+                    Cita choque = s.ocurrencia(k);
+                    return "El doctor ya tiene la cita " + choque.getId() + " en " + choque.getFechaHora()
+                            + " (serie " + s.getId() + ")";
+                }
+            }
+            return null;
+        }
+
+        /**
+         * citasDePaciente()
+         * -----------------
+         * Historial de un paciente, en orden de alta, usando el índice por paciente
+         * (no recorre las citas de los demás).
+         *
+         * @param pacienteId id del paciente
+         * @return consulta perezosa (stream() o pagina())
+         */
+        public ConsultaCitas citasDePaciente(String pacienteId) {
+            estado.readLock().lock();
+            try {
+                ListaFilas enMemoria = citasPorPaciente.get(pacienteId);
+                IndiceCitas indice = indiceCitas;
+                AlmacenCitas almacen = citas;
+                Map<Integer, Cita> enDisco = canceladasEnDisco;
+                return consulta(() -> {
+                    FuenteFilas nuevas = enMemoria == null ? FuenteFilas.VACIA
+                            : FuenteFilas.filtrar(enMemoria.fuente(), f -> !almacen.estaCancelada(f));
+                    return indice == null ? nuevas : FuenteFilas.seguidas(
+                            FuenteFilas.filtrar(indice.dePaciente(pacienteId), f -> !enDisco.containsKey(-(f + 1))), nuevas);
+                });
+            } finally {
+                estado.readLock().unlock();
+            }
+        }
+
+        /**
+         * citasDeDoctor()
+         * ---------------
+         * Citas de un doctor con fecha en [desde, hasta), en orden de fecha. Como
+         * citasDeDoctorEntre(), pero las citas se arman hasta que se recorren.
+         *
+         * @return consulta perezosa (stream() o pagina())
+         */
+        public ConsultaCitas citasDeDoctor(String doctorId, LocalDateTime desde, LocalDateTime hasta) {
+            long a = AlmacenCitas.aMinutos(desde);
+            long b = AlmacenCitas.aMinutos(hasta);
+            estado.readLock().lock();
+            try {
+                AgendaDoctor agenda = agendaSiExiste(doctorId);
+                // Solo se copian los números de fila (4 bytes por cita), no las citas
+                int[] filas = agenda == null ? new int[0] : agenda.filasEntre(a, b);
+                List<Cita> archivadas = archivadasEntre(a, b, doctorId);
+                if (!archivadas.isEmpty()) {
+                    // La agenda no guarda los minutos de cada fila: se piden para poder mezclar
+                    long[] minutos = new long[filas.length];
+                    for (int i = 0; i < filas.length; i++) minutos[i] = minutosDeFila(filas[i]);
+                    return consulta(() -> FuenteFilas.de(filas, minutos), archivadas);
+                }
+                return consulta(() -> FuenteFilas.de(filas));
+            } finally {
+                estado.readLock().unlock();
+            }
+        }
+
+        /**
+         * citasEntre()
+         * ------------
+         * Citas de todos los doctores con fecha en [desde, hasta), en orden de fecha
+         * (ej: la agenda completa de un día), usando el índice por fecha. Si el rango empieza
+         * antes de finArchivo, se mezclan las citas archivadas (que se leen al momento).
+         *
+         * @return consulta perezosa (stream() o pagina())
+         */
+        public ConsultaCitas citasEntre(LocalDateTime desde, LocalDateTime hasta) {
+            long a = AlmacenCitas.aMinutos(desde);
+            long b = AlmacenCitas.aMinutos(hasta);
+            estado.readLock().lock();
+            try {
+                IndiceFechas enMemoria = citasPorFecha;
+                IndiceCitas indice = indiceCitas;
+                Map<Integer, Cita> enDisco = canceladasEnDisco;
+                List<Cita> archivadas = archivadasEntre(a, b, null);
+                return consulta(() -> indice == null ? enMemoria.fuente(a, b)
+                        : FuenteFilas.mezclar(FuenteFilas.filtrar(indice.entre(a, b), f -> !enDisco.containsKey(-(f + 1))),
+                                enMemoria.fuente(a, b)), archivadas);
+            } finally {
+                estado.readLock().unlock();
+            }
+        }
+
+        /**
+         * consulta()
+         * ----------
+         * Arma una ConsultaCitas que lee las filas en el almacén y el índice de AHORA.
+         * Si después se guarda, se recarga o se archiva, la consulta sigue apuntando a los de
+         * antes: el índice viejo queda retenido por la consulta (ver IndiceCitas.retener), así
+         * que cerrarIndiceCitas() no lo cierra mientras alguien lo esté paginando.
+         * Se llama con el candado de lectura tomado (el índice actual sigue abierto).
+         */
+        private ConsultaCitas consulta(ConsultaCitas.Origen origen) {
+            AlmacenCitas almacen = citas;
+            IndiceCitas indice = indiceCitas;
+            return new ConsultaCitas(origen, fila -> fila >= 0 ? almacen.get(fila) : indice.leer(-(fila + 1)), indice);
+        }
+
+        /**
+         * consulta() con citas archivadas
+         * -------------------------------
+         * Igual que consulta(origen), mezclando por fecha las citas archivadas dadas (ya en
+         * orden de fecha; si empatan, van primero). Sus filas siguen a las de disco:
+         * la archivada i es la fila -(registros de disco + i + 1).
+         */
+        private ConsultaCitas consulta(ConsultaCitas.Origen origen, List<Cita> archivadas) {
+            if (archivadas.isEmpty()) return consulta(origen);
+            AlmacenCitas almacen = citas;
+            IndiceCitas indice = indiceCitas;
+            int enDisco = indice == null ? 0 : indice.registros();
+            int[] filas = new int[archivadas.size()];
+            long[] minutos = new long[filas.length];
+            for (int i = 0; i < filas.length; i++) {
+                filas[i] = -(enDisco + i + 1);
+                minutos[i] = minutosDe(archivadas.get(i));
+            }
+            return new ConsultaCitas(() -> FuenteFilas.mezclar(FuenteFilas.de(filas, minutos), origen.abrir()), fila -> {
+                if (fila >= 0) return almacen.get(fila);
+                int registro = -(fila + 1);
+                return registro < enDisco ? indice.leer(registro) : archivadas.get(registro - enDisco);
+            }, indice);
+        }
+
+        /**
+         * hayDoctoresDe()
+         * ---------------
+         * Para distinguir, cuando buscarHuecos() no encuentra nada, entre "no hay doctores de
+         * esa especialidad" y "no hay turnos libres en DIAS_BUSQUEDA_HUECOS días".
+         *
+         * @param especialidad especialidad (sin distinguir mayúsculas)
+         * @return true si hay al menos un doctor con esa especialidad.
+         */
+        public boolean hayDoctoresDe(String especialidad) {
+            List<Doctor> lista = doctoresPorEspecialidad.get(claveEspecialidad(especialidad));
+            return lista != null && !lista.isEmpty();
+        }
+
+        /**
+         * buscarHuecos()
+         * --------------
+         * Busca los primeros turnos libres con cualquier doctor de una especialidad, a partir
+         * de una fecha (ej: "el primer hueco en Cardiología después del lunes 9:00").
+         *
+         * - Los turnos son de DURACION_CITA_MINUTOS, alineados a la hora (9:00, 9:30, ...), y
+         *   solo dentro del horario de consulta [HORA_INICIO_CONSULTA, HORA_FIN_CONSULTA).
+         * - Se revisa día por día: por cada doctor, los turnos libres del día son
+         *   ~ocupados & horario (un par de operaciones sobre un long), sin recorrer citas.
+         *   Las series no están en OcupacionDoctor: sus turnos de ese día se calculan al
+         *   momento (SerieCitas.ocupados) y se suman a los ocupados.
+         * - Resultado en orden de fecha; si dos doctores tienen libre el mismo turno, va
+         *   primero el que se dio de alta antes.
+         * - Se rinde después de DIAS_BUSQUEDA_HUECOS días.
+         *
+         * @param especialidad especialidad (sin distinguir mayúsculas)
+         * @param desde fecha desde la cual buscar (el turno debe empezar en o después de ella)
+         * @param cuantos máximo de huecos a regresar
+         * @return huecos encontrados (vacío si no hay doctores de esa especialidad)
+         */
+        public List<Hueco> buscarHuecos(String especialidad, LocalDateTime desde, int cuantos) {
+            List<Hueco> huecos = new ArrayList<>();
+            estado.readLock().lock();
+            try {
+                List<Doctor> lista = doctoresPorEspecialidad.get(claveEspecialidad(especialidad));
+                if (lista == null || cuantos <= 0) return huecos;
+
+                Doctor[] docs = lista.toArray(new Doctor[0]);
+                OcupacionDoctor[] ocupaciones = new OcupacionDoctor[docs.length];
+                SerieCitas[][] seriesDocs = new SerieCitas[docs.length][];
+                for (int i = 0; i < docs.length; i++) {
+                    ocupaciones[i] = ocupacionPorDoctor.get(docs[i].getId());
+                    List<SerieCitas> deDoctor = seriesPorDoctor.get(docs[i].getId());
+                    if (deDoctor != null) seriesDocs[i] = deDoctor.toArray(new SerieCitas[0]);
+                }
+
+                int turnoMin = OcupacionDoctor.TURNO_MINUTOS;
+                int porDia = OcupacionDoctor.TURNOS_POR_DIA;
+                long horario = OcupacionDoctor.mascara(HORA_INICIO_CONSULTA, HORA_FIN_CONSULTA);
+                long primerTurno = Math.floorDiv(AlmacenCitas.aMinutos(desde) + turnoMin - 1, turnoMin);
+                long dia = Math.floorDiv(primerTurno, porDia);
+                long[] libres = new long[docs.length];
+
+                for (int d = 0; d < DIAS_BUSQUEDA_HUECOS && huecos.size() < cuantos; d++, dia++) {
+                    long permitidos = d == 0 ? horario & (-1L << Math.floorMod(primerTurno, porDia)) : horario;
+                    long alguno = 0;
+                    for (int i = 0; i < docs.length; i++) {
+                        long ocupados = ocupaciones[i] == null ? 0 : ocupaciones[i].ocupados(dia);
+                        if (seriesDocs[i] != null) for (SerieCitas s : seriesDocs[i]) ocupados |= s.ocupados(dia);
+                        libres[i] = permitidos & ~ocupados;
+                        alguno |= libres[i];
+                    }
+                    // Turnos del día en orden: el bit encendido más bajo de "alguno"
+                    while (alguno != 0 && huecos.size() < cuantos) {
+                        int turno = Long.numberOfTrailingZeros(alguno);
+                        alguno &= alguno - 1;
+                        LocalDateTime inicio = AlmacenCitas.deMinutos((dia * porDia + turno) * turnoMin);
+                        for (int i = 0; i < docs.length && huecos.size() < cuantos; i++) {
+                            if ((libres[i] & (1L << turno)) != 0) huecos.add(new Hueco(docs[i], inicio));
+                        }
+                    }
+                }
+                return huecos;
+            } finally {
+                estado.readLock().unlock();
+            }
+        }
+
+        /**
+         * citasDeDoctorEntre()
+         * --------------------
+         * Devuelve las citas de un doctor con fecha en [desde, hasta), ordenadas por fecha.
+         * Usa la agenda ordenada (búsqueda binaria), así que no recorre las citas de otros doctores.
+         * Incluye las ocurrencias de sus series que caen en el rango (solo esas se arman).
+         * Es una copia: se puede recorrer aunque otro hilo esté agendando.
+         * Si el rango empieza antes de finArchivo, incluye sus citas archivadas.
+         *
+         * Ejemplo: lo que tiene el doctor D1 mañana:
+         *   citasDeDoctorEntre("D1", manana.atStartOfDay(), manana.plusDays(1).atStartOfDay())
+         *
+         * @param doctorId id del doctor
+         * @param desde inicio del rango (incluido)
+         * @param hasta fin del rango (excluido)
+         * @return colección de solo lectura con las citas del rango.
+         */
+        public Collection<Cita> citasDeDoctorEntre(String doctorId, LocalDateTime desde, LocalDateTime hasta) {
+            estado.readLock().lock();
+            try {
+                long a = AlmacenCitas.aMinutos(desde);
+                long b = AlmacenCitas.aMinutos(hasta);
+                AgendaDoctor agenda = agendaSiExiste(doctorId);
+                int[] filas = agenda == null ? new int[0] : agenda.filasEntre(a, b);
+                List<Cita> list = new ArrayList<>(filas.length);
+                for (int f : filas) list.add(citaDeFila(f));
+                List<Cita> archivadas = archivadasEntre(a, b, doctorId);
+                if (!archivadas.isEmpty()) list = list.isEmpty() ? archivadas : mezclarPorFecha(archivadas, list);
+
+                List<Cita> ocurrencias = ocurrenciasDeDoctor(doctorId, a, b);
+                if (!ocurrencias.isEmpty()) list = list.isEmpty() ? ocurrencias : mezclarPorFecha(list, ocurrencias);
+                return Collections.unmodifiableList(list);
+            } finally {
+                estado.readLock().unlock();
+            }
+        }
+
+        /**
+         * ocurrenciasDeDoctorEntre()
+         * --------------------------
+         * Solo las ocurrencias de las series de un doctor con fecha en [desde, hasta), en
+         * orden de fecha. Usa seriesPorDoctor: no arma ocurrencias de otros doctores.
+         *
+         * @param doctorId id del doctor
+         * @param desde inicio del rango (incluido)
+         * @param hasta fin del rango (excluido)
+         * @return lista de solo lectura con las ocurrencias.
+         */
+        public List<Cita> ocurrenciasDeDoctorEntre(String doctorId, LocalDateTime desde, LocalDateTime hasta) {
+            estado.readLock().lock();
+            try {
+                return Collections.unmodifiableList(ocurrenciasDeDoctor(doctorId,
+                        AlmacenCitas.aMinutos(desde), AlmacenCitas.aMinutos(hasta)));
+            } finally {
+                estado.readLock().unlock();
+            }
+        }
+
+        /** Ocurrencias de las series del doctor en [a, b) (minutos), ordenadas por fecha. */
+        private List<Cita> ocurrenciasDeDoctor(String doctorId, long a, long b) {
+            List<SerieCitas> deDoctor = seriesPorDoctor.get(doctorId);
+            if (deDoctor == null) return new ArrayList<>();
+            List<Cita> ocurrencias = new ArrayList<>();
+            for (SerieCitas s : deDoctor) s.agregarOcurrencias(a, b, ocurrencias);
+            // Las ocurrencias siempre tienen fecha ISO: el orden de texto es el de fecha
+            if (deDoctor.size() > 1) ocurrencias.sort(Comparator.comparing(Cita::getFechaHora));
+            return ocurrencias;
+        }
+
+        /**
+         * mezclarPorFecha()
+         * -----------------
+         * Junta dos listas de citas ya ordenadas por fecha en una sola, también ordenada
+         * (cada fecha se interpreta una sola vez). Con fechas iguales va primero la de a.
+         */
+        private static List<Cita> mezclarPorFecha(List<Cita> a, List<Cita> b) {
+            List<Cita> list = new ArrayList<>(a.size() + b.size());
+            int i = 0;
+            int j = 0;
+            long ma = i < a.size() ? minutosDe(a.get(i)) : Long.MAX_VALUE;
+            long mb = j < b.size() ? minutosDe(b.get(j)) : Long.MAX_VALUE;
+            while (i < a.size() || j < b.size()) {
+                if (ma <= mb) {
+                    list.add(a.get(i++));
+                    ma = i < a.size() ? minutosDe(a.get(i)) : Long.MAX_VALUE;
+                } else {
+                    list.add(b.get(j++));
+                    mb = j < b.size() ? minutosDe(b.get(j)) : Long.MAX_VALUE;
+                }
+            }
+            return list;
+        }
+
+        /**
+         * Minutos de la fechaHora de una cita (las de agenda y series siempre la tienen válida;
+         * una cancelada en disco puede no tenerla: AlmacenCitas.SIN_FECHA).
+         */
+        private static long minutosDe(Cita c) {
+            LocalDateTime t = parsearFechaHora(c.getFechaHora());
+            return t == null ? AlmacenCitas.SIN_FECHA : AlmacenCitas.aMinutos(t);
+        }
+
+        /**
+         * contarCitasDeDoctorEntre()
+         * --------------------------
+         * Cuántas citas tiene un doctor con fecha en [desde, hasta), contando las de sus series.
+         * Solo hace dos búsquedas binarias en su agenda (y una división por serie): no crea
+         * ningún objeto Cita.
+         *
+         * @param doctorId id del doctor
+         * @param desde inicio del rango (incluido)
+         * @param hasta fin del rango (excluido)
+         * @return cantidad de citas.
+         */
+        public int contarCitasDeDoctorEntre(String doctorId, LocalDateTime desde, LocalDateTime hasta) {
+            estado.readLock().lock();
+            try {
+                long a = AlmacenCitas.aMinutos(desde);
+                long b = AlmacenCitas.aMinutos(hasta);
+                AgendaDoctor agenda = agendaSiExiste(doctorId);
+                int n = agenda == null ? 0 : agenda.contarEntre(a, b);
+                List<SerieCitas> deDoctor = seriesPorDoctor.get(doctorId);
+                if (deDoctor != null) for (SerieCitas s : deDoctor) n += s.contarEntre(a, b);
+                return n;
+            } finally {
+                estado.readLock().unlock();
+            }
+        }
+
+        /**
+         * contarCitasEntre()
+         * ------------------
+         * Cuántas citas (de todos los doctores) hay con fecha en [desde, hasta).
+         * Usa el índice por fecha con búsqueda binaria en los dos límites, sin crear objetos
+         * (con carga perezosa, también la sección "por fecha" de citas.idx), y suma las
+         * ocurrencias de las series en el rango.
+         *
+         * @param desde inicio del rango (incluido)
+         * @param hasta fin del rango (excluido)
+         * @return cantidad de citas.
+         */
+        public int contarCitasEntre(LocalDateTime desde, LocalDateTime hasta) {
+            long a = AlmacenCitas.aMinutos(desde);
+            long b = AlmacenCitas.aMinutos(hasta);
+            estado.readLock().lock();
+            try {
+                int n = citasPorFecha.contarEntre(a, b);
+                if (indiceCitas != null) {
+                    n += indiceCitas.contarEntre(a, b);
+                    for (Cita c : canceladasEnDisco.values()) {
+                        long m = minutosDe(c);
+                        if (m >= a && m < b) n--;
+                    }
+                }
+                for (SerieCitas s : seriesPorId.values()) n += s.contarEntre(a, b);
+                return n + archivadasEntre(a, b, null).size();
             } catch (IOException e) {
-                throw new RuntimeException("Error escribiendo usuarios.csv: " + e.getMessage());
+                throw new RuntimeException("Error leyendo citas.idx: " + e.getMessage());
+            } finally {
+                estado.readLock().unlock();
             }
         }
 
         /**
-         * splitSemi()
-         * -----------
-         * Divide una línea por ';' PERO sin cortar cuando el ';' está escapado con '\;'.
+         * archivarCitas()
+         * ---------------
+         * Mueve al archivo comprimido las citas con fecha anterior al corte (ver
+         * CsvStorage.archivarCitas), para que dejen de ocupar memoria y particiones.
          *
-         * Ejemplo:
-         * - Texto: "D1;Juan\\;Pérez;Cardiología"
-         * - El nombre real contiene ';' => "Juan;Pérez"
+         * - Primero se guarda lo pendiente (guardarTodo), porque el archivado trabaja sobre
+         *   los archivos; luego las citas archivadas se quitan del almacén y se rearman los
+         *   índices (con carga perezosa, se reconstruye citas.idx).
+         * - El corte no puede ser posterior a ahora: solo se archiva el pasado.
+         * - Las citas archivadas siguen ocupando su id y su turno (ver validarCita) y salen
+         *   en las consultas por rango; ya no se pueden cancelar ni reprogramar, y
+         *   buscarCitaPorId() no las encuentra.
          *
-         * Aquí guardamos el texto con escapes, y luego unesc() se encarga de devolverlo normal.
+         * Debe ser ADMIN. Toma el candado de escritura (nadie agenda mientras tanto).
          *
-         * @param line línea completa del CSV
-         * @return arreglo de "columnas" en texto escapado.
+         * @param corte se archivan las citas con fecha antes de aquí
+         * @return resumen del archivado.
          */
-        private String[] splitSemi(String line) {
-            List<String> parts = new ArrayList<>();
-            StringBuilder cur = new StringBuilder();
-            boolean escaping = false;
+        public ResultadoArchivado archivarCitas(LocalDateTime corte) {
+            return archivarCitas(userManager.getSesionActual(), corte);
+        }
 
-            for (int i = 0; i < line.length(); i++) {
-                char ch = line.charAt(i);
+        /**
+         * archivarCitas() con sesión
+         * --------------------------
+         * Igual que archivarCitas(corte), con la sesión de quien lo hace.
+         */
+        public ResultadoArchivado archivarCitas(Sesion sesion, LocalDateTime corte) {
+            requireAdmin(sesion);
+            if (corte.isAfter(LocalDateTime.now())) {
+                throw new DatoInvalido("El corte no puede ser posterior a ahora: " + corte);
+            }
+            estado.writeLock().lock();
+            try {
+                guardarModificados(false);
+                boolean perezosa = indiceCitas != null;
+                cerrarIndiceCitas();
+                ResultadoArchivado r;
+                try {
+                    r = storage.archivarCitas(corte);
+                } finally {
+                    if (perezosa) indiceCitas = storage.abrirIndiceCitas();
+                    cargarResumenArchivo();
+                }
+                if (r.getCitas() == 0) return r;
 
-                if (escaping) {
-                    // Si el caracter anterior fue '\', metemos "\x" para que unesc() lo procese
-                    cur.append('\\').append(ch);
-                    escaping = false;
-                    continue;
+                // En memoria quedan las que siguen en las particiones, en el mismo orden
+                long c = AlmacenCitas.aMinutos(corte);
+                AlmacenCitas quedan = new AlmacenCitas(citas.size());
+                try (AlmacenCitas.Lectura filas = citas.leer()) {
+                    for (int f = 0, n = filas.tamano(); f < n; f++) {
+                        if (filas.estaCancelada(f)) continue;
+                        long m = filas.minutos(f);
+                        if (m == AlmacenCitas.SIN_FECHA || m >= c) quedan.add(filas.get(f));
+                    }
                 }
+                citas = quedan;
+                indexarCitas();
+                snapshotAlDia = false;
+                guardarModificados(false);
+                return r;
+            } finally {
+                estado.writeLock().unlock();
+            }
+        }
 
-                if (ch == '\\') {
-                    escaping = true;
-                    continue;
+        /**
+         * citasArchivadasEntre()
+         * ----------------------
+         * Citas ya archivadas con fecha en [desde, hasta), en orden de fecha. Solo se
+         * descomprimen los segmentos cuyo rango de fechas toca la ventana.
+         *
+         * @param desde inicio del rango (incluido)
+         * @param hasta fin del rango (excluido)
+         * @return lista de solo lectura.
+         */
+        public List<Cita> citasArchivadasEntre(LocalDateTime desde, LocalDateTime hasta) {
+            estado.readLock().lock();
+            try {
+                return Collections.unmodifiableList(storage.citasArchivadas(desde, hasta));
+            } finally {
+                estado.readLock().unlock();
+            }
+        }
+
+        /**
+         * validarIntegridad()
+         * -------------------
+         * Revisa que cada cita apunte a un doctor y a un paciente que existen, y que no
+         * haya ids repetidos (de citas, doctores o pacientes). cargarTodo() ya lo hace al
+         * final; esto permite repetirlo (por ejemplo, para apartar lo que se reportó).
+         *
+         * Es un "hash join" sobre códigos, no sobre textos:
+         * - Cada doctorId/pacienteId DISTINTO de las citas se busca UNA vez en
+         *   doctoresPorId/pacientesPorId, y se marca en un boolean[] por código.
+         * - Luego se recorren en paralelo las columnas int[] de AlmacenCitas comparando
+         *   contra esos arreglos: sin Strings ni búsquedas por cita.
+         * - Los ids de cita repetidos son las filas que no quedaron en la tabla de ids;
+         *   si no falta ninguna, ni se recorre.
+         * - Con carga perezosa, las citas en disco se revisan con los directorios de
+         *   citas.idx (cuántas citas tiene cada id) y su sección de ids, ordenada por hash.
+         *   Además, cada cita en memoria (las nuevas) se busca en disco: si su id ya lo tiene
+         *   una cita de las particiones que no está cancelada, es repetida. Una cita de disco
+         *   reprogramada queda cancelada en disco y vuelve a memoria con el mismo id: esa no
+         *   cuenta.
+         *
+         * Cuarentena:
+         * - Las citas con problemas se agregan a cuarentena.csv (con la causa) y salen de
+         *   memoria y de sus particiones; de las repetidas se queda la primera.
+         * - Con carga perezosa solo se apartan las citas en memoria (las nuevas); las de
+         *   disco solo se reportan.
+         *
+         * Debe ser ADMIN.
+         *
+         * @param cuarentena true para apartar las citas con problemas, false para solo reportarlas
+         * @return reporte de la revisión.
+         */
+        public ReporteIntegridad validarIntegridad(boolean cuarentena) {
+            return validarIntegridad(userManager.getSesionActual(), cuarentena);
+        }
+
+        /**
+         * validarIntegridad() con sesión
+         * ------------------------------
+         * Igual que validarIntegridad(cuarentena), con la sesión de quien lo hace.
+         * Solo para reportar basta el candado de lectura; para apartar, el de escritura.
+         */
+        public ReporteIntegridad validarIntegridad(Sesion sesion, boolean cuarentena) {
+            requireAdmin(sesion);
+            java.util.concurrent.locks.Lock candado = cuarentena ? estado.writeLock() : estado.readLock();
+            candado.lock();
+            try {
+                return validarIntegridadBloqueado(cuarentena);
+            } finally {
+                candado.unlock();
+            }
+        }
+
+        /** Cuerpo de validarIntegridad(); se llama con el candado de estado tomado. */
+        private ReporteIntegridad validarIntegridadBloqueado(boolean cuarentena) {
+            long t0 = Metricas.VALIDAR_INTEGRIDAD.inicio();
+            boolean ok = false;
+            try {
+                long inicio = System.nanoTime();
+                ReporteIntegridad r = new ReporteIntegridad();
+                r.doctoresRepetidos = doctores.size() - doctoresPorId.size();
+                r.pacientesRepetidos = pacientes.size() - pacientesPorId.size();
+
+                // 1) Citas en memoria: un booleano por id distinto y recorrido de las columnas
+                AlmacenCitas almacen = citas;
+                String[] idsDoctor = almacen.doctoresDistintos();
+                boolean[] faltaDoctor = new boolean[idsDoctor.length];
+                for (int i = 0; i < idsDoctor.length; i++) {
+                    faltaDoctor[i] = idsDoctor[i] == null || !doctoresPorId.containsKey(idsDoctor[i]);
+                }
+                String[] idsPaciente = almacen.pacientesDistintos();
+                boolean[] faltaPaciente = new boolean[idsPaciente.length];
+                for (int i = 0; i < idsPaciente.length; i++) {
+                    faltaPaciente[i] = idsPaciente[i] == null || !pacientesPorId.containsKey(idsPaciente[i]);
                 }
+                int[] sinDoctor = almacen.filasConDoctor(faltaDoctor);
+                int[] sinPaciente = almacen.filasConPaciente(faltaPaciente);
+                int[] repetidas = almacen.filasConIdRepetido();
+                if (indiceCitas != null) repetidas = conRepetidasEnDisco(almacen, repetidas);
+                int[] conProblemas = java.util.stream.IntStream.concat(
+                        java.util.stream.IntStream.concat(Arrays.stream(sinDoctor), Arrays.stream(sinPaciente)),
+                        Arrays.stream(repetidas)).sorted().distinct().toArray();
 
-                if (ch == ';') {
-                    parts.add(cur.toString());
-                    cur.setLength(0);
-                } else {
-                    cur.append(ch);
+                r.revisadas = almacen.size() - almacen.canceladas();
+                r.sinDoctor = sinDoctor.length;
+                r.sinPaciente = sinPaciente.length;
+                r.idsRepetidos = repetidas.length;
+                for (int k = 0; k < conProblemas.length && k < ReporteIntegridad.MAX_EJEMPLOS; k++) {
+                    int f = conProblemas[k];
+                    r.agregarEjemplo(almacen.id(f) + ": " + causaIntegridad(almacen, f, sinDoctor, sinPaciente));
+                }
+
+                // 2) Citas en disco (carga perezosa): directorios y sección de ids de citas.idx
+                if (indiceCitas != null) {
+                    try {
+                        r.revisadas += indiceCitas.registros() - canceladasEnDisco.size();
+                        for (Map.Entry<String, Integer> e : indiceCitas.citasPorDoctor().entrySet()) {
+                            if (doctoresPorId.containsKey(e.getKey())) continue;
+                            r.sinDoctor += e.getValue();
+                            r.agregarEjemplo("doctor " + e.getKey() + " no existe (" + e.getValue() + " citas en disco)");
+                        }
+                        for (Map.Entry<String, Integer> e : indiceCitas.citasPorPaciente().entrySet()) {
+                            if (pacientesPorId.containsKey(e.getKey())) continue;
+                            r.sinPaciente += e.getValue();
+                            r.agregarEjemplo("paciente " + e.getKey() + " no existe (" + e.getValue() + " citas en disco)");
+                        }
+                        int[] registros = indiceCitas.registrosRepetidos();
+                        r.idsRepetidos += registros.length;
+                        for (int k = 0; k < registros.length && k < ReporteIntegridad.MAX_EJEMPLOS; k++) {
+                            Cita c = indiceCitas.leer(registros[k]);
+                            if (c != null) r.agregarEjemplo(c.getId() + ": id repetido (en disco)");
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException("Error leyendo citas.idx: " + e.getMessage());
+                    }
+                }
+
+                // 3) Cuarentena: primero se escribe cuarentena.csv y luego se reescriben las particiones
+                if (cuarentena && conProblemas.length > 0) {
+                    List<Cita> apartadas = new ArrayList<>(conProblemas.length);
+                    List<String> causas = new ArrayList<>(conProblemas.length);
+                    for (int f : conProblemas) {
+                        apartadas.add(almacen.get(f));
+                        causas.add(causaIntegridad(almacen, f, sinDoctor, sinPaciente));
+                        particionesModificadas.add(CsvStorage.particionDe(almacen.minutos(f)));
+                    }
+                    storage.agregarACuarentena(apartadas, causas);
+                    citas = almacen.sinFilas(conProblemas);
+                    citasModificadas = true;
+                    indexarCitas();
+                    snapshotAlDia = false;
+                    guardarModificados(false);
+                    r.enCuarentena = conProblemas.length;
                 }
+
+                integridadValidada = r.estaLimpio() || (r.enCuarentena > 0 && indiceCitas == null
+                        && r.doctoresRepetidos == 0 && r.pacientesRepetidos == 0);
+                r.duracionNanos = System.nanoTime() - inicio;
+                ok = true;
+                return r;
+            } finally {
+                Metricas.VALIDAR_INTEGRIDAD.fin(t0, ok);
+            }
+        }
+
+        /**
+         * Agrega a las filas repetidas (ordenadas) las de memoria cuyo id ya está en disco
+         * en una cita vigente (ver validarIntegridad).
+         */
+        private int[] conRepetidasEnDisco(AlmacenCitas almacen, int[] repetidas) {
+            int[] extra = new int[8];
+            int n = 0;
+            for (int f = 0; f < almacen.size(); f++) {
+                if (almacen.estaCancelada(f) || Arrays.binarySearch(repetidas, f) >= 0) continue;
+                int registro = registroEnDisco(almacen.id(f));
+                if (registro < 0 || canceladasEnDisco.containsKey(registro)) continue;
+                if (n == extra.length) extra = Arrays.copyOf(extra, n * 2);
+                extra[n++] = f;
+            }
+            if (n == 0) return repetidas;
+            return java.util.stream.IntStream.concat(Arrays.stream(repetidas), Arrays.stream(extra, 0, n))
+                    .sorted().toArray();
+        }
+
+        /** Causa por la que una fila no pasa la validación (la primera que aplique). */
+        private static String causaIntegridad(AlmacenCitas almacen, int fila, int[] sinDoctor, int[] sinPaciente) {
+            if (Arrays.binarySearch(sinDoctor, fila) >= 0) return "doctor " + almacen.doctorId(fila) + " no existe";
+            if (Arrays.binarySearch(sinPaciente, fila) >= 0) return "paciente " + almacen.pacienteId(fila) + " no existe";
+            return "id repetido";
+        }
+
+        /**
+         * buscarDoctorPorId()
+         * -------------------
+         * Busca un doctor por ID usando el índice en memoria (O(1)).
+         *
+         * @param id ID del doctor
+         * @return Doctor si existe, o null si no existe.
+         */
+        public Doctor buscarDoctorPorId(String id) {
+            return doctoresPorId.get(id);
+        }
+
+        /**
+         * buscarPacientePorId()
+         * ---------------------
+         * Busca un paciente por ID usando el índice en memoria (O(1)).
+         *
+         * @param id ID del paciente
+         * @return Paciente si existe, o null si no existe.
+         */
+        public Paciente buscarPacientePorId(String id) {
+            return pacientesPorId.get(id);
+        }
+
+        /**
+         * buscarCitaPorId()
+         * -----------------
+         * Busca una cita por ID usando el índice en memoria (O(1)). Un id "S1#3" que no es
+         * de una cita normal se busca como ocurrencia de serie (sin expandir la serie).
+         *
+         * @param id ID de la cita
+         * @return Cita si existe, o null si no existe.
+         */
+        public Cita buscarCitaPorId(String id) {
+            estado.readLock().lock();
+            try {
+                int fila = filaVigente(id);
+                if (fila != SIN_FILA) return citaDeFila(fila);
+                OcurrenciaSerie o = ocurrenciaVigente(id);
+                return o == null ? null : o.serie.ocurrencia(o.k);
+            } finally {
+                estado.readLock().unlock();
+            }
+        }
+
+        /**
+         * requireAdmin()
+         * --------------
+         * Método interno para proteger operaciones administrativas.
+         * Si la sesión no existe o no es de un ADMIN, lanza excepción.
+         *
+         * Esto simplifica el resto del código, porque solo llamas requireAdmin() al inicio.
+         *
+         * @param sesion sesión de quien hace la operación (puede ser null).
+         */
+        private void requireAdmin(Sesion sesion) {
+            if (sesion == null || !sesion.esAdmin()) {
+                throw new AccesoDenegado("Acceso denegado: se requiere ADMIN");
             }
-            parts.add(cur.toString());
-            return parts.toArray(new String[0]);
         }
     }
 
     // =======================
-    // SISTEMA
+    // SERVIDOR HTTP (OPCIONAL)
     // =======================
 
     /**
-     * CLASE Sistema
-     * -------------
-     * Es el “núcleo” del programa:
-     * - Mantiene en memoria las listas de doctores, pacientes y citas.
-     * - Tiene un UserManager para controlar acceso.
-     * - Usa CsvStorage para guardar/cargar datos.
+     * CLASE ServidorHttp
+     * ------------------
+     * API HTTP opcional sobre el mismo Sistema, para atender a varios usuarios a la vez
+     * (y poder medir carga real: peticiones por segundo, latencias, etc).
      *
-     * Reglas importantes:
-     * - Solo un ADMIN puede dar de alta doctores/pacientes y crear citas.
-     * - IDs no se deben repetir dentro de su propia entidad.
-     * - Al crear cita: doctorId y pacienteId deben existir.
+     * Usa el servidor HTTP que ya viene en el JDK (com.sun.net.httpserver), así que no
+     * necesita librerías externas. Cada petición se atiende en su propio hilo virtual si
+     * el JDK los tiene (Java 21+); si no, en un pool de hilos normal.
+     *
+     * Autenticación:
+     * - POST /login con usuario y contraseña por HTTP Basic regresa un token de sesión
+     *   (ver ServicioTokens); las demás peticiones lo mandan como "Authorization: Bearer <token>".
+     *   Así la contraseña se verifica (SHA-256) una vez por sesión y no en cada petición.
+     * - Por compatibilidad, cualquier petición puede seguir mandando HTTP Basic (más lento).
+     *
+     * Endpoints (parámetros por query string o body application/x-www-form-urlencoded):
+     * - POST /login                                         -> valida credenciales y emite token
+     * - POST /logout                                        -> invalida el token
+     * - POST /doctores   id, nombre, especialidad           -> alta de doctor
+     * - GET  /doctores   id                                 -> consulta un doctor
+     * - POST /pacientes  id, nombre                         -> alta de paciente
+     * - POST /citas      id, fechaHora, motivo, doctorId, pacienteId -> crea cita
+     * - GET  /pacientes  id                                 -> consulta un paciente
+     * - POST /citas/cancelar    id                          -> cancela una cita (o una ocurrencia, S1#3)
+     * - POST /citas/reprogramar id, fechaHora               -> cambia la fecha de una cita (o una ocurrencia)
+     * - GET  /citas      id                                 -> consulta una cita
+     * - GET  /citas      doctorId, desde, hasta             -> agenda del doctor en el rango
+     * - GET  /citas      pacienteId, [pagina, tamano]       -> historial del paciente, por páginas
+     * - GET  /citas      desde, hasta, [pagina, tamano]     -> citas de todos los doctores en el rango
+     * - POST /series     id, inicio, cadaDias, repeticiones, motivo, doctorId, pacienteId -> crea serie
+     * - GET  /series     pacienteId                         -> series del paciente (solo la regla)
+     * - GET  /series     desde, hasta, [doctorId]           -> ocurrencias de las series en el rango
+     * - POST /series/cancelar   id                          -> cancela una serie completa
+     * - GET  /huecos     especialidad, desde, [cuantos=5]    -> primeros turnos libres
+     * - POST /archivo    corte                              -> archiva las citas anteriores al corte
+     * - GET  /archivo    desde, hasta                       -> citas archivadas en el rango
+     *
+     * Respuestas en JSON. Datos rechazados (id repetido, empalme, etc.; DatoInvalido) regresan
+     * 400, credenciales inválidas 401, falta de permisos 403 (AccesoDenegado), registros
+     * inexistentes 404, un método equivocado en /login 405 y cualquier otro error 500.
+     *
+     * Por defecto escucha solo en la interfaz local (127.0.0.1); para otra dirección hay que
+     * pedirla explícitamente (en main, con --escuchar).
      */
-    static class Sistema {
-        private List<Doctor> doctores = new ArrayList<>();
-        private List<Paciente> pacientes = new ArrayList<>();
-        private List<Cita> citas = new ArrayList<>();
+    static class ServidorHttp {
+        private final Sistema sistema;
+        private final HttpServer server;
+        private final ExecutorService ejecutor;
+
+        /**
+         * CONSTRUCTOR ServidorHttp
+         * ------------------------
+         * Prepara el servidor en el puerto indicado de la interfaz local (todavía no lo arranca).
+         *
+         * @param sistema sistema ya cargado
+         * @param puerto puerto TCP donde escuchar
+         */
+        public ServidorHttp(Sistema sistema, int puerto) throws IOException {
+            this(sistema, InetAddress.getLoopbackAddress(), puerto);
+        }
+
+        /**
+         * CONSTRUCTOR ServidorHttp
+         * ------------------------
+         * Igual, pero escuchando en la dirección indicada (ej: 0.0.0.0 para todas las interfaces).
+         *
+         * @param sistema sistema ya cargado
+         * @param direccion dirección local donde escuchar
+         * @param puerto puerto TCP donde escuchar
+         */
+        public ServidorHttp(Sistema sistema, InetAddress direccion, int puerto) throws IOException {
+            this.sistema = sistema;
+            this.server = HttpServer.create(new InetSocketAddress(direccion, puerto), 0);
+            this.ejecutor = crearEjecutor();
+            server.setExecutor(ejecutor);
+
+            server.createContext("/login", ex -> atender(ex, this::login));
+            server.createContext("/logout", ex -> atender(ex, this::logout));
+            server.createContext("/doctores", ex -> atender(ex, this::doctores));
+            server.createContext("/pacientes", ex -> atender(ex, this::pacientes));
+            server.createContext("/citas", ex -> atender(ex, this::citas));
+            server.createContext("/citas/cancelar", ex -> atender(ex, this::cancelar));
+            server.createContext("/citas/reprogramar", ex -> atender(ex, this::reprogramar));
+            server.createContext("/series", ex -> atender(ex, this::series));
+            server.createContext("/series/cancelar", ex -> atender(ex, this::cancelarSerie));
+            server.createContext("/huecos", ex -> atender(ex, this::huecos));
+            server.createContext("/archivo", ex -> atender(ex, this::archivo));
+        }
+
+        /** Arranca el servidor (regresa de inmediato; atiende en otros hilos). */
+        public void iniciar() { server.start(); }
+
+        /** Detiene el servidor, esperando hasta 1 segundo a que terminen las peticiones en curso. */
+        public void detener() {
+            server.stop(1);
+            ejecutor.shutdown();
+        }
+
+        /** Puerto donde quedó escuchando (útil si se pidió el puerto 0). */
+        public int getPuerto() { return server.getAddress().getPort(); }
+
+        /**
+         * crearEjecutor()
+         * ---------------
+         * Usa un hilo virtual por petición si el JDK lo soporta (Java 21+).
+         * Se busca por reflexión para que el programa siga compilando y corriendo en Java 11/17,
+         * donde se usa un pool de hilos normal.
+         */
+        private static ExecutorService crearEjecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool();
+            }
+        }
+
+        // ---------- Manejadores ----------
+
+        /** Un manejador recibe la petición ya procesada y regresa el JSON de respuesta. */
+        private interface Manejador {
+            String manejar(Peticion p);
+        }
+
+        private String login(Peticion p) {
+            if (!p.esPost()) throw new MetodoNoPermitido("Usa POST para iniciar sesión");
+            String[] credenciales = p.credencialesBasic();
+            String token = sistema.emitirToken(credenciales[0], credenciales[1]);
+            if (token == null) throw new NoAutorizado("Acceso denegado");
+            Usuario u = sistema.sesionPorToken(token).getUsuario();
+            return "{\"usuario\":" + json(u.getUsername()) + ",\"rol\":" + json(u.getRol())
+                    + ",\"token\":" + json(token) + ",\"expiraEnSegundos\":" + ServicioTokens.DURACION_MILLIS / 1000 + "}";
+        }
+
+        private String logout(Peticion p) {
+            p.requerirSesion();
+            String token = p.tokenBearer();
+            if (token != null) sistema.revocarToken(token);
+            return "{}";
+        }
+
+        private String doctores(Peticion p) {
+            Sesion sesion = p.requerirSesion();
+            if (p.esPost()) {
+                Doctor d = new Doctor(p.requerido("id"), p.requerido("nombre"), p.requerido("especialidad"));
+                sistema.altaDoctor(sesion, d);
+                p.status = 201;
+                return json(d);
+            }
+            Doctor d = sistema.buscarDoctorPorId(p.requerido("id"));
+            if (d == null) throw new NoEncontrado("Doctor no existe");
+            return json(d);
+        }
+
+        private String pacientes(Peticion p) {
+            Sesion sesion = p.requerirSesion();
+            if (p.esPost()) {
+                Paciente pa = new Paciente(p.requerido("id"), p.requerido("nombre"));
+                sistema.altaPaciente(sesion, pa);
+                p.status = 201;
+                return json(pa);
+            }
+            Paciente pa = sistema.buscarPacientePorId(p.requerido("id"));
+            if (pa == null) throw new NoEncontrado("Paciente no existe");
+            return json(pa);
+        }
+
+        private String citas(Peticion p) {
+            Sesion sesion = p.requerirSesion();
+            if (p.esPost()) {
+                Cita c = sistema.crearCita(sesion, p.requerido("id"), p.requerido("fechaHora"),
+                        p.parametro("motivo", ""), p.requerido("doctorId"), p.requerido("pacienteId"));
+                p.status = 201;
+                return json(c);
+            }
+            String id = p.parametro("id", null);
+            if (id != null) {
+                Cita c = sistema.buscarCitaPorId(id);
+                if (c == null) throw new NoEncontrado("Cita no existe");
+                return json(c);
+            }
+            String pacienteId = p.parametro("pacienteId", null);
+            if (pacienteId != null) return json(pagina(p, sistema.citasDePaciente(pacienteId)));
+
+            LocalDateTime desde = fecha(p.requerido("desde"));
+            LocalDateTime hasta = fecha(p.requerido("hasta"));
+            String doctorId = p.parametro("doctorId", null);
+            if (doctorId == null) return json(pagina(p, sistema.citasEntre(desde, hasta)));
+
+            StringBuilder sb = new StringBuilder("[");
+            for (Cita c : sistema.citasDeDoctorEntre(doctorId, desde, hasta)) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append(json(c));
+            }
+            return sb.append(']').toString();
+        }
+
+        private String cancelar(Peticion p) {
+            Sesion sesion = p.requerirSesion();
+            if (!p.esPost()) throw new DatoInvalido("Usa POST para cancelar");
+            String id = p.requerido("id");
+            try {
+                return json(sistema.cancelarCita(sesion, id));
+            } catch (Sistema.CitaNoExiste e) {
+                throw new NoEncontrado(e.getMessage());
+            }
+        }
+
+        private String reprogramar(Peticion p) {
+            Sesion sesion = p.requerirSesion();
+            if (!p.esPost()) throw new DatoInvalido("Usa POST para reprogramar");
+            String id = p.requerido("id");
+            String fechaHora = p.requerido("fechaHora");
+            try {
+                return json(sistema.reprogramarCita(sesion, id, fechaHora));
+            } catch (Sistema.CitaNoExiste e) {
+                throw new NoEncontrado(e.getMessage());
+            }
+        }
 
-        private final UserManager userManager = new UserManager();
-        private final CsvStorage storage;
+        private String series(Peticion p) {
+            Sesion sesion = p.requerirSesion();
+            if (p.esPost()) {
+                int cadaDias;
+                int repeticiones;
+                try {
+                    cadaDias = Integer.parseInt(p.requerido("cadaDias"));
+                    repeticiones = Integer.parseInt(p.requerido("repeticiones"));
+                } catch (NumberFormatException e) {
+                    throw new DatoInvalido("cadaDias y repeticiones deben ser números");
+                }
+                SerieCitas s = sistema.crearSerie(sesion, p.requerido("id"), p.requerido("inicio"),
+                        cadaDias, repeticiones, p.parametro("motivo", ""), p.requerido("doctorId"), p.requerido("pacienteId"));
+                p.status = 201;
+                return json(s);
+            }
+            StringBuilder sb = new StringBuilder("[");
+            String pacienteId = p.parametro("pacienteId", null);
+            if (pacienteId != null) {
+                for (SerieCitas s : sistema.seriesDePaciente(pacienteId)) {
+                    if (sb.length() > 1) sb.append(',');
+                    sb.append(json(s));
+                }
+                return sb.append(']').toString();
+            }
+            LocalDateTime desde = fecha(p.requerido("desde"));
+            LocalDateTime hasta = fecha(p.requerido("hasta"));
+            String doctorId = p.parametro("doctorId", null);
+            List<Cita> ocurrencias = doctorId == null ? sistema.ocurrenciasEntre(desde, hasta)
+                    : sistema.ocurrenciasDeDoctorEntre(doctorId, desde, hasta);
+            for (Cita c : ocurrencias) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append(json(c));
+            }
+            return sb.append(']').toString();
+        }
 
-        /**
-         * CONSTRUCTOR Sistema
-         * -------------------
-         * Recibe la carpeta de “db” y crea el almacenamiento.
-         *
-         * @param folderPath carpeta donde viven los archivos CSV.
-         */
-        public Sistema(String folderPath) {
-            this.storage = new CsvStorage(folderPath);
+        private String cancelarSerie(Peticion p) {
+            Sesion sesion = p.requerirSesion();
+            if (!p.esPost()) throw new DatoInvalido("Usa POST para cancelar");
+            String id = p.requerido("id");
+            try {
+                return json(sistema.cancelarSerie(sesion, id));
+            } catch (Sistema.SerieNoExiste e) {
+                throw new NoEncontrado(e.getMessage());
+            }
         }
 
-        /**
-         * getUserManager()
-         * ----------------
-         * Permite acceder al control de usuarios desde main (para login o creación de admin por defecto).
-         *
-         * @return instancia de UserManager.
-         */
-        public UserManager getUserManager() { return userManager; }
+        /** Página pedida con los parámetros pagina (desde 0) y tamano (50 por defecto, máximo 500). */
+        private static PaginaCitas pagina(Peticion p, ConsultaCitas consulta) {
+            int numero;
+            int tamano;
+            try {
+                numero = Integer.parseInt(p.parametro("pagina", "0"));
+                tamano = Integer.parseInt(p.parametro("tamano", "50"));
+            } catch (NumberFormatException e) {
+                throw new DatoInvalido("pagina y tamano deben ser números");
+            }
+            return consulta.pagina(numero, Math.min(tamano, 500));
+        }
 
-        /**
-         * cargarTodo()
-         * ------------
-         * Carga TODA la información desde CSV hacia memoria:
-         * - doctores, pacientes, citas y usuarios.
-         *
-         * Nota:
-         * - Cuando se cargan usuarios, se reinicia el usuarioActual por seguridad.
-         */
-        public void cargarTodo() {
-            this.doctores = storage.cargarDoctores();
-            this.pacientes = storage.cargarPacientes();
-            this.citas = storage.cargarCitas();
-            this.userManager.setUsuarios(storage.cargarUsuarios());
+        private String huecos(Peticion p) {
+            p.requerirSesion();
+            int cuantos;
+            try {
+                cuantos = Integer.parseInt(p.parametro("cuantos", "5"));
+            } catch (NumberFormatException e) {
+                throw new DatoInvalido("cuantos debe ser un número");
+            }
+            StringBuilder sb = new StringBuilder("[");
+            for (Hueco h : sistema.buscarHuecos(p.requerido("especialidad"), fecha(p.requerido("desde")), Math.min(cuantos, 500))) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append("{\"inicio\":").append(json(h.getInicio().toString()))
+                        .append(",\"doctor\":").append(json(h.getDoctor())).append('}');
+            }
+            return sb.append(']').toString();
         }
 
-        /**
-         * guardarTodo()
-         * -------------
-         * Guarda TODA la información en CSV, sobrescribiendo los archivos con el estado actual.
-         */
-        public void guardarTodo() {
-            storage.guardarDoctores(doctores);
-            storage.guardarPacientes(pacientes);
-            storage.guardarCitas(citas);
-            storage.guardarUsuarios(userManager.getUsuarios());
+        private String archivo(Peticion p) {
+            Sesion sesion = p.requerirSesion();
+            if (p.esPost()) {
+                ResultadoArchivado r = sistema.archivarCitas(sesion, fecha(p.requerido("corte")));
+                return "{\"citas\":" + r.getCitas() + ",\"segmentos\":" + r.getSegmentos()
+                        + ",\"bytes\":" + r.getBytes() + "}";
+            }
+            StringBuilder sb = new StringBuilder("[");
+            for (Cita c : sistema.citasArchivadasEntre(fecha(p.requerido("desde")), fecha(p.requerido("hasta")))) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append(json(c));
+            }
+            return sb.append(']').toString();
         }
 
-        /**
-         * login()
-         * -------
-         * Atajo para llamar al UserManager.login().
-         *
-         * @param username usuario
-         * @param password contraseña
-         * @return true si login correcto.
-         */
-        public boolean login(String username, String password) {
-            return userManager.login(username, password);
+        private static LocalDateTime fecha(String texto) {
+            LocalDateTime t = parsearFechaHora(texto);
+            if (t == null) throw new DatoInvalido("Fecha inválida: " + texto);
+            return t;
         }
 
+        // ---------- Infraestructura ----------
+
         /**
-         * altaDoctor()
-         * ------------
-         * Registra un doctor nuevo en el sistema.
-         *
-         * Validaciones:
-         * - Debe ser ADMIN (requireAdmin).
-         * - El ID del doctor no puede repetirse.
-         *
-         * @param d Doctor a registrar.
+         * atender()
+         * ---------
+         * Lee la petición, llama al manejador y escribe la respuesta JSON con el código
+         * HTTP que corresponda según el resultado o el TIPO de excepción: NoAutorizado 401,
+         * AccesoDenegado 403, NoEncontrado 404, MetodoNoPermitido 405, DatoInvalido 400 y
+         * cualquier otra 500.
          */
-        public void altaDoctor(Doctor d) {
-            requireAdmin();
+        private void atender(HttpExchange ex, Manejador manejador) throws IOException {
+            int status;
+            String cuerpo;
+            try {
+                Peticion p = new Peticion(ex);
+                if (!p.esPost() && !"GET".equals(ex.getRequestMethod())) {
+                    status = 405;
+                    cuerpo = error("Método no permitido");
+                } else {
+                    cuerpo = manejador.manejar(p);
+                    status = p.status;
+                }
+            } catch (NoAutorizado e) {
+                status = 401;
+                cuerpo = error(e.getMessage());
+                ex.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"citas\"");
+            } catch (AccesoDenegado e) {
+                status = 403;
+                cuerpo = error(e.getMessage());
+            } catch (NoEncontrado e) {
+                status = 404;
+                cuerpo = error(e.getMessage());
+            } catch (MetodoNoPermitido e) {
+                status = 405;
+                cuerpo = error(e.getMessage());
+            } catch (DatoInvalido e) {
+                status = 400;
+                cuerpo = error(e.getMessage());
+            } catch (RuntimeException e) {
+                // No es culpa de la petición (disco, archivo dañado, bug): 500, con el detalle en la consola
+                System.err.println("Error atendiendo " + ex.getRequestMethod() + " " + ex.getRequestURI() + ": " + e);
+                status = 500;
+                cuerpo = error("Error interno: " + e.getMessage());
+            }
 
-            if (buscarDoctorPorId(d.getId()) != null) {
-                throw new RuntimeException("Doctor con id repetido");
+            byte[] bytes = cuerpo.getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            ex.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(bytes);
             }
-            doctores.add(d);
         }
 
         /**
-         * altaPaciente()
+         * CLASE Peticion
          * --------------
-         * Registra un paciente nuevo en el sistema.
-         *
-         * Validaciones:
-         * - Debe ser ADMIN.
-         * - El ID del paciente no puede repetirse.
-         *
-         * @param p Paciente a registrar.
+         * Datos ya procesados de una petición: método, parámetros y credenciales.
          */
-        public void altaPaciente(Paciente p) {
-            requireAdmin();
+        private class Peticion {
+            private final HttpExchange ex;
+            private final Map<String, String> params = new HashMap<>();
+            private int status = 200;
 
-            if (buscarPacientePorId(p.getId()) != null) {
-                throw new RuntimeException("Paciente con id repetido");
+            Peticion(HttpExchange ex) throws IOException {
+                this.ex = ex;
+                leerParametros(ex.getRequestURI().getRawQuery());
+                if (esPost()) {
+                    try (InputStream in = ex.getRequestBody()) {
+                        leerParametros(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                    }
+                }
             }
-            pacientes.add(p);
-        }
 
-        /**
-         * crearCita()
-         * -----------
-         * Crea una cita nueva y la agrega al sistema.
-         *
-         * Validaciones:
-         * - Debe ser ADMIN.
-         * - ID de cita no se repite.
-         * - doctorId existe en doctores.
-         * - pacienteId existe en pacientes.
-         *
-         * @param id ID único de la cita
-         * @param fechaHora FechaHora en texto
-         * @param motivo Motivo en texto
-         * @param doctorId ID de doctor
-         * @param pacienteId ID de paciente
-         * @return La cita creada (por si se quiere imprimir info)
-         */
-        public Cita crearCita(String id, String fechaHora, String motivo, String doctorId, String pacienteId) {
-            requireAdmin();
+            boolean esPost() { return "POST".equals(ex.getRequestMethod()); }
+
+            String parametro(String nombre, String porDefecto) {
+                return params.getOrDefault(nombre, porDefecto);
+            }
 
-            for (Cita c : citas) {
-                if (c.getId().equals(id)) {
-                    throw new RuntimeException("Cita con id repetido");
+            String requerido(String nombre) {
+                String v = params.get(nombre);
+                if (v == null || v.isEmpty()) throw new DatoInvalido("Falta el parámetro " + nombre);
+                return v;
+            }
+
+            /**
+             * requerirSesion()
+             * ----------------
+             * Regresa la sesión de la petición: la del token Bearer (sin calcular hashes) o,
+             * si manda HTTP Basic, verificando usuario y contraseña.
+             */
+            Sesion requerirSesion() {
+                String token = tokenBearer();
+                if (token != null) {
+                    Sesion s = sistema.sesionPorToken(token);
+                    if (s == null) throw new NoAutorizado("Token inválido o vencido");
+                    return s;
                 }
+                String[] credenciales = credencialesBasic();
+                Sesion s = sistema.iniciarSesion(credenciales[0], credenciales[1]);
+                if (s == null) throw new NoAutorizado("Acceso denegado");
+                return s;
             }
 
-            if (buscarDoctorPorId(doctorId) == null) {
-                throw new RuntimeException("Doctor no existe");
+            /** Token del header "Authorization: Bearer <token>", o null si no viene. */
+            String tokenBearer() {
+                String auth = ex.getRequestHeaders().getFirst("Authorization");
+                if (auth == null || !auth.startsWith("Bearer ")) return null;
+                return auth.substring(7).trim();
             }
-            if (buscarPacientePorId(pacienteId) == null) {
-                throw new RuntimeException("Paciente no existe");
+
+            /** Usuario y contraseña del header HTTP Basic: {usuario, contraseña}. */
+            String[] credencialesBasic() {
+                String auth = ex.getRequestHeaders().getFirst("Authorization");
+                if (auth == null || !auth.startsWith("Basic ")) throw new NoAutorizado("Faltan credenciales");
+                String datos;
+                try {
+                    datos = new String(Base64.getDecoder().decode(auth.substring(6).trim()), StandardCharsets.UTF_8);
+                } catch (IllegalArgumentException e) {
+                    throw new NoAutorizado("Credenciales mal formadas");
+                }
+                int dosPuntos = datos.indexOf(':');
+                if (dosPuntos < 0) throw new NoAutorizado("Credenciales mal formadas");
+                return new String[] { datos.substring(0, dosPuntos), datos.substring(dosPuntos + 1) };
             }
 
-            Cita nueva = new Cita(id, fechaHora, motivo, doctorId, pacienteId);
-            citas.add(nueva);
-            return nueva;
+            private void leerParametros(String texto) {
+                if (texto == null || texto.isEmpty()) return;
+                for (String par : texto.split("&")) {
+                    int igual = par.indexOf('=');
+                    if (igual <= 0) continue;
+                    params.put(URLDecoder.decode(par.substring(0, igual), StandardCharsets.UTF_8),
+                            URLDecoder.decode(par.substring(igual + 1), StandardCharsets.UTF_8));
+                }
+            }
         }
 
-        /**
-         * buscarDoctorPorId()
-         * -------------------
-         * Busca un doctor por ID dentro de la lista en memoria.
-         *
-         * @param id ID del doctor
-         * @return Doctor si existe, o null si no existe.
-         */
-        public Doctor buscarDoctorPorId(String id) {
-            for (Doctor d : doctores) {
-                if (d.getId().equals(id)) return d;
-            }
-            return null;
+        /** Credenciales ausentes o incorrectas (HTTP 401). */
+        private static class NoAutorizado extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            NoAutorizado(String msg) { super(msg); }
         }
 
-        /**
-         * buscarPacientePorId()
-         * ---------------------
-         * Busca un paciente por ID dentro de la lista en memoria.
-         *
-         * @param id ID del paciente
-         * @return Paciente si existe, o null si no existe.
-         */
-        public Paciente buscarPacientePorId(String id) {
-            for (Paciente p : pacientes) {
-                if (p.getId().equals(id)) return p;
+        /** El endpoint no acepta ese método (HTTP 405). */
+        private static class MetodoNoPermitido extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            MetodoNoPermitido(String msg) { super(msg); }
+        }
+
+        /** El registro pedido no existe (HTTP 404). */
+        private static class NoEncontrado extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            NoEncontrado(String msg) { super(msg); }
+        }
+
+        // ---------- JSON ----------
+
+        private static String json(Doctor d) {
+            return "{\"id\":" + json(d.getId()) + ",\"nombre\":" + json(d.getNombreCompleto())
+                    + ",\"especialidad\":" + json(d.getEspecialidad()) + "}";
+        }
+
+        private static String json(PaginaCitas pagina) {
+            StringBuilder sb = new StringBuilder("{\"pagina\":").append(pagina.getNumero())
+                    .append(",\"hayMas\":").append(pagina.hayMas()).append(",\"citas\":[");
+            for (int i = 0; i < pagina.getCitas().size(); i++) {
+                if (i > 0) sb.append(',');
+                sb.append(json(pagina.getCitas().get(i)));
             }
-            return null;
+            return sb.append("]}").toString();
+        }
+
+        private static String json(Paciente p) {
+            return "{\"id\":" + json(p.getId()) + ",\"nombre\":" + json(p.getNombreCompleto()) + "}";
+        }
+
+        private static String json(Cita c) {
+            return "{\"id\":" + json(c.getId()) + ",\"fechaHora\":" + json(c.getFechaHora())
+                    + ",\"motivo\":" + json(c.getMotivo()) + ",\"doctorId\":" + json(c.getDoctorId())
+                    + ",\"pacienteId\":" + json(c.getPacienteId()) + "}";
+        }
+
+        private static String json(SerieCitas s) {
+            return "{\"id\":" + json(s.getId()) + ",\"inicio\":" + json(s.getInicio())
+                    + ",\"cadaDias\":" + s.getCadaDias() + ",\"repeticiones\":" + s.getRepeticiones()
+                    + ",\"motivo\":" + json(s.getMotivo()) + ",\"doctorId\":" + json(s.getDoctorId())
+                    + ",\"pacienteId\":" + json(s.getPacienteId()) + ",\"excepciones\":" + json(s.excepcionesTexto()) + "}";
+        }
+
+        private static String error(String mensaje) {
+            return "{\"error\":" + json(mensaje) + "}";
         }
 
         /**
-         * requireAdmin()
-         * --------------
-         * Método interno para proteger operaciones administrativas.
-         * Si no hay un ADMIN logueado, lanza excepción.
-         *
-         * Esto simplifica el resto del código, porque solo llamas requireAdmin() al inicio.
+         * json()
+         * ------
+         * Convierte un texto a string JSON (con comillas y escapes).
          */
-        private void requireAdmin() {
-            if (!userManager.esAdmin()) {
-                throw new RuntimeException("Acceso denegado: se requiere ADMIN");
+        private static String json(String s) {
+            if (s == null) return "null";
+            StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                switch (ch) {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if (ch < 0x20) sb.append(String.format("\\u%04x", (int) ch));
+                        else sb.append(ch);
+                }
             }
+            return sb.append('"').toString();
         }
     }
 
@@ -1000,21 +10054,86 @@ public class Main {
      * 3) Pide login.
      * 4) Si el usuario es admin, muestra menú en loop.
      * 5) Permite crear doctores, pacientes, citas, guardar y salir.
+     *
+     * Argumentos opcionales:
+     * - --journal        : cada alta se guarda al momento en journal.csv (ver Sistema).
+     * - --lazy [agendas] : no carga todas las citas; arma la agenda de cada doctor desde
+     *                      citas.idx al usarla (ver Sistema; 256 agendas en caché por defecto).
+     * - --metricas [seg] : mide las operaciones principales y las publica por JMX (ver Metricas);
+     *                      con segundos, además escribe un resumen a db/metricas.log cada ese tiempo.
+     * - --server [puerto]: en vez del menú, levanta la API HTTP (ver ServidorHttp; puerto 8080 por defecto),
+     *                      solo en 127.0.0.1.
+     * - --escuchar dir   : con --server, escucha en esa dirección (ej: 0.0.0.0) en vez de solo en la
+     *                      interfaz local; avisa si admin sigue con la contraseña por defecto.
+     * - --cuarentena     : al cargar, mueve a db/cuarentena.csv las citas cuyo doctor o paciente
+     *                      no existe o cuyo id se repite (sin esto solo se avisa).
+     * - --migrar         : antes de cargar, agrega el trailer a los CSV de versiones anteriores
+     *                      (sin esto, un CSV sin trailer se rechaza).
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         Scanner sc = new Scanner(System.in);
+        List<String> opciones = Arrays.asList(args);
 
         // Carpeta "db" donde se guardan los CSV (si no existe, se crea)
         Sistema sistema = new Sistema("db");
+        sistema.setModoJournal(opciones.contains("--journal"));
+        int iMetricas = opciones.indexOf("--metricas");
+        if (iMetricas >= 0) {
+            Metricas.activar();
+            if (iMetricas + 1 < args.length && args[iMetricas + 1].matches("\\d+")) {
+                Metricas.volcarCada(new File("db", "metricas.log"), Long.parseLong(args[iMetricas + 1]));
+            }
+        }
+        int iLazy = opciones.indexOf("--lazy");
+        if (iLazy >= 0) {
+            int agendas = 256;
+            if (iLazy + 1 < args.length && args[iLazy + 1].matches("\\d+")) agendas = Integer.parseInt(args[iLazy + 1]);
+            sistema.setCargaPerezosa(agendas);
+        }
+        sistema.setCuarentenaAlCargar(opciones.contains("--cuarentena"));
+        if (opciones.contains("--migrar")) {
+            System.out.println("CSV migrados (se les agregó el trailer): " + sistema.migrarSinTrailer());
+        }
         sistema.cargarTodo();
+        if (!sistema.getReporteIntegridad().estaLimpio()) System.out.println(sistema.getReporteIntegridad());
 
         // Si es la primera vez que se ejecuta y no hay usuarios, creamos admin por defecto
         if (sistema.getUserManager().getUsuarios().isEmpty()) {
-            sistema.getUserManager().registrarAdmin("A1", "admin", "admin123");
+            sistema.registrarAdmin("A1", "admin", "admin123");
             sistema.guardarTodo();
             System.out.println("Se creó admin por defecto: usuario=admin, password=admin123");
         }
 
+        // Modo servidor: no hay menú; se guarda al cerrar el proceso (Ctrl+C)
+        int iServer = opciones.indexOf("--server");
+        if (iServer >= 0) {
+            int puerto = 8080;
+            if (iServer + 1 < args.length && args[iServer + 1].matches("\\d+")) puerto = Integer.parseInt(args[iServer + 1]);
+
+            InetAddress direccion = InetAddress.getLoopbackAddress();
+            int iEscuchar = opciones.indexOf("--escuchar");
+            if (iEscuchar >= 0) {
+                if (iEscuchar + 1 >= args.length) {
+                    System.out.println("Falta la dirección después de --escuchar");
+                    return;
+                }
+                direccion = InetAddress.getByName(args[iEscuchar + 1]);
+            }
+            if (!direccion.isLoopbackAddress() && sistema.iniciarSesion("admin", "admin123") != null) {
+                System.out.println("AVISO: la API queda expuesta en " + direccion.getHostAddress()
+                        + " y admin todavía tiene la contraseña por defecto (admin123)");
+            }
+
+            ServidorHttp servidor = new ServidorHttp(sistema, direccion, puerto);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                servidor.detener();
+                sistema.guardarTodo();
+            }));
+            servidor.iniciar();
+            System.out.println("API HTTP escuchando en " + direccion.getHostAddress() + ":" + servidor.getPuerto() + " (Ctrl+C para salir)");
+            return;
+        }
+
         // Login
         System.out.println("=== Login ===");
         System.out.print("Usuario: ");
@@ -1042,6 +10161,14 @@ public class Main {
             System.out.println("3) Crear Cita");
             System.out.println("4) Guardar");
             System.out.println("5) Salir");
+            System.out.println("6) Importar citas desde archivo");
+            System.out.println("7) Buscar horarios libres por especialidad");
+            System.out.println("8) Archivar citas anteriores a una fecha");
+            System.out.println("9) Consultar citas archivadas");
+            System.out.println("10) Cancelar cita");
+            System.out.println("11) Reprogramar cita");
+            System.out.println("12) Crear serie de citas (se repite cada N días)");
+            System.out.println("13) Cancelar serie de citas");
             System.out.print("Opción: ");
 
             int opcion = readInt(sc);
@@ -1089,7 +10216,7 @@ public class Main {
                     case 3: {
                         System.out.print("ID Cita: ");
                         String id = sc.nextLine().trim();
-                        System.out.print("FechaHora (ISO-8601 recomendado): ");
+                        System.out.print("FechaHora (ISO-8601, ej: 2026-02-08T10:30): ");
                         String fechaHora = sc.nextLine().trim();
                         System.out.print("Motivo: ");
                         String motivo = sc.nextLine().trim();
@@ -1108,7 +10235,7 @@ public class Main {
                      * Fuerza el guardado de todo a archivos CSV.
                      */
                     case 4:
-                        sistema.guardarTodo();
+                        System.out.println(sistema.guardarTodo());
                         System.out.println("Datos guardados en CSV");
                         break;
 
@@ -1121,6 +10248,143 @@ public class Main {
                         System.out.println("Saliendo...");
                         return;
 
+                    /**
+                     * Opción 6: Importar citas
+                     * Lee un archivo con el formato de citas.csv; las filas inválidas
+                     * se escriben en <archivo>.rechazos.csv con el motivo.
+                     */
+                    case 6: {
+                        System.out.print("Archivo a importar: ");
+                        String archivo = sc.nextLine().trim();
+                        String rechazos = archivo + ".rechazos.csv";
+
+                        ResultadoImportacion r = sistema.importarCitas(archivo, rechazos);
+                        System.out.println(r);
+                        if (r.getRechazadas() > 0) System.out.println("Rechazos en: " + rechazos);
+                        break;
+                    }
+
+                    /**
+                     * Opción 7: Buscar horarios libres
+                     * Muestra los primeros turnos libres con cualquier doctor de la especialidad.
+                     */
+                    case 7: {
+                        System.out.print("Especialidad: ");
+                        String esp = sc.nextLine().trim();
+                        System.out.print("Desde (ISO-8601, ej: 2026-02-09T09:00): ");
+                        LocalDateTime desde = parsearFechaHora(sc.nextLine().trim());
+                        if (desde == null) {
+                            System.out.println("FechaHora inválida");
+                            break;
+                        }
+
+                        List<Hueco> huecos = sistema.buscarHuecos(esp, desde, 5);
+                        if (huecos.isEmpty()) {
+                            System.out.println(sistema.hayDoctoresDe(esp)
+                                    ? "No hay turnos libres en los próximos " + Sistema.DIAS_BUSQUEDA_HUECOS + " días"
+                                    : "No hay doctores de esa especialidad");
+                        }
+                        for (Hueco h : huecos) System.out.println(h);
+                        break;
+                    }
+
+                    /**
+                     * Opción 8: Archivar citas pasadas
+                     * Mueve las citas anteriores al corte a los segmentos comprimidos del archivo.
+                     */
+                    case 8: {
+                        System.out.print("Archivar citas antes de (ISO-8601, ej: 2026-01-01T00:00): ");
+                        LocalDateTime corte = parsearFechaHora(sc.nextLine().trim());
+                        if (corte == null) {
+                            System.out.println("FechaHora inválida");
+                            break;
+                        }
+                        System.out.println(sistema.archivarCitas(corte));
+                        break;
+                    }
+
+                    /**
+                     * Opción 9: Consultar citas archivadas
+                     * Muestra las citas del archivo en un rango de fechas.
+                     */
+                    case 9: {
+                        System.out.print("Desde (ISO-8601): ");
+                        LocalDateTime desde = parsearFechaHora(sc.nextLine().trim());
+                        System.out.print("Hasta (ISO-8601): ");
+                        LocalDateTime hasta = parsearFechaHora(sc.nextLine().trim());
+                        if (desde == null || hasta == null) {
+                            System.out.println("FechaHora inválida");
+                            break;
+                        }
+                        List<Cita> archivadas = sistema.citasArchivadasEntre(desde, hasta);
+                        for (Cita c : archivadas) {
+                            System.out.println(c.getId() + " " + c.getFechaHora() + " doctor=" + c.getDoctorId()
+                                    + " paciente=" + c.getPacienteId() + " " + c.getMotivo());
+                        }
+                        System.out.println(archivadas.size() + " citas archivadas");
+                        break;
+                    }
+
+                    /**
+                     * Opción 10: Cancelar cita
+                     * Libera el turno al momento; la cita sale de los CSV en el siguiente guardado.
+                     */
+                    case 10: {
+                        System.out.print("ID Cita: ");
+                        Cita cita = sistema.cancelarCita(sc.nextLine().trim());
+                        System.out.println("Cita cancelada: " + cita.getId() + " (" + cita.getFechaHora() + ")");
+                        break;
+                    }
+
+                    /**
+                     * Opción 11: Reprogramar cita
+                     * Cambia la fecha y hora de una cita (mismo doctor y paciente).
+                     */
+                    case 11: {
+                        System.out.print("ID Cita: ");
+                        String id = sc.nextLine().trim();
+                        System.out.print("Nueva FechaHora (ISO-8601, ej: 2026-02-08T10:30): ");
+                        Cita cita = sistema.reprogramarCita(id, sc.nextLine().trim());
+                        System.out.println("Cita reprogramada: " + cita.getId() + " -> " + cita.getFechaHora());
+                        break;
+                    }
+
+                    /**
+                     * Opción 12: Crear serie de citas
+                     * Guarda solo la regla; las citas de la serie se calculan al consultar.
+                     */
+                    case 12: {
+                        System.out.print("ID Serie: ");
+                        String id = sc.nextLine().trim();
+                        System.out.print("Primera cita (ISO-8601, ej: 2026-02-08T10:30): ");
+                        String inicio = sc.nextLine().trim();
+                        System.out.print("Cada cuántos días: ");
+                        int cadaDias = readInt(sc);
+                        System.out.print("Cuántas citas: ");
+                        int repeticiones = readInt(sc);
+                        System.out.print("Motivo: ");
+                        String motivo = sc.nextLine().trim();
+                        System.out.print("DoctorId: ");
+                        String doctorId = sc.nextLine().trim();
+                        System.out.print("PacienteId: ");
+                        String pacienteId = sc.nextLine().trim();
+
+                        SerieCitas serie = sistema.crearSerie(id, inicio, cadaDias, repeticiones, motivo, doctorId, pacienteId);
+                        System.out.println("Serie creada: " + serie.getId() + " (" + serie.getRepeticiones() + " citas)");
+                        break;
+                    }
+
+                    /**
+                     * Opción 13: Cancelar serie de citas
+                     * Libera los turnos de todas sus citas (una sola se cancela con la opción 10, ej: S1#3).
+                     */
+                    case 13: {
+                        System.out.print("ID Serie: ");
+                        SerieCitas serie = sistema.cancelarSerie(sc.nextLine().trim());
+                        System.out.println("Serie cancelada: " + serie.getId());
+                        break;
+                    }
+
                     /**
                      * Si el usuario mete un número no válido del menú.
                      */
@@ -1163,6 +10427,64 @@ public class Main {
         }
     }
 
+    /**
+     * parsearFechaHora()
+     * ------------------
+     * Convierte el texto de fechaHora de una cita a LocalDateTime.
+     *
+     * Acepta ISO-8601 ("2026-02-08T10:30") y también la variante con espacio
+     * ("2026-02-08 10:30"), que es como la suele escribir la gente en consola.
+     *
+     * El formato más común (exactamente "aaaa-MM-ddTHH:mm") se interpreta a mano, sin
+     * DateTimeFormatter, porque esto se llama por cada cita al cargar o importar.
+     *
+     * Los años fuera de [0, 9999] (que LocalDateTime.parse acepta con signo, ej:
+     * "+10000-01-01T00:00") se rechazan: no caben en el nombre de una partición (yyyy-MM).
+     *
+     * @param texto fecha y hora en texto
+     * @return LocalDateTime, o null si el texto no es una fecha válida.
+     */
+    static LocalDateTime parsearFechaHora(String texto) {
+        if (texto == null) return null;
+        String t = texto.trim();
+        if (t.length() > 10 && t.charAt(10) == ' ') t = t.substring(0, 10) + 'T' + t.substring(11);
+
+        if (t.length() == 16 && t.charAt(4) == '-' && t.charAt(7) == '-' && t.charAt(10) == 'T' && t.charAt(13) == ':') {
+            int anio = digitos(t, 0, 4), mes = digitos(t, 5, 7), dia = digitos(t, 8, 10);
+            int hora = digitos(t, 11, 13), minuto = digitos(t, 14, 16);
+            if ((anio | mes | dia | hora | minuto) >= 0) {
+                try {
+                    return LocalDateTime.of(anio, mes, dia, hora, minuto);
+                } catch (java.time.DateTimeException e) {
+                    return null;
+                }
+            }
+        }
+        try {
+            LocalDateTime r = LocalDateTime.parse(t);
+            return r.getYear() < 0 || r.getYear() > 9999 ? null : r;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * digitos()
+     * ---------
+     * Convierte los caracteres [desde, hasta) de s a número.
+     *
+     * @return el número, o -1 si algún carácter no es dígito.
+     */
+    private static int digitos(String s, int desde, int hasta) {
+        int n = 0;
+        for (int i = desde; i < hasta; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
     /**
      * sha256()
      * --------
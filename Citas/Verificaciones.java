@@ -0,0 +1,297 @@
+package Citas;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * PROGRAMA: Verificaciones del sistema de citas
+ * ---------------------------------------------
+ * Revisiones rápidas de correctitud (no de rendimiento) sobre datos fijos en una carpeta
+ * temporal (no toca la carpeta "db"):
+ * - Snapshot: guardar con una cita cancelada y volver a cargar conserva usuarios y citas.
+ * - Ventana de fechas: cargarCitasEntre da lo mismo que filtrar la carga completa y no
+ *   abre las particiones de otros meses.
+ * - Carga secuencial y paralela: sobre la misma partición (con escapes, una cita cancelada
+ *   y una línea mal formada) dan exactamente las mismas citas en el mismo orden.
+ * - Guardar y recargar: doctores, pacientes, citas y series vuelven iguales, tanto desde
+ *   snapshot.bin como desde los CSV.
+ *
+ * Cómo se ejecuta (desde la carpeta que contiene "Citas"):
+ *   javac -encoding UTF-8 -d out Citas/*.java
+ *   java -cp out Citas.Verificaciones
+ *
+ * Imprime "ok" o "FALLA" por cada verificación y termina con código 1 si alguna falló.
+ */
+public class Verificaciones {
+
+    /** Verificaciones que fallaron. */
+    static int fallas = 0;
+
+    /**
+     * INTERFAZ Verificacion
+     * ---------------------
+     * Una revisión; lanza AssertionError (ver comprobar) o cualquier excepción si falla.
+     */
+    interface Verificacion {
+        void ejecutar(File carpeta) throws Exception;
+    }
+
+    /**
+     * main()
+     * ------
+     * Corre todas las verificaciones, cada una en su propia carpeta temporal.
+     */
+    public static void main(String[] args) throws Exception {
+        File carpeta = Files.createTempDirectory("citas-verif").toFile();
+        try {
+            verificar(carpeta, "snapshotConCancelada", Verificaciones::snapshotConCancelada);
+            verificar(carpeta, "cargaPorVentana", Verificaciones::cargaPorVentana);
+            verificar(carpeta, "cargaSecuencialYParalela", Verificaciones::cargaSecuencialYParalela);
+            verificar(carpeta, "guardarYRecargar", Verificaciones::guardarYRecargar);
+        } finally {
+            borrar(carpeta);
+        }
+        System.out.println(fallas == 0 ? "Todas las verificaciones pasaron" : fallas + " verificaciones fallaron");
+        if (fallas > 0) System.exit(1);
+    }
+
+    // =======================
+    // VERIFICACIONES
+    // =======================
+
+    /**
+     * snapshotConCancelada()
+     * ----------------------
+     * Guarda con una cita cancelada que todavía no se compacta: el snapshot no debe llevar
+     * las posiciones sobrantes de la cancelada (antes se leían como la cantidad de usuarios).
+     * Al volver a cargar siguen el usuario, su contraseña y las citas vigentes.
+     */
+    static void snapshotConCancelada(File carpeta) {
+        // 20 citas y una cancelada: menos de 1/FRACCION_CANCELADAS, así que no se compacta
+        Main.Sistema sistema = sistemaConDatos(carpeta);
+        for (int i = 0; i < 20; i++) {
+            sistema.crearCita("C" + i, Benchmarks.horario(i), Benchmarks.MOTIVOS[i % Benchmarks.MOTIVOS.length], "D1", "P1");
+        }
+        sistema.cancelarCita("C7");
+        sistema.guardarTodo();
+
+        Main.Snapshot snap = new Main.CsvStorage(carpeta.getPath()).cargarSnapshot();
+        comprobar(snap != null, "el snapshot es vigente después de guardarTodo");
+        comprobar(snap.usuarios.size() == 1, "el snapshot trae 1 usuario, trae " + snap.usuarios.size());
+        comprobar(snap.citas.size() == 19, "el snapshot trae 19 citas, trae " + snap.citas.size());
+
+        Main.Sistema otro = new Main.Sistema(carpeta.getPath());
+        otro.cargarTodo();
+        comprobar(otro.login("admin", "clave-verif"), "login con la contraseña guardada");
+        comprobar(otro.buscarCitaPorId("C0") != null && otro.buscarCitaPorId("C19") != null, "siguen C0 y C19");
+        comprobar(otro.buscarCitaPorId("C7") == null, "C7 sigue cancelada");
+    }
+
+    /**
+     * cargaPorVentana()
+     * -----------------
+     * Citas de tres meses (una justo en el límite de la ventana): cargarCitasEntre de un mes
+     * regresa exactamente las citas de la carga completa con fecha en [desde, hasta), en el
+     * mismo orden. Para comprobar que las otras particiones no se abren, una de ellas se
+     * daña antes de cargar la ventana.
+     */
+    static void cargaPorVentana(File carpeta) throws Exception {
+        Main.CsvStorage st = new Main.CsvStorage(carpeta.getPath());
+        List<Main.Cita> citas = new ArrayList<>();
+        citas.add(new Main.Cita("C1", "2026-01-31T23:30", "Consulta", "D1", "P1"));
+        citas.add(new Main.Cita("C2", "2026-02-01T00:00", "Revisión; seguimiento", "D1", "P1"));
+        citas.add(new Main.Cita("C3", "2026-02-14T10:00", "Dolor\nrecurrente", "D2", "P2"));
+        citas.add(new Main.Cita("C4", "2026-02-28T23:59", "Consulta", "D1", "P2"));
+        citas.add(new Main.Cita("C5", "2026-03-01T00:00", "Consulta", "D2", "P1"));
+        citas.add(new Main.Cita("C6", "sin fecha", "Consulta", "D2", "P1"));
+        st.guardarCitas(citas);
+
+        java.time.LocalDateTime desde = java.time.LocalDateTime.of(2026, 2, 1, 0, 0);
+        java.time.LocalDateTime hasta = desde.plusMonths(1);
+        List<String> esperadas = new ArrayList<>();
+        for (Main.Cita c : st.cargarCitas()) {
+            java.time.LocalDateTime t = Main.parsearFechaHora(c.getFechaHora());
+            if (t != null && !t.isBefore(desde) && t.isBefore(hasta)) esperadas.add(texto(c));
+        }
+        comprobar(esperadas.size() == 3, "febrero tiene 3 citas, tiene " + esperadas.size());
+
+        Files.write(new File(carpeta, "citas-2026-03.csv").toPath(), "dañado".getBytes("UTF-8"));
+        List<String> ventana = new ArrayList<>();
+        for (Main.Cita c : st.cargarCitasEntre(desde, hasta)) ventana.add(texto(c));
+        comprobar(ventana.equals(esperadas), "la ventana da " + ventana + ", se esperaba " + esperadas);
+    }
+
+    /**
+     * cargaSecuencialYParalela()
+     * --------------------------
+     * Una partición de más de dos pedazos (TAMANO_MINIMO_PEDAZO) con motivos que llevan
+     * ';', comillas, '\' y saltos de línea; se cancela una cita y se guarda con Sistema, y
+     * luego se mete a mano una línea con menos de 5 campos (con su trailer corregido).
+     * cargarCitas() (secuencial, la partición está bajo UMBRAL_CARGA_PARALELA) y
+     * cargarCitasParalelo() deben dar la misma lista.
+     */
+    static void cargaSecuencialYParalela(File carpeta) throws Exception {
+        Main.CsvStorage st = new Main.CsvStorage(carpeta.getPath());
+        LocalDateTime inicio = LocalDateTime.of(2026, 2, 1, 0, 0);
+        List<Main.Cita> citas = new ArrayList<>();
+        for (int i = 0; i < 60_000; i++) {
+            // Febrero tiene 40,320 minutos: algunas se repiten de minuto, da igual para cargar
+            citas.add(new Main.Cita("C" + i, inicio.plusMinutes(i % 40_000).toString(), MOTIVOS_ESCAPADOS[i % MOTIVOS_ESCAPADOS.length],
+                    "D1", "P1"));
+        }
+        st.guardarCitas(citas);
+
+        Main.Sistema sistema = sistemaConDatos(carpeta);
+        sistema.cancelarCita("C7");
+        sistema.guardarTodo();
+
+        File febrero = new File(carpeta, "citas-2026-02.csv");
+        comprobar(febrero.length() > 2 * Main.CsvStorage.TAMANO_MINIMO_PEDAZO,
+                "la partición alcanza para varios pedazos (" + febrero.length() + " bytes)");
+        agregarLineaMalFormada(febrero, "malformada;sin;campos");
+
+        Main.CsvStorage otro = new Main.CsvStorage(carpeta.getPath());
+        List<String> secuencial = new ArrayList<>();
+        for (Main.Cita c : otro.cargarCitas()) secuencial.add(texto(c));
+        List<String> paralela = new ArrayList<>();
+        for (Main.Cita c : otro.cargarCitasParalelo()) paralela.add(texto(c));
+
+        comprobar(secuencial.size() == 59_999, "la carga secuencial trae 59999 citas, trae " + secuencial.size());
+        comprobar(secuencial.stream().noneMatch(t -> t.startsWith("C7|")), "C7 no se guardó (estaba cancelada)");
+        comprobar(secuencial.get(3).equals(texto(citas.get(3))), "los escapes vuelven iguales: " + secuencial.get(3));
+        for (int i = 0; i < Math.max(secuencial.size(), paralela.size()); i++) {
+            String a = i < secuencial.size() ? secuencial.get(i) : null;
+            String b = i < paralela.size() ? paralela.get(i) : null;
+            comprobar(Objects.equals(a, b), "la cita " + i + " difiere: secuencial " + a + ", paralela " + b);
+        }
+    }
+
+    /**
+     * guardarYRecargar()
+     * ------------------
+     * Guarda con guardarTodo un estado con escapes en nombres y motivos, una cita cancelada,
+     * una reprogramada y una serie con una ocurrencia cancelada. Un Sistema nuevo lo carga
+     * igual desde snapshot.bin y, borrando el snapshot, desde los CSV.
+     */
+    static void guardarYRecargar(File carpeta) {
+        Main.Sistema sistema = sistemaConDatos(carpeta);
+        sistema.altaDoctor(new Main.Doctor("D2", "Gómez; \"Pepe\"", "Pediatría"));
+        sistema.altaPaciente(new Main.Paciente("P2", "Ana\nMaría \\ ;"));
+        for (int i = 0; i < 30; i++) {
+            sistema.crearCita("C" + i, Benchmarks.horario(i), MOTIVOS_ESCAPADOS[i % MOTIVOS_ESCAPADOS.length],
+                    i % 2 == 0 ? "D1" : "D2", i % 3 == 0 ? "P2" : "P1");
+        }
+        sistema.cancelarCita("C3");
+        sistema.reprogramarCita("C5", Benchmarks.horario(100));
+        sistema.crearSerie("S1", "2027-06-01T08:00", 7, 5, "Terapia; semanal", "D2", "P2");
+        sistema.cancelarCita("S1#2");
+        sistema.guardarTodo();
+        List<String> esperado = describir(sistema);
+
+        Main.Sistema desdeSnapshot = new Main.Sistema(carpeta.getPath());
+        desdeSnapshot.cargarTodo();
+        comprobar(describir(desdeSnapshot).equals(esperado), "desde snapshot.bin: " + describir(desdeSnapshot) + ", se esperaba " + esperado);
+
+        comprobar(new File(carpeta, "snapshot.bin").delete(), "se borra snapshot.bin");
+        Main.Sistema desdeCsv = new Main.Sistema(carpeta.getPath());
+        desdeCsv.cargarTodo();
+        comprobar(describir(desdeCsv).equals(esperado), "desde los CSV: " + describir(desdeCsv) + ", se esperaba " + esperado);
+    }
+
+    // =======================
+    // DATOS
+    // =======================
+
+    /** Motivos con todo lo que hay que escapar en un CSV. */
+    static final String[] MOTIVOS_ESCAPADOS = {
+        "Consulta general", "Revisión; seguimiento", "Dolor\nrecurrente", "Dice \"urgente\"", "Ruta C:\\citas;x",
+    };
+
+    /**
+     * Todo lo que se guarda de doctores, pacientes, citas y series, como texto comparable.
+     * Las citas salen del historial de cada paciente (en orden de alta).
+     */
+    static List<String> describir(Main.Sistema sistema) {
+        List<String> lineas = new ArrayList<>();
+        for (String id : new String[] { "D1", "D2" }) {
+            Main.Doctor d = sistema.buscarDoctorPorId(id);
+            lineas.add(d == null ? id + " no existe" : d.getId() + "|" + d.getNombreCompleto() + "|" + d.getEspecialidad());
+        }
+        for (String id : new String[] { "P1", "P2" }) {
+            Main.Paciente p = sistema.buscarPacientePorId(id);
+            lineas.add(p == null ? id + " no existe" : p.getId() + "|" + p.getNombreCompleto());
+            sistema.citasDePaciente(id).stream().forEach(c -> lineas.add(texto(c)));
+            for (Main.SerieCitas s : sistema.seriesDePaciente(id)) {
+                lineas.add(s.getId() + "|" + s.getInicio() + "|" + s.getCadaDias() + "|" + s.getRepeticiones()
+                        + "|" + s.getMotivo() + "|" + s.getDoctorId() + "|" + s.excepcionesTexto());
+            }
+        }
+        return lineas;
+    }
+
+    /**
+     * Agrega una línea a la mitad de un CSV ya guardado y reescribe su trailer
+     * (#FIN;registros;crc32) para que siga siendo válido.
+     */
+    static void agregarLineaMalFormada(File archivo, String linea) throws Exception {
+        String contenido = new String(Files.readAllBytes(archivo.toPath()), StandardCharsets.UTF_8);
+        int trailer = contenido.lastIndexOf("#FIN;");
+        List<String> lineas = new ArrayList<>(Arrays.asList(contenido.substring(0, trailer).split("\n")));
+        lineas.add(lineas.size() / 2, linea);
+
+        ByteArrayOutputStream datos = new ByteArrayOutputStream();
+        for (String l : lineas) datos.write((l + "\n").getBytes(StandardCharsets.UTF_8));
+        CRC32 crc = new CRC32();
+        crc.update(datos.toByteArray());
+        datos.write(("#FIN;" + lineas.size() + ";" + Long.toHexString(crc.getValue()) + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.write(archivo.toPath(), datos.toByteArray());
+    }
+
+    /** Los cinco campos de una cita, para comparar cargas. */
+    static String texto(Main.Cita c) {
+        return c.getId() + "|" + c.getFechaHora() + "|" + c.getMotivo() + "|" + c.getDoctorId() + "|" + c.getPacienteId();
+    }
+
+    /** Sistema vacío en la carpeta, con un admin logueado, el doctor D1 y el paciente P1. */
+    static Main.Sistema sistemaConDatos(File carpeta) {
+        Main.Sistema sistema = new Main.Sistema(carpeta.getPath());
+        sistema.cargarTodo();
+        sistema.registrarAdmin("A1", "admin", "clave-verif");
+        sistema.login("admin", "clave-verif");
+        sistema.altaDoctor(new Main.Doctor("D1", "Ana López", "Cardiología"));
+        sistema.altaPaciente(new Main.Paciente("P1", "Luis Pérez"));
+        return sistema;
+    }
+
+    // =======================
+    // HARNESS
+    // =======================
+
+    /** Corre una verificación en la subcarpeta con su nombre e imprime el resultado. */
+    static void verificar(File carpeta, String nombre, Verificacion v) {
+        try {
+            v.ejecutar(new File(carpeta, nombre));
+            System.out.println("ok     " + nombre);
+        } catch (Exception | AssertionError e) {
+            fallas++;
+            System.out.println("FALLA  " + nombre + ": " + e);
+        }
+    }
+
+    /** Lanza AssertionError con el mensaje si la condición no se cumple. */
+    static void comprobar(boolean condicion, String mensaje) {
+        if (!condicion) throw new AssertionError(mensaje);
+    }
+
+    /** Borra la carpeta temporal. */
+    private static void borrar(File f) {
+        File[] hijos = f.listFiles();
+        if (hijos != null) for (File h : hijos) borrar(h);
+        f.delete();
+    }
+}